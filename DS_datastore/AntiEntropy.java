@@ -0,0 +1,281 @@
+package DS_datastore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Background repair of replicas that diverged despite replication (e.g. updates lost across a restart).
+ * <p>
+ * Every {@link ServerConfig#ANTI_ENTROPY_INTERVAL_MS} the server picks a random peer and compares their
+ * {@link MerkleTree}s over the state transfer port ({@link AntiEntropyMessage}): starting from the roots,
+ * only the children of differing nodes are compared, so equal replicas exchange a single hash. The entries
+ * of the differing leaves are then sent both ways and merged ({@link KeyValueStore#mergeEntry}), which
+ * keeps the newer version of each key, or the same one of two concurrent versions on both sides.
+ * Repair traffic is therefore proportional to the number of differing leaves, not to the dataset.
+ * <p>
+ * When keys are partitioned ({@link HashRing#isPartial()}) two servers only share part of their keys:
+ * each exchange then compares trees built on the fly over the keys both replicate, at the cost of a scan
+ * of the local store per round.
+ */
+public class AntiEntropy implements Runnable {
+
+    /** The keys compared with one peer and their tree. */
+    private static final class View {
+        final MerkleTree tree;
+        final Predicate<String> shared;
+
+        View(MerkleTree tree, Predicate<String> shared) {
+            this.tree = tree;
+            this.shared = shared;
+        }
+    }
+
+    /** Timeout used when opening the connection to the peer. */
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+
+    /** Timeout of a read during an exchange. */
+    private static final int READ_TIMEOUT_MS = 30_000;
+
+    /** The server whose store is repaired. */
+    private final Server server;
+
+    /** Picks the peer of each round. */
+    private final Random random = new Random();
+
+    /** Number of completed rounds. */
+    private final AtomicLong rounds = new AtomicLong();
+
+    /** Number of differing leaves found by all the exchanges. */
+    private final AtomicLong divergentLeaves = new AtomicLong();
+
+    /** Number of entries stored by all the exchanges. */
+    private final AtomicLong repairedEntries = new AtomicLong();
+
+    /**
+     * Constructs the anti-entropy task of the given server.
+     *
+     * @param server the local server
+     */
+    public AntiEntropy(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Runs a round with a random peer every {@link ServerConfig#ANTI_ENTROPY_INTERVAL_MS}.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(ServerConfig.ANTI_ENTROPY_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            List<PeerInfo> peers = server.getPeerServers();
+            peers.removeIf(p -> p.getServerId().equals(server.getServerId()));
+            if (peers.isEmpty()) {
+                continue;
+            }
+            PeerInfo peer = peers.get(random.nextInt(peers.size()));
+            try {
+                syncWith(peer);
+            } catch (Exception e) {
+                Log.warn("Anti-entropy with " + peer + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compares the local tree with the one of a peer and repairs the differences on both sides.
+     *
+     * @param peer the peer
+     * @throws IOException if the exchange fails
+     */
+    public void syncWith(PeerInfo peer) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(peer.getHost(), peer.getStateTransferPort()), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            try (MessageWriter out = new MessageWriter(socket.getOutputStream());
+                 MessageReader in = new MessageReader(socket.getInputStream())) {
+                View view = viewFor(peer.getServerId());
+                MerkleTree tree = view.tree;
+                out.writeMessage(new AntiEntropyMessage(tree.getLevels(), 0, Collections.singletonList(0),
+                        Collections.singletonList(tree.nodeHash(0, 0)), server.getServerId()));
+                out.flush();
+                exchange(readMessage(in), in, out, peer.toString(), view);
+            }
+        }
+        rounds.incrementAndGet();
+    }
+
+    /**
+     * Serves an exchange started by a peer on the state transfer port.
+     *
+     * @param first the first message received
+     * @param in    the stream from the peer
+     * @param out   the stream to the peer
+     * @param peer  a description of the peer, for logging
+     * @throws IOException if the exchange fails
+     */
+    public void serve(AntiEntropyMessage first, MessageReader in, MessageWriter out, String peer) throws IOException {
+        exchange(first, in, out, peer, viewFor(first.getSenderId()));
+    }
+
+    /**
+     * Returns the keys to compare with a peer: the whole store, or only the keys both servers replicate.
+     *
+     * @param peerId the ID of the peer, {@code null} if unknown
+     */
+    private View viewFor(String peerId) {
+        KeyValueStore store = server.getKeyValueStore();
+        HashRing ring = server.getHashRing();
+        if (peerId == null || !ring.isPartial()) {
+            return new View(store.getMerkleTree(), null);
+        }
+        String self = server.getServerId();
+        Predicate<String> shared = key -> ring.isReplica(key, self) && ring.isReplica(key, peerId);
+        MerkleTree tree = new MerkleTree(store.getMerkleTree().getLevels());
+        for (Map.Entry<String, ValueEntry> entry : store.entries()) {
+            if (shared.test(entry.getKey())) {
+                tree.update(entry.getKey(), null, entry.getValue());
+            }
+        }
+        return new View(tree, shared);
+    }
+
+    /**
+     * Answers messages until the exchange ends.
+     */
+    private void exchange(AntiEntropyMessage received, MessageReader in, MessageWriter out, String peer, View view)
+            throws IOException {
+        int leaves = 0;
+        int repaired = 0;
+        while (true) {
+            AntiEntropyMessage reply = null;
+            switch (received.getType()) {
+                case COMPARE:
+                    reply = compare(received, view);
+                    if (reply.getType() == AntiEntropyMessage.Type.ENTRIES) {
+                        leaves = reply.getNodes().size();
+                    }
+                    break;
+                case ENTRIES:
+                    leaves = received.getNodes().size();
+                    if (received.isReplyExpected()) {
+                        // Collected before merging, so that the peer's entries are not sent back.
+                        reply = entriesOf(received.getNodes(), false, view);
+                    }
+                    repaired += server.applyReceivedEntries(received.getKeys(), received.getEntries());
+                    break;
+                case DONE:
+                    break;
+            }
+            if (reply != null) {
+                out.writeMessage(reply);
+                out.flush();
+            }
+            if (reply == null || reply.getType() == AntiEntropyMessage.Type.DONE
+                    || (reply.getType() == AntiEntropyMessage.Type.ENTRIES && !reply.isReplyExpected())) {
+                break;
+            }
+            received = readMessage(in);
+        }
+        divergentLeaves.addAndGet(leaves);
+        repairedEntries.addAndGet(repaired);
+        if (leaves > 0) {
+            Log.info("Anti-entropy with " + peer + ": " + leaves + " leaves differed, "
+                    + repaired + " entries repaired locally");
+        }
+    }
+
+    /**
+     * Compares the received node hashes with the local ones and goes one level down on the differing nodes.
+     */
+    private AntiEntropyMessage compare(AntiEntropyMessage msg, View view) throws IOException {
+        MerkleTree tree = view.tree;
+        if (msg.getTreeLevels() != tree.getLevels()) {
+            throw new IOException("Merkle tree shape mismatch: " + msg.getTreeLevels() + " levels, local " + tree.getLevels());
+        }
+        int level = msg.getLevel();
+        List<Integer> differing = new ArrayList<>();
+        for (int i = 0; i < msg.getNodes().size(); i++) {
+            int node = msg.getNodes().get(i);
+            if (tree.nodeHash(level, node) != msg.getHashes().get(i)) {
+                differing.add(node);
+            }
+        }
+        if (differing.isEmpty()) {
+            return new AntiEntropyMessage();
+        }
+        if (level == tree.getLevels()) {
+            return entriesOf(differing, true, view);
+        }
+        List<Integer> children = new ArrayList<>(differing.size() * MerkleTree.FANOUT);
+        List<Long> hashes = new ArrayList<>(differing.size() * MerkleTree.FANOUT);
+        for (int node : differing) {
+            for (int c = 0; c < MerkleTree.FANOUT; c++) {
+                int child = node * MerkleTree.FANOUT + c;
+                children.add(child);
+                hashes.add(tree.nodeHash(level + 1, child));
+            }
+        }
+        return new AntiEntropyMessage(tree.getLevels(), level + 1, children, hashes, server.getServerId());
+    }
+
+    /**
+     * Builds an ENTRIES message with the local entries of the given leaves.
+     */
+    private AntiEntropyMessage entriesOf(List<Integer> leaves, boolean replyExpected, View view) {
+        List<String> keys = new ArrayList<>();
+        List<ValueEntry> entries = new ArrayList<>();
+        for (Map.Entry<String, ValueEntry> entry : server.getKeyValueStore().entriesInLeaves(new HashSet<>(leaves))) {
+            if (view.shared != null && !view.shared.test(entry.getKey())) {
+                continue;
+            }
+            keys.add(entry.getKey());
+            entries.add(entry.getValue());
+        }
+        server.forceLog();
+        return new AntiEntropyMessage(leaves, keys, entries, replyExpected);
+    }
+
+    private static AntiEntropyMessage readMessage(MessageReader in) throws IOException {
+        Object msg = in.readMessage();
+        if (!(msg instanceof AntiEntropyMessage)) {
+            throw new IOException("Unexpected anti-entropy message: " + msg);
+        }
+        return (AntiEntropyMessage) msg;
+    }
+
+    /**
+     * Returns the number of rounds started by this server and completed.
+     *
+     * @return the round count
+     */
+    public long getRounds() {
+        return rounds.get();
+    }
+
+    /**
+     * Returns the number of differing leaves found so far.
+     *
+     * @return the divergent leaf count
+     */
+    public long getDivergentLeaves() {
+        return divergentLeaves.get();
+    }
+
+    /**
+     * Returns the number of entries stored by repairs so far.
+     *
+     * @return the repaired entry count
+     */
+    public long getRepairedEntries() {
+        return repairedEntries.get();
+    }
+}
@@ -0,0 +1,175 @@
+package DS_datastore;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A message of the anti-entropy protocol run by {@link AntiEntropy} between two replicas.
+ * <p>
+ * The two sides walk down their {@link MerkleTree}s together: a COMPARE message carries the hashes of
+ * some nodes of one level, and the receiver answers with the hashes of the children of the nodes that
+ * differ, one level lower. At the leaf level the receiver sends its ENTRIES of the differing leaves
+ * and the other side answers with its own; each side merges what it receives. DONE ends the exchange
+ * when no node differs.
+ * <p>
+ * COMPARE messages carry the ID of their sender: when keys are partitioned ({@link HashRing}) the
+ * receiver must know who it compares with, since both sides only hash the keys they both replicate.
+ */
+public class AntiEntropyMessage {
+
+    /**
+     * Defines the type of the anti-entropy message.
+     */
+    public enum Type {
+        /** Hashes of some tree nodes of one level. */
+        COMPARE,
+        /** Entries of some tree leaves. */
+        ENTRIES,
+        /** The trees are equal below the compared nodes. */
+        DONE
+    }
+
+    private final Type type;
+    private final int treeLevels;                // Used for COMPARE
+    private final int level;                     // Used for COMPARE
+    private final List<Integer> nodes;           // Used for COMPARE and ENTRIES (leaves)
+    private final List<Long> hashes;             // Used for COMPARE
+    private final List<String> keys;             // Used for ENTRIES
+    private final List<ValueEntry> entries;      // Used for ENTRIES
+    private final boolean replyExpected;         // Used for ENTRIES
+    private final String senderId;               // Used for COMPARE, null if unknown
+
+    /**
+     * Constructs a COMPARE message.
+     *
+     * @param treeLevels the number of levels of the sender's tree
+     * @param level      the level of the compared nodes, 0 for the root
+     * @param nodes      the indexes of the compared nodes within their level
+     * @param hashes     the sender's hashes of the nodes
+     * @param senderId   the ID of the sending server
+     */
+    public AntiEntropyMessage(int treeLevels, int level, List<Integer> nodes, List<Long> hashes, String senderId) {
+        this(Type.COMPARE, treeLevels, level, nodes, hashes, Collections.emptyList(), Collections.emptyList(), false,
+                senderId);
+    }
+
+    /**
+     * Constructs an ENTRIES message.
+     *
+     * @param leaves        the leaves whose entries are sent
+     * @param keys          the keys falling in those leaves
+     * @param entries       the entries, one per key
+     * @param replyExpected whether the receiver must answer with its own entries of the same leaves
+     */
+    public AntiEntropyMessage(List<Integer> leaves, List<String> keys, List<ValueEntry> entries, boolean replyExpected) {
+        this(Type.ENTRIES, 0, 0, leaves, Collections.emptyList(), keys, entries, replyExpected, null);
+    }
+
+    /**
+     * Constructs a DONE message.
+     */
+    public AntiEntropyMessage() {
+        this(Type.DONE, 0, 0, Collections.emptyList(), Collections.emptyList(), Collections.emptyList(),
+                Collections.emptyList(), false, null);
+    }
+
+    private AntiEntropyMessage(Type type, int treeLevels, int level, List<Integer> nodes, List<Long> hashes,
+                               List<String> keys, List<ValueEntry> entries, boolean replyExpected, String senderId) {
+        if (nodes.size() != hashes.size() && type == Type.COMPARE) {
+            throw new IllegalArgumentException("One hash per node is required");
+        }
+        if (keys.size() != entries.size()) {
+            throw new IllegalArgumentException("One entry per key is required");
+        }
+        this.type = type;
+        this.treeLevels = treeLevels;
+        this.level = level;
+        this.nodes = nodes;
+        this.hashes = hashes;
+        this.keys = keys;
+        this.entries = entries;
+        this.replyExpected = replyExpected;
+        this.senderId = senderId;
+    }
+
+    /**
+     * Returns the type of the message.
+     *
+     * @return the message type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the number of levels of the sender's tree (COMPARE).
+     *
+     * @return the tree levels
+     */
+    public int getTreeLevels() {
+        return treeLevels;
+    }
+
+    /**
+     * Returns the level of the compared nodes (COMPARE).
+     *
+     * @return the level, 0 for the root
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the compared nodes (COMPARE) or the leaves whose entries are sent (ENTRIES).
+     *
+     * @return the node indexes
+     */
+    public List<Integer> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the sender's hashes of the compared nodes (COMPARE).
+     *
+     * @return the hashes, one per node
+     */
+    public List<Long> getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Returns the keys of the sent entries (ENTRIES).
+     *
+     * @return the keys
+     */
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Returns the sent entries (ENTRIES).
+     *
+     * @return the entries, one per key
+     */
+    public List<ValueEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Tells whether the receiver must answer with its own entries of the same leaves (ENTRIES).
+     *
+     * @return {@code true} if a reply is expected
+     */
+    public boolean isReplyExpected() {
+        return replyExpected;
+    }
+
+    /**
+     * Returns the ID of the server that sent the comparison (COMPARE).
+     *
+     * @return the sender ID, {@code null} if sent by a server that does not carry it
+     */
+    public String getSenderId() {
+        return senderId;
+    }
+}
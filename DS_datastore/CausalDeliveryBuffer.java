@@ -0,0 +1,357 @@
+package DS_datastore;
+
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+/**
+ * Buffer of remote updates that are not yet causally ready, indexed so that applying an
+ * update only re-examines the updates it may unblock.
+ * <p>
+ * Updates are grouped by origin server and sorted by origin sequence number: since an origin's
+ * updates must be applied one after the other, only the head of each origin queue can ever be
+ * ready. A head that is blocked by a missing dependency on another server {@code j} is registered
+ * as a waiter on {@code (j, required counter)}; when the local clock entry of {@code j} advances,
+ * only those waiters (and the next update of {@code j} itself) are checked again.
+ * <p>
+ * A range update ({@link UpdateMessage#isRange()}) is queued under the first sequence it covers,
+ * so that it is the head as soon as the updates before the range are applied; single updates
+ * it covers are dropped once it has been applied.
+ * <p>
+ * Not thread-safe: the owning {@link Server} calls it while holding the lock of its local clock.
+ * The metric getters can be read from any thread.
+ */
+public class CausalDeliveryBuffer {
+
+    /** A buffered update together with the time it entered the buffer. */
+    private static final class Pending {
+        final UpdateMessage update;
+        final long bufferedAt;
+
+        Pending(UpdateMessage update, long bufferedAt) {
+            this.update = update;
+            this.bufferedAt = bufferedAt;
+        }
+    }
+
+    /** Buffered updates of each origin (by {@link ServerIndex} index), sorted by first origin sequence. */
+    private final Map<Integer, TreeMap<Long, Pending>> byOrigin = new HashMap<>();
+
+    /**
+     * Blocked heads: for each dependency index, the origins whose head waits for that
+     * clock entry to reach a given counter.
+     */
+    private final Map<Integer, TreeMap<Long, Set<Integer>>> waiters = new HashMap<>();
+
+    /** Number of buffered updates. */
+    private volatile int depth;
+
+    /** Number of updates ever buffered. */
+    private volatile long bufferedCount;
+
+    /** Number of buffered updates later released for application. */
+    private volatile long deliveredCount;
+
+    /** Number of buffered updates discarded as duplicates or obsolete. */
+    private volatile long droppedCount;
+
+    /** Total time spent in the buffer by released updates, in nanoseconds. */
+    private volatile long totalWaitNanos;
+
+    /** Longest time spent in the buffer by a released update, in nanoseconds. */
+    private volatile long maxWaitNanos;
+
+    /** Distribution of the time spent in the buffer by released updates. */
+    private final LatencyHistogram waitTimes;
+
+    /**
+     * Constructs an empty buffer.
+     */
+    public CausalDeliveryBuffer() {
+        this(new LatencyHistogram());
+    }
+
+    /**
+     * Constructs an empty buffer recording the wait time of released updates in the given histogram.
+     *
+     * @param waitTimes the histogram of the wait times
+     */
+    public CausalDeliveryBuffer(LatencyHistogram waitTimes) {
+        this.waitTimes = waitTimes;
+    }
+
+    /**
+     * Buffers an update that cannot be applied yet.
+     *
+     * @param update the update
+     * @param clock  the current local clock, used to index the update if it becomes its origin's head
+     */
+    public void add(UpdateMessage update, VectorClock clock) {
+        int origin = ServerIndex.indexOf(update.getOriginServerId());
+        TreeMap<Long, Pending> queue = byOrigin.computeIfAbsent(origin, k -> new TreeMap<>());
+        long seq = update.getFirstSequence();
+        Pending existing = queue.get(seq);
+        if (existing != null) {
+            droppedCount++;
+            if (existing.update.getOriginSequence() < update.getOriginSequence()) {
+                // Keep the update covering more of the origin's sequence (a range over a single update).
+                queue.put(seq, new Pending(update, existing.bufferedAt));
+            }
+            return;
+        }
+        queue.put(seq, new Pending(update, System.nanoTime()));
+        depth++;
+        bufferedCount++;
+        if (queue.firstKey() == seq) {
+            registerWaiter(origin, update.getVectorClock(), clock);
+        }
+    }
+
+    /**
+     * Removes and returns the buffered updates made ready by a change of the local clock entry at
+     * {@code changedIndex}. At most one update per origin is returned, since the next one of the
+     * same origin only becomes ready once the returned one has been applied; the caller reports each
+     * application with another call, which releases the following updates.
+     *
+     * @param clock        the local clock
+     * @param changedIndex the {@link ServerIndex} index whose counter just advanced
+     * @return the updates that can now be applied, possibly empty
+     */
+    public List<UpdateMessage> release(VectorClock clock, int changedIndex) {
+        if (depth == 0) {
+            return Collections.emptyList();
+        }
+        Set<Integer> origins = new LinkedHashSet<>();
+        origins.add(changedIndex);
+        TreeMap<Long, Set<Integer>> waiting = waiters.get(changedIndex);
+        if (waiting != null) {
+            NavigableMap<Long, Set<Integer>> woken = waiting.headMap(clock.getAt(changedIndex), true);
+            for (Set<Integer> set : woken.values()) {
+                origins.addAll(set);
+            }
+            woken.clear();
+        }
+        return releaseHeads(origins, clock);
+    }
+
+    /**
+     * Removes and returns the head of every origin queue that is ready. Used after the local clock
+     * has been merged with an external one (e.g. after a state transfer), which may advance any entry.
+     *
+     * @param clock the local clock
+     * @return the updates that can now be applied, possibly empty
+     */
+    public List<UpdateMessage> releaseAll(VectorClock clock) {
+        if (depth == 0) {
+            return Collections.emptyList();
+        }
+        waiters.clear();
+        return releaseHeads(new ArrayList<>(byOrigin.keySet()), clock);
+    }
+
+    /**
+     * Replaces every buffered update with the result of a function, or drops it if the result is
+     * {@code null}; used when the clocks of buffered updates must be rewritten (see {@link ClockRetirement}).
+     * The dependencies being waited for are forgotten: {@link #releaseAll(VectorClock)} must be called next.
+     *
+     * @param function the rewriting function
+     */
+    public void replaceAll(UnaryOperator<UpdateMessage> function) {
+        Iterator<TreeMap<Long, Pending>> queues = byOrigin.values().iterator();
+        while (queues.hasNext()) {
+            Iterator<Map.Entry<Long, Pending>> it = queues.next().entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Pending> entry = it.next();
+                Pending pending = entry.getValue();
+                UpdateMessage rewritten = function.apply(pending.update);
+                if (rewritten == null) {
+                    it.remove();
+                    depth--;
+                    droppedCount++;
+                } else if (rewritten != pending.update) {
+                    entry.setValue(new Pending(rewritten, pending.bufferedAt));
+                }
+            }
+        }
+        byOrigin.values().removeIf(Map::isEmpty);
+        waiters.clear();
+    }
+
+    private List<UpdateMessage> releaseHeads(Collection<Integer> origins, VectorClock clock) {
+        List<UpdateMessage> ready = new ArrayList<>();
+        for (int origin : origins) {
+            UpdateMessage head = releaseHead(origin, clock);
+            if (head != null) {
+                ready.add(head);
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Drops the already-applied prefix of an origin queue, then removes its head if it is ready,
+     * or registers it as a waiter otherwise.
+     *
+     * @return the ready head, or {@code null}
+     */
+    private UpdateMessage releaseHead(int origin, VectorClock clock) {
+        TreeMap<Long, Pending> queue = byOrigin.get(origin);
+        while (queue != null && !queue.isEmpty()) {
+            Map.Entry<Long, Pending> head = queue.firstEntry();
+            UpdateMessage update = head.getValue().update;
+            VectorClock updateClock = update.getVectorClock();
+            if (clock.getAt(origin) >= update.getOriginSequence() || clock.dominates(updateClock)) {
+                // Already applied (e.g. through a state transfer or a duplicate delivery).
+                remove(queue, origin, head.getKey());
+                droppedCount++;
+            } else if (clock.canApply(origin, updateClock, update.getFirstSequence())) {
+                remove(queue, origin, head.getKey());
+                long waited = System.nanoTime() - head.getValue().bufferedAt;
+                totalWaitNanos += waited;
+                maxWaitNanos = Math.max(maxWaitNanos, waited);
+                waitTimes.record(waited);
+                deliveredCount++;
+                return update;
+            } else {
+                registerWaiter(origin, updateClock, clock);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void remove(TreeMap<Long, Pending> queue, int origin, long seq) {
+        queue.remove(seq);
+        depth--;
+        if (queue.isEmpty()) {
+            byOrigin.remove(origin);
+        }
+    }
+
+    /**
+     * Registers the head of an origin queue on its first unsatisfied dependency. A head that only
+     * waits for earlier updates of its own origin needs no registration: every change of the
+     * origin's entry re-examines its queue.
+     */
+    private void registerWaiter(int origin, VectorClock updateClock, VectorClock clock) {
+        int width = updateClock.width();
+        for (int i = 0; i < width; i++) {
+            long required = updateClock.getAt(i);
+            if (i != origin && required > clock.getAt(i)) {
+                waiters.computeIfAbsent(i, k -> new TreeMap<>())
+                        .computeIfAbsent(required, k -> new HashSet<>())
+                        .add(origin);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the servers whose missing updates have blocked an origin queue for too long. Such a stall
+     * means that an update was lost on its way (e.g. its sender crashed before writing it out, or dropped it
+     * once its outbox was full): replication will not bring it anymore, and it must be fetched by a resync.
+     * The server blamed for a queue is its origin if the head does not follow the origin's last applied
+     * update, and otherwise the first dependency of the head that is not satisfied yet.
+     *
+     * @param clock        the local clock
+     * @param maxWaitNanos the time a head may wait before it is reported
+     * @return the IDs of the servers whose updates are missing, possibly empty
+     */
+    public Set<String> stalledOn(VectorClock clock, long maxWaitNanos) {
+        Set<String> missing = new LinkedHashSet<>();
+        if (depth == 0) {
+            return missing;
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<Integer, TreeMap<Long, Pending>> entry : byOrigin.entrySet()) {
+            int origin = entry.getKey();
+            Pending head = entry.getValue().firstEntry().getValue();
+            if (now - head.bufferedAt < maxWaitNanos) {
+                continue;
+            }
+            if (head.update.getFirstSequence() > clock.getAt(origin) + 1) {
+                missing.add(ServerIndex.idAt(origin));
+                continue;
+            }
+            VectorClock updateClock = head.update.getVectorClock();
+            int width = updateClock.width();
+            for (int i = 0; i < width; i++) {
+                if (i != origin && updateClock.getAt(i) > clock.getAt(i)) {
+                    missing.add(ServerIndex.idAt(i));
+                    break;
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Returns the number of buffered updates.
+     *
+     * @return the buffer depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the time spent in the buffer by the oldest update still waiting.
+     * Not thread-safe, like the rest of the buffer.
+     *
+     * @return the age in milliseconds, 0 if the buffer is empty
+     */
+    public double getOldestAgeMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (TreeMap<Long, Pending> queue : byOrigin.values()) {
+            for (Pending pending : queue.values()) {
+                oldest = Math.min(oldest, pending.bufferedAt);
+            }
+        }
+        return (oldest == Long.MAX_VALUE) ? 0 : (System.nanoTime() - oldest) / 1e6;
+    }
+
+    /**
+     * Returns the number of updates ever buffered.
+     *
+     * @return the buffered count
+     */
+    public long getBufferedCount() {
+        return bufferedCount;
+    }
+
+    /**
+     * Returns the number of buffered updates that were eventually released for application.
+     *
+     * @return the delivered count
+     */
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * Returns the number of buffered updates discarded as duplicates or already applied.
+     *
+     * @return the dropped count
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the average time spent in the buffer by released updates.
+     *
+     * @return the mean wait time in milliseconds
+     */
+    public double getMeanWaitMillis() {
+        long delivered = deliveredCount;
+        return (delivered == 0) ? 0 : totalWaitNanos / 1e6 / delivered;
+    }
+
+    /**
+     * Returns the longest time spent in the buffer by a released update.
+     *
+     * @return the maximum wait time in milliseconds
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos / 1e6;
+    }
+}
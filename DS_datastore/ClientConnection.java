@@ -0,0 +1,298 @@
+package DS_datastore;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * State of one persistent client connection served by the {@link ClientListener} selector.
+ * <p>
+ * The client may pipeline any number of newline-terminated commands; they are executed in
+ * arrival order and their responses are queued in the same order. Backpressure: while more
+ * than {@link ServerConfig#CLIENT_MAX_PENDING_OUTPUT} bytes of responses are waiting to be
+ * written, no further command is executed and the connection stops reading, so a client that
+ * does not read its responses only fills its own TCP buffers.
+ * <p>
+ * Commands run on an executor, one at a time per connection, since a write may block on the WAL, a snapshot
+ * or the replication queues: connections are served in parallel and a slow command only delays its own
+ * connection. A response completes later, also when its request was forwarded to another server
+ * ({@link ClientHandler#route(String, InetAddress)}): it keeps its place in the queue, the responses behind it wait,
+ * and the connection asks the selector to serve it again once it completes. At most
+ * {@link ServerConfig#CLIENT_MAX_PENDING_REQUESTS} responses may be outstanding.
+ * <p>
+ * Used only by the selector thread, apart from the executed commands completing their responses.
+ */
+public class ClientConnection {
+    /** Initial size of the request buffer; it grows up to {@link ServerConfig#CLIENT_MAX_LINE_LENGTH}. */
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /** The client channel. */
+    private final SocketChannel channel;
+
+    /** Remote address of the client, which may be a peer forwarding requests. */
+    private final InetAddress address;
+
+    /** Bytes received and not yet consumed as complete lines (in write mode). */
+    private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /** A queued response: encoded once complete. */
+    private static final class Response {
+        final CompletableFuture<String> text;
+        ByteBuffer bytes;
+
+        Response(CompletableFuture<String> text) {
+            this.text = text;
+        }
+    }
+
+    /** Responses waiting to be written, in request order. */
+    private final Deque<Response> output = new ArrayDeque<>();
+
+    /** Number of encoded bytes in {@link #output}. */
+    private long pendingOutput;
+
+    /** Number of responses in {@link #output} not encoded yet. */
+    private int pendingResponses;
+
+    /** Asks the selector thread to serve this connection again; called by the threads completing responses. */
+    private final Runnable wakeup;
+
+    /** Runs the commands. */
+    private final Executor executor;
+
+    /** Execution of the last dispatched command: the next one runs after it, so commands run in arrival order. */
+    private CompletableFuture<Void> lastExecution = CompletableFuture.completedFuture(null);
+
+    /** Set once the client has closed its side or sent an invalid request. */
+    private boolean inputClosed;
+
+    /**
+     * Constructs the state of a newly accepted connection.
+     *
+     * @param channel  the accepted channel, already in non-blocking mode
+     * @param executor runs the commands
+     * @param wakeup   asks the selector thread to serve the connection again, callable from any thread
+     */
+    public ClientConnection(SocketChannel channel, Executor executor, Runnable wakeup) {
+        this.channel = channel;
+        this.address = channel.socket().getInetAddress();
+        this.executor = executor;
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * Returns the client channel.
+     *
+     * @return the channel
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Reads whatever the client has sent.
+     *
+     * @return the number of bytes read, or -1 if the client closed its side
+     * @throws IOException if the channel fails
+     */
+    public int read() throws IOException {
+        if (!input.hasRemaining()) {
+            if (hasBufferedRequest()) {
+                // Execute the buffered requests before accepting more data.
+                return 0;
+            }
+            if (input.capacity() >= ServerConfig.CLIENT_MAX_LINE_LENGTH) {
+                // A full buffer without a line terminator: the request is too long.
+                queue(CompletableFuture.completedFuture("ERROR: Request too long\n"));
+                inputClosed = true;
+                return -1;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity() * 2, ServerConfig.CLIENT_MAX_LINE_LENGTH));
+            input.flip();
+            larger.put(input);
+            input = larger;
+        }
+        int n = channel.read(input);
+        if (n < 0) {
+            inputClosed = true;
+        }
+        return n;
+    }
+
+    /**
+     * Dispatches the complete requests received so far, in order, until the output limit is reached.
+     *
+     * @param handler the command handler
+     */
+    public void processRequests(ClientHandler handler) {
+        input.flip();
+        try {
+            while (belowLimits()) {
+                int end = -1;
+                for (int i = input.position(); i < input.limit(); i++) {
+                    if (input.get(i) == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    break;
+                }
+                int length = end - input.position();
+                if (length > 0 && input.get(end - 1) == '\r') {
+                    length--;
+                }
+                String request = new String(input.array(), input.arrayOffset() + input.position(), length, StandardCharsets.UTF_8);
+                input.position(end + 1);
+                queue(dispatch(handler, request));
+            }
+        } finally {
+            input.compact();
+        }
+    }
+
+    /**
+     * Runs a request on the executor once the previous request of the connection has run.
+     */
+    private CompletableFuture<String> dispatch(ClientHandler handler, String request) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        lastExecution = lastExecution.exceptionally(failure -> null)
+                .thenRunAsync(() -> execute(handler, request, address, response), executor);
+        lastExecution.whenComplete((done, failure) -> {
+            if (failure != null) {
+                // The executor refused the task: the request never ran.
+                response.complete("ERROR: Server busy, request not executed\n");
+            }
+        });
+        return response;
+    }
+
+    private static void execute(ClientHandler handler, String request, InetAddress address,
+                                CompletableFuture<String> response) {
+        try {
+            handler.route(request, address).whenComplete((text, failure) -> {
+                if (failure != null) {
+                    response.completeExceptionally(failure);
+                } else {
+                    response.complete(text);
+                }
+            });
+        } catch (RuntimeException e) {
+            Log.warn("ClientHandler error: " + e.getMessage());
+            response.complete("ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    private void queue(CompletableFuture<String> text) {
+        Response response = new Response(text);
+        output.add(response);
+        if (text.isDone()) {
+            encode(response);
+        } else {
+            pendingResponses++;
+            text.whenComplete((r, e) -> wakeup.run());
+        }
+    }
+
+    private void encode(Response response) {
+        String text;
+        try {
+            text = response.text.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+            text = "ERROR: " + cause.getMessage() + "\n";
+        }
+        response.bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        pendingOutput += response.bytes.remaining();
+    }
+
+    private boolean belowLimits() {
+        return pendingOutput < ServerConfig.CLIENT_MAX_PENDING_OUTPUT
+                && pendingResponses < ServerConfig.CLIENT_MAX_PENDING_REQUESTS;
+    }
+
+    /**
+     * Writes as many queued responses as the socket accepts without blocking,
+     * stopping at the first one not completed yet.
+     *
+     * @throws IOException if the channel fails
+     */
+    public void write() throws IOException {
+        while (!output.isEmpty()) {
+            Response head = output.peek();
+            if (head.bytes == null) {
+                if (!head.text.isDone()) {
+                    return;
+                }
+                pendingResponses--;
+                encode(head);
+            }
+            int n = channel.write(head.bytes);
+            pendingOutput -= n;
+            if (head.bytes.hasRemaining()) {
+                return;
+            }
+            output.poll();
+        }
+    }
+
+    /**
+     * Tells whether a complete request has been received but not executed yet.
+     *
+     * @return {@code true} if the input holds a line terminator
+     */
+    public boolean hasBufferedRequest() {
+        for (int i = 0; i < input.position(); i++) {
+            if (input.get(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether responses are waiting to be written.
+     *
+     * @return {@code true} if the output queue is not empty
+     */
+    public boolean hasPendingOutput() {
+        return !output.isEmpty();
+    }
+
+    /**
+     * Tells whether the next queued response can be written, i.e. it is complete.
+     *
+     * @return {@code true} if the selector should wait for the socket to accept data
+     */
+    public boolean hasWritableOutput() {
+        Response head = output.peek();
+        return head != null && (head.bytes != null || head.text.isDone());
+    }
+
+    /**
+     * Tells whether the connection may read more requests, i.e. the client has not closed its side
+     * and the queued responses are below the backpressure limits.
+     *
+     * @return {@code true} if the selector should wait for incoming data
+     */
+    public boolean wantsRead() {
+        return !inputClosed && belowLimits();
+    }
+
+    /**
+     * Tells whether the connection is finished: the client closed its side and every response has been written.
+     *
+     * @return {@code true} if the connection can be closed
+     */
+    public boolean isDone() {
+        return inputClosed && output.isEmpty() && !hasBufferedRequest();
+    }
+}
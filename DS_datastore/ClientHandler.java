@@ -1,99 +1,278 @@
 package DS_datastore;
 
-import java.io.*;
-import java.net.Socket;
-import java.util.Map;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Handles communication with a single client connected to the server.
+ * Executes the text commands sent by clients.
  * This class processes commands such as READ, WRITE, and SHOW from the client,
- * interacts with the server's key-value store accordingly, and sends responses back.
- *
- * Implements {@link Runnable} to allow execution in a separate thread.
+ * interacts with the server's key-value store accordingly, and builds the response text.
+ * <p>
+ * A handler holds no per-connection state: one instance is shared by every connection
+ * served by the {@link ClientListener}.
+ * <p>
+ * When keys are partitioned ({@link HashRing}), requests are first routed by {@link #route(String, InetAddress)}:
+ * reads and writes of keys this server does not replicate are forwarded to a replica
+ * ({@link RequestForwarder}), so any server can be used by clients.
  */
-public class ClientHandler implements Runnable {
-    /** The socket associated with the connected client. */
-    private Socket clientSocket;
-
+public class ClientHandler {
     /** Reference to the main server instance to access shared data and operations. */
     private Server server;
 
+    /** Sends requests for keys replicated elsewhere to their replicas. */
+    private final RequestForwarder forwarder;
+
     /**
      * Constructs a new ClientHandler.
      *
-     * @param socket the socket representing the client's connection
      * @param server the server instance managing the key-value store
      */
-    public ClientHandler(Socket socket, Server server) {
-        this.clientSocket = socket;
+    public ClientHandler(Server server) {
         this.server = server;
+        this.forwarder = new RequestForwarder(server);
     }
 
     /**
-     * Handles the client's request.
+     * Routes one client request: executes it locally with {@link #handle(String)} if this server
+     * replicates its keys, forwards it to their replicas otherwise.
+     * <p>
+     * MREAD and MWRITE are split by replica set: the keys this server replicates are served locally,
+     * the others are forwarded in one request per replica set. An MWRITE spanning several replica sets
+     * is therefore applied as one update per set, not as a single update.
+     * Requests forwarded by another server ({@link RequestForwarder#FORWARDED}) are always served locally,
+     * and their response starts with the local clock ({@link RequestForwarder#contextLine(VectorClock)});
+     * they are refused unless the connection comes from a peer.
+     *
+     * @param request one request line, without the line terminator
+     * @param client  the remote address of the connection
+     * @return the response, already completed unless some keys were forwarded
+     */
+    public CompletableFuture<String> route(String request, InetAddress client) {
+        if (request.startsWith(RequestForwarder.FORWARDED)) {
+            if (!server.isPeerAddress(client)) {
+                return CompletableFuture.completedFuture("ERROR: Forwarded requests are only accepted from peers\n");
+            }
+            String response = handle(request.substring(RequestForwarder.FORWARDED.length()));
+            return CompletableFuture.completedFuture(RequestForwarder.contextLine(server.getLocalClock()) + response);
+        }
+        if (!server.getHashRing().isPartial()) {
+            return CompletableFuture.completedFuture(handle(request));
+        }
+        String[] tokens = request.split(" ", 3);
+        String command = tokens[0].toUpperCase();
+        if (("READ".equals(command) || "WRITE".equals(command)) && tokens.length >= 2 && !server.replicates(tokens[1])) {
+            return forwarder.forward(server.getHashRing().replicasOf(tokens[1]), request, null);
+        }
+        if ("READALL".equals(command) && tokens.length >= 2 && !server.replicates(tokens[1])) {
+            return forwarder.forward(server.getHashRing().replicasOf(tokens[1]), request, "END_OF_READALL")
+                    // A forwarding error is a single line: terminate it like a local response.
+                    .thenApply(response -> response.endsWith("END_OF_READALL\n")
+                            ? response
+                            : response + "END_OF_READALL\n");
+        }
+        if ("MREAD".equals(command) || "MWRITE".equals(command)) {
+            List<String> arguments = arguments(request);
+            if ("MREAD".equals(command) && !arguments.isEmpty()) {
+                return routeMultiRead(arguments);
+            }
+            if ("MWRITE".equals(command) && !arguments.isEmpty() && arguments.size() % 2 == 0) {
+                return routeMultiWrite(arguments);
+            }
+        }
+        // Malformed requests get their error message locally.
+        return CompletableFuture.completedFuture(handle(request));
+    }
+
+    /**
+     * Groups the positions of some keys by the servers replicating them; the keys replicated by
+     * this server are grouped under {@code null}.
+     */
+    private Map<List<String>, List<Integer>> groupByReplicas(List<String> keys) {
+        Map<List<String>, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            List<String> replicas = server.replicates(keys.get(i)) ? null : server.getHashRing().replicasOf(keys.get(i));
+            groups.computeIfAbsent(replicas, r -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    private CompletableFuture<String> routeMultiRead(List<String> keys) {
+        String[] lines = new String[keys.size()];
+        List<CompletableFuture<Void>> forwarded = new ArrayList<>();
+        for (Map.Entry<List<String>, List<Integer>> group : groupByReplicas(keys).entrySet()) {
+            List<Integer> positions = group.getValue();
+            if (group.getKey() == null) {
+                for (int i : positions) {
+                    lines[i] = readLine(keys.get(i), server.handleLocalRead(keys.get(i)));
+                }
+                continue;
+            }
+            StringBuilder request = new StringBuilder("MREAD");
+            for (int i : positions) {
+                request.append(' ').append(keys.get(i));
+            }
+            forwarded.add(forwarder.forward(group.getKey(), request.toString(), "END_OF_MREAD").thenAccept(response -> {
+                String[] received = response.split("\n");
+                for (int j = 0; j < positions.size(); j++) {
+                    // An error line instead of the values: report it for every key of the group.
+                    lines[positions.get(j)] = (received.length == positions.size() + 1 ? received[j] : received[0]) + "\n";
+                }
+            }));
+        }
+        return CompletableFuture.allOf(forwarded.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            StringBuilder response = new StringBuilder();
+            for (String line : lines) {
+                response.append(line);
+            }
+            return response.append("END_OF_MREAD\n").toString();
+        });
+    }
+
+    private CompletableFuture<String> routeMultiWrite(List<String> pairs) {
+        List<String> keys = new ArrayList<>(pairs.size() / 2);
+        List<String> values = new ArrayList<>(pairs.size() / 2);
+        for (int i = 0; i < pairs.size(); i += 2) {
+            keys.add(pairs.get(i));
+            values.add(pairs.get(i + 1));
+        }
+        List<CompletableFuture<String>> responses = new ArrayList<>();
+        for (Map.Entry<List<String>, List<Integer>> group : groupByReplicas(keys).entrySet()) {
+            StringBuilder request = new StringBuilder("MWRITE");
+            for (int i : group.getValue()) {
+                request.append(' ').append(keys.get(i)).append(' ').append(values.get(i));
+            }
+            responses.add(group.getKey() == null
+                    ? CompletableFuture.completedFuture(handle(request.toString()))
+                    : forwarder.forward(group.getKey(), request.toString(), null));
+        }
+        return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            for (CompletableFuture<String> response : responses) {
+                if (response.join().startsWith("ERROR")) {
+                    return response.join();
+                }
+            }
+            return "Write successful: " + keys.size() + " keys\n";
+        });
+    }
+
+    /**
+     * Formats the response line of one key of an MREAD.
+     */
+    private static String readLine(String key, String value) {
+        return (value != null) ? "Key: " + key + "; Value: " + value + "\n" : "ERROR: Key not found: " + key + "\n";
+    }
+
+    /**
+     * Handles one client request and returns its response.
      * <p>
      * Supported commands:
      * <ul>
      *     <li><b>READ key</b>: returns the value associated with the given key.</li>
+     *     <li><b>READALL key</b>: returns one line per concurrent value of the key ({@link ConflictResolver}),
+     *         latest first, terminated by {@code END_OF_READALL}.</li>
      *     <li><b>WRITE key value</b>: stores or updates the value associated with the key.</li>
-     *     <li><b>SHOW</b>: returns the entire contents of the key-value store.</li>
+     *     <li><b>MREAD key1 key2 ...</b>: returns one line per key, in order, terminated by {@code END_OF_MREAD}.</li>
+     *     <li><b>MWRITE key1 value1 key2 value2 ...</b>: writes all the pairs with a single version
+     *         and replicates them as one update (values cannot contain spaces).</li>
+     *     <li><b>SHOW</b>: returns the entire contents of the key-value store, terminated by {@code END_OF_SHOW}.</li>
+     *     <li><b>METRICS</b>: returns the server metrics ({@link Metrics}), terminated by {@code END_OF_METRICS}.</li>
      * </ul>
      * Any unknown or malformed commands will return an error message.
      *
-     * This method runs in its own thread when executed by a thread executor or manually started.
+     * @param request one request line, without the line terminator
+     * @return the response, one or more lines each terminated by {@code '\n'}
      */
-    public void run() {
-        try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)
-        ) {
-            String request = in.readLine();
-            if (request != null) {
-                // Split the request in token. SHOW command doesn't need other arguments.
-                String[] tokens = request.split(" ", 3);
-                String command = tokens[0].toUpperCase();
+    public String handle(String request) {
+        // Split the request in token. SHOW command doesn't need other arguments.
+        String[] tokens = request.split(" ", 3);
+        String command = tokens[0].toUpperCase();
 
-                if ("READ".equals(command)) {
-                    String key = tokens[1];
-                    String value = server.handleLocalRead(key);
-                    if (value != null) {
-                        out.println("Key: " + key + "; Value: " + value);
-                    } else {
-                        out.println("ERROR: Key not found");
-                    }
-                } else if ("WRITE".equals(command)) {
-                    if (tokens.length < 3) {
-                        out.println("ERROR: Invalid WRITE command. Usage: WRITE key value");
-                    } else {
-                        String key = tokens[1];
-                        String value = tokens[2];
-                        server.handleLocalWrite(key, value);
-                        out.println("Write successful");
-                    }
-                } else if ("SHOW".equals(command)) {
-                    // SHOW command handle: returns KeyValueStore contents.
-                    Map<String, ValueEntry> snapshot = server.getKeyValueStoreSnapshot();
-                    if (snapshot.isEmpty()) {
-                        out.println("Store is empty.");
-                    } else {
-                        for (Map.Entry<String, ValueEntry> entry : snapshot.entrySet()) {
-                            out.println(entry.getKey() + " => " + entry.getValue().toString());
-                        }
-                    }
-                    // Indicates response' end.
-                    out.println("END_OF_SHOW");
-                } else {
-                    out.println("ERROR: Unknown command");
-                }
+        if ("READ".equals(command)) {
+            if (tokens.length < 2) {
+                return "ERROR: Invalid READ command. Usage: READ key\n";
+            }
+            String key = tokens[1];
+            String value = server.handleLocalRead(key);
+            if (value != null) {
+                return "Key: " + key + "; Value: " + value + "\n";
+            } else {
+                return "ERROR: Key not found\n";
             }
-        } catch (IOException e) {
-            System.err.println("ClientHandler error: " + e.getMessage());
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                // Ignore closing error
+        } else if ("READALL".equals(command)) {
+            if (tokens.length < 2) {
+                return "ERROR: Invalid READALL command. Usage: READALL key\n";
             }
+            String key = tokens[1];
+            List<String> values = server.handleLocalReadSiblings(key);
+            if (values == null) {
+                return "ERROR: Key not found\nEND_OF_READALL\n";
+            }
+            StringBuilder response = new StringBuilder();
+            for (String value : values) {
+                response.append("Key: ").append(key).append("; Value: ").append(value).append('\n');
+            }
+            response.append("END_OF_READALL\n");
+            return response.toString();
+        } else if ("WRITE".equals(command)) {
+            if (tokens.length < 3) {
+                return "ERROR: Invalid WRITE command. Usage: WRITE key value\n";
+            }
+            String key = tokens[1];
+            String value = tokens[2];
+            server.handleLocalWrite(key, value);
+            return "Write successful\n";
+        } else if ("MREAD".equals(command)) {
+            List<String> keys = arguments(request);
+            if (keys.isEmpty()) {
+                return "ERROR: Invalid MREAD command. Usage: MREAD key1 key2 ...\n";
+            }
+            List<String> values = server.handleLocalMultiRead(keys);
+            StringBuilder response = new StringBuilder();
+            for (int i = 0; i < keys.size(); i++) {
+                response.append(readLine(keys.get(i), values.get(i)));
+            }
+            response.append("END_OF_MREAD\n");
+            return response.toString();
+        } else if ("MWRITE".equals(command)) {
+            List<String> pairs = arguments(request);
+            if (pairs.isEmpty() || pairs.size() % 2 != 0) {
+                return "ERROR: Invalid MWRITE command. Usage: MWRITE key1 value1 key2 value2 ...\n";
+            }
+            List<String> keys = new ArrayList<>(pairs.size() / 2);
+            List<String> values = new ArrayList<>(pairs.size() / 2);
+            for (int i = 0; i < pairs.size(); i += 2) {
+                keys.add(pairs.get(i));
+                values.add(pairs.get(i + 1));
+            }
+            server.handleLocalMultiWrite(keys, values);
+            return "Write successful: " + keys.size() + " keys\n";
+        } else if ("SHOW".equals(command)) {
+            // SHOW command handle: returns KeyValueStore contents.
+            StringBuilder response = new StringBuilder();
+            Map<String, ValueEntry> snapshot = server.getKeyValueStoreSnapshot();
+            if (snapshot.isEmpty()) {
+                response.append("Store is empty.\n");
+            } else {
+                for (Map.Entry<String, ValueEntry> entry : snapshot.entrySet()) {
+                    response.append(entry.getKey()).append(" => ").append(entry.getValue().toString()).append('\n');
+                }
+            }
+            // Indicates response' end.
+            response.append("END_OF_SHOW\n");
+            return response.toString();
+        } else if ("METRICS".equals(command)) {
+            return server.getMetrics().render() + "END_OF_METRICS\n";
+        } else {
+            return "ERROR: Unknown command\n";
         }
     }
+
+    /**
+     * Returns the space-separated arguments following the command word.
+     */
+    private static List<String> arguments(String request) {
+        String[] tokens = request.trim().split(" +");
+        return Arrays.asList(tokens).subList(1, tokens.length);
+    }
 }
@@ -1,22 +1,53 @@
 package DS_datastore;
 
-import java.net.*;
-import java.io.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
- * Listens for incoming client connections on a specified port and
- * spawns a new {@link ClientHandler} thread for each connected client.
+ * Listens for incoming client connections on a specified port and serves all of them
+ * from a single non-blocking selector thread.
+ * <p>
+ * Connections are persistent: a client can send any number of pipelined commands on the
+ * same connection and receives the responses in the same order (see {@link ClientConnection}).
+ * At most {@link ServerConfig#CLIENT_MAX_CONNECTIONS} connections are served at the same time;
+ * further clients receive an error line and are disconnected.
+ * <p>
+ * The selector thread only reads requests and writes responses. Commands run on the server's connection
+ * executor ({@link Server#getConnectionExecutor()}), one at a time per connection, since a write may wait
+ * for the WAL, a snapshot, the clock lock or the replication queues; requests forwarded to other servers
+ * ({@link RequestForwarder}) are sent by executor threads. Either way the executor thread hands the
+ * connection back to the selector thread when the response is ready.
  *
- * This class is meant to be executed in a separate thread or thread pool
- * by implementing the {@link Runnable} interface.
+ * This class is meant to be executed in a separate thread by implementing the {@link Runnable} interface.
  */
 public class ClientListener implements Runnable {
+    /** Response sent to clients refused because of the connection limit. */
+    private static final byte[] TOO_MANY_CONNECTIONS = "ERROR: Too many connections\n".getBytes(StandardCharsets.UTF_8);
+
     /** The port number on which the listener will accept client connections. */
     private int port;
 
     /** Reference to the main server instance that handles client requests. */
     private Server server;
 
+    /** Command handler shared by all connections. */
+    private final ClientHandler handler;
+
+    /** Number of open client connections. */
+    private volatile int connectionCount;
+
+    /** The selector, once the listener is running. */
+    private volatile Selector selector;
+
+    /** Connections whose responses completed, to be served again by the selector thread. */
+    private final Queue<SelectionKey> completed = new ConcurrentLinkedQueue<>();
+
     /**
      * Constructs a new ClientListener.
      *
@@ -26,23 +57,138 @@ public class ClientListener implements Runnable {
     public ClientListener(int port, Server server) {
         this.port = port;
         this.server = server;
+        this.handler = new ClientHandler(server);
+    }
+
+    /**
+     * Returns the number of open client connections.
+     *
+     * @return the connection count
+     */
+    public int getConnectionCount() {
+        return connectionCount;
     }
 
     /**
-     * Starts the listener on the specified port.
-     * <p>
-     * For each incoming client connection, a new {@link ClientHandler} is created
-     * and executed in its own thread to handle the client's request.
+     * Starts the listener on the specified port and runs the selector loop.
      */
     public void run() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Client listener started on port " + port);
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            this.selector = selector;
+            Log.info("Client listener started on port " + port);
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandler(clientSocket, server)).start();
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel, selector);
+                    } else {
+                        serve(key);
+                    }
+                }
+                SelectionKey key;
+                while ((key = completed.poll()) != null) {
+                    if (key.isValid()) {
+                        serve(key);
+                    }
+                }
             }
         } catch (IOException e) {
-            System.err.println("ClientListener error: " + e.getMessage());
+            Log.warn("ClientListener error: " + e.getMessage());
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connectionCount >= ServerConfig.CLIENT_MAX_CONNECTIONS) {
+                refuse(channel);
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new ClientConnection(channel, server.getConnectionExecutor(), () -> wakeup(key)));
+            connectionCount++;
+        }
+    }
+
+    /**
+     * Queues a connection to be served again by the selector thread; called when a response completes.
+     */
+    private void wakeup(SelectionKey key) {
+        completed.add(key);
+        selector.wakeup();
+    }
+
+    private void refuse(SocketChannel channel) {
+        try {
+            // Best effort: the channel is still blocking, and a fresh socket buffer always takes one line.
+            channel.write(ByteBuffer.wrap(TOO_MANY_CONNECTIONS));
+        } catch (IOException e) {
+            // Ignore: the client is refused anyway
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Handles readiness of a client connection: reads requests, dispatches them to the executor,
+     * writes the completed responses and updates the interest set according to the backpressure state.
+     */
+    private void serve(SelectionKey key) {
+        ClientConnection connection = (ClientConnection) key.attachment();
+        try {
+            if (key.isWritable()) {
+                connection.write();
+            }
+            if (key.isReadable() && connection.wantsRead()) {
+                connection.read();
+            }
+            connection.processRequests(handler);
+            connection.write();
+            // Requests held back by backpressure run as soon as their predecessors' responses are out.
+            while (!connection.hasPendingOutput() && connection.hasBufferedRequest()) {
+                connection.processRequests(handler);
+                connection.write();
+            }
+            if (connection.isDone()) {
+                close(key);
+                return;
+            }
+            int ops = 0;
+            if (connection.wantsRead()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (connection.hasWritableOutput()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        } catch (IOException | CancelledKeyException e) {
+            close(key);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        closeQuietly(key.channel());
+        connectionCount--;
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore closing error
         }
     }
 }
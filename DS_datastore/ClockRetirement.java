@@ -0,0 +1,413 @@
+package DS_datastore;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retirement of the vector clock entries of departed servers, so that the clocks carried by updates,
+ * entries and state transfers only hold the live servers instead of every server that ever joined.
+ * <p>
+ * A server dead for {@link ServerConfig#CLOCK_RETIRE_AFTER_MS} ({@link Membership}), or present in the
+ * local clock without being a member for as long, is a candidate. Once per probe round every server
+ * gossips a {@link GossipMessage.ClockReport} with its counter of each candidate, and forwards the reports
+ * of the others. When every live member has reported, no update of the departed server is still in flight
+ * towards them, and its entry is retired at the highest counter reported, its final one: the entry is removed
+ * from the local clock and from the buffered updates. The retirement is gossiped too, so that servers still
+ * reporting about the entry retire it as well.
+ * <p>
+ * The {@link DottedVersion}s of the stored entries keep their dots and contexts, which name individual writes
+ * rather than the state of a clock: they are small already, and stripping them could let a superseded write
+ * of the departed server win again. A stored write of a retired server up to its final counter is instead
+ * deemed known to every update received afterwards ({@link #withRetired(VectorClock)}).
+ * <p>
+ * A retired server is remembered with its final counter (a tombstone, persisted next to the write-ahead
+ * log, since replaying the log brings the entry back). Its entry is stripped from every clock received
+ * afterwards (updates, state transfers, repairs) as long as it is not above the final counter, and an
+ * update of the retired server itself not above it is obsolete. If the server comes back, its entry is
+ * restored at the final counter, so that its next updates are in sequence.
+ * <p>
+ * Tombstones name servers by ID and do not register them in the {@link ServerIndex}: after a restart, a retired
+ * server only gets a position again if the stored data still references it, and then after every live server
+ * ({@link MappedSnapshot#open}), so that the in-memory clocks only span the live membership. Within a process
+ * a retired position just stays zero (see {@link ServerIndex}).
+ */
+public class ClockRetirement {
+
+    /** The retired servers as parallel arrays, for the stripping done on every received clock. */
+    private static final class Tombstones {
+        static final Tombstones NONE = new Tombstones(new String[0], new long[0]);
+
+        final String[] ids;
+        final long[] finals;
+
+        /** {@link ServerIndex} position of each ID, looked up until the ID is registered; -1 until then. */
+        private final int[] indexes;
+
+        Tombstones(String[] ids, long[] finals) {
+            this.ids = ids;
+            this.finals = finals;
+            this.indexes = new int[ids.length];
+            Arrays.fill(indexes, -1);
+        }
+
+        /**
+         * Returns the position of the i-th retired server, or -1 if no clock of this process can hold it.
+         * Concurrent callers may both look it up, and store the same result.
+         */
+        int indexAt(int i) {
+            int index = indexes[i];
+            if (index < 0) {
+                index = ServerIndex.lookup(ids[i]);
+                indexes[i] = index;
+            }
+            return index;
+        }
+
+        /**
+         * Tells whether a clock holds an entry to strip.
+         */
+        boolean matches(VectorClock clock) {
+            for (int i = 0; i < ids.length; i++) {
+                long counter = clock.getAt(indexAt(i));
+                if (counter != 0 && counter <= finals[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Removes the entries to strip from a clock, in place.
+         */
+        void strip(VectorClock clock) {
+            for (int i = 0; i < ids.length; i++) {
+                long counter = clock.getAt(indexAt(i));
+                if (counter != 0 && counter <= finals[i]) {
+                    clock.removeServer(ids[i]);
+                }
+            }
+        }
+    }
+
+    /** Name of the tombstone file in the data directory. */
+    private static final String FILE_NAME = "retired-clocks";
+
+    /** The local server. */
+    private final Server server;
+
+    /** Final counter of each retired server, by ID. Guarded by {@code this}. */
+    private final Map<String, Long> retired = new TreeMap<>();
+
+    /** The content of {@link #retired}, replaced on every change. */
+    private volatile Tombstones tombstones = Tombstones.NONE;
+
+    /** Reported counters of each candidate, by reporter ID. Guarded by {@code this}. */
+    private final Map<String, Map<String, Long>> reports = new HashMap<>();
+
+    /** When each clock entry unknown to the membership was first seen. Guarded by {@code this}. */
+    private final Map<String, Long> unknownSince = new HashMap<>();
+
+    /** The tombstone file, {@code null} if not persisted. */
+    private Path file;
+
+    /** Number of entries retired by this server. */
+    private final AtomicLong retirements;
+
+    /**
+     * Constructs the clock retirement of the given server.
+     *
+     * @param server the local server
+     */
+    public ClockRetirement(Server server) {
+        this.server = server;
+        Metrics metrics = server.getMetrics();
+        this.retirements = metrics.counter("clock_entries_retired");
+        metrics.gauge("clock_retired_servers", () -> tombstones.ids.length);
+    }
+
+    /**
+     * Loads the tombstones persisted in a data directory, where later changes are saved.
+     *
+     * @param dataDir the data directory of the server
+     * @throws IOException if the file exists but cannot be read
+     */
+    public synchronized void load(Path dataDir) throws IOException {
+        file = dataDir.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int space = line.lastIndexOf(' ');
+            if (space > 0) {
+                retired.put(line.substring(0, space), Long.parseLong(line.substring(space + 1).trim()));
+            }
+        }
+        publish();
+        if (!retired.isEmpty()) {
+            Log.info("Retired clock entries: " + retired);
+        }
+    }
+
+    /**
+     * Removes the retired entries from a clock, in place.
+     *
+     * @param clock the clock to strip
+     */
+    public void stripInPlace(VectorClock clock) {
+        tombstones.strip(clock);
+    }
+
+    /**
+     * Returns a clock without the retired entries.
+     *
+     * @param clock a received clock
+     * @return the clock itself if it holds no retired entry, a stripped copy otherwise
+     */
+    public VectorClock strip(VectorClock clock) {
+        Tombstones t = tombstones;
+        if (t.ids.length == 0 || !t.matches(clock)) {
+            return clock;
+        }
+        VectorClock stripped = new VectorClock(clock);
+        t.strip(stripped);
+        return stripped;
+    }
+
+    /**
+     * Returns a clock that also includes every retired entry up to its final counter, to decide whether
+     * an update stripped of those entries was written after a stored version of a retired server.
+     * Only the servers registered in the {@link ServerIndex} are added: no stored version names the others.
+     *
+     * @param clock the clock of an update
+     * @return the clock itself if no entry is retired, a completed copy otherwise
+     */
+    public VectorClock withRetired(VectorClock clock) {
+        Tombstones t = tombstones;
+        if (t.ids.length == 0) {
+            return clock;
+        }
+        VectorClock completed = null;
+        for (int i = 0; i < t.ids.length; i++) {
+            int index = t.indexAt(i);
+            if (index >= 0 && clock.getAt(index) < t.finals[i]) {
+                if (completed == null) {
+                    completed = new VectorClock(clock);
+                }
+                completed.set(t.ids[i], t.finals[i]);
+            }
+        }
+        return (completed != null) ? completed : clock;
+    }
+
+    /**
+     * Returns a received update without the retired clock entries.
+     *
+     * @param update the update
+     * @return the update itself if it holds no retired entry, a rewritten update otherwise,
+     *         or {@code null} if it is an obsolete update of a retired server
+     */
+    public UpdateMessage strip(UpdateMessage update) {
+        Tombstones t = tombstones;
+        if (t.ids.length == 0) {
+            return update;
+        }
+        String origin = update.getOriginServerId();
+        for (int i = 0; i < t.ids.length; i++) {
+            if (t.ids[i].equals(origin) && update.getOriginSequence() <= t.finals[i]) {
+                return null;
+            }
+        }
+        VectorClock original = update.getVectorClock();
+        VectorClock clock = strip(original);
+        if (clock == original) {
+            return update;
+        }
+        return update.withClock(clock);
+    }
+
+    // === Protocol ===
+
+    /**
+     * Starts a reporting round: returns the reports of the local server about each candidate, to gossip.
+     *
+     * @param departed the members dead for long enough
+     * @param members  every member known, whatever its state
+     * @return the local reports
+     */
+    public List<GossipMessage.ClockReport> reportRound(Collection<String> departed, Set<String> members) {
+        String self = server.getServerId();
+        VectorClock clock = server.getLocalClock();
+        long now = System.currentTimeMillis();
+        List<GossipMessage.ClockReport> own = new ArrayList<>();
+        synchronized (this) {
+            Set<String> candidates = new HashSet<>(departed);
+            Map<String, Long> entries = clock.getClock();
+            unknownSince.keySet().retainAll(entries.keySet());
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                String id = entry.getKey();
+                if (entry.getValue() == 0 || id.equals(self) || members.contains(id)) {
+                    unknownSince.remove(id);
+                } else if (now - unknownSince.computeIfAbsent(id, k -> now) >= ServerConfig.CLOCK_RETIRE_AFTER_MS) {
+                    candidates.add(id);
+                }
+            }
+            reports.keySet().retainAll(candidates);
+            for (String id : candidates) {
+                long counter = clock.get(id);
+                if (retired.containsKey(id) || counter == 0) {
+                    continue;
+                }
+                reports.computeIfAbsent(id, k -> new HashMap<>()).put(self, counter);
+                own.add(new GossipMessage.ClockReport(id, self, counter, false));
+            }
+        }
+        return own;
+    }
+
+    /**
+     * Handles a report received through the gossip.
+     *
+     * @param report the report
+     * @param state  the state of the reported server in the local membership, {@code null} if unknown
+     * @return the reports to gossip in turn: the received one if it was news, or the local retirement
+     *         of the entry if the reporter has not retired it yet
+     */
+    public List<GossipMessage.ClockReport> onReport(GossipMessage.ClockReport report, Membership.State state) {
+        String id = report.getServerId();
+        String self = server.getServerId();
+        if (id.equals(self) || report.getReporterId().equals(self)) {
+            return Collections.emptyList();
+        }
+        long adopted;
+        synchronized (this) {
+            Long finalCounter = retired.get(id);
+            if (finalCounter != null) {
+                return report.isRetired() ? Collections.emptyList()
+                        : List.of(new GossipMessage.ClockReport(id, self, finalCounter, true));
+            }
+            if (state == Membership.State.ALIVE || state == Membership.State.SUSPECT) {
+                // Not departed here (e.g. it came back): the report is stale.
+                return Collections.emptyList();
+            }
+            if (!report.isRetired()) {
+                Map<String, Long> counters = reports.get(id);
+                if (counters == null) {
+                    // Not a candidate here yet: its reporter sends it again every round.
+                    return Collections.emptyList();
+                }
+                Long previous = counters.put(report.getReporterId(), report.getCounter());
+                return (previous == null || previous != report.getCounter()) ? List.of(report) : Collections.emptyList();
+            }
+            adopted = report.getCounter();
+        }
+        // Retired by a server that heard from every live member.
+        retire(id, Math.max(adopted, server.getLocalClock().get(id)));
+        return List.of(report);
+    }
+
+    /**
+     * Retires the entries of the candidates every live member has reported about.
+     *
+     * @param live the members not declared dead
+     * @return the retirements to gossip
+     */
+    public List<GossipMessage.ClockReport> retireReported(Set<String> live) {
+        Map<String, Long> ready = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<String, Map<String, Long>> entry : reports.entrySet()) {
+                Map<String, Long> counters = entry.getValue();
+                if (counters.containsKey(server.getServerId()) && counters.keySet().containsAll(live)) {
+                    ready.put(entry.getKey(), Collections.max(counters.values()));
+                }
+            }
+        }
+        List<GossipMessage.ClockReport> done = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : ready.entrySet()) {
+            if (retire(entry.getKey(), entry.getValue())) {
+                done.add(new GossipMessage.ClockReport(entry.getKey(), server.getServerId(), entry.getValue(), true));
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Retires the clock entry of a departed server at its final counter.
+     *
+     * @return {@code true} if the entry was not retired yet
+     */
+    private boolean retire(String id, long finalCounter) {
+        synchronized (this) {
+            if (retired.containsKey(id)) {
+                return false;
+            }
+            retired.put(id, finalCounter);
+            reports.remove(id);
+            unknownSince.remove(id);
+            publish();
+            save();
+        }
+        retirements.incrementAndGet();
+        Log.info("Clock entry of " + id + " retired at " + finalCounter);
+        server.retireClockEntries();
+        return true;
+    }
+
+    /**
+     * Restores the entry of a retired server that joined again.
+     *
+     * @param id the server ID
+     * @return the final counter of the entry, 0 if it was not retired
+     */
+    public long restore(String id) {
+        Long finalCounter;
+        synchronized (this) {
+            finalCounter = retired.remove(id);
+            if (finalCounter == null) {
+                return 0;
+            }
+            publish();
+            save();
+        }
+        Log.info("Clock entry of " + id + " restored at " + finalCounter + ": the server joined again");
+        return finalCounter;
+    }
+
+    /**
+     * Rebuilds {@link #tombstones} from {@link #retired}.
+     */
+    private void publish() {
+        String[] ids = new String[retired.size()];
+        long[] finals = new long[retired.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : retired.entrySet()) {
+            ids[i] = entry.getKey();
+            finals[i++] = entry.getValue();
+        }
+        tombstones = new Tombstones(ids, finals);
+    }
+
+    /**
+     * Writes the tombstones to their file, replacing it atomically.
+     */
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>(retired.size());
+        for (Map.Entry<String, Long> entry : retired.entrySet()) {
+            lines.add(entry.getKey() + " " + entry.getValue());
+        }
+        try {
+            Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+            Files.write(tmp, lines, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.warn("Cannot save the retired clock entries: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package DS_datastore;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * Immutable, compact copy of a {@link VectorClock}, used as the context of a {@link DottedVersion}.
+ * <p>
+ * The counters are stored varint-encoded in a single {@code byte[]} (one varint per
+ * {@link ServerIndex} position, trailing zeros omitted), which is a few bytes per server instead
+ * of a map or a {@code long[]}. Snapshots are interned through {@link #of(VectorClock)}: versions
+ * holding the same context share one instance, and a version can never observe later changes of
+ * the clock it was taken from.
+ */
+public final class ClockSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** Canonical instances, weakly held so that unused versions can be collected. */
+    private static final Map<ClockSnapshot, WeakReference<ClockSnapshot>> interned =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    /** The snapshot of a clock with every counter at zero. */
+    public static final ClockSnapshot EMPTY = new ClockSnapshot(new byte[0]);
+
+    /** Varint-encoded counters, one per {@link ServerIndex} position. */
+    private final byte[] encoded;
+
+    /** Cached hash of {@link #encoded}. */
+    private final int hash;
+
+    /** Cached result of {@link #digest()}, 0 until computed. */
+    private volatile long digest;
+
+    private ClockSnapshot(byte[] encoded) {
+        this.encoded = encoded;
+        this.hash = Arrays.hashCode(encoded);
+    }
+
+    /**
+     * Returns the canonical snapshot of the current state of a clock.
+     * The clock must not be modified concurrently.
+     *
+     * @param clock the clock to copy
+     * @return an immutable snapshot, shared with every other snapshot of the same version
+     */
+    public static ClockSnapshot of(VectorClock clock) {
+        int width = clock.width();
+        while (width > 0 && clock.getAt(width - 1) == 0) {
+            width--;
+        }
+        if (width == 0) {
+            return EMPTY;
+        }
+        byte[] buffer = new byte[width * 10];
+        int length = 0;
+        for (int i = 0; i < width; i++) {
+            long value = clock.getAt(i);
+            while ((value & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+        return intern(new ClockSnapshot(Arrays.copyOf(buffer, length)));
+    }
+
+    private static ClockSnapshot intern(ClockSnapshot snapshot) {
+        synchronized (interned) {
+            WeakReference<ClockSnapshot> ref = interned.get(snapshot);
+            ClockSnapshot existing = (ref != null) ? ref.get() : null;
+            if (existing != null) {
+                return existing;
+            }
+            interned.put(snapshot, new WeakReference<>(snapshot));
+            return snapshot;
+        }
+    }
+
+    /**
+     * Returns a new mutable clock holding the counters of this snapshot.
+     *
+     * @return a vector clock equal to the snapshot
+     */
+    public VectorClock toVectorClock() {
+        VectorClock clock = new VectorClock();
+        int index = 0;
+        int pos = 0;
+        while (pos < encoded.length) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (value != 0) {
+                clock.set(ServerIndex.idAt(index), value);
+            }
+            index++;
+        }
+        return clock;
+    }
+
+    /**
+     * Returns one counter of the snapshot, without building a clock.
+     *
+     * @param index the {@link ServerIndex} index of the server
+     * @return the server's counter, 0 if absent
+     */
+    public long getAt(int index) {
+        int pos = 0;
+        for (int i = 0; pos < encoded.length; i++) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (i == index) {
+                return value;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a 64-bit hash of the version that is the same on every server: unlike {@link #hashCode()},
+     * it depends on the server IDs and not on their local {@link ServerIndex} positions.
+     *
+     * @return the digest of the version
+     */
+    public long digest() {
+        long d = digest;
+        if (d != 0) {
+            return d;
+        }
+        int index = 0;
+        int pos = 0;
+        while (pos < encoded.length) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (value != 0) {
+                // Order-independent sum, since positions differ between servers.
+                d += mix(ServerIndex.idAt(index).hashCode() * 0x9E3779B97F4A7C15L + value);
+            }
+            index++;
+        }
+        digest = (d != 0) ? d : 1;
+        return digest;
+    }
+
+    /**
+     * Finalizer of the SplitMix64 generator, used to spread hash bits.
+     *
+     * @param z the value to mix
+     * @return the mixed value
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns the size of the encoded counters.
+     *
+     * @return the number of bytes used by this snapshot's counters
+     */
+    public int getEncodedSize() {
+        return encoded.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ClockSnapshot)) return false;
+        ClockSnapshot other = (ClockSnapshot) o;
+        return hash == other.hash && Arrays.equals(encoded, other.encoded);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return toVectorClock().toString();
+    }
+
+    /**
+     * Serializes the snapshot as a {@link VectorClock}, since {@link ServerIndex} positions are local to each JVM.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerializedForm(toVectorClock());
+    }
+
+    /** Serialized form of a snapshot, resolved back to the canonical instance on deserialization. */
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final VectorClock clock;
+
+        SerializedForm(VectorClock clock) {
+            this.clock = clock;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return ClockSnapshot.of(clock);
+        }
+    }
+}
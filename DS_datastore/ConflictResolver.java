@@ -0,0 +1,101 @@
+package DS_datastore;
+
+import java.util.List;
+import java.util.function.BinaryOperator;
+
+/**
+ * Decides what a {@link KeyValueStore} keeps when a key receives concurrent writes, i.e. writes none of which
+ * was made knowing the others (see {@link DottedVersion#covers}).
+ * <p>
+ * Three policies are provided:
+ * <ul>
+ *     <li>{@link #LAST_WRITER_WINS} (default): the write with the latest hybrid timestamp ({@link HybridClock})
+ *         is kept, the others are discarded;</li>
+ *     <li>{@link #SIBLINGS}: every concurrent write is kept as a sibling, reads return the latest one and
+ *         {@code READALL} returns all of them, until a later write supersedes them;</li>
+ *     <li>{@link #merging(BinaryOperator)}: the siblings are kept too, and reads return the values merged
+ *         by a custom function.</li>
+ * </ul>
+ * A resolver runs inside the store's update of a single key, on the replication apply path, so it must be cheap
+ * and must not block. It must be deterministic: given the same writes, in the same order, every server must
+ * return the same entry. The returned entry must include the history of every write, either as siblings or
+ * absorbed into the kept version ({@link DottedVersion#absorb}), so that a discarded write can never come back.
+ * <p>
+ * The resolver is chosen with {@link ServerConfig#CONFLICT_RESOLVER} and must be the same on every server.
+ */
+public interface ConflictResolver {
+
+    /**
+     * Resolves the concurrent writes of a key.
+     *
+     * @param key    the key
+     * @param writes the concurrent writes, at least two and each without siblings, latest first: the order is
+     *               the same on every server (hybrid timestamp, then dot, then value)
+     * @return the entry to store
+     */
+    ValueEntry resolve(String key, List<ValueEntry> writes);
+
+    /** Keeps the latest write, whose version absorbs the others. */
+    ConflictResolver LAST_WRITER_WINS = (key, writes) -> {
+        ValueEntry latest = writes.get(0);
+        DottedVersion version = latest.getVersion();
+        for (int i = 1; i < writes.size(); i++) {
+            version = version.absorb(writes.get(i).getVersion());
+        }
+        return (version == latest.getVersion()) ? latest : new ValueEntry(latest.getValue(), version);
+    };
+
+    /** Keeps every write as a sibling; reads return the latest one. */
+    ConflictResolver SIBLINGS = (key, writes) -> ValueEntry.withSiblings(writes.get(0).getValue(), writes);
+
+    /**
+     * Returns a resolver that keeps every write as a sibling and serves reads with the merge of their values,
+     * folded from the latest one: {@code merge(merge(latest, second), third)}. The merged value is computed once,
+     * when the siblings change, not on every read.
+     *
+     * @param merge the merge function, deterministic
+     * @return the resolver
+     */
+    static ConflictResolver merging(BinaryOperator<String> merge) {
+        return (key, writes) -> {
+            String value = writes.get(0).getValue();
+            for (int i = 1; i < writes.size(); i++) {
+                value = merge.apply(value, writes.get(i).getValue());
+            }
+            return ValueEntry.withSiblings(value, writes);
+        };
+    }
+
+    /**
+     * Returns the resolver with the given name: {@code lww}, {@code siblings}, or the name of a class with a public
+     * no-argument constructor implementing either this interface or {@code BinaryOperator<String>}, used as
+     * a merge function.
+     *
+     * @param name the resolver name
+     * @return the resolver
+     * @throws IllegalArgumentException if the name is not valid
+     */
+    @SuppressWarnings("unchecked")
+    static ConflictResolver create(String name) {
+        switch (name.toLowerCase()) {
+            case "lww":
+                return LAST_WRITER_WINS;
+            case "siblings":
+                return SIBLINGS;
+            default:
+                Object instance;
+                try {
+                    instance = Class.forName(name).getConstructor().newInstance();
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    throw new IllegalArgumentException("Unknown conflict resolver: " + name, e);
+                }
+                if (instance instanceof ConflictResolver) {
+                    return (ConflictResolver) instance;
+                }
+                if (instance instanceof BinaryOperator) {
+                    return merging((BinaryOperator<String>) instance);
+                }
+                throw new IllegalArgumentException("Not a conflict resolver nor a merge function: " + name);
+        }
+    }
+}
@@ -56,26 +56,27 @@ public class DiscoveryListener implements Runnable {
      * For each incoming discovery connection, a new thread is spawned to handle:
      * <ul>
      *     <li><b>JOIN_REQUEST</b>: adds the requesting peer and replies with the current peer list (excluding the requester).</li>
-     *     <li><b>NEW_PEER</b>: registers a newly joined peer across the system.</li>
+     *     <li><b>NEW_PEER</b>: registers a newly joined peer; only sent by servers that predate the gossip
+     *     membership ({@link Membership}), which now spreads new peers.</li>
      * </ul>
      * If any other type of message is received or if an error occurs, it is logged.
      */
     public void run() {
         try (ServerSocket serverSocket = new ServerSocket(server.getDiscoveryPort())) {
-            System.out.println("Discovery listener started on port " + server.getDiscoveryPort());
+            Log.info("Discovery listener started on port " + server.getDiscoveryPort());
             while (true) {
                 Socket socket = serverSocket.accept();
-                new Thread(() -> {
-                    try (ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                         ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-                        Object obj = in.readObject();
+                server.getConnectionExecutor().executeOrClose(socket, () -> {
+                    try (MessageReader in = new MessageReader(socket.getInputStream());
+                         MessageWriter out = new MessageWriter(socket.getOutputStream())) {
+                        Object obj = in.readMessage();
                         if (obj instanceof DiscoveryMessage) {
                             DiscoveryMessage msg = (DiscoveryMessage) obj;
                             if (msg.getType() == DiscoveryMessage.Type.JOIN_REQUEST) {
                                 // Create the PeerInfo for the new node using the received serverId, host, and replicationPort.
-                                PeerInfo newPeer = new PeerInfo(msg.getServerId(), msg.getHost(), msg.getReplicationPort(), msg.getDiscoveryPort(), msg.getStateTransferPort());
+                                PeerInfo newPeer = msg.toPeerInfo();
                                 server.addPeer(newPeer);
-                                server.getLocalClock().addServer(newPeer.getServerId());
+                                server.registerServer(newPeer.getServerId());
 
                                 // Prepare the list of peers to include in the response.
                                 // Include the information of the server receiving the request (i.e., self) and all other known peers,
@@ -86,7 +87,7 @@ public class DiscoveryListener implements Runnable {
                                 // Get the local host.
                                 String selfHost = getCorrectIP();
                                 // Create the PeerInfo for the current server (self).
-                                PeerInfo selfPeer = new PeerInfo(server.getServerId(), selfHost, server.getReplicationPort(), server.getDiscoveryPort(), server.getStateTransferPort());
+                                PeerInfo selfPeer = new PeerInfo(server.getServerId(), selfHost, server.getReplicationPort(), server.getDiscoveryPort(), server.getStateTransferPort(), server.getClientPort());
                                 responseList.add(selfPeer);
 
                                 // Add the other peers (exclude the node that sent the request to avoid duplicates).
@@ -98,27 +99,27 @@ public class DiscoveryListener implements Runnable {
 
                                 // Send the response containing the list of peers.
                                 DiscoveryMessage response = new DiscoveryMessage(DiscoveryMessage.Type.JOIN_RESPONSE, responseList);
-                                out.writeObject(response);
+                                out.writeMessage(response);
                                 out.flush();
-                                System.out.println("Processed JOIN_REQUEST from " + msg.getServerId());
+                                Log.info("Processed JOIN_REQUEST from " + msg.getServerId());
                             }
                             if (msg.getType() == DiscoveryMessage.Type.NEW_PEER) {
                                 PeerInfo newPeer = msg.getNewPeer();
                                 // Add only if not present
                                 server.addPeer(newPeer);
-                                server.getLocalClock().addServer(newPeer.getServerId());
-                                System.out.println("Ricevuto NEW_PEER: " + newPeer);
+                                server.registerServer(newPeer.getServerId());
+                                Log.info("Ricevuto NEW_PEER: " + newPeer);
                             }
                         }
                     } catch (Exception e) {
-                        System.err.println("Discovery message error: " + e.getMessage());
+                        Log.warn("Discovery message error: " + e.getMessage());
                     } finally {
                         try { socket.close(); } catch (IOException e) { }
                     }
-                }).start();
+                });
             }
         } catch (IOException e) {
-            System.err.println("Discovery listener error: " + e.getMessage());
+            Log.warn("Discovery listener error: " + e.getMessage());
         }
     }
 }
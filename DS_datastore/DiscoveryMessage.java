@@ -30,6 +30,7 @@ public class DiscoveryMessage implements ReplicableMessage {
     private int replicationPort; // Used for JOIN_REQUEST
     private int discoveryPort;
     private int stateTransferPort;
+    private int clientPort;  // Used for JOIN_REQUEST
     private List<PeerInfo> peerList; // Used for JOIN_RESPONSE
     private PeerInfo newPeer; // Used for NEW_PEER
 
@@ -42,15 +43,17 @@ public class DiscoveryMessage implements ReplicableMessage {
      * @param replicationPort    the replication port of the requesting server
      * @param discoveryPort      the discovery port of the requesting server
      * @param stateTransferPort  the state transfer port of the requesting server
+     * @param clientPort         the client port of the requesting server, 0 if unknown
      */
-    public DiscoveryMessage(Type type, String serverId, String host, int replicationPort, int discoveryPort, int stateTransferPort) {
+    public DiscoveryMessage(Type type, String serverId, String host, int replicationPort, int discoveryPort,
+                            int stateTransferPort, int clientPort) {
         this.type = type;
         this.serverId = serverId;
         this.host = host;
         this.replicationPort = replicationPort;
         this.discoveryPort = discoveryPort;
         this.stateTransferPort = stateTransferPort;
-        // Il clientPort può essere usato se necessario
+        this.clientPort = clientPort;
     }
 
     /**
@@ -129,6 +132,24 @@ public class DiscoveryMessage implements ReplicableMessage {
         return discoveryPort;
     }
 
+    /**
+     * Returns the client port of the requesting server (used for JOIN_REQUEST).
+     *
+     * @return the client port, 0 if unknown
+     */
+    public int getClientPort() {
+        return clientPort;
+    }
+
+    /**
+     * Returns the requesting server as a peer (used for JOIN_REQUEST).
+     *
+     * @return the peer information carried by the request
+     */
+    public PeerInfo toPeerInfo() {
+        return new PeerInfo(serverId, host, replicationPort, discoveryPort, stateTransferPort, clientPort);
+    }
+
     /**
      * Returns the list of peers (used for JOIN_RESPONSE).
      *
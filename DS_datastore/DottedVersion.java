@@ -0,0 +1,285 @@
+package DS_datastore;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+/**
+ * Immutable version of a {@link ValueEntry}: a dotted version vector.
+ * <p>
+ * The <em>dot</em> {@code (origin, counter)} names the write that produced the value: the origin server's
+ * entry of the update's vector clock. The <em>context</em> holds the dots of the versions the value superseded,
+ * as a {@link ClockSnapshot} keeping the highest counter per server. The origin's own earlier writes are
+ * implied by the dot and never stored in the context, so a key only written by one server has an empty context
+ * and costs a constant amount of memory, whatever the number of servers. The causal history of the whole node,
+ * needed to deliver updates in causal order, is kept once in the server's clock and not per key.
+ * <p>
+ * Two versions are compared through {@link #covers(DottedVersion)}: a version covers another if its dot or its
+ * context includes the other's dot. When neither covers the other, the writes were concurrent: they are ordered
+ * by {@link #beats(DottedVersion)}, the same way on every server, first by the hybrid timestamp of the write
+ * ({@link HybridClock}), and the {@link ConflictResolver} decides what to keep.
+ */
+public final class DottedVersion implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** {@link ServerIndex} index of the server that wrote the value. */
+    private final int origin;
+
+    /** Origin counter of the write, at least 1. */
+    private final long counter;
+
+    /** Hybrid timestamp of the write, 0 if unknown. */
+    private final long timestamp;
+
+    /** Highest counter of each server among the superseded versions. */
+    private final ClockSnapshot context;
+
+    private DottedVersion(int origin, long counter, long timestamp, ClockSnapshot context) {
+        this.origin = origin;
+        this.counter = counter;
+        this.timestamp = timestamp;
+        this.context = context;
+    }
+
+    /**
+     * Returns the version of a write with the given dot and context.
+     *
+     * @param originId the ID of the server that wrote the value
+     * @param counter   the origin's counter of the write, at least 1
+     * @param timestamp the hybrid timestamp of the write, 0 if unknown
+     * @param context   the dots of the superseded versions
+     * @return the version
+     */
+    public static DottedVersion of(String originId, long counter, long timestamp, ClockSnapshot context) {
+        if (counter < 1) {
+            throw new IllegalArgumentException("Invalid dot counter " + counter);
+        }
+        return new DottedVersion(ServerIndex.indexOf(originId), counter, timestamp, context);
+    }
+
+    /**
+     * Returns the version of a write that supersedes {@code previous}: its context is the history of
+     * {@code previous}, without the entry of the writing server.
+     *
+     * @param originId  the ID of the server that wrote the value
+     * @param counter   the origin's counter of the write
+     * @param timestamp the hybrid timestamp of the write
+     * @param previous  the version replaced by the write, {@code null} if the key had none
+     * @return the new version
+     */
+    public static DottedVersion after(String originId, long counter, long timestamp, DottedVersion previous) {
+        int index = ServerIndex.indexOf(originId);
+        if (previous == null || (previous.origin == index && previous.context == ClockSnapshot.EMPTY)) {
+            return new DottedVersion(index, counter, timestamp, ClockSnapshot.EMPTY);
+        }
+        VectorClock history = previous.history();
+        history.removeServer(originId);
+        return new DottedVersion(index, counter, timestamp, ClockSnapshot.of(history));
+    }
+
+    /**
+     * Returns this version with the history of {@code other} added to its context,
+     * e.g. after winning against a concurrent version.
+     *
+     * @param other the absorbed version
+     * @return the new version, or this one if its context already covers {@code other}
+     */
+    public DottedVersion absorb(DottedVersion other) {
+        VectorClock history = other.history();
+        VectorClock merged = context.toVectorClock();
+        merged.merge(history);
+        if (merged.getAt(origin) <= counter) {
+            merged.removeServer(ServerIndex.idAt(origin));
+        }
+        ClockSnapshot absorbed = ClockSnapshot.of(merged);
+        return absorbed.equals(context) ? this : new DottedVersion(origin, counter, timestamp, absorbed);
+    }
+
+    /**
+     * Returns the writes this version includes, its dot and its context, as a clock.
+     *
+     * @return a new clock
+     */
+    public VectorClock history() {
+        VectorClock history = context.toVectorClock();
+        if (history.getAt(origin) < counter) {
+            history.set(ServerIndex.idAt(origin), counter);
+        }
+        return history;
+    }
+
+    /**
+     * Returns the highest counter of a server included in this version.
+     *
+     * @param index the {@link ServerIndex} index of the server
+     * @return the counter, 0 if none
+     */
+    public long seen(int index) {
+        long seen = context.getAt(index);
+        return (index == origin && counter > seen) ? counter : seen;
+    }
+
+    /**
+     * Tells whether this version includes another one, i.e. was written knowing it.
+     *
+     * @param other the other version
+     * @return {@code true} if {@code other} is included (in particular if it has the same dot)
+     */
+    public boolean covers(DottedVersion other) {
+        return seen(other.origin) >= other.counter;
+    }
+
+    /**
+     * Tells whether a clock includes this version, e.g. the clock of an update written after it.
+     *
+     * @param clock the clock
+     * @return {@code true} if the clock includes the dot
+     */
+    public boolean coveredBy(VectorClock clock) {
+        return clock.getAt(origin) >= counter;
+    }
+
+    /**
+     * Chooses between this version and a concurrent one, the same way on every server: the later hybrid timestamp
+     * wins, then the larger counter, then the larger origin ID.
+     *
+     * @param other the concurrent version
+     * @return {@code true} if this version wins, {@code false} if {@code other} wins or they are equal
+     */
+    public boolean beats(DottedVersion other) {
+        if (timestamp != other.timestamp) {
+            return timestamp > other.timestamp;
+        }
+        if (counter != other.counter) {
+            return counter > other.counter;
+        }
+        return ServerIndex.idAt(origin).compareTo(ServerIndex.idAt(other.origin)) > 0;
+    }
+
+    /**
+     * Tells whether two versions name the same write, i.e. have the same dot.
+     * Unlike {@link #equals(Object)}, contexts of dotted versions are not compared.
+     *
+     * @param other the other version
+     * @return {@code true} if both versions name the same write
+     */
+    public boolean sameWrite(DottedVersion other) {
+        return origin == other.origin && counter == other.counter;
+    }
+
+    /**
+     * Returns the ID of the server that wrote the value.
+     *
+     * @return the origin ID
+     */
+    public String getOriginId() {
+        return ServerIndex.idAt(origin);
+    }
+
+    /**
+     * Returns the {@link ServerIndex} index of the server that wrote the value.
+     *
+     * @return the origin index
+     */
+    public int getOriginIndex() {
+        return origin;
+    }
+
+    /**
+     * Returns the origin's counter of the write.
+     *
+     * @return the counter
+     */
+    public long getCounter() {
+        return counter;
+    }
+
+    /**
+     * Returns the hybrid timestamp of the write ({@link HybridClock}).
+     *
+     * @return the timestamp, 0 if unknown
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the context of the version: the dots of the superseded versions.
+     *
+     * @return the context
+     */
+    public ClockSnapshot getContext() {
+        return context;
+    }
+
+    /**
+     * Returns a 64-bit hash of the write that is the same on every server: it only depends on the dot,
+     * since replicas of one write may hold different contexts.
+     *
+     * @return the digest of the version
+     */
+    public long digest() {
+        long d = ClockSnapshot.mix(ServerIndex.idAt(origin).hashCode() * 0x9E3779B97F4A7C15L + counter);
+        return (d != 0) ? d : 1;
+    }
+
+    /**
+     * Returns a rough estimate of the encoded size of the version.
+     *
+     * @return the size in bytes
+     */
+    public int getEncodedSize() {
+        return 18 + context.getEncodedSize();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DottedVersion)) return false;
+        DottedVersion other = (DottedVersion) o;
+        return origin == other.origin && counter == other.counter && timestamp == other.timestamp
+                && context.equals(other.context);
+    }
+
+    @Override
+    public int hashCode() {
+        return ((31 * origin + Long.hashCode(counter)) * 31 + Long.hashCode(timestamp)) * 31 + context.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        String dot = "(" + ServerIndex.idAt(origin) + "," + counter + ")";
+        return (context == ClockSnapshot.EMPTY) ? dot : dot + context;
+    }
+
+    /**
+     * Serializes the version with the origin ID, since {@link ServerIndex} positions are local to each JVM.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerializedForm(getOriginId(), counter, timestamp, context);
+    }
+
+    /** Serialized form of a version. */
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String originId;
+        private final long counter;
+        private final long timestamp;
+        private final ClockSnapshot context;
+
+        SerializedForm(String originId, long counter, long timestamp, ClockSnapshot context) {
+            this.originId = originId;
+            this.counter = counter;
+            this.timestamp = timestamp;
+            this.context = context;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            if (originId == null) {
+                throw new InvalidObjectException("Version without dot");
+            }
+            return of(originId, counter, timestamp, context);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package DS_datastore;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A datagram of the gossip membership protocol run by {@link Membership}.
+ * <p>
+ * PING asks the receiver to answer with an ACK carrying the same sequence number. PING_REQ asks the
+ * receiver to ping a third server on behalf of the sender and to relay its ACK, so that a server is only
+ * suspected when several others cannot reach it either. Every message also piggybacks a few recent
+ * changes of the membership ({@link Update}), which is how they spread through the cluster, and a few
+ * reports about the clock entries of departed servers ({@link ClockReport}), used by {@link ClockRetirement}.
+ */
+public class GossipMessage {
+
+    /**
+     * Defines the type of the gossip message.
+     */
+    public enum Type {
+        /** Direct probe. */
+        PING,
+        /** Request to probe the target on behalf of the sender. */
+        PING_REQ,
+        /** Answer to a probe. */
+        ACK
+    }
+
+    /**
+     * A change of the state of one member, as spread by gossip.
+     */
+    public static final class Update {
+        private final PeerInfo peer;
+        private final Membership.State state;
+        private final long incarnation;
+
+        /**
+         * Constructs a membership update.
+         *
+         * @param peer        the member
+         * @param state       its new state
+         * @param incarnation the incarnation the state refers to
+         */
+        public Update(PeerInfo peer, Membership.State state, long incarnation) {
+            this.peer = peer;
+            this.state = state;
+            this.incarnation = incarnation;
+        }
+
+        /**
+         * Returns the member.
+         *
+         * @return the member's peer information
+         */
+        public PeerInfo getPeer() {
+            return peer;
+        }
+
+        /**
+         * Returns the new state of the member.
+         *
+         * @return the state
+         */
+        public Membership.State getState() {
+            return state;
+        }
+
+        /**
+         * Returns the incarnation the state refers to.
+         *
+         * @return the incarnation number
+         */
+        public long getIncarnation() {
+            return incarnation;
+        }
+    }
+
+    /**
+     * What a server knows of the clock entry of a departed server: the counter it has applied, or the
+     * final counter at which it retired the entry.
+     */
+    public static final class ClockReport {
+        private final String serverId;
+        private final String reporterId;
+        private final long counter;
+        private final boolean retired;
+
+        /**
+         * Constructs a clock report.
+         *
+         * @param serverId   the departed server
+         * @param reporterId the server reporting
+         * @param counter    the reporter's counter of the departed server
+         * @param retired    whether the reporter has retired the entry at that counter
+         */
+        public ClockReport(String serverId, String reporterId, long counter, boolean retired) {
+            this.serverId = serverId;
+            this.reporterId = reporterId;
+            this.counter = counter;
+            this.retired = retired;
+        }
+
+        /**
+         * Returns the departed server.
+         *
+         * @return the server ID
+         */
+        public String getServerId() {
+            return serverId;
+        }
+
+        /**
+         * Returns the server reporting.
+         *
+         * @return the reporter ID
+         */
+        public String getReporterId() {
+            return reporterId;
+        }
+
+        /**
+         * Returns the reporter's counter of the departed server.
+         *
+         * @return the counter
+         */
+        public long getCounter() {
+            return counter;
+        }
+
+        /**
+         * Tells whether the reporter has retired the entry.
+         *
+         * @return {@code true} if the counter is the final one
+         */
+        public boolean isRetired() {
+            return retired;
+        }
+    }
+
+    private final Type type;
+    private final long sequence;
+    private final String senderId;
+    private final PeerInfo target;            // Used for PING_REQ
+    private final List<Update> updates;
+    private final List<ClockReport> reports;
+
+    /**
+     * Constructs a gossip message without clock reports.
+     *
+     * @param type     the message type
+     * @param sequence the probe sequence number, echoed by the ACK
+     * @param senderId the ID of the sending server
+     * @param target   the server to probe (PING_REQ), {@code null} otherwise
+     * @param updates  the piggybacked membership updates
+     */
+    public GossipMessage(Type type, long sequence, String senderId, PeerInfo target, List<Update> updates) {
+        this(type, sequence, senderId, target, updates, null);
+    }
+
+    /**
+     * Constructs a gossip message.
+     *
+     * @param type     the message type
+     * @param sequence the probe sequence number, echoed by the ACK
+     * @param senderId the ID of the sending server
+     * @param target   the server to probe (PING_REQ), {@code null} otherwise
+     * @param updates  the piggybacked membership updates
+     * @param reports  the piggybacked clock reports
+     */
+    public GossipMessage(Type type, long sequence, String senderId, PeerInfo target, List<Update> updates,
+                         List<ClockReport> reports) {
+        if (type == Type.PING_REQ && target == null) {
+            throw new IllegalArgumentException("A PING_REQ needs a target");
+        }
+        this.type = type;
+        this.sequence = sequence;
+        this.senderId = senderId;
+        this.target = target;
+        this.updates = (updates != null) ? updates : Collections.emptyList();
+        this.reports = (reports != null) ? reports : Collections.emptyList();
+    }
+
+    /**
+     * Returns the type of the message.
+     *
+     * @return the message type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the probe sequence number.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the ID of the sending server.
+     *
+     * @return the sender ID
+     */
+    public String getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * Returns the server to probe (PING_REQ).
+     *
+     * @return the target, {@code null} for other types
+     */
+    public PeerInfo getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the piggybacked membership updates.
+     *
+     * @return the updates, possibly empty
+     */
+    public List<Update> getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Returns the piggybacked clock reports.
+     *
+     * @return the reports, possibly empty
+     */
+    public List<ClockReport> getReports() {
+        return reports;
+    }
+}
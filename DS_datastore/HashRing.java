@@ -0,0 +1,155 @@
+package DS_datastore;
+
+import java.util.*;
+
+/**
+ * Consistent-hash ring assigning every key to {@link ServerConfig#SHARD_REPLICATION_FACTOR} servers.
+ * <p>
+ * Each server is placed on the ring at {@link ServerConfig#SHARD_VIRTUAL_NODES} pseudo-random points
+ * derived from its ID; the replicas of a key are the first distinct servers found walking clockwise
+ * from the key's position. Since positions only depend on IDs, every server computes the same
+ * assignment from the same membership, and a server joining or leaving only moves the keys adjacent
+ * to its points (about {@code 1/N} of them).
+ * <p>
+ * While the replication factor is not lower than the number of members every server replicates every key
+ * and the ring is not "partial": the server then behaves exactly as with full replication.
+ * <p>
+ * Thread-safe: lookups read an immutable view, replaced as a whole when the membership changes.
+ */
+public class HashRing {
+
+    /** Immutable placement of the members. */
+    private static final class View {
+        final List<String> members;
+        final TreeMap<Long, String> points;
+
+        View(List<String> members, TreeMap<Long, String> points) {
+            this.members = members;
+            this.points = points;
+        }
+    }
+
+    /** Number of points of each server. */
+    private final int virtualNodes;
+
+    /** Number of servers replicating each key; 0 or less means every server. */
+    private final int replicationFactor;
+
+    /** Current placement. */
+    private volatile View view = new View(List.of(), new TreeMap<>());
+
+    /**
+     * Constructs an empty ring.
+     *
+     * @param virtualNodes      number of points of each server
+     * @param replicationFactor number of servers replicating each key, 0 or less for all of them
+     */
+    public HashRing(int virtualNodes, int replicationFactor) {
+        this.virtualNodes = Math.max(virtualNodes, 1);
+        this.replicationFactor = replicationFactor;
+    }
+
+    /**
+     * Replaces the members of the ring.
+     *
+     * @param serverIds the IDs of every server of the cluster, including the local one
+     * @return {@code true} if the membership changed
+     */
+    public synchronized boolean setMembers(Collection<String> serverIds) {
+        List<String> members = new ArrayList<>(new TreeSet<>(serverIds));
+        if (members.equals(view.members)) {
+            return false;
+        }
+        TreeMap<Long, String> points = new TreeMap<>();
+        for (String id : members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // On a (very unlikely) collision the smaller ID wins, the same on every server.
+                points.merge(position(id + "#" + i), id, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+        view = new View(List.copyOf(members), points);
+        return true;
+    }
+
+    /**
+     * Returns the members of the ring.
+     *
+     * @return the server IDs, sorted
+     */
+    public List<String> getMembers() {
+        return view.members;
+    }
+
+    /**
+     * Returns the number of servers replicating each key.
+     *
+     * @return the replication factor, capped by the number of members
+     */
+    public int getReplicationFactor() {
+        int members = view.members.size();
+        return (replicationFactor <= 0) ? members : Math.min(replicationFactor, members);
+    }
+
+    /**
+     * Tells whether some servers do not replicate every key.
+     *
+     * @return {@code true} if the replication factor is lower than the number of members
+     */
+    public boolean isPartial() {
+        return replicationFactor > 0 && replicationFactor < view.members.size();
+    }
+
+    /**
+     * Returns the servers replicating a key, the first one being its primary replica.
+     *
+     * @param key the key
+     * @return the replica IDs, every member if the ring is not partial
+     */
+    public List<String> replicasOf(String key) {
+        View v = view;
+        if (replicationFactor <= 0 || replicationFactor >= v.members.size()) {
+            return v.members;
+        }
+        List<String> replicas = new ArrayList<>(replicationFactor);
+        collect(v.points.tailMap(position(key)).values(), replicas);
+        if (replicas.size() < replicationFactor) {
+            collect(v.points.values(), replicas);
+        }
+        return replicas;
+    }
+
+    private void collect(Collection<String> ids, List<String> replicas) {
+        for (String id : ids) {
+            if (!replicas.contains(id)) {
+                replicas.add(id);
+                if (replicas.size() == replicationFactor) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells whether a server replicates a key.
+     *
+     * @param key      the key
+     * @param serverId the server ID
+     * @return {@code true} if the server is one of the key's replicas
+     */
+    public boolean isReplica(String key, String serverId) {
+        return !isPartial() || replicasOf(key).contains(serverId);
+    }
+
+    /**
+     * Returns the position of a string on the ring: a 64-bit FNV-1a hash, mixed so that
+     * similar strings (e.g. {@code "server1#7"}, {@code "server1#8"}) land far apart.
+     */
+    private static long position(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return ClockSnapshot.mix(h);
+    }
+}
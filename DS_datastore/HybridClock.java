@@ -0,0 +1,53 @@
+package DS_datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock, stamping every write with a timestamp close to the wall clock.
+ * <p>
+ * A timestamp packs the wall clock milliseconds in its upper 48 bits and a logical counter in the lower
+ * {@link #LOGICAL_BITS}. The clock never goes backwards, and after {@link #observe(long)} it stays ahead of
+ * the timestamps received from the other servers: a write is therefore stamped after every write it may
+ * depend on, even across servers whose wall clocks drift apart, while concurrent writes are ordered
+ * roughly by wall clock time. {@link ConflictResolver#LAST_WRITER_WINS} relies on it.
+ * <p>
+ * Thread-safe and lock-free: stamping and observing are a single atomic update.
+ */
+public class HybridClock {
+    /** Number of low bits holding the logical counter. */
+    public static final int LOGICAL_BITS = 16;
+
+    /** Last timestamp issued or observed. */
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * Returns a new timestamp, above every timestamp issued or observed so far.
+     *
+     * @return the timestamp
+     */
+    public long now() {
+        long physical = System.currentTimeMillis() << LOGICAL_BITS;
+        return last.accumulateAndGet(physical, (previous, wall) -> Math.max(previous + 1, wall));
+    }
+
+    /**
+     * Moves the clock past a timestamp received from another server.
+     *
+     * @param timestamp the received timestamp, 0 if unknown
+     */
+    public void observe(long timestamp) {
+        if (timestamp > last.get()) {
+            last.accumulateAndGet(timestamp, Math::max);
+        }
+    }
+
+    /**
+     * Returns the wall clock time of a timestamp.
+     *
+     * @param timestamp a timestamp issued by a hybrid clock
+     * @return the milliseconds since the epoch
+     */
+    public static long toMillis(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+}
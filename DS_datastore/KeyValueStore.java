@@ -1,14 +1,35 @@
 package DS_datastore;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
- * Thread-safe key-value store that supports versioning through vector clocks.
+ * Thread-safe key-value store that supports versioning through dotted version vectors.
  * <p>
  * Each key is associated with a {@link ValueEntry} containing the actual value
- * and its corresponding {@link VectorClock}.
- * The class provides synchronized methods for reading, writing, and retrieving a snapshot of the store.
+ * and its {@link DottedVersion}: the dot of the write and the dots it superseded.
+ * Writes to one key are serialized by the map, so that each one is resolved against the current version:
+ * a version included in the incoming write is replaced, and concurrent writes are handed to the
+ * {@link ConflictResolver}, ordered the same way on every replica ({@link DottedVersion#beats}). The resolver
+ * either keeps one of them, which absorbs the others so that they can never come back, or keeps them all
+ * as siblings ({@link ValueEntry#getSiblings()}) until a later write supersedes them.
+ * The store relies on the underlying {@link ConcurrentHashMap} alone: reads never lock and never
+ * wait for writers. Ordering between writes is the caller's responsibility (see {@link Server}).
+ * <p>
+ * Below the map there may be a read-only base layer, the last {@link MappedSnapshot} of the node:
+ * a key missing from the map is looked up in the snapshot, which is read lazily from the mapped file.
+ * The map then only holds the keys written since that snapshot.
+ * <p>
+ * Every change is also recorded in a {@link MerkleTree}, compared by {@link AntiEntropy} with the
+ * trees of the other replicas.
  */
 public class KeyValueStore {
     /**
@@ -17,16 +38,263 @@ public class KeyValueStore {
      */
     private final Map<String, ValueEntry> store = new ConcurrentHashMap<>();
 
+    /** Read-only snapshot below the map, or {@code null}. */
+    private volatile MappedSnapshot base;
+
+    /** Hash tree of the contents, base layer included. */
+    private final MerkleTree tree = new MerkleTree(ServerConfig.ANTI_ENTROPY_LEVELS);
+
+    /** Orders concurrent writes, latest first, the same way on every server. */
+    private static final Comparator<ValueEntry> LATEST_FIRST = (a, b) -> wins(a, b) ? -1 : (wins(b, a) ? 1 : 0);
+
+    /** Decides what to keep when a key receives concurrent writes. */
+    private final ConflictResolver resolver;
+
+    /**
+     * Constructs an empty store keeping the latest of concurrent writes ({@link ConflictResolver#LAST_WRITER_WINS}).
+     */
+    public KeyValueStore() {
+        this(ConflictResolver.LAST_WRITER_WINS);
+    }
+
+    /**
+     * Constructs an empty store.
+     *
+     * @param resolver decides what to keep when a key receives concurrent writes
+     */
+    public KeyValueStore(ConflictResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Writes a key-value pair with the given version, overwriting the current one whatever it is.
+     *
+     * @param key     the key to write
+     * @param value   the value to associate with the key
+     * @param version the version of the value
+     */
+    public void write(String key, String value, DottedVersion version) {
+        ValueEntry entry = new ValueEntry(value, version);
+        ValueEntry previous = store.put(key, entry);
+        tree.update(key, (previous != null) ? previous : baseEntry(key), entry);
+    }
+
+    /**
+     * Stores a value written by a client of this server. It is resolved exactly as its replicas will resolve
+     * the update in {@link #apply}: it supersedes the writes of the key that the local clock includes, siblings
+     * included. The server merges the clock of a remote update before a local write can follow it, so every
+     * remote write stored here is included.
+     *
+     * @param key          the key to write
+     * @param value        the value to associate with the key
+     * @param originId     the ID of the local server
+     * @param counter      the local server's counter of the write
+     * @param timestamp    the hybrid timestamp of the write
+     * @param dependencies the clock of the update carrying the write
+     */
+    public void writeLocal(String key, String value, String originId, long counter, long timestamp,
+                           VectorClock dependencies) {
+        apply(key, value, originId, counter, timestamp, dependencies);
+    }
+
+    /**
+     * Returns the version of a write superseding every write of an entry.
+     */
+    private static DottedVersion supersede(String originId, long counter, long timestamp, ValueEntry existing) {
+        if (existing == null || !existing.hasSiblings()) {
+            return DottedVersion.after(originId, counter, timestamp, (existing != null) ? existing.getVersion() : null);
+        }
+        VectorClock history = existing.history();
+        history.removeServer(originId);
+        return DottedVersion.of(originId, counter, timestamp, ClockSnapshot.of(history));
+    }
+
+    /**
+     * Stores a value replicated by another server, delivered in causal order, or written locally
+     * ({@link #writeLocal}). The write supersedes the
+     * writes of the key that the update's clock includes, i.e. that the origin knew; the writes it does not
+     * include are concurrent, and the resolver decides between them and the new one. A write the current
+     * version already includes is ignored.
+     *
+     * @param key          the key to write
+     * @param value        the value to associate with the key
+     * @param originId     the ID of the server that wrote the value
+     * @param counter      the origin's counter of the write
+     * @param timestamp    the hybrid timestamp of the write
+     * @param dependencies the clock of the update, i.e. what the origin had applied when writing
+     * @return {@code true} if the value was stored, alone or as a sibling
+     */
+    public boolean apply(String key, String value, String originId, long counter, long timestamp,
+                         VectorClock dependencies) {
+        int origin = ServerIndex.indexOf(originId);
+        boolean[] stored = new boolean[1];
+        store.compute(key, (k, current) -> {
+            ValueEntry existing = (current != null) ? current : baseEntry(k);
+            if (existing != null && existing.seen(origin) >= counter) {
+                return current;
+            }
+            ValueEntry entry;
+            if (existing == null || (!existing.hasSiblings() && existing.getVersion().coveredBy(dependencies))) {
+                entry = new ValueEntry(value, supersede(originId, counter, timestamp, existing));
+            } else {
+                entry = applyConcurrent(k, value, originId, counter, timestamp, existing, dependencies);
+                if (entry.equals(existing)) {
+                    return current;
+                }
+            }
+            stored[0] = holds(entry, origin, counter);
+            tree.update(k, existing, entry);
+            return entry;
+        });
+        return stored[0];
+    }
+
+    /**
+     * Resolves a remote write against an entry it may not entirely supersede: the writes of the entry that
+     * the update's clock includes are dropped, the others stay and the resolver decides between them and
+     * the new write.
+     */
+    private ValueEntry applyConcurrent(String key, String value, String originId, long counter, long timestamp,
+                                       ValueEntry existing, VectorClock dependencies) {
+        // The context of the new write: the writes of the key its origin knew.
+        VectorClock known = existing.history();
+        for (int i = 0; i < known.width(); i++) {
+            if (known.getAt(i) > dependencies.getAt(i)) {
+                known.set(ServerIndex.idAt(i), dependencies.getAt(i));
+            }
+        }
+        known.removeServer(originId);
+        List<ValueEntry> writes = new ArrayList<>(2);
+        writes.add(new ValueEntry(value, DottedVersion.of(originId, counter, timestamp, ClockSnapshot.of(known))));
+        for (ValueEntry sibling : existing.getSiblings()) {
+            if (!sibling.getVersion().coveredBy(dependencies)) {
+                writes.add(sibling);
+            }
+        }
+        return resolve(key, writes);
+    }
+
+    /**
+     * Hands concurrent writes to the resolver, latest first.
+     */
+    private ValueEntry resolve(String key, List<ValueEntry> writes) {
+        if (writes.size() == 1) {
+            return writes.get(0);
+        }
+        writes.sort(LATEST_FIRST);
+        return resolver.resolve(key, writes);
+    }
+
+    /**
+     * Tells whether a write is one of the writes of an entry.
+     */
+    private static boolean holds(ValueEntry entry, int origin, long counter) {
+        for (ValueEntry sibling : entry.getSiblings()) {
+            if (sibling.getVersion().getOriginIndex() == origin && sibling.getVersion().getCounter() == counter) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
-     * Writes a key-value pair into the store along with its vector clock version.
-     * If the key already exists, the value is overwritten.
+     * Stores an entry received from another server (e.g. through a state transfer or an anti-entropy
+     * repair) unless the local version of the key already includes it. The writes of both entries that
+     * no other write includes are concurrent: they are resolved like on the apply path, in the same order
+     * on every replica, so that replicas exchanging their entries converge on the same result.
      *
      * @param key   the key to write
-     * @param value the value to associate with the key
-     * @param vc    the vector clock representing the version of the value
+     * @param entry the received value and version, possibly with siblings
+     * @return {@code true} if the entry brought a write the key did not hold
+     */
+    public boolean mergeEntry(String key, ValueEntry entry) {
+        boolean[] stored = new boolean[1];
+        store.compute(key, (k, current) -> {
+            ValueEntry existing = (current != null) ? current : baseEntry(k);
+            ValueEntry result = (existing != null) ? merge(k, existing, entry) : entry;
+            if (result == existing || result.equals(existing)) {
+                return current;
+            }
+            tree.update(k, existing, result);
+            stored[0] = existing == null || !sameWrites(result, existing);
+            return result;
+        });
+        return stored[0];
+    }
+
+    /**
+     * Returns the result of merging a received entry into the local one: the writes of either entry that no
+     * other write includes, resolved if there are several.
+     */
+    private ValueEntry merge(String key, ValueEntry existing, ValueEntry received) {
+        if (!existing.hasSiblings() && !received.hasSiblings()) {
+            DottedVersion local = existing.getVersion();
+            DottedVersion incoming = received.getVersion();
+            if (local.sameWrite(incoming)) {
+                return existing;
+            }
+            boolean newer = incoming.covers(local);
+            boolean older = local.covers(incoming);
+            if (newer != older) {
+                return newer ? received : existing;
+            }
+            List<ValueEntry> writes = new ArrayList<>(2);
+            writes.add(received);
+            writes.add(existing);
+            return resolve(key, writes);
+        }
+        List<ValueEntry> writes = new ArrayList<>();
+        for (ValueEntry sibling : existing.getSiblings()) {
+            addConcurrent(writes, sibling);
+        }
+        for (ValueEntry sibling : received.getSiblings()) {
+            addConcurrent(writes, sibling);
+        }
+        return resolve(key, writes);
+    }
+
+    /**
+     * Adds a write to a list of concurrent writes, unless it is already there or one of them includes it,
+     * and removes the writes it includes.
+     */
+    private static void addConcurrent(List<ValueEntry> writes, ValueEntry write) {
+        DottedVersion version = write.getVersion();
+        for (ValueEntry kept : writes) {
+            DottedVersion keptVersion = kept.getVersion();
+            if (keptVersion.sameWrite(version) || (keptVersion.covers(version) && !version.covers(keptVersion))) {
+                return;
+            }
+        }
+        writes.removeIf(kept -> version.covers(kept.getVersion()) && !kept.getVersion().covers(version));
+        writes.add(write);
+    }
+
+    /**
+     * Tells whether two entries hold the same writes with the same value, whatever their contexts.
+     */
+    private static boolean sameWrites(ValueEntry a, ValueEntry b) {
+        List<ValueEntry> first = a.getSiblings();
+        List<ValueEntry> second = b.getSiblings();
+        if (!a.getValue().equals(b.getValue()) || first.size() != second.size()) {
+            return false;
+        }
+        for (int i = 0; i < first.size(); i++) {
+            if (!first.get(i).getVersion().sameWrite(second.get(i).getVersion())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a write is later than a concurrent one ({@link DottedVersion#beats}),
+     * the larger value deciding between equal versions.
      */
-    public synchronized void write(String key, String value, VectorClock vc) {
-        store.put(key, new ValueEntry(value, vc));
+    private static boolean wins(ValueEntry entry, ValueEntry existing) {
+        if (entry.getVersion().beats(existing.getVersion())) {
+            return true;
+        }
+        return !existing.getVersion().beats(entry.getVersion()) && entry.getValue().compareTo(existing.getValue()) > 0;
     }
 
     /**
@@ -35,20 +303,204 @@ public class KeyValueStore {
      * @param key the key to read from the store
      * @return the value if found; otherwise {@code null}
      */
-    public synchronized String read(String key) {
-        ValueEntry entry = store.get(key);
+    public String read(String key) {
+        ValueEntry entry = getEntry(key);
         return (entry != null) ? entry.getValue() : null;
     }
 
+    /**
+     * Reads every value kept for a key: the concurrent siblings, latest first, or the single value
+     * if the key has no conflict.
+     *
+     * @param key the key to read from the store
+     * @return the values if found; otherwise {@code null}
+     */
+    public List<String> readSiblings(String key) {
+        ValueEntry entry = getEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(2);
+        for (ValueEntry sibling : entry.getSiblings()) {
+            values.add(sibling.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * Returns the entry (value and version) of a key.
+     *
+     * @param key the key to look up
+     * @return the entry if found; otherwise {@code null}
+     */
+    public ValueEntry getEntry(String key) {
+        ValueEntry entry = store.get(key);
+        return (entry != null) ? entry : baseEntry(key);
+    }
+
+    private ValueEntry baseEntry(String key) {
+        MappedSnapshot snapshot = base;
+        return (snapshot != null) ? snapshot.get(key) : null;
+    }
+
+    /**
+     * Returns the current base layer.
+     *
+     * @return the base snapshot, or {@code null}
+     */
+    public MappedSnapshot getBase() {
+        return base;
+    }
+
+    /**
+     * Returns a copy of the entries held in memory, i.e. written since the base snapshot.
+     *
+     * @return a list of immutable entries
+     */
+    public List<Map.Entry<String, ValueEntry>> copyLiveEntries() {
+        List<Map.Entry<String, ValueEntry>> copy = new ArrayList<>(store.size());
+        for (Map.Entry<String, ValueEntry> entry : store.entrySet()) {
+            copy.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Sets the snapshot used as base layer, e.g. the one loaded on startup.
+     *
+     * @param snapshot the new base layer
+     */
+    public void setBase(MappedSnapshot snapshot) {
+        this.base = snapshot;
+        tree.rebuild(entries());
+    }
+
+    /**
+     * Replaces the base layer with a newer snapshot and drops from the map the entries that the
+     * snapshot now holds. An entry is only dropped if it has not been overwritten in the meantime,
+     * so concurrent writes are never lost.
+     *
+     * @param snapshot a snapshot written from this store
+     * @return the number of entries dropped from the map
+     */
+    public int compactInto(MappedSnapshot snapshot) {
+        this.base = snapshot;
+        int dropped = 0;
+        for (Map.Entry<String, ValueEntry> entry : store.entrySet()) {
+            ValueEntry stored = snapshot.get(entry.getKey());
+            ValueEntry live = entry.getValue();
+            if (stored != null && stored.equals(live) && store.remove(entry.getKey(), live)) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns the hash tree of the contents.
+     *
+     * @return the Merkle tree
+     */
+    public MerkleTree getMerkleTree() {
+        return tree;
+    }
+
+    /**
+     * Returns the entries falling in the given leaves of the Merkle tree.
+     * Scans the whole store, but only the matching entries are copied.
+     *
+     * @param leaves the leaf indexes
+     * @return the matching entries
+     */
+    public List<Map.Entry<String, ValueEntry>> entriesInLeaves(Set<Integer> leaves) {
+        List<Map.Entry<String, ValueEntry>> result = new ArrayList<>();
+        for (Map.Entry<String, ValueEntry> entry : entries()) {
+            if (leaves.contains(tree.leafOf(entry.getKey()))) {
+                result.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of entries held in memory, i.e. written since the base snapshot.
+     *
+     * @return the size of the in-memory map
+     */
+    public int getLiveCount() {
+        return store.size();
+    }
+
+    /**
+     * Returns the number of entries of the base snapshot.
+     *
+     * @return the base entry count, 0 without a base layer
+     */
+    public long getBaseCount() {
+        MappedSnapshot snapshot = base;
+        return (snapshot != null) ? snapshot.getEntryCount() : 0;
+    }
+
     /**
      * Returns a snapshot of the current state of the store.
      * <p>
-     * The snapshot is a shallow copy of the internal map and reflects the values
-     * and vector clocks at the time of calling.
+     * The snapshot is a shallow copy of the internal map; it is weakly consistent with
+     * writes performed while it is being taken.
      *
      * @return a copy of the current key-value store
      */
-    public synchronized Map<String, ValueEntry> getStoreSnapshot() {
-        return new ConcurrentHashMap<>(store);
+    public Map<String, ValueEntry> getStoreSnapshot() {
+        if (base == null) {
+            return new ConcurrentHashMap<>(store);
+        }
+        Map<String, ValueEntry> snapshot = new ConcurrentHashMap<>();
+        for (Map.Entry<String, ValueEntry> entry : entries()) {
+            snapshot.put(entry.getKey(), entry.getValue());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns a read-only view of all the entries, base layer included, for scans that must not
+     * copy the store (e.g. writing a snapshot). Iteration is weakly consistent with concurrent writes.
+     *
+     * @return an iterable over the entries
+     */
+    public Iterable<Map.Entry<String, ValueEntry>> entries() {
+        MappedSnapshot snapshot = base;
+        Iterable<Map.Entry<String, ValueEntry>> live = Collections.unmodifiableMap(store).entrySet();
+        if (snapshot == null) {
+            return live;
+        }
+        // Base entries not shadowed by the map, then the map.
+        return () -> new Iterator<Map.Entry<String, ValueEntry>>() {
+            private final Iterator<Map.Entry<String, ValueEntry>> baseEntries = snapshot.entries().iterator();
+            private final Iterator<Map.Entry<String, ValueEntry>> liveEntries = live.iterator();
+            private Map.Entry<String, ValueEntry> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && baseEntries.hasNext()) {
+                    Map.Entry<String, ValueEntry> candidate = baseEntries.next();
+                    if (!store.containsKey(candidate.getKey())) {
+                        next = candidate;
+                    }
+                }
+                if (next == null && liveEntries.hasNext()) {
+                    next = liveEntries.next();
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, ValueEntry> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, ValueEntry> result = next;
+                next = null;
+                return result;
+            }
+        };
     }
 }
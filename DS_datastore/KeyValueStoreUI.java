@@ -6,6 +6,8 @@ import javax.swing.border.TitledBorder;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
@@ -14,8 +16,9 @@ import java.net.Socket;
  * A graphical user interface (GUI) client for interacting with a key-value store server.
  * <p>
  * This class provides fields to enter server connection information, key-value inputs,
- * and buttons to perform READ, WRITE, and SHOW operations. It uses TCP socket connections
- * to send commands and receive responses from the server.
+ * and buttons to perform READ, WRITE, and SHOW operations. It keeps one persistent TCP
+ * connection to the selected server, reused by every command and reopened when the
+ * server or port changes or the connection breaks.
  * <p>
  * The UI is built using Java Swing and includes real-time display of server responses.
  */
@@ -30,6 +33,14 @@ public class KeyValueStoreUI extends JFrame {
     private JButton writeButton;
     private JButton showButton;
 
+    /** Persistent connection to the server, or {@code null} if not connected. */
+    private Socket socket;
+    private PrintWriter out;
+    private BufferedReader in;
+
+    /** The "host:port" the current connection is bound to. */
+    private String connectedTo;
+
     /**
      * Constructs and initializes the Key-Value Store UI window.
      * <p>
@@ -180,20 +191,18 @@ public class KeyValueStoreUI extends JFrame {
      * @param port the server port
      */
     private void performShow(String host, int port) {
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
+        try {
             // Send "SHOW" to server
-            out.println("SHOW");
+            send(host, port, "SHOW");
 
-            // Reads responses and visualizes them in outputArea
-            String line;
+            // Reads responses and visualizes them in outputArea, up to the end marker
             outputArea.append("SHOW Response:\n");
-            while ((line = in.readLine()) != null) {
+            String line;
+            while (!"END_OF_SHOW".equals(line = readLine())) {
                 outputArea.append(line + "\n");
             }
         } catch (Exception ex) {
+            disconnect();
             outputArea.append("Error during SHOW: " + ex.getMessage() + "\n");
         }
     }
@@ -202,21 +211,30 @@ public class KeyValueStoreUI extends JFrame {
     /**
      * Sends a READ command to the server using the given key.
      * Displays the value in the output area.
+     * Several space-separated keys are read with a single MREAD command.
      *
      * @param host the server host
      * @param port the server port
      * @param key  the key to read
      */
     private void performRead(String host, int port, String key) {
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
+        try {
+            if (key.contains(" ")) {
+                // Send command (protocol: "MREAD key1 key2 ...")
+                send(host, port, "MREAD " + key);
+                outputArea.append("MREAD Response:\n");
+                String line;
+                while (!"END_OF_MREAD".equals(line = readLine())) {
+                    outputArea.append(line + "\n");
+                }
+                return;
+            }
             // Send command (protocol: "READ key")
-            out.println("READ " + key);
-            String response = in.readLine();
+            send(host, port, "READ " + key);
+            String response = readLine();
             outputArea.append("READ Response: " + response + "\n");
         } catch (Exception ex) {
+            disconnect();
             outputArea.append("Error during READ: " + ex.getMessage() + "\n");
         }
     }
@@ -224,6 +242,7 @@ public class KeyValueStoreUI extends JFrame {
     /**
      * Sends a WRITE command to the server with the given key and value.
      * Displays the server response in the output area.
+     * Several space-separated keys, with as many space-separated values, are written with a single MWRITE command.
      *
      * @param host  the server host
      * @param port  the server port
@@ -231,19 +250,87 @@ public class KeyValueStoreUI extends JFrame {
      * @param value the value to associate with the key
      */
     private void performWrite(String host, int port, String key, String value) {
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
+        try {
+            String[] keys = key.split(" +");
+            if (keys.length > 1) {
+                String[] values = value.split(" +");
+                if (values.length != keys.length) {
+                    outputArea.append("Error during WRITE: " + keys.length + " keys but " + values.length + " values\n");
+                    return;
+                }
+                // Send command (protocol: "MWRITE key1 value1 key2 value2 ...")
+                StringBuilder command = new StringBuilder("MWRITE");
+                for (int i = 0; i < keys.length; i++) {
+                    command.append(' ').append(keys[i]).append(' ').append(values[i]);
+                }
+                send(host, port, command.toString());
+                outputArea.append("MWRITE Response: " + readLine() + "\n");
+                return;
+            }
             // Send command (protocol: "WRITE key value")
-            out.println("WRITE " + key + " " + value);
-            String response = in.readLine();
+            send(host, port, "WRITE " + key + " " + value);
+            String response = readLine();
             outputArea.append("WRITE Response: " + response + "\n");
         } catch (Exception ex) {
+            disconnect();
             outputArea.append("Error during WRITE: " + ex.getMessage() + "\n");
         }
     }
 
+    /**
+     * Sends a command on the persistent connection, opening it first if needed.
+     *
+     * @param host    the server host
+     * @param port    the server port
+     * @param command the command line to send
+     * @throws IOException if the connection cannot be opened or the command cannot be sent
+     */
+    private void send(String host, int port, String command) throws IOException {
+        String target = host + ":" + port;
+        if (socket == null || !target.equals(connectedTo)) {
+            disconnect();
+            socket = new Socket(host, port);
+            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            connectedTo = target;
+        }
+        out.println(command);
+        if (out.checkError()) {
+            throw new IOException("Connection to " + target + " lost");
+        }
+    }
+
+    /**
+     * Reads one response line from the persistent connection.
+     *
+     * @return the line read
+     * @throws IOException if the connection fails or is closed by the server
+     */
+    private String readLine() throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            throw new EOFException("Connection closed by server");
+        }
+        return line;
+    }
+
+    /**
+     * Closes the persistent connection, ignoring errors.
+     */
+    private void disconnect() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Ignore closing error
+        }
+        socket = null;
+        out = null;
+        in = null;
+        connectedTo = null;
+    }
+
     /**
      * Entry point of the application.
      * Launches the Key-Value Store UI.
@@ -0,0 +1,223 @@
+package DS_datastore;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logging facade of the server.
+ * <p>
+ * Callers never write to the console themselves: a record is put in a bounded lock-free ring buffer
+ * and a background "log-writer" thread formats it and writes it, many lines per system call, so that a
+ * slow or contended console never holds back a thread that is serving requests or holding a lock.
+ * When the ring is full, records are dropped and counted, and the writer reports how many were lost.
+ * <p>
+ * Lines are written in logfmt, {@code time=... level=... thread=... msg="..."}; WARN and ERROR go to
+ * standard error, the others to standard output. Messages below {@link ServerConfig#LOG_LEVEL} cost a
+ * single comparison; per-update messages should also go through a {@link LogSampler}, which makes them
+ * allocation-free when they are not logged.
+ */
+public final class Log {
+
+    /** Severity of a message. */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /** A message waiting to be written. */
+    private static final class Record {
+        final long time;
+        final Level level;
+        final String thread;
+        final String message;
+
+        Record(Level level, String message) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+        }
+    }
+
+    /** Lowest level written. */
+    private static final Level THRESHOLD = Level.valueOf(ServerConfig.LOG_LEVEL.toUpperCase());
+
+    /** Maximum bytes of formatted lines written at once. */
+    private static final int WRITE_BATCH_CHARS = 64 * 1024;
+
+    /** Slots of the ring buffer; a slot is {@code null} until its record is published. */
+    private static final AtomicReferenceArray<Record> ring =
+            new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(ServerConfig.LOG_BUFFER_RECORDS, 2)));
+
+    /** Mask turning a sequence into a slot index. */
+    private static final int mask = ring.length() - 1;
+
+    /** Sequence of the next slot to fill (producers). */
+    private static final AtomicLong tail = new AtomicLong();
+
+    /** Sequence of the next slot to write (writer thread). */
+    private static final AtomicLong head = new AtomicLong();
+
+    /** Records dropped because the ring was full. */
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Tells whether messages of a level are written.
+     *
+     * @param level the level
+     * @return {@code true} if enabled
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    /**
+     * Logs a DEBUG message.
+     *
+     * @param message the message
+     */
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Logs an INFO message.
+     *
+     * @param message the message
+     */
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Logs a WARN message.
+     *
+     * @param message the message
+     */
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    /**
+     * Logs an ERROR message.
+     *
+     * @param message the message
+     */
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Queues a message for the writer thread, or drops it if the ring is full.
+     *
+     * @param level   the level
+     * @param message the message
+     */
+    public static void log(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Record record = new Record(level, message);
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head.get() >= ring.length()) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        ring.set((int) seq & mask, record);
+    }
+
+    /**
+     * Returns the number of records dropped because the ring buffer was full.
+     *
+     * @return the dropped count
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits, for at most one second, until the records queued so far have been written.
+     */
+    public static void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (head.get() < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    /**
+     * Writer loop: formats the published records in order and writes them in batches.
+     */
+    private static void drain() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            long seq = head.get();
+            int slot = (int) seq & mask;
+            Record record = ring.get(slot);
+            if (record != null && out.length() + err.length() < WRITE_BATCH_CHARS) {
+                ring.set(slot, null);
+                head.set(seq + 1);
+                format(record, record.level.compareTo(Level.WARN) >= 0 ? err : out);
+                continue;
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                format(new Record(Level.WARN, "log buffer full, " + (drops - reportedDrops) + " records dropped"), err);
+                reportedDrops = drops;
+            }
+            write(out, err);
+            if (record == null) {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    private static void format(Record record, StringBuilder line) {
+        line.append("time=").append(Instant.ofEpochMilli(record.time))
+                .append(" level=").append(record.level)
+                .append(" thread=").append(record.thread)
+                .append(" msg=\"");
+        String message = record.message;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else {
+                line.append(c);
+            }
+        }
+        line.append("\"\n");
+    }
+
+    private static void write(StringBuilder out, StringBuilder err) {
+        if (out.length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+            out.setLength(0);
+        }
+        if (err.length() > 0) {
+            System.err.print(err);
+            System.err.flush();
+            err.setLength(0);
+        }
+    }
+}
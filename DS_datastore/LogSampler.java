@@ -0,0 +1,84 @@
+package DS_datastore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which occurrences of a frequent message are logged: one every {@code every} calls, and at
+ * most {@code maxPerSecond} per second. Callers build the message only when {@link #sample()} says so:
+ * <pre>
+ *     if (SAMPLER.sample()) {
+ *         Log.debug("Remote update applied for key: " + key);
+ *     }
+ * </pre>
+ * so that an unsampled call allocates nothing. Thread-safe; the per-second budget is approximate.
+ */
+public class LogSampler {
+    /** Level of the sampled message. */
+    private final Log.Level level;
+
+    /** One call in this many is logged. */
+    private final int every;
+
+    /** Maximum number of messages logged per second. */
+    private final int maxPerSecond;
+
+    /** Number of calls while the level is enabled. */
+    private final AtomicLong calls = new AtomicLong();
+
+    /** Start of the current one-second window, in {@link System#nanoTime()} units. */
+    private volatile long windowStart = System.nanoTime();
+
+    /** Messages logged in the current window. */
+    private final AtomicInteger inWindow = new AtomicInteger();
+
+    /** Messages not logged because of sampling or of the rate limit. */
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Constructs a sampler.
+     *
+     * @param level        the level of the sampled message
+     * @param every        one call in this many is logged (1 logs all of them, up to the rate limit)
+     * @param maxPerSecond maximum number of messages logged per second
+     */
+    public LogSampler(Log.Level level, int every, int maxPerSecond) {
+        this.level = level;
+        this.every = Math.max(every, 1);
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * Tells whether this occurrence of the message must be logged.
+     *
+     * @return {@code true} if the caller should log the message
+     */
+    public boolean sample() {
+        if (!Log.isEnabled(level)) {
+            return false;
+        }
+        if (calls.getAndIncrement() % every != 0) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now - windowStart >= 1_000_000_000L) {
+            windowStart = now;
+            inWindow.set(0);
+        }
+        if (inWindow.incrementAndGet() > maxPerSecond) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of occurrences not logged so far.
+     *
+     * @return the suppressed count
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+}
@@ -0,0 +1,467 @@
+package DS_datastore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Snapshot file that is read in place through memory mapping instead of being loaded.
+ * <p>
+ * Layout (all integers big-endian, fixed width):
+ * <pre>
+ *   header   magic, version, entry count, offsets of the index and of the metadata
+ *   data     entries: [int keyLen][key][int valueLen][value][short s] then a version if s = 0,
+ *            or s siblings: [int valueLen][value] followed by a version
+ *   version  [short server][long counter][long timestamp][short n][n x (short server, long counter)]
+ *   index    open-addressing hash table: slots of [long entry offset (0 = empty)][int key hash]
+ *   metadata server ID table (the "server" numbers of the entries) and the clock of the snapshot
+ * </pre>
+ * A version is its dot (origin server and counter), the hybrid timestamp of the write, then the n pairs of its
+ * context ({@link DottedVersion}). Files of another layout version are rejected.
+ * <p>
+ * The server table only holds the servers the entries reference, numbered in order of first use, so that a
+ * server whose clock entry was retired ({@link ClockRetirement}) and no longer appears in any stored version
+ * drops out of it. Opening a snapshot registers the servers of its clock, then those of its table, in the
+ * {@link ServerIndex}: the live servers keep the lowest positions whatever order the entries are read in.
+ * <p>
+ * Opening a snapshot only maps the file and reads the metadata, whatever the number of entries:
+ * {@link #get(String)} hashes the key, probes the index and decodes the single matching entry,
+ * so the operating system pages in just the parts of the file that are actually read.
+ * <p>
+ * Files larger than 2 GB are mapped in 1 GB chunks; each mapping extends past its chunk by
+ * {@link #MAX_ENTRY_SIZE}, so an entry starting in a chunk is always readable from that chunk's buffer.
+ * Instances are immutable and safe for concurrent readers.
+ */
+public class MappedSnapshot {
+    /** Identifies a mapped snapshot file ("DSMS"). */
+    private static final int MAGIC = 0x44534D53;
+
+    /** Version of the layout. */
+    private static final int VERSION = 3;
+
+    /** Size of the dot and timestamp of a version. */
+    private static final int DOT_SIZE = 18;
+
+    /** Size of the fixed header. */
+    private static final int HEADER_SIZE = 32;
+
+    /** Size of an index slot. */
+    private static final int SLOT_SIZE = 12;
+
+    /** Size of the mapped chunks. */
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    /** Largest encoded entry; also the overlap between consecutive mappings. */
+    public static final int MAX_ENTRY_SIZE = 64 * 1024 * 1024;
+
+    /** Mappings of the file, one per chunk. */
+    private final MappedByteBuffer[] chunks;
+
+    /** Number of entries. */
+    private final long entryCount;
+
+    /** Offset of the index. */
+    private final long indexOffset;
+
+    /** Number of index slots (a power of two). */
+    private final long slotCount;
+
+    /** Server IDs referenced by the entries, by file-local number. */
+    private final String[] serverIds;
+
+    /** Clock of the node when the snapshot was taken. */
+    private final VectorClock clock;
+
+    private MappedSnapshot(MappedByteBuffer[] chunks, long entryCount, long indexOffset, long slotCount,
+                           String[] serverIds, VectorClock clock) {
+        this.chunks = chunks;
+        this.entryCount = entryCount;
+        this.indexOffset = indexOffset;
+        this.slotCount = slotCount;
+        this.serverIds = serverIds;
+        this.clock = clock;
+    }
+
+    /**
+     * Writes a snapshot file. The entries may change while they are being iterated.
+     *
+     * @param path    the file to create
+     * @param clock   the clock of the node
+     * @param entries the entries to write
+     * @return the number of entries written
+     * @throws IOException if the file cannot be written or an entry is larger than {@link #MAX_ENTRY_SIZE}
+     */
+    public static long write(Path path, VectorClock clock, Iterable<Map.Entry<String, ValueEntry>> entries) throws IOException {
+        long[] offsets = new long[1024];
+        int[] hashes = new int[1024];
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 256 * 1024));
+            ServerTable servers = new ServerTable();
+            long position = HEADER_SIZE;
+            for (Map.Entry<String, ValueEntry> entry : entries) {
+                ValueEntry stored = entry.getValue();
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = stored.getValue().getBytes(StandardCharsets.UTF_8);
+                long size = 4 + key.length + 4 + value.length + 2;
+                VectorClock context = null;
+                List<ValueEntry> siblings = null;
+                byte[][] siblingValues = null;
+                VectorClock[] siblingContexts = null;
+                if (!stored.hasSiblings()) {
+                    context = stored.getVersion().getContext().toVectorClock();
+                    size += DOT_SIZE + 2 + 10 * context.size();
+                } else {
+                    siblings = stored.getSiblings();
+                    siblingValues = new byte[siblings.size()][];
+                    siblingContexts = new VectorClock[siblings.size()];
+                    for (int i = 0; i < siblings.size(); i++) {
+                        siblingValues[i] = siblings.get(i).getValue().getBytes(StandardCharsets.UTF_8);
+                        siblingContexts[i] = siblings.get(i).getVersion().getContext().toVectorClock();
+                        size += 4 + siblingValues[i].length + DOT_SIZE + 2 + 10 * siblingContexts[i].size();
+                    }
+                }
+                if (size > MAX_ENTRY_SIZE) {
+                    throw new IOException("Entry too large for a mapped snapshot: " + entry.getKey());
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                offsets[count] = position;
+                hashes[count] = entry.getKey().hashCode();
+                count++;
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(value.length);
+                out.write(value);
+                if (siblings == null) {
+                    out.writeShort(0);
+                    writeVersion(out, servers, stored.getVersion(), context);
+                } else {
+                    out.writeShort(siblings.size());
+                    for (int i = 0; i < siblings.size(); i++) {
+                        out.writeInt(siblingValues[i].length);
+                        out.write(siblingValues[i]);
+                        writeVersion(out, servers, siblings.get(i).getVersion(), siblingContexts[i]);
+                    }
+                }
+                position += size;
+            }
+
+            // Hash index, at most half full.
+            long slots = Long.highestOneBit(Math.max(1, count) * 2L - 1) << 1;
+            long indexOffset = position;
+            long[] slotOffsets = new long[(int) slots];
+            int[] slotHashes = new int[(int) slots];
+            for (int i = 0; i < count; i++) {
+                long slot = spread(hashes[i]) & (slots - 1);
+                while (slotOffsets[(int) slot] != 0) {
+                    slot = (slot + 1) & (slots - 1);
+                }
+                slotOffsets[(int) slot] = offsets[i];
+                slotHashes[(int) slot] = hashes[i];
+            }
+            for (int i = 0; i < slots; i++) {
+                out.writeLong(slotOffsets[i]);
+                out.writeInt(slotHashes[i]);
+            }
+            position += slots * SLOT_SIZE;
+
+            // Metadata: server ID table and clock.
+            long metaOffset = position;
+            out.writeInt(servers.ids.size());
+            for (String id : servers.ids) {
+                out.writeUTF(id);
+            }
+            out.writeInt(clock.size());
+            for (int i = 0; i < clock.width(); i++) {
+                if (clock.getAt(i) != 0) {
+                    out.writeUTF(ServerIndex.idAt(i));
+                    out.writeLong(clock.getAt(i));
+                }
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(count).putLong(indexOffset).putLong(metaOffset).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        return count;
+    }
+
+    /** Server table of a snapshot being written: file-local numbers of the {@link ServerIndex} positions used. */
+    private static final class ServerTable {
+        final List<String> ids = new ArrayList<>();
+        int[] numbers = new int[0];
+
+        int numberOf(int index) {
+            if (index >= numbers.length) {
+                int length = numbers.length;
+                numbers = Arrays.copyOf(numbers, Math.max(index + 1, length * 2));
+                Arrays.fill(numbers, length, numbers.length, -1);
+            }
+            if (numbers[index] < 0) {
+                numbers[index] = ids.size();
+                ids.add(ServerIndex.idAt(index));
+            }
+            return numbers[index];
+        }
+    }
+
+    private static void writeVersion(DataOutputStream out, ServerTable servers, DottedVersion version,
+                                     VectorClock context) throws IOException {
+        out.writeShort(servers.numberOf(version.getOriginIndex()));
+        out.writeLong(version.getCounter());
+        out.writeLong(version.getTimestamp());
+        out.writeShort(context.size());
+        for (int i = 0; i < context.width(); i++) {
+            if (context.getAt(i) != 0) {
+                out.writeShort(servers.numberOf(i));
+                out.writeLong(context.getAt(i));
+            }
+        }
+    }
+
+    /**
+     * Maps a snapshot file. Only the header and the metadata are read.
+     *
+     * @param path the snapshot file
+     * @return the mapped snapshot
+     * @throws IOException if the file cannot be mapped or is not a mapped snapshot
+     */
+    public static MappedSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunkCount = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[Math.max(1, chunkCount)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, CHUNK_SIZE + MAX_ENTRY_SIZE));
+            }
+            ByteBuffer header = chunks[0];
+            if (size < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new StreamCorruptedException("Not a mapped snapshot: " + path);
+            }
+            long entryCount = header.getLong(8);
+            long indexOffset = header.getLong(16);
+            long metaOffset = header.getLong(24);
+            if (indexOffset > metaOffset || metaOffset > size) {
+                throw new StreamCorruptedException("Corrupted mapped snapshot header: " + path);
+            }
+            long slotCount = (metaOffset - indexOffset) / SLOT_SIZE;
+
+            DataInputStream meta = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(metaOffset))));
+            String[] serverIds = new String[meta.readInt()];
+            for (int i = 0; i < serverIds.length; i++) {
+                serverIds[i] = meta.readUTF();
+            }
+            VectorClock clock = new VectorClock();
+            int clockSize = meta.readInt();
+            for (int i = 0; i < clockSize; i++) {
+                String id = meta.readUTF();
+                clock.set(id, meta.readLong());
+            }
+            // The servers of the clock are registered first, by the clock itself; then the others the entries use.
+            for (String id : serverIds) {
+                ServerIndex.indexOf(id);
+            }
+            return new MappedSnapshot(chunks, entryCount, indexOffset, slotCount, serverIds, clock);
+        }
+    }
+
+    /**
+     * Looks up a key.
+     *
+     * @param key the key to look up
+     * @return the entry, or {@code null} if the snapshot does not contain the key
+     */
+    public ValueEntry get(String key) {
+        if (slotCount == 0) {
+            return null;
+        }
+        int hash = key.hashCode();
+        byte[] wanted = null;
+        long slot = spread(hash) & (slotCount - 1);
+        while (true) {
+            long slotPosition = indexOffset + slot * SLOT_SIZE;
+            long offset = getLong(slotPosition);
+            if (offset == 0) {
+                return null;
+            }
+            if (getInt(slotPosition + 8) == hash) {
+                if (wanted == null) {
+                    wanted = key.getBytes(StandardCharsets.UTF_8);
+                }
+                if (keyEquals(offset, wanted)) {
+                    return decodeEntry(offset + 4 + wanted.length);
+                }
+            }
+            slot = (slot + 1) & (slotCount - 1);
+        }
+    }
+
+    /**
+     * Returns the clock of the node when the snapshot was taken.
+     *
+     * @return a copy of the clock
+     */
+    public VectorClock getClock() {
+        return new VectorClock(clock);
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the entry count
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Returns all the entries, decoded one at a time in file order.
+     *
+     * @return an iterable over the entries
+     */
+    public Iterable<Map.Entry<String, ValueEntry>> entries() {
+        return () -> iterator(0);
+    }
+
+    /**
+     * Returns the entries from the given index on, in file order. Skipped entries are not decoded.
+     *
+     * @param from index of the first entry
+     * @return an iterator over the remaining entries
+     */
+    public Iterator<Map.Entry<String, ValueEntry>> iterator(long from) {
+        long start = HEADER_SIZE;
+        for (long i = 0; i < from && i < entryCount; i++) {
+            start = nextEntry(start);
+        }
+        long first = start;
+        return new Iterator<Map.Entry<String, ValueEntry>>() {
+            private long position = first;
+            private long remaining = Math.max(0, entryCount - from);
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public Map.Entry<String, ValueEntry> next() {
+                if (remaining <= 0) {
+                    throw new NoSuchElementException();
+                }
+                int keyLength = getInt(position);
+                String key = getString(position + 4, keyLength);
+                long valuePosition = position + 4 + keyLength;
+                ValueEntry entry = decodeEntry(valuePosition);
+                position = nextEntry(position);
+                remaining--;
+                return new AbstractMap.SimpleImmutableEntry<>(key, entry);
+            }
+        };
+    }
+
+    /** Returns the position of the entry following the one at the given position. */
+    private long nextEntry(long position) {
+        long valuePosition = position + 4 + getInt(position);
+        long next = valuePosition + 4 + getInt(valuePosition);
+        int siblings = getShort(next);
+        next += 2;
+        if (siblings == 0) {
+            return versionEnd(next);
+        }
+        for (int i = 0; i < siblings; i++) {
+            next = versionEnd(next + 4 + getInt(next));
+        }
+        return next;
+    }
+
+    /** Returns the position following the version at the given position. */
+    private long versionEnd(long position) {
+        long clockPosition = position + DOT_SIZE;
+        return clockPosition + 2 + 10L * getShort(clockPosition);
+    }
+
+    private boolean keyEquals(long offset, byte[] key) {
+        if (getInt(offset) != key.length) {
+            return false;
+        }
+        ByteBuffer chunk = chunks[(int) (offset / CHUNK_SIZE)];
+        int base = (int) (offset % CHUNK_SIZE) + 4;
+        for (int i = 0; i < key.length; i++) {
+            if (chunk.get(base + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Decodes the value and the versions stored at the given position. */
+    private ValueEntry decodeEntry(long position) {
+        int valueLength = getInt(position);
+        String value = getString(position + 4, valueLength);
+        long next = position + 4 + valueLength;
+        int siblings = getShort(next);
+        next += 2;
+        if (siblings == 0) {
+            return new ValueEntry(value, decodeVersion(next));
+        }
+        List<ValueEntry> writes = new ArrayList<>(siblings);
+        for (int i = 0; i < siblings; i++) {
+            int siblingLength = getInt(next);
+            String siblingValue = getString(next + 4, siblingLength);
+            next += 4 + siblingLength;
+            writes.add(new ValueEntry(siblingValue, decodeVersion(next)));
+            next = versionEnd(next);
+        }
+        return ValueEntry.withSiblings(value, writes);
+    }
+
+    /** Decodes the version stored at the given position. */
+    private DottedVersion decodeVersion(long position) {
+        long clockPosition = position + DOT_SIZE;
+        int clockSize = getShort(clockPosition);
+        VectorClock context = new VectorClock();
+        for (int i = 0; i < clockSize; i++) {
+            long pairPosition = clockPosition + 2 + 10L * i;
+            context.set(serverIds[getShort(pairPosition)], getLong(pairPosition + 2));
+        }
+        return DottedVersion.of(serverIds[getShort(position)], getLong(position + 2), getLong(position + 10),
+                ClockSnapshot.of(context));
+    }
+
+    private String getString(long position, int length) {
+        byte[] bytes = new byte[length];
+        chunks[(int) (position / CHUNK_SIZE)].get((int) (position % CHUNK_SIZE), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int getShort(long position) {
+        return chunks[(int) (position / CHUNK_SIZE)].getShort((int) (position % CHUNK_SIZE)) & 0xFFFF;
+    }
+
+    private int getInt(long position) {
+        return chunks[(int) (position / CHUNK_SIZE)].getInt((int) (position % CHUNK_SIZE));
+    }
+
+    private long getLong(long position) {
+        return chunks[(int) (position / CHUNK_SIZE)].getLong((int) (position % CHUNK_SIZE));
+    }
+
+    /** Spreads the bits of a key hash before masking it to the index size. */
+    private static long spread(int hash) {
+        return (hash ^ (hash >>> 16)) & 0xFFFFFFFFL;
+    }
+}
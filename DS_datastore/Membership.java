@@ -0,0 +1,629 @@
+package DS_datastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gossip membership and failure detection, in the style of SWIM, over UDP on the discovery port.
+ * <p>
+ * Every {@link ServerConfig#GOSSIP_INTERVAL_MS} the server probes one member, taken in a shuffled
+ * round-robin order: a PING must be answered by an ACK within {@link ServerConfig#GOSSIP_ACK_TIMEOUT_MS},
+ * otherwise {@link ServerConfig#GOSSIP_INDIRECT_PROBES} other members are asked to ping it too (PING_REQ)
+ * and relay its ACK. Only if no ACK arrives before the end of the period is the member suspected. A suspect
+ * that does not refute the suspicion within a timeout growing with the logarithm of the cluster size is
+ * declared dead: it is removed from the peers ({@link Server#removePeer(PeerInfo)}), so replication stops
+ * queuing updates for it.
+ * <p>
+ * Changes of state are not broadcast: they are piggybacked on the probes and their ACKs, each one
+ * retransmitted a number of times proportional to the logarithm of the cluster size, so that they reach
+ * every member with high probability. Each server thus sends a constant number of datagrams per period,
+ * whatever the size of the cluster. Newly joined servers spread the same way, replacing the NEW_PEER
+ * message sent to every peer.
+ * <p>
+ * Each server has an incarnation number, only incremented by the server itself: a server that hears it is
+ * suspected (or declared dead) at its current incarnation refutes it by gossiping that it is alive with
+ * a higher one. Newer incarnations override older ones; at the same incarnation SUSPECT overrides ALIVE and
+ * DEAD overrides both. The incarnation starts from the wall clock time, so a restarted server overrides
+ * the states recorded about its previous run.
+ * <p>
+ * The other servers stop replicating to a dead server, so a server that learns it was declared dead
+ * (through the gossip, or through the notice sent when it is seen alive again) catches up with a state
+ * transfer ({@link Server#resync()}). Once per probe round a random dead member is also sent such a notice,
+ * so that servers separated by a partition find each other again once it heals.
+ * <p>
+ * The gossip also carries the reports of {@link ClockRetirement}, which retires the clock entries of
+ * servers dead for long enough.
+ */
+public class Membership {
+
+    /**
+     * State of a member.
+     */
+    public enum State {
+        /** Answering probes. */
+        ALIVE,
+        /** Not answering probes, waiting for a refutation. */
+        SUSPECT,
+        /** Declared failed. */
+        DEAD
+    }
+
+    /** What this server knows about another one. */
+    private static final class Member {
+        PeerInfo peer;
+        State state;
+        long incarnation;
+        long suspectedAt;
+        long deadSince;
+
+        Member(PeerInfo peer, State state, long incarnation) {
+            this.peer = peer;
+            this.state = state;
+            this.incarnation = incarnation;
+        }
+    }
+
+    /** An item being disseminated (membership update or clock report) and the number of times it was sent. */
+    private static final class Broadcast<T> {
+        final T item;
+        int transmits;
+
+        Broadcast(T item) {
+            this.item = item;
+        }
+    }
+
+    /** A PING sent on behalf of another server: its ACK is relayed to the requester. */
+    private static final class Relay {
+        final SocketAddress requester;
+        final long sequence;
+        final long createdAt;
+
+        Relay(SocketAddress requester, long sequence, long createdAt) {
+            this.requester = requester;
+            this.sequence = sequence;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /** Largest datagram received. */
+    private static final int MAX_DATAGRAM = 64 * 1024;
+
+    /** Minimum time between two resyncs of the local server, in gossip periods. */
+    private static final int RESYNC_PERIODS = 10;
+
+    /** The local server. */
+    private final Server server;
+
+    /** The other servers, by ID; dead ones are kept to reject stale updates. Guarded by {@code this}. */
+    private final Map<String, Member> members = new HashMap<>();
+
+    /** Updates being disseminated, at most one per member. Guarded by {@code this}. */
+    private final Map<String, Broadcast<GossipMessage.Update>> broadcasts = new HashMap<>();
+
+    /** Clock reports being disseminated, at most one per departed server and reporter. Guarded by {@code this}. */
+    private final Map<String, Broadcast<GossipMessage.ClockReport>> reportBroadcasts = new HashMap<>();
+
+    /** Probe order of the current round. Guarded by {@code this}. */
+    private final List<String> probeOrder = new ArrayList<>();
+
+    /** Position in {@link #probeOrder}. Guarded by {@code this}. */
+    private int probeIndex;
+
+    /** Incarnation of the local server. Guarded by {@code this}. */
+    private long incarnation = System.currentTimeMillis();
+
+    /** When the local server last started a resync. Guarded by {@code this}. */
+    private long lastResync;
+
+    /** Source of the probe sequence numbers. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Probes waiting for their ACK, by sequence number. */
+    private final Map<Long, CompletableFuture<Void>> probes = new ConcurrentHashMap<>();
+
+    /** PINGs sent on behalf of other servers, by sequence number. */
+    private final Map<Long, Relay> relays = new ConcurrentHashMap<>();
+
+    /** The UDP socket, once started. */
+    private volatile DatagramSocket socket;
+
+    /** Number of probes answered neither directly nor indirectly. */
+    private final AtomicLong failedProbes;
+
+    /** Number of members declared dead. */
+    private final AtomicLong deaths;
+
+    /** Number of datagrams sent. */
+    private final AtomicLong sent;
+
+    /**
+     * Constructs the membership of the given server.
+     *
+     * @param server the local server
+     */
+    public Membership(Server server) {
+        this.server = server;
+        Metrics metrics = server.getMetrics();
+        this.failedProbes = metrics.counter("gossip_probes_failed");
+        this.deaths = metrics.counter("gossip_members_declared_dead");
+        this.sent = metrics.counter("gossip_datagrams_sent");
+        for (State state : State.values()) {
+            metrics.gauge("gossip_members{state=\"" + state.name().toLowerCase() + "\"}", () -> count(state));
+        }
+    }
+
+    /**
+     * Opens the UDP socket on the discovery port and starts the probe and receive threads.
+     * The current peers of the server are the initial members, and the presence of this server starts
+     * spreading at once, so that a restarted server overrides what the others recorded about its previous run.
+     *
+     * @throws SocketException if the socket cannot be opened
+     */
+    public void start() throws SocketException {
+        for (PeerInfo peer : server.getPeerServers()) {
+            peerAdded(peer);
+        }
+        announce();
+        socket = new DatagramSocket(server.getDiscoveryPort());
+        Thread receiver = new Thread(this::receiveLoop, "gossip-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread prober = new Thread(this::probeLoop, "gossip-prober");
+        prober.setDaemon(true);
+        prober.start();
+        Log.info("Gossip membership started on UDP port " + server.getDiscoveryPort());
+    }
+
+    /**
+     * Records a peer added by the discovery flow (join request or response). An unknown peer becomes an
+     * alive member; a peer recorded as dead that joins again is alive until its own gossip brings its new
+     * incarnation.
+     *
+     * @param peer the peer
+     */
+    public synchronized void peerAdded(PeerInfo peer) {
+        if (peer.getServerId().equals(server.getServerId())) {
+            return;
+        }
+        Member member = members.get(peer.getServerId());
+        if (member == null) {
+            members.put(peer.getServerId(), new Member(peer, State.ALIVE, 0));
+        } else if (member.state == State.DEAD) {
+            member.peer = peer;
+            member.state = State.ALIVE;
+        }
+    }
+
+    /**
+     * Starts spreading the presence of this server, e.g. after joining through a seed.
+     */
+    public synchronized void announce() {
+        enqueue(new GossipMessage.Update(server.getSelfPeer(), State.ALIVE, incarnation));
+    }
+
+    /**
+     * Returns the state of a member.
+     *
+     * @param serverId the member ID
+     * @return the state, or {@code null} if unknown
+     */
+    public synchronized State getState(String serverId) {
+        Member member = members.get(serverId);
+        return (member != null) ? member.state : null;
+    }
+
+    private synchronized int count(State state) {
+        int n = 0;
+        for (Member member : members.values()) {
+            if (member.state == state) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // === Failure detection ===
+
+    private void probeLoop() {
+        while (true) {
+            long start = System.currentTimeMillis();
+            try {
+                Member target = nextTarget();
+                if (target != null) {
+                    probe(target.peer, target.incarnation);
+                }
+                expireSuspects();
+                relays.values().removeIf(r -> start - r.createdAt > ServerConfig.GOSSIP_INTERVAL_MS);
+                long remaining = ServerConfig.GOSSIP_INTERVAL_MS - (System.currentTimeMillis() - start);
+                if (remaining > 0) {
+                    Thread.sleep(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                Log.warn("Gossip probe error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the next member to probe, reshuffling the order at the end of each round
+     * (and then sending a dead member the notice that it is recorded as dead).
+     */
+    private Member nextTarget() {
+        Member dead = null;
+        List<String> departed = null;
+        Set<String> known = null;
+        synchronized (this) {
+            if (probeIndex >= probeOrder.size()) {
+                List<Member> deadMembers = new ArrayList<>();
+                long now = System.currentTimeMillis();
+                departed = new ArrayList<>();
+                known = new HashSet<>(members.keySet());
+                probeOrder.clear();
+                for (Member member : members.values()) {
+                    if (member.state != State.DEAD) {
+                        probeOrder.add(member.peer.getServerId());
+                    } else {
+                        deadMembers.add(member);
+                        if (now - member.deadSince >= ServerConfig.CLOCK_RETIRE_AFTER_MS) {
+                            departed.add(member.peer.getServerId());
+                        }
+                    }
+                }
+                Collections.shuffle(probeOrder);
+                probeIndex = 0;
+                if (!deadMembers.isEmpty()) {
+                    dead = deadMembers.get(ThreadLocalRandom.current().nextInt(deadMembers.size()));
+                    dead = new Member(dead.peer, dead.state, dead.incarnation);
+                }
+            }
+        }
+        if (dead != null) {
+            notifyDead(dead.peer, dead.incarnation);
+        }
+        if (departed != null && ServerConfig.CLOCK_RETIRE_AFTER_MS > 0) {
+            ClockRetirement retirement = server.getClockRetirement();
+            enqueueReports(retirement.reportRound(departed, known));
+            enqueueReports(retirement.retireReported(liveMembers()));
+        }
+        return nextAlive();
+    }
+
+    /**
+     * Returns how long an update takes to reach every member with high probability: the time over which
+     * it is retransmitted.
+     *
+     * @return the dissemination time, in milliseconds
+     */
+    public synchronized long getDisseminationMillis() {
+        return ServerConfig.GOSSIP_RETRANSMIT_MULT * log2(members.size() + 2) * ServerConfig.GOSSIP_INTERVAL_MS;
+    }
+
+    /**
+     * Returns the IDs of the members not declared dead.
+     */
+    private synchronized Set<String> liveMembers() {
+        Set<String> live = new HashSet<>();
+        for (Member member : members.values()) {
+            if (member.state != State.DEAD) {
+                live.add(member.peer.getServerId());
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Returns a copy of the next member of the current round that is not dead, {@code null} if none.
+     */
+    private synchronized Member nextAlive() {
+        while (probeIndex < probeOrder.size()) {
+            Member member = members.get(probeOrder.get(probeIndex++));
+            if (member != null && member.state != State.DEAD) {
+                return new Member(member.peer, member.state, member.incarnation);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Probes a member directly, then indirectly, and suspects it if neither answers in time.
+     */
+    private void probe(PeerInfo target, long targetIncarnation) throws InterruptedException {
+        long seq = sequence.incrementAndGet();
+        CompletableFuture<Void> ack = new CompletableFuture<>();
+        probes.put(seq, ack);
+        try {
+            send(target, message(GossipMessage.Type.PING, seq, null));
+            if (await(ack, ServerConfig.GOSSIP_ACK_TIMEOUT_MS)) {
+                return;
+            }
+            for (PeerInfo helper : helpers(target.getServerId())) {
+                send(helper, message(GossipMessage.Type.PING_REQ, seq, target));
+            }
+            if (await(ack, ServerConfig.GOSSIP_INTERVAL_MS - ServerConfig.GOSSIP_ACK_TIMEOUT_MS)) {
+                return;
+            }
+        } finally {
+            probes.remove(seq);
+        }
+        failedProbes.incrementAndGet();
+        apply(new GossipMessage.Update(target, State.SUSPECT, targetIncarnation));
+    }
+
+    private static boolean await(CompletableFuture<Void> ack, long timeoutMs) throws InterruptedException {
+        try {
+            ack.get(Math.max(timeoutMs, 1), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Picks the members asked to probe a target on our behalf.
+     */
+    private synchronized List<PeerInfo> helpers(String targetId) {
+        List<PeerInfo> candidates = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member.state == State.ALIVE && !member.peer.getServerId().equals(targetId)) {
+                candidates.add(member.peer);
+            }
+        }
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
+        return candidates.subList(0, Math.min(ServerConfig.GOSSIP_INDIRECT_PROBES, candidates.size()));
+    }
+
+    /**
+     * Declares dead the suspects whose suspicion timeout has expired.
+     */
+    private void expireSuspects() {
+        List<GossipMessage.Update> expired = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long timeout = ServerConfig.GOSSIP_SUSPICION_MULT * log2(members.size() + 1) * ServerConfig.GOSSIP_INTERVAL_MS;
+            for (Member member : members.values()) {
+                if (member.state == State.SUSPECT && now - member.suspectedAt > timeout) {
+                    expired.add(new GossipMessage.Update(member.peer, State.DEAD, member.incarnation));
+                }
+            }
+        }
+        for (GossipMessage.Update update : expired) {
+            apply(update);
+        }
+    }
+
+    // === Dissemination ===
+
+    /**
+     * Applies a membership update, received or produced locally, if it is newer than what is known.
+     * Applied updates are gossiped further. The server's peers are changed outside the membership lock.
+     *
+     * @param update the update
+     */
+    private void apply(GossipMessage.Update update) {
+        PeerInfo peer = update.getPeer();
+        boolean added = false;
+        boolean removed = false;
+        boolean rejoin = false;
+        long revivedIncarnation = 0;
+        synchronized (this) {
+            if (peer.getServerId().equals(server.getServerId())) {
+                if (update.getState() != State.ALIVE && update.getIncarnation() >= incarnation) {
+                    // Refute: we are alive, at a higher incarnation.
+                    incarnation = update.getIncarnation() + 1;
+                    enqueue(new GossipMessage.Update(server.getSelfPeer(), State.ALIVE, incarnation));
+                    Log.warn("Refuting " + update.getState() + " about this server, incarnation now " + incarnation);
+                }
+                long now = System.currentTimeMillis();
+                if (update.getState() == State.DEAD && now - lastResync > RESYNC_PERIODS * ServerConfig.GOSSIP_INTERVAL_MS) {
+                    // Declared dead, at this or a previous incarnation: updates queued for us may have been dropped.
+                    lastResync = now;
+                    rejoin = true;
+                }
+            } else {
+                Member member = members.get(peer.getServerId());
+                if (member == null) {
+                    members.put(peer.getServerId(), member = new Member(peer, update.getState(), update.getIncarnation()));
+                    added = update.getState() != State.DEAD;
+                } else if (overrides(update, member)) {
+                    added = member.state == State.DEAD;
+                    revivedIncarnation = member.incarnation;
+                    removed = update.getState() == State.DEAD;
+                    member.state = update.getState();
+                    member.incarnation = update.getIncarnation();
+                    if (added) {
+                        member.peer = peer;
+                    }
+                } else {
+                    return;
+                }
+                if (member.state == State.SUSPECT) {
+                    member.suspectedAt = System.currentTimeMillis();
+                    Log.warn("Member " + member.peer + " suspected (incarnation " + member.incarnation + ")");
+                } else if (member.state == State.DEAD) {
+                    member.deadSince = System.currentTimeMillis();
+                    deaths.incrementAndGet();
+                    Log.warn("Member " + member.peer + " declared dead (incarnation " + member.incarnation + ")");
+                }
+                enqueue(update);
+            }
+        }
+        if (added) {
+            server.addPeer(peer);
+            server.registerServer(peer.getServerId());
+            if (revivedIncarnation != 0) {
+                // Tell it that it was declared dead, so that it recovers the updates it missed.
+                notifyDead(peer, revivedIncarnation);
+            }
+        }
+        if (removed) {
+            server.removePeer(peer);
+        }
+        if (rejoin) {
+            server.resync();
+        }
+    }
+
+    /**
+     * Tells whether an update supersedes what is known about a member.
+     */
+    private static boolean overrides(GossipMessage.Update update, Member member) {
+        long inc = update.getIncarnation();
+        switch (update.getState()) {
+            case ALIVE:
+                return inc > member.incarnation;
+            case SUSPECT:
+                return member.state != State.DEAD
+                        && (inc > member.incarnation || (inc == member.incarnation && member.state == State.ALIVE));
+            default:
+                return member.state != State.DEAD && inc >= member.incarnation;
+        }
+    }
+
+    /**
+     * Queues an update for dissemination, replacing the previous one about the same member.
+     */
+    private void enqueue(GossipMessage.Update update) {
+        broadcasts.put(update.getPeer().getServerId(), new Broadcast<>(update));
+    }
+
+    /**
+     * Queues clock reports for dissemination, each replacing the previous one of the same reporter
+     * about the same server.
+     */
+    private synchronized void enqueueReports(List<GossipMessage.ClockReport> reports) {
+        for (GossipMessage.ClockReport report : reports) {
+            reportBroadcasts.put(report.getServerId() + "/" + report.getReporterId(), new Broadcast<>(report));
+        }
+    }
+
+    /**
+     * Builds a message carrying the updates and clock reports to piggyback: the least transmitted ones first.
+     */
+    private synchronized GossipMessage message(GossipMessage.Type type, long seq, PeerInfo target) {
+        int limit = ServerConfig.GOSSIP_RETRANSMIT_MULT * log2(members.size() + 2);
+        return new GossipMessage(type, seq, server.getServerId(), target,
+                take(broadcasts, limit), take(reportBroadcasts, limit));
+    }
+
+    /**
+     * Takes the least transmitted items of a queue, removing those sent {@code limit} times.
+     */
+    private static <T> List<T> take(Map<String, Broadcast<T>> queue, int limit) {
+        if (queue.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Map.Entry<String, Broadcast<T>>> pending = new ArrayList<>(queue.entrySet());
+        pending.sort(Comparator.comparingInt(e -> e.getValue().transmits));
+        List<T> items = new ArrayList<>();
+        for (Map.Entry<String, Broadcast<T>> entry : pending.subList(0, Math.min(ServerConfig.GOSSIP_MAX_PIGGYBACK, pending.size()))) {
+            Broadcast<T> broadcast = entry.getValue();
+            items.add(broadcast.item);
+            if (++broadcast.transmits >= limit) {
+                queue.remove(entry.getKey(), broadcast);
+            }
+        }
+        return items;
+    }
+
+    private static int log2(int n) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(n - 1));
+    }
+
+    // === Transport ===
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                Object msg = new MessageReader(new ByteArrayInputStream(packet.getData(), 0, packet.getLength())).readMessage();
+                if (msg instanceof GossipMessage) {
+                    handle((GossipMessage) msg, packet.getSocketAddress());
+                }
+            } catch (IOException e) {
+                if (socket.isClosed()) {
+                    return;
+                }
+                Log.warn("Invalid gossip datagram from " + packet.getSocketAddress() + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+                Log.warn("Gossip error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(GossipMessage msg, SocketAddress from) {
+        for (GossipMessage.Update update : msg.getUpdates()) {
+            apply(update);
+        }
+        if (!msg.getReports().isEmpty() && ServerConfig.CLOCK_RETIRE_AFTER_MS > 0) {
+            ClockRetirement retirement = server.getClockRetirement();
+            for (GossipMessage.ClockReport report : msg.getReports()) {
+                enqueueReports(retirement.onReport(report, getState(report.getServerId())));
+            }
+            enqueueReports(retirement.retireReported(liveMembers()));
+        }
+        switch (msg.getType()) {
+            case PING:
+                send(from, message(GossipMessage.Type.ACK, msg.getSequence(), null));
+                break;
+            case PING_REQ: {
+                long seq = sequence.incrementAndGet();
+                relays.put(seq, new Relay(from, msg.getSequence(), System.currentTimeMillis()));
+                send(msg.getTarget(), message(GossipMessage.Type.PING, seq, null));
+                break;
+            }
+            case ACK: {
+                CompletableFuture<Void> ack = probes.get(msg.getSequence());
+                if (ack != null) {
+                    ack.complete(null);
+                }
+                Relay relay = relays.remove(msg.getSequence());
+                if (relay != null) {
+                    send(relay.requester, message(GossipMessage.Type.ACK, relay.sequence, null));
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sends a member a PING carrying the notice that it is recorded as dead; its ACK is ignored.
+     */
+    private void notifyDead(PeerInfo peer, long deadIncarnation) {
+        List<GossipMessage.Update> notice = List.of(new GossipMessage.Update(peer, State.DEAD, deadIncarnation));
+        send(peer, new GossipMessage(GossipMessage.Type.PING, sequence.incrementAndGet(), server.getServerId(), null, notice));
+    }
+
+    private void send(PeerInfo peer, GossipMessage msg) {
+        send(new InetSocketAddress(peer.getHost(), peer.getDiscoveryPort()), msg);
+    }
+
+    private void send(SocketAddress to, GossipMessage msg) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try (MessageWriter out = new MessageWriter(bytes)) {
+                out.writeMessage(msg);
+            }
+            socket.send(new DatagramPacket(bytes.toByteArray(), bytes.size(), to));
+            sent.incrementAndGet();
+        } catch (IOException | IllegalArgumentException e) {
+            // UDP is best effort: a lost datagram is a failed probe.
+            Log.debug("Gossip send to " + to + " failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package DS_datastore;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hash tree over the contents of a {@link KeyValueStore}, used by {@link AntiEntropy} to find the
+ * key ranges on which two replicas differ without exchanging the data.
+ * <p>
+ * Keys are spread over {@code FANOUT^levels} leaves by a hash of the key. The hash of a leaf is the
+ * XOR of the hashes of its entries (key, value and versions), so it is updated in constant time on
+ * every write by XOR-ing out the old entry and XOR-ing in the new one, in any order and without locks.
+ * An inner node covers a contiguous range of leaves and its hash is the XOR of their hashes; nodes are
+ * computed on demand, which costs at most one pass over the leaves.
+ */
+public class MerkleTree {
+    /** Number of children of an inner node. */
+    public static final int FANOUT = 16;
+
+    /** Number of levels below the root; leaves are at this level. */
+    private final int levels;
+
+    /** Hash of every leaf. */
+    private final AtomicLongArray leaves;
+
+    /**
+     * Constructs an empty tree.
+     *
+     * @param levels number of levels below the root (the tree has {@code 16^levels} leaves)
+     */
+    public MerkleTree(int levels) {
+        if (levels < 1 || levels > 5) {
+            throw new IllegalArgumentException("Merkle tree levels must be between 1 and 5: " + levels);
+        }
+        this.levels = levels;
+        this.leaves = new AtomicLongArray(1 << (4 * levels));
+    }
+
+    /**
+     * Returns the number of levels below the root.
+     *
+     * @return the leaf level
+     */
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * Returns the leaf holding a key.
+     *
+     * @param key the key
+     * @return the leaf index
+     */
+    public int leafOf(String key) {
+        return (int) (ClockSnapshot.mix(key.hashCode()) >>> (64 - 4 * levels));
+    }
+
+    /**
+     * Returns the hash of an entry, the same on every server holding the same value and write (dot),
+     * or the same siblings.
+     *
+     * @param key   the key
+     * @param entry the value and version
+     * @return the entry hash
+     */
+    public static long hash(String key, ValueEntry entry) {
+        long h = ClockSnapshot.mix(key.hashCode() * 31L + entry.getValue().hashCode());
+        if (!entry.hasSiblings()) {
+            return ClockSnapshot.mix(h ^ entry.getVersion().digest());
+        }
+        for (ValueEntry sibling : entry.getSiblings()) {
+            h = ClockSnapshot.mix(h ^ (sibling.getValue().hashCode() * 31L + sibling.getVersion().digest()));
+        }
+        return h;
+    }
+
+    /**
+     * Records the replacement of an entry.
+     *
+     * @param key      the key
+     * @param previous the replaced entry, or {@code null}
+     * @param current  the new entry, or {@code null} if removed
+     */
+    public void update(String key, ValueEntry previous, ValueEntry current) {
+        long delta = 0;
+        if (previous != null) {
+            delta ^= hash(key, previous);
+        }
+        if (current != null) {
+            delta ^= hash(key, current);
+        }
+        if (delta != 0) {
+            long d = delta;
+            leaves.accumulateAndGet(leafOf(key), d, (a, b) -> a ^ b);
+        }
+    }
+
+    /**
+     * Recomputes every leaf from the given entries.
+     *
+     * @param entries all the entries of the store
+     */
+    public void rebuild(Iterable<Map.Entry<String, ValueEntry>> entries) {
+        long[] fresh = new long[leaves.length()];
+        for (Map.Entry<String, ValueEntry> entry : entries) {
+            fresh[leafOf(entry.getKey())] ^= hash(entry.getKey(), entry.getValue());
+        }
+        for (int i = 0; i < fresh.length; i++) {
+            leaves.set(i, fresh[i]);
+        }
+    }
+
+    /**
+     * Returns the hash of a node.
+     *
+     * @param level the node level, 0 for the root
+     * @param node  the node index within its level
+     * @return the XOR of the leaves below the node
+     */
+    public long nodeHash(int level, int node) {
+        int width = 1 << (4 * (levels - level));
+        long h = 0;
+        for (int i = node * width, end = i + width; i < end; i++) {
+            h ^= leaves.get(i);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,423 @@
+package DS_datastore;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes messages written by {@link MessageWriter} (see {@link WireFormat} for the layout).
+ * <p>
+ * The stream header is read and validated before the first message, so constructing a reader
+ * never blocks. Not thread-safe: each stream must be used by one thread at a time.
+ */
+public class MessageReader implements Closeable {
+    /** The underlying buffered stream. */
+    private final DataInputStream in;
+
+    /** Server IDs defined so far on this stream, by table index. */
+    private final List<String> serverIds = new ArrayList<>();
+
+    /** Version contexts defined so far on this stream, by table index. */
+    private final List<ClockSnapshot> clocks = new ArrayList<>();
+
+    /** Whether the stream header has been read. */
+    private boolean headerRead;
+
+    /**
+     * Constructs a reader on top of the given stream.
+     *
+     * @param in the source stream
+     */
+    public MessageReader(InputStream in) {
+        this(in, null);
+    }
+
+    /**
+     * Constructs a reader on top of the given stream, adding the number of bytes read to a counter.
+     *
+     * @param in        the source stream
+     * @param bytesRead the counter, or {@code null}
+     */
+    public MessageReader(InputStream in, AtomicLong bytesRead) {
+        InputStream source = (bytesRead == null) ? in : new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesRead.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+                int n = super.read(buf, off, len);
+                if (n > 0) {
+                    bytesRead.addAndGet(n);
+                }
+                return n;
+            }
+        };
+        this.in = new DataInputStream(new BufferedInputStream(source));
+    }
+
+    /**
+     * Decodes the next message.
+     *
+     * @return the decoded message
+     * @throws EOFException if the stream ends before the next message
+     * @throws IOException  if the stream fails or carries invalid data
+     */
+    public Object readMessage() throws IOException {
+        if (!headerRead) {
+            short magic = in.readShort();
+            if (magic != WireFormat.MAGIC) {
+                throw new StreamCorruptedException("Invalid stream header: " + Integer.toHexString(magic & 0xFFFF));
+            }
+            byte version = in.readByte();
+            if (version != WireFormat.VERSION) {
+                throw new StreamCorruptedException("Unsupported wire format version " + version);
+            }
+            headerRead = true;
+        }
+        byte tag = in.readByte();
+        switch (tag) {
+            case WireFormat.TAG_UPDATE:
+                return readUpdate();
+            case WireFormat.TAG_BATCH: {
+                int count = readVarInt();
+                List<UpdateMessage> updates = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    updates.add(readUpdate());
+                }
+                return new ReplicationBatch(updates);
+            }
+            case WireFormat.TAG_DISCOVERY:
+                return readDiscovery();
+            case WireFormat.TAG_STATE_REQUEST:
+                long sessionId = readVarLong();
+                long resumeFrom = readVarLong();
+                VectorClock known = (in.readByte() != 0) ? readClock() : null;
+                return new StateRequestMessage(sessionId, resumeFrom, known);
+            case WireFormat.TAG_STATE_CHUNK:
+                return readStateChunk();
+            case WireFormat.TAG_STATE_ACK:
+                return new StateAckMessage(readVarLong(), readVarLong());
+            case WireFormat.TAG_ANTI_ENTROPY:
+                return readAntiEntropy();
+            case WireFormat.TAG_GOSSIP:
+                return readGossip();
+            case WireFormat.TAG_REPLICATION_ACK:
+                return new ReplicationAckMessage(readVarLong());
+            default:
+                throw new StreamCorruptedException("Unknown message tag " + tag);
+        }
+    }
+
+    private UpdateMessage readUpdate() throws IOException {
+        int count = readVarInt();
+        List<String> keys = new ArrayList<>(count);
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(readString());
+            values.add(readString());
+        }
+        String origin = readServerId();
+        VectorClock clock = readClock();
+        if (in.readBoolean()) {
+            long first = readVarLong();
+            long[] sequences = new long[count];
+            long[] timestamps = new long[count];
+            for (int i = 0; i < count; i++) {
+                sequences[i] = readVarLong();
+                timestamps[i] = readVarLong();
+            }
+            try {
+                return new UpdateMessage(keys, values, sequences, timestamps, origin, clock, first);
+            } catch (IllegalArgumentException e) {
+                throw new StreamCorruptedException(e.getMessage());
+            }
+        }
+        if (count < 1) {
+            throw new StreamCorruptedException("Update without keys");
+        }
+        return new UpdateMessage(keys, values, origin, clock, readVarLong());
+    }
+
+    private DiscoveryMessage readDiscovery() throws IOException {
+        int ordinal = in.readUnsignedByte();
+        DiscoveryMessage.Type[] types = DiscoveryMessage.Type.values();
+        if (ordinal >= types.length) {
+            throw new StreamCorruptedException("Unknown discovery message type " + ordinal);
+        }
+        DiscoveryMessage.Type type = types[ordinal];
+        switch (type) {
+            case JOIN_REQUEST: {
+                String serverId = readServerId();
+                String host = readString();
+                int replicationPort = readVarInt();
+                int discoveryPort = readVarInt();
+                int stateTransferPort = readVarInt();
+                int clientPort = readVarInt();
+                return new DiscoveryMessage(type, serverId, host, replicationPort, discoveryPort, stateTransferPort, clientPort);
+            }
+            case JOIN_RESPONSE: {
+                int count = readVarInt();
+                List<PeerInfo> peers = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    peers.add(readPeer());
+                }
+                return new DiscoveryMessage(type, peers);
+            }
+            default:
+                return new DiscoveryMessage(type, readPeer());
+        }
+    }
+
+    private StateChunkMessage readStateChunk() throws IOException {
+        long sessionId = readVarLong();
+        long firstIndex = readVarLong();
+        long total = readVarLong();
+        int flags = in.readUnsignedByte();
+        VectorClock clock = ((flags & 2) != 0) ? readClock() : null;
+        clocks.clear();
+        int count = readVarInt();
+        List<String> keys = new ArrayList<>(count);
+        List<ValueEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(readString());
+            entries.add(readEntry());
+        }
+        return new StateChunkMessage(sessionId, firstIndex, total, keys, entries, (flags & 1) != 0, clock);
+    }
+
+    private AntiEntropyMessage readAntiEntropy() throws IOException {
+        int type = in.readUnsignedByte();
+        if (type >= AntiEntropyMessage.Type.values().length) {
+            throw new StreamCorruptedException("Unknown anti-entropy message type " + type);
+        }
+        switch (AntiEntropyMessage.Type.values()[type]) {
+            case COMPARE: {
+                int treeLevels = readVarInt();
+                int level = readVarInt();
+                int count = readVarInt();
+                List<Integer> nodes = new ArrayList<>(count);
+                List<Long> hashes = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    nodes.add(readVarInt());
+                    hashes.add(in.readLong());
+                }
+                String senderId = readServerId();
+                return new AntiEntropyMessage(treeLevels, level, nodes, hashes, senderId);
+            }
+            case ENTRIES: {
+                boolean replyExpected = in.readBoolean();
+                int leafCount = readVarInt();
+                List<Integer> leaves = new ArrayList<>(leafCount);
+                for (int i = 0; i < leafCount; i++) {
+                    leaves.add(readVarInt());
+                }
+                clocks.clear();
+                int count = readVarInt();
+                List<String> keys = new ArrayList<>(count);
+                List<ValueEntry> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    keys.add(readString());
+                    entries.add(readEntry());
+                }
+                return new AntiEntropyMessage(leaves, keys, entries, replyExpected);
+            }
+            default:
+                return new AntiEntropyMessage();
+        }
+    }
+
+    private GossipMessage readGossip() throws IOException {
+        int type = in.readUnsignedByte();
+        if (type >= GossipMessage.Type.values().length) {
+            throw new StreamCorruptedException("Unknown gossip message type " + type);
+        }
+        GossipMessage.Type messageType = GossipMessage.Type.values()[type];
+        long sequence = readVarLong();
+        String senderId = readServerId();
+        PeerInfo target = (messageType == GossipMessage.Type.PING_REQ) ? readPeer() : null;
+        int count = readVarInt();
+        List<GossipMessage.Update> updates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            PeerInfo peer = readPeer();
+            int state = in.readUnsignedByte();
+            if (state >= Membership.State.values().length) {
+                throw new StreamCorruptedException("Unknown member state " + state);
+            }
+            updates.add(new GossipMessage.Update(peer, Membership.State.values()[state], readVarLong()));
+        }
+        int reportCount = readVarInt();
+        List<GossipMessage.ClockReport> reports = new ArrayList<>(reportCount);
+        for (int i = 0; i < reportCount; i++) {
+            String serverId = readServerId();
+            String reporterId = readServerId();
+            long counter = readVarLong();
+            reports.add(new GossipMessage.ClockReport(serverId, reporterId, counter, in.readBoolean()));
+        }
+        return new GossipMessage(messageType, sequence, senderId, target, updates, reports);
+    }
+
+    /**
+     * Reads a store entry written by {@link MessageWriter#writeEntry(ValueEntry)}.
+     *
+     * @return the decoded entry
+     * @throws IOException if the stream fails or carries invalid data
+     */
+    public ValueEntry readEntry() throws IOException {
+        String value = readString();
+        int siblings = readVarInt();
+        if (siblings == 0) {
+            return new ValueEntry(value, readVersion());
+        }
+        if (siblings < 2) {
+            throw new StreamCorruptedException("Entry with a single sibling");
+        }
+        List<ValueEntry> writes = new ArrayList<>(siblings);
+        for (int i = 0; i < siblings; i++) {
+            String siblingValue = readString();
+            writes.add(new ValueEntry(siblingValue, readVersion()));
+        }
+        return ValueEntry.withSiblings(value, writes);
+    }
+
+    /**
+     * Reads a version written by {@link MessageWriter#writeVersion(DottedVersion)}.
+     *
+     * @return the decoded version
+     * @throws IOException if the stream fails or carries invalid data
+     */
+    public DottedVersion readVersion() throws IOException {
+        long counter = readVarLong();
+        if (counter < 1) {
+            throw new StreamCorruptedException("Version without dot");
+        }
+        String origin = readServerId();
+        long timestamp = readVarLong();
+        return DottedVersion.of(origin, counter, timestamp, readClockRef());
+    }
+
+    /**
+     * Reads a clock snapshot written by {@link MessageWriter#writeClockRef(ClockSnapshot)}.
+     *
+     * @return the decoded snapshot, shared with earlier references to the same table entry
+     * @throws IOException if the stream fails or carries invalid data
+     */
+    public ClockSnapshot readClockRef() throws IOException {
+        int ref = readVarInt();
+        if (ref == 0) {
+            ClockSnapshot snapshot = ClockSnapshot.of(readClock());
+            clocks.add(snapshot);
+            return snapshot;
+        }
+        if (ref > clocks.size()) {
+            throw new StreamCorruptedException("Unknown clock reference " + ref);
+        }
+        return clocks.get(ref - 1);
+    }
+
+    private PeerInfo readPeer() throws IOException {
+        String serverId = readServerId();
+        String host = readString();
+        int replicationPort = readVarInt();
+        int discoveryPort = readVarInt();
+        int stateTransferPort = readVarInt();
+        int clientPort = readVarInt();
+        return new PeerInfo(serverId, host, replicationPort, discoveryPort, stateTransferPort, clientPort);
+    }
+
+    /**
+     * Reads a vector clock written by {@link MessageWriter#writeClock(VectorClock)}.
+     *
+     * @return the decoded clock
+     * @throws IOException if the stream fails or carries invalid data
+     */
+    public VectorClock readClock() throws IOException {
+        int count = readVarInt();
+        VectorClock clock = new VectorClock();
+        for (int i = 0; i < count; i++) {
+            String serverId = readServerId();
+            clock.set(serverId, readVarLong());
+        }
+        return clock;
+    }
+
+    /**
+     * Reads a server ID through the per-stream intern table.
+     *
+     * @return the server ID
+     * @throws IOException if the stream fails or refers to an undefined entry
+     */
+    public String readServerId() throws IOException {
+        int ref = readVarInt();
+        if (ref == 0) {
+            String serverId = readString();
+            serverIds.add(serverId);
+            return serverId;
+        }
+        if (ref > serverIds.size()) {
+            throw new StreamCorruptedException("Undefined server ID reference " + ref);
+        }
+        return serverIds.get(ref - 1);
+    }
+
+    /**
+     * Reads a string written as a varint byte length followed by UTF-8 bytes.
+     *
+     * @return the decoded string
+     * @throws IOException if the stream fails
+     */
+    public String readString() throws IOException {
+        int length = readVarInt();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint that fits in an int.
+     *
+     * @return the decoded value
+     * @throws IOException if the stream fails or the value overflows
+     */
+    public int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Varint out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint.
+     *
+     * @return the decoded value
+     * @throws IOException if the stream fails or the varint is malformed
+     */
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException if the stream fails
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
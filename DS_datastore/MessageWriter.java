@@ -0,0 +1,369 @@
+package DS_datastore;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes messages into the compact binary format described in {@link WireFormat}.
+ * <p>
+ * Replaces {@link ObjectOutputStream}: no class descriptors, no boxed integers, and each
+ * server ID is sent in full only the first time it appears on the stream.
+ * The stream header is written together with the first message.
+ * <p>
+ * Not thread-safe: each stream must be used by one thread at a time.
+ */
+public class MessageWriter implements Closeable, Flushable {
+    /** The underlying buffered stream. */
+    private final DataOutputStream out;
+
+    /** Server IDs already sent on this stream, with their table index. */
+    private final Map<String, Integer> serverIds = new HashMap<>();
+
+    /** Version contexts already sent on this stream, with their table index. */
+    private final Map<ClockSnapshot, Integer> clocks = new HashMap<>();
+
+    /** Whether the stream header has been written. */
+    private boolean headerWritten;
+
+    /**
+     * Constructs a writer on top of the given stream.
+     *
+     * @param out the destination stream
+     */
+    public MessageWriter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    /**
+     * Encodes a message. The bytes may stay buffered until {@link #flush()} is called.
+     *
+     * @param msg one of the supported message types
+     * @throws IOException if the stream fails or the message type is not supported
+     */
+    public void writeMessage(Object msg) throws IOException {
+        if (!headerWritten) {
+            out.writeShort(WireFormat.MAGIC);
+            out.writeByte(WireFormat.VERSION);
+            headerWritten = true;
+        }
+        if (msg instanceof UpdateMessage) {
+            out.writeByte(WireFormat.TAG_UPDATE);
+            writeUpdate((UpdateMessage) msg);
+        } else if (msg instanceof ReplicationBatch) {
+            out.writeByte(WireFormat.TAG_BATCH);
+            List<UpdateMessage> updates = ((ReplicationBatch) msg).getUpdates();
+            writeVarInt(updates.size());
+            for (UpdateMessage update : updates) {
+                writeUpdate(update);
+            }
+        } else if (msg instanceof DiscoveryMessage) {
+            out.writeByte(WireFormat.TAG_DISCOVERY);
+            writeDiscovery((DiscoveryMessage) msg);
+        } else if (msg instanceof StateRequestMessage) {
+            out.writeByte(WireFormat.TAG_STATE_REQUEST);
+            StateRequestMessage request = (StateRequestMessage) msg;
+            writeVarLong(request.getSessionId());
+            writeVarLong(request.getResumeFrom());
+            VectorClock known = request.getKnownClock();
+            out.writeByte(known != null ? 1 : 0);
+            if (known != null) {
+                writeClock(known);
+            }
+        } else if (msg instanceof StateChunkMessage) {
+            out.writeByte(WireFormat.TAG_STATE_CHUNK);
+            writeStateChunk((StateChunkMessage) msg);
+        } else if (msg instanceof StateAckMessage) {
+            out.writeByte(WireFormat.TAG_STATE_ACK);
+            StateAckMessage ack = (StateAckMessage) msg;
+            writeVarLong(ack.getSessionId());
+            writeVarLong(ack.getNextIndex());
+        } else if (msg instanceof AntiEntropyMessage) {
+            out.writeByte(WireFormat.TAG_ANTI_ENTROPY);
+            writeAntiEntropy((AntiEntropyMessage) msg);
+        } else if (msg instanceof GossipMessage) {
+            out.writeByte(WireFormat.TAG_GOSSIP);
+            writeGossip((GossipMessage) msg);
+        } else if (msg instanceof ReplicationAckMessage) {
+            out.writeByte(WireFormat.TAG_REPLICATION_ACK);
+            writeVarLong(((ReplicationAckMessage) msg).getSequence());
+        } else {
+            throw new IOException("Unsupported message type: " + msg.getClass().getName());
+        }
+    }
+
+    private void writeUpdate(UpdateMessage update) throws IOException {
+        List<String> keys = update.getKeys();
+        List<String> values = update.getValues();
+        writeVarInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            writeString(keys.get(i));
+            writeString(values.get(i));
+        }
+        writeServerId(update.getOriginServerId());
+        writeClock(update.getVectorClock());
+        out.writeBoolean(update.isRange());
+        if (update.isRange()) {
+            writeVarLong(update.getFirstSequence());
+            for (int i = 0; i < keys.size(); i++) {
+                writeVarLong(update.getSequence(i));
+                writeVarLong(update.getTimestamp(i));
+            }
+        } else {
+            writeVarLong(update.getTimestamp(0));
+        }
+    }
+
+    private void writeDiscovery(DiscoveryMessage msg) throws IOException {
+        out.writeByte(msg.getType().ordinal());
+        switch (msg.getType()) {
+            case JOIN_REQUEST:
+                writeServerId(msg.getServerId());
+                writeString(msg.getHost());
+                writeVarInt(msg.getReplicationPort());
+                writeVarInt(msg.getDiscoveryPort());
+                writeVarInt(msg.getStateTransferPort());
+                writeVarInt(msg.getClientPort());
+                break;
+            case JOIN_RESPONSE:
+                writeVarInt(msg.getPeerList().size());
+                for (PeerInfo peer : msg.getPeerList()) {
+                    writePeer(peer);
+                }
+                break;
+            case NEW_PEER:
+                writePeer(msg.getNewPeer());
+                break;
+        }
+    }
+
+    private void writeStateChunk(StateChunkMessage msg) throws IOException {
+        writeVarLong(msg.getSessionId());
+        writeVarLong(msg.getFirstIndex());
+        writeVarLong(msg.getTotalEntries());
+        VectorClock clock = msg.getVectorClock();
+        out.writeByte((msg.isLast() ? 1 : 0) | (clock != null ? 2 : 0));
+        if (clock != null) {
+            writeClock(clock);
+        }
+        // One clock table per chunk, so that a long transfer does not accumulate every context.
+        clocks.clear();
+        List<String> keys = msg.getKeys();
+        List<ValueEntry> entries = msg.getEntries();
+        writeVarInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            writeString(keys.get(i));
+            writeEntry(entries.get(i));
+        }
+    }
+
+    private void writeAntiEntropy(AntiEntropyMessage msg) throws IOException {
+        out.writeByte(msg.getType().ordinal());
+        switch (msg.getType()) {
+            case COMPARE:
+                writeVarInt(msg.getTreeLevels());
+                writeVarInt(msg.getLevel());
+                writeVarInt(msg.getNodes().size());
+                for (int i = 0; i < msg.getNodes().size(); i++) {
+                    writeVarInt(msg.getNodes().get(i));
+                    out.writeLong(msg.getHashes().get(i));
+                }
+                writeServerId(msg.getSenderId());
+                break;
+            case ENTRIES:
+                out.writeBoolean(msg.isReplyExpected());
+                writeVarInt(msg.getNodes().size());
+                for (int leaf : msg.getNodes()) {
+                    writeVarInt(leaf);
+                }
+                clocks.clear();
+                writeVarInt(msg.getKeys().size());
+                for (int i = 0; i < msg.getKeys().size(); i++) {
+                    writeString(msg.getKeys().get(i));
+                    writeEntry(msg.getEntries().get(i));
+                }
+                break;
+            case DONE:
+                break;
+        }
+    }
+
+    private void writeGossip(GossipMessage msg) throws IOException {
+        out.writeByte(msg.getType().ordinal());
+        writeVarLong(msg.getSequence());
+        writeServerId(msg.getSenderId());
+        if (msg.getType() == GossipMessage.Type.PING_REQ) {
+            writePeer(msg.getTarget());
+        }
+        writeVarInt(msg.getUpdates().size());
+        for (GossipMessage.Update update : msg.getUpdates()) {
+            writePeer(update.getPeer());
+            out.writeByte(update.getState().ordinal());
+            writeVarLong(update.getIncarnation());
+        }
+        writeVarInt(msg.getReports().size());
+        for (GossipMessage.ClockReport report : msg.getReports()) {
+            writeServerId(report.getServerId());
+            writeServerId(report.getReporterId());
+            writeVarLong(report.getCounter());
+            out.writeBoolean(report.isRetired());
+        }
+    }
+
+    /**
+     * Writes a store entry: its value, the number of its siblings (0 without conflict), then its version,
+     * or the value and version of each sibling.
+     *
+     * @param entry the entry to encode
+     * @throws IOException if the stream fails
+     */
+    public void writeEntry(ValueEntry entry) throws IOException {
+        writeString(entry.getValue());
+        if (!entry.hasSiblings()) {
+            writeVarInt(0);
+            writeVersion(entry.getVersion());
+            return;
+        }
+        List<ValueEntry> siblings = entry.getSiblings();
+        writeVarInt(siblings.size());
+        for (ValueEntry sibling : siblings) {
+            writeString(sibling.getValue());
+            writeVersion(sibling.getVersion());
+        }
+    }
+
+    /**
+     * Writes an entry version: the counter and origin server ID of its dot, the hybrid timestamp,
+     * then the context through the per-stream clock table.
+     *
+     * @param version the version to encode
+     * @throws IOException if the stream fails
+     */
+    public void writeVersion(DottedVersion version) throws IOException {
+        writeVarLong(version.getCounter());
+        writeServerId(version.getOriginId());
+        writeVarLong(version.getTimestamp());
+        writeClockRef(version.getContext());
+    }
+
+    /**
+     * Writes a clock snapshot through the per-stream clock table: each distinct
+     * snapshot is encoded once, later references to the same snapshot only send its index.
+     *
+     * @param snapshot the snapshot to encode
+     * @throws IOException if the stream fails
+     */
+    public void writeClockRef(ClockSnapshot snapshot) throws IOException {
+        Integer index = clocks.get(snapshot);
+        if (index != null) {
+            writeVarInt(index + 1);
+            return;
+        }
+        writeVarInt(0);
+        writeClock(snapshot.toVectorClock());
+        clocks.put(snapshot, clocks.size());
+    }
+
+    private void writePeer(PeerInfo peer) throws IOException {
+        writeServerId(peer.getServerId());
+        writeString(peer.getHost());
+        writeVarInt(peer.getReplicationPort());
+        writeVarInt(peer.getDiscoveryPort());
+        writeVarInt(peer.getStateTransferPort());
+        writeVarInt(peer.getClientPort());
+    }
+
+    /**
+     * Writes a vector clock as an entry count followed by (server ID, counter) pairs.
+     * Zero counters are omitted. The clock must not be modified concurrently.
+     *
+     * @param clock the clock to encode
+     * @throws IOException if the stream fails
+     */
+    public void writeClock(VectorClock clock) throws IOException {
+        writeVarInt(clock.size());
+        int width = clock.width();
+        for (int i = 0; i < width; i++) {
+            long time = clock.getAt(i);
+            if (time != 0) {
+                writeServerId(ServerIndex.idAt(i));
+                writeVarLong(time);
+            }
+        }
+    }
+
+    /**
+     * Writes a server ID through the per-stream intern table.
+     *
+     * @param serverId the ID to write
+     * @throws IOException if the stream fails
+     */
+    public void writeServerId(String serverId) throws IOException {
+        Integer index = serverIds.get(serverId);
+        if (index != null) {
+            writeVarInt(index + 1);
+        } else {
+            writeVarInt(0);
+            writeString(serverId);
+            serverIds.put(serverId, serverIds.size());
+        }
+    }
+
+    /**
+     * Writes a string as a varint byte length followed by its UTF-8 bytes.
+     *
+     * @param s the string to write
+     * @throws IOException if the stream fails
+     */
+    public void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes a non-negative int as an unsigned LEB128 varint.
+     *
+     * @param value the value to write
+     * @throws IOException if the stream fails
+     */
+    public void writeVarInt(int value) throws IOException {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes a non-negative long as an unsigned LEB128 varint.
+     *
+     * @param value the value to write
+     * @throws IOException if the stream fails
+     */
+    public void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Flushes buffered bytes to the underlying stream.
+     *
+     * @throws IOException if the stream fails
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Flushes and closes the underlying stream.
+     *
+     * @throws IOException if the stream fails
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
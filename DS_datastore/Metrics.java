@@ -0,0 +1,107 @@
+package DS_datastore;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the metrics of a server: counters, {@link LatencyHistogram}s and gauges, rendered as text
+ * by {@link #render()} for the METRICS client command and the {@link MetricsEndpoint}.
+ * <p>
+ * A metric name may carry labels in braces, e.g. {@code replication_lag{peer="server2"}}. The output
+ * follows the Prometheus text format: one {@code name value} line per counter and gauge, and for each
+ * histogram its count, mean, 50th, 99th and 99.9th percentiles and maximum, in milliseconds.
+ * <p>
+ * Thread-safe: metrics are created on first use and updated without locks.
+ */
+public class Metrics {
+    /** Counters, by name. */
+    private final Map<String, AtomicLong> counters = new ConcurrentSkipListMap<>();
+
+    /** Histograms, by name. */
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    /** Gauges, by name: read when the metrics are rendered. */
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     *
+     * @param name the metric name
+     * @return the counter
+     */
+    public AtomicLong counter(String name) {
+        return counters.computeIfAbsent(name, k -> new AtomicLong());
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     *
+     * @param name the metric name
+     * @return the histogram
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name.
+     *
+     * @param name  the metric name
+     * @param value supplies the current value
+     */
+    public void gauge(String name, Supplier<Number> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Returns the current value of every metric, one per line.
+     *
+     * @return the metrics in text format
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            out.append(counter.getKey()).append(' ').append(counter.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Supplier<Number>> gauge : gauges.entrySet()) {
+            Number value;
+            try {
+                value = gauge.getValue().get();
+            } catch (RuntimeException e) {
+                continue; // e.g. a channel being closed
+            }
+            out.append(gauge.getKey()).append(' ').append(format(value)).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            LatencyHistogram h = entry.getValue();
+            out.append(suffixed(name, "_count")).append(' ').append(h.getCount()).append('\n');
+            out.append(suffixed(name, "_mean_ms")).append(' ').append(millis(h.getMean())).append('\n');
+            out.append(suffixed(name, "_p50_ms")).append(' ').append(millis(h.getPercentile(50))).append('\n');
+            out.append(suffixed(name, "_p99_ms")).append(' ').append(millis(h.getPercentile(99))).append('\n');
+            out.append(suffixed(name, "_p999_ms")).append(' ').append(millis(h.getPercentile(99.9))).append('\n');
+            out.append(suffixed(name, "_max_ms")).append(' ').append(millis(h.getMax())).append('\n');
+        }
+        return out.toString();
+    }
+
+    /** Appends a suffix to the name of a metric, before its labels. */
+    private static String suffixed(String name, String suffix) {
+        int labels = name.indexOf('{');
+        return (labels < 0) ? name + suffix : name.substring(0, labels) + suffix + name.substring(labels);
+    }
+
+    private static String millis(double nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String format(Number value) {
+        if (value instanceof Double || value instanceof Float) {
+            return String.format(Locale.ROOT, "%.3f", value.doubleValue());
+        }
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,59 @@
+package DS_datastore;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Local HTTP endpoint serving the {@link Metrics} of a server as plain text on {@code GET /metrics},
+ * enabled by {@link ServerConfig#METRICS_HTTP_PORT}. It only listens on the loopback interface.
+ */
+public class MetricsEndpoint {
+    /** The underlying HTTP server. */
+    private final HttpServer http;
+
+    /**
+     * Binds the endpoint; call {@link #start()} to serve requests.
+     *
+     * @param port    the local port
+     * @param metrics the metrics to serve
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsEndpoint(int port, Metrics metrics) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts serving requests on a background thread.
+     */
+    public void start() {
+        http.start();
+        Log.info("Metrics available at http://" + http.getAddress().getHostString() + ":"
+                + http.getAddress().getPort() + "/metrics");
+    }
+
+    /**
+     * Stops the endpoint.
+     */
+    public void stop() {
+        http.stop(0);
+    }
+}
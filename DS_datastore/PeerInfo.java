@@ -26,6 +26,9 @@ public class PeerInfo implements Serializable {
     /** Port used for transferring state (e.g., during recovery or synchronization). */
     private int stateTransferPort;
 
+    /** Port on which the peer serves clients, 0 if unknown; requests for keys it owns are forwarded there. */
+    private int clientPort;
+
     /**
      * Constructs a new {@code PeerInfo} instance with all required connection details.
      *
@@ -36,11 +39,27 @@ public class PeerInfo implements Serializable {
      * @param stateTransferPort  the port used for state transfer operations
      */
     public PeerInfo(String serverId, String host, int replicationPort, int discoveryPort, int stateTransferPort) {
+        this(serverId, host, replicationPort, discoveryPort, stateTransferPort, 0);
+    }
+
+    /**
+     * Constructs a new {@code PeerInfo} instance that also knows the client port of the peer.
+     *
+     * @param serverId           the unique identifier of the peer
+     * @param host               the hostname or IP address of the peer
+     * @param replicationPort    the port used for replication
+     * @param discoveryPort      the port used for discovery messages
+     * @param stateTransferPort  the port used for state transfer operations
+     * @param clientPort         the port on which the peer serves clients, 0 if unknown
+     */
+    public PeerInfo(String serverId, String host, int replicationPort, int discoveryPort, int stateTransferPort,
+                    int clientPort) {
         this.serverId = serverId;
         this.host = host;
         this.replicationPort = replicationPort;
         this.discoveryPort = discoveryPort;
         this.stateTransferPort = stateTransferPort;
+        this.clientPort = clientPort;
     }
 
     /**
@@ -88,6 +107,40 @@ public class PeerInfo implements Serializable {
         return discoveryPort;
     }
 
+    /**
+     * Returns the port on which the peer serves clients.
+     *
+     * @return the client port, 0 if unknown (peer announced by an older server)
+     */
+    public int getClientPort() {
+        return clientPort;
+    }
+
+    /**
+     * Two peers are equal if they share the same host and replication port,
+     * which is the same criterion used by {@link Server#addPeer(PeerInfo)} to detect duplicates.
+     *
+     * @param o the object to compare
+     * @return {@code true} if {@code o} describes the same peer
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PeerInfo)) return false;
+        PeerInfo other = (PeerInfo) o;
+        return replicationPort == other.replicationPort && host.equals(other.host);
+    }
+
+    /**
+     * Returns a hash code consistent with {@link #equals(Object)}.
+     *
+     * @return the hash code of the peer
+     */
+    @Override
+    public int hashCode() {
+        return 31 * host.hashCode() + replicationPort;
+    }
+
     /**
      * Returns a string representation of the peer in the format:
      * {@code serverId@host:replicationPort}.
@@ -0,0 +1,674 @@
+package DS_datastore;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Outbound queue of the updates waiting to be sent to one peer, bounded in memory and spilling to disk.
+ * <p>
+ * Updates are kept in memory up to {@link ServerConfig#OUTBOX_MEMORY_BYTES}. Beyond that, or as soon
+ * as the peer becomes unreachable ({@link #spill()}), they are appended to segment files
+ * {@code outbox-<n>.log} in the peer's directory, each record framed as
+ * {@code [int length][int crc32][payload]} like the write-ahead log; the payload is the update encoded
+ * by a {@link MessageWriter}. While the disk holds updates, new ones go to disk too, so that the queue
+ * is always drained in FIFO order; once every segment has been sent the files are deleted and the queue
+ * goes back to memory.
+ * <p>
+ * An update handed to the channel is kept until the peer acknowledges its origin sequence
+ * ({@link #acknowledge(long)}), which it only does once the update is applied and durably logged there:
+ * updates taken from memory stay in flight (and count against the memory bound), and a drained segment
+ * is only deleted once its last update has been acknowledged. When the connection breaks, {@link #rewind()}
+ * queues every unacknowledged update again, and updates the peer already has are skipped. The peer may
+ * receive some updates twice, or out of order after a rewind, which its causal buffer absorbs.
+ * <p>
+ * Segments survive a restart: a new outbox for the same peer starts by draining them. A torn record at the
+ * end of a segment (crash during an append) ends that segment. Updates may still be lost: those held in
+ * memory or not yet flushed to a segment when the server crashes (segments are never forced to disk),
+ * those of a corrupted segment, and the new updates dropped and counted beyond
+ * {@link ServerConfig#OUTBOX_MAX_DISK_BYTES}. Such a loss leaves a gap in the origin's sequence, which blocks
+ * the later updates in the peer's causal buffer: the peer detects the stall and fetches the missing updates
+ * by a resync ({@link Server#checkStalledUpdates()}).
+ * <p>
+ * Producers ({@link #offer(UpdateMessage)}, called under the server's clock lock) only append to a lock-free
+ * handoff queue and wake the consumer. Everything else, the memory queue, the spilling and the reading of the
+ * segments, belongs to the thread of the peer's {@link ReplicationChannel}, which moves the handed-off updates
+ * into the outbox whenever it takes a batch, spills or waits out a backoff: no producer ever waits for disk I/O.
+ * The updates offered while that thread is writing a batch wait in the handoff queue until its next call,
+ * so the memory bound is only enforced between two batches.
+ */
+public class PeerOutbox implements Closeable {
+    /** Size of the header of each record: length and CRC. */
+    private static final int FRAME_HEADER = 8;
+
+    /** Upper bound of a record, to detect corrupted lengths. */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    /** Name of the segment files. */
+    private static final Pattern SEGMENT_NAME = Pattern.compile("outbox-(\\d+)\\.log");
+
+    /** Directory holding the segments of this peer. */
+    private final Path directory;
+
+    /** Updates offered and not moved into the outbox yet, oldest first; newer than every update below. */
+    private final ConcurrentLinkedQueue<UpdateMessage> incoming = new ConcurrentLinkedQueue<>();
+
+    /** Number of updates in {@link #incoming}. */
+    private final AtomicInteger incomingCount = new AtomicInteger();
+
+    /** Thread draining the outbox, woken by {@link #offer(UpdateMessage)}; {@code null} until its first call. */
+    private volatile Thread consumer;
+
+    /** Updates held in memory, oldest first; older than every update on disk. */
+    private final ArrayDeque<UpdateMessage> memory = new ArrayDeque<>();
+
+    /** Estimated size of the updates in memory, in bytes. */
+    private long memoryBytes;
+
+    /** Number of updates in memory, readable from any thread. */
+    private volatile int memoryCount;
+
+    /** Updates taken from memory and not acknowledged yet, oldest first; counted in {@link #memoryBytes}. */
+    private final ArrayDeque<UpdateMessage> inFlight = new ArrayDeque<>();
+
+    /** Highest origin sequence acknowledged by the peer; written by any thread. */
+    private final AtomicLong acknowledged = new AtomicLong();
+
+    /** Segments on disk not entirely read yet, oldest first. */
+    private final ArrayDeque<Long> segments = new ArrayDeque<>();
+
+    /** Segments entirely read, deleted once the peer acknowledges their last update, oldest first. */
+    private final ArrayDeque<DrainedSegment> drained = new ArrayDeque<>();
+
+    /** Number of updates read from the first segment. */
+    private long readCount;
+
+    /** Origin sequence of the last update read from disk. */
+    private long lastReadSequence;
+
+    /** Number of the last segment created. */
+    private long lastSegment = -1;
+
+    /** Number of updates on disk. */
+    private volatile long diskCount;
+
+    /** Size of the segments on disk, in bytes. */
+    private volatile long diskBytes;
+
+    /** Stream appending to the last segment, or {@code null}. */
+    private DataOutputStream writer;
+
+    /** Bytes written to the last segment. */
+    private long writerBytes;
+
+    /** Stream reading the first segment, or {@code null}. */
+    private DataInputStream reader;
+
+    /** Set once the peer has left the cluster: the outbox is empty and accepts nothing. */
+    private volatile boolean discarded;
+
+    /** Number of updates dropped because the disk limit was reached. */
+    private volatile long dropped;
+
+    /** Reused for the record checksums. */
+    private final CRC32 crc = new CRC32();
+
+    /** A segment entirely read, waiting for the acknowledgement of its last update. */
+    private static final class DrainedSegment {
+        final long segment;
+        final long lastSequence;
+        final long records;
+        final long bytes;
+
+        DrainedSegment(long segment, long lastSequence, long records, long bytes) {
+            this.segment = segment;
+            this.lastSequence = lastSequence;
+            this.records = records;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Opens the outbox of a peer, recovering the updates left on disk by a previous run.
+     *
+     * @param directory the directory of the peer's segments
+     * @throws IOException if the directory cannot be created or read
+     */
+    public PeerOutbox(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        List<Long> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Matcher m = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (m.matches()) {
+                    found.add(Long.parseLong(m.group(1)));
+                }
+            }
+        }
+        Collections.sort(found);
+        for (long segment : found) {
+            lastSegment = segment;
+            segments.add(segment);
+            diskBytes += Files.size(segmentPath(segment));
+            diskCount += countRecords(segmentPath(segment));
+        }
+        if (diskCount > 0) {
+            Log.info("Outbox " + directory + ": " + diskCount + " updates recovered from disk");
+        }
+    }
+
+    /**
+     * Queues an update, without blocking nor touching the disk.
+     *
+     * @param update the update to send
+     */
+    public void offer(UpdateMessage update) {
+        if (discarded) {
+            return;
+        }
+        incoming.add(update);
+        incomingCount.incrementAndGet();
+        Thread waiting = consumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Moves the handed-off updates into the outbox: to memory while it has room and the disk is empty,
+     * to disk otherwise. Called by the consumer only.
+     */
+    private void transfer() {
+        UpdateMessage update;
+        while ((update = incoming.poll()) != null) {
+            incomingCount.decrementAndGet();
+            if (discarded) {
+                continue;
+            }
+            int size = update.getEstimatedSize();
+            if (segments.isEmpty() && memoryBytes + size <= ServerConfig.OUTBOX_MEMORY_BYTES) {
+                memory.addLast(update);
+                memoryBytes += size;
+                memoryCount++;
+            } else {
+                if (segments.isEmpty()) {
+                    moveToDisk();
+                }
+                append(update);
+            }
+        }
+    }
+
+    /**
+     * Moves the updates held in memory to disk, e.g. when the peer becomes unreachable, so that a
+     * long outage neither holds them in the heap nor loses them on a crash.
+     * The memory is left alone if the disk already holds newer updates, since the memory ones must be sent first.
+     * Called by the consumer only.
+     */
+    public void spill() {
+        transfer();
+        if (discarded) {
+            return;
+        }
+        if (segments.isEmpty()) {
+            moveToDisk();
+        }
+        flushWriter();
+    }
+
+    /**
+     * Waits for some time, e.g. the backoff before reconnecting to the peer, moving the updates offered
+     * meanwhile into the outbox (to disk, once it has spilled) so that they do not pile up in memory.
+     * Called by the consumer only.
+     *
+     * @param delayMs the time to wait, in milliseconds
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void pause(long delayMs) throws InterruptedException {
+        consumer = Thread.currentThread();
+        long deadline = System.nanoTime() + delayMs * 1_000_000;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            transfer();
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        transfer();
+    }
+
+    /**
+     * Writes the updates in flight and in memory to disk, oldest first. The updates in flight are
+     * unacknowledged, so they are kept on disk as well and the peer may receive them twice.
+     */
+    private void moveToDisk() {
+        while (!inFlight.isEmpty()) {
+            append(inFlight.pollFirst());
+        }
+        while (!memory.isEmpty()) {
+            append(memory.pollFirst());
+        }
+        memoryBytes = 0;
+        memoryCount = 0;
+    }
+
+    /**
+     * Records that the peer has applied and durably logged the updates up to an origin sequence.
+     * They are released by the consumer at its next call. Callable from any thread.
+     *
+     * @param sequence the highest origin sequence acknowledged by the peer
+     */
+    public void acknowledge(long sequence) {
+        acknowledged.accumulateAndGet(sequence, Math::max);
+        Thread waiting = consumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Forgets the updates in flight and deletes the drained segments that the peer has acknowledged.
+     */
+    private void release() {
+        long acked = acknowledged.get();
+        UpdateMessage first;
+        while ((first = inFlight.peekFirst()) != null && first.getOriginSequence() <= acked) {
+            inFlight.pollFirst();
+            memoryBytes -= first.getEstimatedSize();
+        }
+        while (!drained.isEmpty() && drained.peekFirst().lastSequence <= acked) {
+            DrainedSegment done = drained.pollFirst();
+            try {
+                Files.deleteIfExists(segmentPath(done.segment));
+                diskBytes -= done.bytes;
+            } catch (IOException e) {
+                Log.warn("Outbox " + directory + " cannot delete segment " + done.segment + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Tells whether updates handed out are still waiting for the acknowledgement of the peer.
+     * Called by the consumer only.
+     *
+     * @return {@code true} if some update was sent and not acknowledged
+     */
+    public boolean awaitingAcknowledgement() {
+        release();
+        return !inFlight.isEmpty() || !drained.isEmpty() || (readCount > 0 && lastReadSequence > acknowledged.get());
+    }
+
+    /**
+     * Queues again every update handed out and not acknowledged, after the connection to the peer broke:
+     * the updates in flight go back to memory, and the drained segments and the first one are read again.
+     * Called by the consumer only.
+     */
+    public void rewind() {
+        release();
+        closeReader();
+        diskCount += readCount;
+        readCount = 0;
+        Iterator<DrainedSegment> it = drained.descendingIterator();
+        while (it.hasNext()) {
+            DrainedSegment segment = it.next();
+            segments.addFirst(segment.segment);
+            diskCount += segment.records;
+        }
+        drained.clear();
+        while (!inFlight.isEmpty()) {
+            memory.addFirst(inFlight.pollLast());
+            memoryCount++;
+        }
+    }
+
+    /**
+     * Waits for the first queued update, then keeps collecting updates until the batch is full or
+     * the flush window expires. The updates are kept until the peer acknowledges them. While some are
+     * awaited, an empty batch is returned after {@link ServerConfig#REPLICATION_ACK_PROBE_MS} without
+     * new update, so that the channel probes the peer for its acknowledgement.
+     * The calling thread becomes the consumer of the outbox.
+     *
+     * @param maxCount maximum number of updates
+     * @param maxBytes approximate maximum size of the batch
+     * @param windowMs time allowed to fill the batch after its first update
+     * @return the next updates, in queue order, empty to probe the peer
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public List<UpdateMessage> take(int maxCount, int maxBytes, long windowMs) throws InterruptedException {
+        consumer = Thread.currentThread();
+        List<UpdateMessage> batch = new ArrayList<>();
+        UpdateMessage first;
+        long probeAt = System.nanoTime() + ServerConfig.REPLICATION_ACK_PROBE_MS * 1_000_000;
+        while ((first = poll()) == null) {
+            if (awaitingAcknowledgement()) {
+                long remaining = probeAt - System.nanoTime();
+                if (remaining <= 0) {
+                    return batch;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+                probeAt = System.nanoTime() + ServerConfig.REPLICATION_ACK_PROBE_MS * 1_000_000;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        batch.add(first);
+        int bytes = first.getEstimatedSize();
+        long deadline = System.nanoTime() + windowMs * 1_000_000;
+        while (batch.size() < maxCount && bytes < maxBytes) {
+            UpdateMessage next = poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                continue;
+            }
+            batch.add(next);
+            bytes += next.getEstimatedSize();
+        }
+        return batch;
+    }
+
+    /**
+     * Removes the oldest update, from memory first, then from disk, after moving in the handed-off ones.
+     * Updates the peer has already acknowledged (e.g. queued again by a rewind) are skipped.
+     *
+     * @return the update, or {@code null} if the queue is empty
+     */
+    private UpdateMessage poll() {
+        transfer();
+        release();
+        long acked = acknowledged.get();
+        UpdateMessage update;
+        while ((update = memory.pollFirst()) != null) {
+            memoryCount--;
+            if (update.getOriginSequence() <= acked) {
+                memoryBytes -= update.getEstimatedSize();
+                continue;
+            }
+            inFlight.addLast(update);
+            return update;
+        }
+        while (!segments.isEmpty()) {
+            try {
+                if (reader == null) {
+                    flushWriter();
+                    reader = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(segments.peekFirst()))));
+                }
+                update = readRecord(reader);
+                if (update == null && writer != null && segments.size() == 1) {
+                    // Caught up with the segment being written: read what is still buffered.
+                    flushWriter();
+                    update = readRecord(reader);
+                }
+                if (update != null) {
+                    diskCount--;
+                    readCount++;
+                    lastReadSequence = update.getOriginSequence();
+                    if (lastReadSequence <= acked) {
+                        continue;
+                    }
+                    return update;
+                }
+                if (writer != null && segments.size() == 1) {
+                    closeWriter();
+                }
+                // End of the segment: every update in it has been handed out.
+                reader.close();
+                reader = null;
+                long done = segments.pollFirst();
+                drained.addLast(new DrainedSegment(done, lastReadSequence, readCount, Files.size(segmentPath(done))));
+                readCount = 0;
+            } catch (IOException e) {
+                Log.warn("Outbox " + directory + " read failed, segment skipped: " + e.getMessage());
+                closeReader();
+                readCount = 0;
+                Long skipped = segments.pollFirst();
+                if (skipped != null) {
+                    try {
+                        long size = Files.size(segmentPath(skipped));
+                        Files.deleteIfExists(segmentPath(skipped));
+                        diskBytes -= size;
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        diskCount = 0;
+        return null;
+    }
+
+    /**
+     * Appends an update to the last segment, opening a new one when it is full.
+     */
+    private void append(UpdateMessage update) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            try (MessageWriter encoder = new MessageWriter(bytes)) {
+                encoder.writeMessage(update);
+            }
+            byte[] payload = bytes.toByteArray();
+            if (diskBytes + FRAME_HEADER + payload.length > ServerConfig.OUTBOX_MAX_DISK_BYTES) {
+                if (dropped++ % 10_000 == 0) {
+                    Log.error("Outbox " + directory + " full: " + dropped + " updates dropped, the peer will resync");
+                }
+                return;
+            }
+            if (writer == null || writerBytes >= ServerConfig.OUTBOX_SEGMENT_BYTES) {
+                closeWriter();
+                long next = ++lastSegment;
+                writer = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(segmentPath(next),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)));
+                writerBytes = 0;
+                segments.addLast(next);
+            }
+            crc.reset();
+            crc.update(payload);
+            writer.writeInt(payload.length);
+            writer.writeInt((int) crc.getValue());
+            writer.write(payload);
+            writerBytes += FRAME_HEADER + payload.length;
+            diskBytes += FRAME_HEADER + payload.length;
+            diskCount++;
+        } catch (IOException e) {
+            dropped++;
+            Log.error("Outbox " + directory + " write failed, update dropped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the next record of a segment.
+     *
+     * @return the update, or {@code null} at the end of the segment or at a torn record
+     */
+    private UpdateMessage readRecord(DataInputStream in) throws IOException {
+        byte[] payload = nextPayload(in);
+        if (payload == null) {
+            return null;
+        }
+        Object msg = new MessageReader(new ByteArrayInputStream(payload)).readMessage();
+        if (!(msg instanceof UpdateMessage)) {
+            throw new StreamCorruptedException("Unexpected outbox record: " + msg);
+        }
+        return (UpdateMessage) msg;
+    }
+
+    private byte[] nextPayload(DataInputStream in) throws IOException {
+        int length;
+        int checksum;
+        byte[] payload;
+        // A record may be only partly written yet: rewind to its start so that it can be read again later.
+        in.mark(MAX_RECORD_SIZE + FRAME_HEADER);
+        try {
+            length = in.readInt();
+            checksum = in.readInt();
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+            payload = new byte[length];
+            in.readFully(payload);
+        } catch (EOFException e) {
+            in.reset();
+            return null;
+        }
+        crc.reset();
+        crc.update(payload);
+        return ((int) crc.getValue() == checksum) ? payload : null;
+    }
+
+    private long countRecords(Path path) throws IOException {
+        long count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (nextPayload(in) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void flushWriter() {
+        if (writer != null) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                Log.warn("Outbox " + directory + " flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.warn("Outbox " + directory + " close failed: " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Ignore closing error
+            }
+            reader = null;
+        }
+    }
+
+    private Path segmentPath(long n) {
+        return directory.resolve("outbox-" + n + ".log");
+    }
+
+    /**
+     * Returns the number of queued updates.
+     *
+     * @return the updates in memory and on disk
+     */
+    public long size() {
+        return discarded ? 0 : incomingCount.get() + memoryCount + diskCount;
+    }
+
+    /**
+     * Returns the number of updates waiting on disk.
+     *
+     * @return the spilled update count
+     */
+    public long getDiskCount() {
+        return diskCount;
+    }
+
+    /**
+     * Returns the size of the segments on disk.
+     *
+     * @return the spilled bytes
+     */
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Returns the number of updates dropped because the disk limit was reached or a write failed.
+     *
+     * @return the dropped update count
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Forgets every queued update, once the peer has been declared dead ({@link Membership}). The outbox
+     * ignores the updates offered afterwards; the consumer deletes the segments when it {@link #close() closes} it.
+     */
+    public void discard() {
+        discarded = true;
+        Thread waiting = consumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Deletes the segments and empties the outbox after {@link #discard()}.
+     */
+    private void deleteAll() {
+        incoming.clear();
+        incomingCount.set(0);
+        closeWriter();
+        closeReader();
+        memory.clear();
+        memoryBytes = 0;
+        memoryCount = 0;
+        inFlight.clear();
+        for (DrainedSegment done : drained) {
+            segments.add(done.segment);
+        }
+        for (long segment : segments) {
+            try {
+                Files.deleteIfExists(segmentPath(segment));
+            } catch (IOException e) {
+                Log.warn("Outbox " + directory + " cannot delete segment " + segment + ": " + e.getMessage());
+            }
+        }
+        segments.clear();
+        drained.clear();
+        readCount = 0;
+        diskCount = 0;
+        diskBytes = 0;
+    }
+
+    /**
+     * Moves the unacknowledged updates left in memory to disk and closes the files, so that they are sent
+     * after a restart, or deletes them if the outbox was discarded. Called by the consumer, when it stops.
+     */
+    @Override
+    public void close() {
+        if (discarded) {
+            deleteAll();
+            return;
+        }
+        rewind();
+        transfer();
+        moveToDisk();
+        closeWriter();
+        closeReader();
+    }
+}
@@ -0,0 +1,30 @@
+package DS_datastore;
+
+/**
+ * Acknowledgement of replicated updates, sent back by the receiver on the connection of a {@link ReplicationChannel}.
+ * <p>
+ * It carries the highest origin sequence of the sending server that the receiver has applied and logged durably:
+ * the sender keeps every later update in its {@link PeerOutbox}, and sends them again on a new connection.
+ */
+public class ReplicationAckMessage {
+    /** Highest origin sequence applied by the receiver. */
+    private final long sequence;
+
+    /**
+     * Constructs an acknowledgement.
+     *
+     * @param sequence the highest origin sequence applied and logged by the receiver
+     */
+    public ReplicationAckMessage(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Returns the highest origin sequence applied by the receiver.
+     *
+     * @return the acknowledged sequence
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
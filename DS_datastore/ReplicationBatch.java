@@ -0,0 +1,44 @@
+package DS_datastore;
+
+import java.util.List;
+
+/**
+ * A replication frame carrying several {@link UpdateMessage}s from the same origin server.
+ * <p>
+ * Produced by {@link ReplicationChannel}, which gathers the updates queued for a peer during a
+ * short flush window, and applied by the receiver with a single call to
+ * {@link Server#handleRemoteBatch(List)}.
+ */
+public class ReplicationBatch implements ReplicableMessage {
+    private static final long serialVersionUID = 1L;
+
+    /** The updates of this frame, in the order they were produced. */
+    private final List<UpdateMessage> updates;
+
+    /**
+     * Constructs a new batch.
+     *
+     * @param updates the updates carried by the frame
+     */
+    public ReplicationBatch(List<UpdateMessage> updates) {
+        this.updates = updates;
+    }
+
+    /**
+     * Returns the updates carried by this frame.
+     *
+     * @return the list of updates
+     */
+    public List<UpdateMessage> getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Returns the number of updates in the frame.
+     *
+     * @return the batch size
+     */
+    public int size() {
+        return updates.size();
+    }
+}
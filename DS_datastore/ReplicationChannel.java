@@ -0,0 +1,361 @@
+package DS_datastore;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived replication connection towards a single peer server.
+ * <p>
+ * Instead of opening a new socket (and a new thread) for every update, each peer gets
+ * one channel with a dedicated sender thread and a single {@link MessageWriter}. Updates are queued with {@link #send(UpdateMessage)}
+ * in the peer's {@link PeerOutbox}, bounded in memory and spilling to disk,
+ * and the sender gathers them into {@link ReplicationBatch} frames: a frame is written and flushed
+ * as soon as it reaches {@link ServerConfig#REPLICATION_BATCH_SIZE} updates or
+ * {@link ServerConfig#REPLICATION_BATCH_BYTES} bytes, or when the flush window
+ * ({@link ServerConfig#REPLICATION_FLUSH_WINDOW_MS}) opened by its first update ends.
+ * Frames are pipelined: the sender never waits for the peer before writing the next one. The peer acknowledges,
+ * on the same connection, the updates it has applied and logged ({@link ReplicationAckMessage}); a reader thread
+ * hands the acknowledgements to the outbox, which keeps every update until then. While acknowledgements are
+ * awaited and no update is queued, the sender writes empty frames to ask for them.
+ * <p>
+ * Each batch goes through {@link UpdateCoalescer} first, so that keys rewritten while the updates were
+ * queued are sent once. While the outbox has a backlog on disk (the peer was unreachable) the sender takes
+ * up to {@link ServerConfig#REPLICATION_COALESCE_UPDATES} updates at a time, written as several frames,
+ * which lets hot keys collapse over a much wider window.
+ * <p>
+ * If the connection breaks or the peer closes it (e.g. it restarted), the outbox is rewound
+ * ({@link PeerOutbox#rewind()}) and spilled to disk: every unacknowledged update is sent again on the next
+ * connection, whether it was lost in the socket buffers or never written. Reconnections follow an exponential backoff with jitter, from
+ * {@link ServerConfig#REPLICATION_BACKOFF_MIN_MS} up to {@link ServerConfig#REPLICATION_BACKOFF_MAX_MS}.
+ */
+public class ReplicationChannel implements Runnable {
+    /** Timeout used when opening the connection to the peer. */
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+
+    /** The server owning this channel (used to queue failed messages for retry). */
+    private final Server server;
+
+    /** The peer this channel replicates to. */
+    private final PeerInfo peer;
+
+    /** Updates waiting to be written on the connection. */
+    private final PeerOutbox outbox;
+
+    /** Current connection, or {@code null} if not connected. */
+    private Socket socket;
+
+    /** Connection whose acknowledgement stream has ended, set by its reader thread. */
+    private volatile Socket lost;
+
+    /** Message stream bound to the current connection. */
+    private MessageWriter out;
+
+    /** Number of consecutive failures, driving the backoff. */
+    private volatile int failures;
+
+    /** Thread running the sender loop. */
+    private Thread worker;
+
+    /** Set to {@code false} to stop the sender thread. */
+    private volatile boolean running = true;
+
+    /** Number of updates taken from the outbox. */
+    private final AtomicLong takenUpdates;
+
+    /** Number of updates (plain or range) actually sent, after coalescing. */
+    private final AtomicLong sentUpdates;
+
+    /** Time to write and flush the frames of a batch. */
+    private final LatencyHistogram sendLatency;
+
+    /** Time from a local write to the flush of its update to the peer. */
+    private final LatencyHistogram replicationLag;
+
+    /**
+     * Constructs a new channel towards the given peer.
+     *
+     * @param server the local server
+     * @param peer   the destination peer
+     */
+    public ReplicationChannel(Server server, PeerInfo peer) {
+        this.server = server;
+        this.peer = peer;
+        try {
+            this.outbox = new PeerOutbox(server.getOutboxDirectory(peer));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the outbox of " + peer, e);
+        }
+        Metrics metrics = server.getMetrics();
+        String label = "{peer=\"" + peer.getServerId() + "\"}";
+        this.takenUpdates = metrics.counter("replication_updates_taken" + label);
+        this.sentUpdates = metrics.counter("replication_updates_sent" + label);
+        this.sendLatency = metrics.histogram("replication_send_latency" + label);
+        this.replicationLag = metrics.histogram("replication_lag" + label);
+        metrics.gauge("replication_queue" + label, outbox::size);
+        metrics.gauge("replication_queue_disk" + label, outbox::getDiskCount);
+        metrics.gauge("replication_queue_disk_bytes" + label, outbox::getDiskBytes);
+        metrics.gauge("replication_dropped" + label, outbox::getDropped);
+        metrics.gauge("replication_failures" + label, () -> failures);
+    }
+
+    /**
+     * Queues an update for asynchronous delivery to the peer.
+     *
+     * @param update the update to send
+     */
+    public void send(UpdateMessage update) {
+        outbox.offer(update);
+    }
+
+    /**
+     * Returns the number of updates waiting to be written.
+     *
+     * @return the queue length, in memory and on disk
+     */
+    public long getQueueSize() {
+        return outbox.size();
+    }
+
+    /**
+     * Returns the outbound queue of this channel.
+     *
+     * @return the peer's outbox
+     */
+    public PeerOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Returns the number of updates taken from the outbox so far.
+     *
+     * @return the taken update count
+     */
+    public long getTakenUpdates() {
+        return takenUpdates.get();
+    }
+
+    /**
+     * Returns the number of updates sent so far, a range update counting once.
+     * The difference with {@link #getTakenUpdates()} is the saving of coalescing.
+     *
+     * @return the sent update count
+     */
+    public long getSentUpdates() {
+        return sentUpdates.get();
+    }
+
+    /**
+     * Returns the peer served by this channel.
+     *
+     * @return the destination peer
+     */
+    public PeerInfo getPeer() {
+        return peer;
+    }
+
+    /**
+     * Starts the sender thread of this channel.
+     */
+    public void start() {
+        worker = new Thread(this, "replication-" + peer.getServerId());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the sender thread; the connection is closed by the thread itself.
+     */
+    public void close() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Stops the sender thread and drops the queued updates, when the peer has been declared dead.
+     */
+    public void discard() {
+        running = false;
+        outbox.discard();
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Sender loop: gathers queued updates into frames and writes each frame on the persistent connection.
+     * When a frame cannot be written, the unacknowledged updates are taken again after the backoff delay.
+     */
+    @Override
+    public void run() {
+        List<UpdateMessage> batch = null;
+        List<UpdateMessage> taken = null;
+        while (running) {
+            try {
+                if (batch == null) {
+                    boolean backlog = outbox.getDiskCount() > 0;
+                    taken = backlog
+                            ? outbox.take(ServerConfig.REPLICATION_COALESCE_UPDATES, ServerConfig.REPLICATION_COALESCE_BYTES, 0)
+                            : outbox.take(ServerConfig.REPLICATION_BATCH_SIZE, ServerConfig.REPLICATION_BATCH_BYTES,
+                                    ServerConfig.REPLICATION_FLUSH_WINDOW_MS);
+                    batch = UpdateCoalescer.coalesce(taken);
+                    takenUpdates.addAndGet(taken.size());
+                }
+                if (failures > 0) {
+                    outbox.pause(backoffDelay());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (out != null && lost == socket) {
+                Log.info("Replication channel to " + peer + " closed by the peer, reconnecting");
+                disconnect();
+                outbox.rewind();
+                batch = null;
+                continue;
+            }
+            try {
+                if (batch.isEmpty()) {
+                    // Probe for the acknowledgement of the updates sent on this connection.
+                    if (out != null) {
+                        out.writeMessage(new ReplicationBatch(new ArrayList<>()));
+                        out.flush();
+                    }
+                    batch = null;
+                    continue;
+                }
+                if (!connect()) {
+                    failed();
+                    continue;
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < batch.size(); i += ServerConfig.REPLICATION_BATCH_SIZE) {
+                    out.writeMessage(new ReplicationBatch(new ArrayList<>(
+                            batch.subList(i, Math.min(batch.size(), i + ServerConfig.REPLICATION_BATCH_SIZE)))));
+                }
+                out.flush();
+                long flushed = System.nanoTime();
+                sendLatency.record(flushed - start);
+                for (UpdateMessage update : taken) {
+                    if (update.getCreatedNanos() != 0) {
+                        replicationLag.record(flushed - update.getCreatedNanos());
+                    }
+                }
+                sentUpdates.addAndGet(batch.size());
+                batch = null;
+                failures = 0;
+            } catch (IOException e) {
+                Log.warn("Replication channel to " + peer + " failed: " + e.getMessage());
+                disconnect();
+                outbox.rewind();
+                batch = null;
+                failed();
+            }
+        }
+        disconnect();
+        outbox.close();
+    }
+
+    /**
+     * Records a failure: the next attempt is delayed, and the queued updates move to disk
+     * since the peer may stay unreachable for a long time.
+     */
+    private void failed() {
+        failures++;
+        outbox.spill();
+    }
+
+    /**
+     * Returns the delay before the next attempt: exponential in the number of consecutive failures,
+     * capped, with "equal jitter" (half fixed, half random) so that servers do not retry in lockstep.
+     *
+     * @return the delay in milliseconds
+     */
+    private long backoffDelay() {
+        long delay = ServerConfig.REPLICATION_BACKOFF_MIN_MS << Math.min(failures - 1, 20);
+        delay = Math.min(Math.max(delay, 1), ServerConfig.REPLICATION_BACKOFF_MAX_MS);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Opens the connection if needed.
+     *
+     * @return {@code true} if the channel is connected
+     */
+    private boolean connect() {
+        if (out != null) {
+            return true;
+        }
+        try {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(peer.getHost(), peer.getReplicationPort()), CONNECT_TIMEOUT_MS);
+            out = new MessageWriter(socket.getOutputStream());
+            readAcknowledgements(socket);
+            Log.info("Replication channel connected to " + peer);
+            return true;
+        } catch (IOException e) {
+            if (failures == 0) {
+                Log.warn("Replication channel to " + peer + " unavailable: " + e.getMessage());
+            }
+            disconnect();
+            return false;
+        }
+    }
+
+    /**
+     * Starts the thread reading the acknowledgements of a new connection and handing them to the outbox.
+     * When the stream ends, the connection is marked as lost so that the sender reconnects.
+     *
+     * @param connection the connection
+     * @throws IOException if its input stream cannot be opened
+     */
+    private void readAcknowledgements(Socket connection) throws IOException {
+        MessageReader in = new MessageReader(connection.getInputStream());
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    Object msg = in.readMessage();
+                    if (msg instanceof ReplicationAckMessage) {
+                        outbox.acknowledge(((ReplicationAckMessage) msg).getSequence());
+                    }
+                }
+            } catch (EOFException e) {
+                // The peer closed the connection.
+            } catch (IOException e) {
+                if (!connection.isClosed()) {
+                    Log.warn("Replication channel to " + peer + " lost: " + e.getMessage());
+                }
+            } finally {
+                lost = connection;
+            }
+        }, "replication-ack-" + peer.getServerId());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Closes the current connection, ignoring errors.
+     */
+    private void disconnect() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Ignore closing error
+        }
+        socket = null;
+        out = null;
+    }
+}
@@ -2,13 +2,21 @@ package DS_datastore;
 
 import java.net.*;
 import java.io.*;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Listens for incoming replication messages from other peer servers in the system.
  * <p>
  * This class runs on its own thread and listens on the server's replication port.
- * For each incoming connection, it spawns a new thread to handle incoming {@link UpdateMessage}
- * objects and delegates them to the server's update handler.
+ * Peers keep their {@link ReplicationChannel} open, so for each incoming connection it spawns
+ * a thread that reads {@link ReplicationBatch} frames (or single {@link UpdateMessage}s, written
+ * by senders that do not batch) until the peer closes the stream, delegating them to the server's update handler.
+ * <p>
+ * After each frame, the thread acknowledges on the same connection the highest sequence of the sender
+ * applied here ({@link ReplicationAckMessage}), once the log holds it durably: the sender keeps every
+ * update until then, and sends the unacknowledged ones again if the connection breaks. Updates waiting
+ * in the causal buffer are not acknowledged yet. The sender probes with empty frames while it waits.
  * <p>
  * Used to maintain eventual consistency between nodes in a distributed key-value store.
  */
@@ -28,35 +36,68 @@ public class ReplicationListener implements Runnable {
     /**
      * Starts listening on the server's replication port.
      * <p>
-     * For each incoming connection, this method spawns a new thread to:
+     * For each incoming connection, this method spawns a new thread that, until the stream ends:
      * <ul>
-     *     <li>Receive a serialized {@link UpdateMessage}</li>
-     *     <li>Pass it to {@link Server#handleRemoteUpdate(UpdateMessage)}</li>
+     *     <li>Receives a serialized {@link ReplicationBatch} or {@link UpdateMessage}</li>
+     *     <li>Passes it to {@link Server#handleRemoteBatch(java.util.List)} or
+     *         {@link Server#handleRemoteUpdate(UpdateMessage)}</li>
+     *     <li>Acknowledges the updates of the sender applied and logged durably so far</li>
      * </ul>
      * If any error occurs during deserialization or processing, it is logged to standard error.
      */
     @Override
     public void run() {
         try (ServerSocket serverSocket = new ServerSocket(server.getReplicationPort())) {
-            System.out.println("Replication listener started on port " + server.getReplicationPort());
+            Log.info("Replication listener started on port " + server.getReplicationPort());
             while (true) {
                 Socket socket = serverSocket.accept();
-                new Thread(() -> {
-                    try (ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-                        Object obj = in.readObject();
-                        if (obj instanceof UpdateMessage) {
-                            UpdateMessage update = (UpdateMessage) obj;
-                            server.handleRemoteUpdate(update);
+                server.getConnectionExecutor().executeOrClose(socket, () -> {
+                    try (MessageReader in = new MessageReader(socket.getInputStream());
+                         MessageWriter ackOut = new MessageWriter(socket.getOutputStream())) {
+                        // Highest sequence of the sender whose log record is durable, set by the log.
+                        AtomicLong durable = new AtomicLong();
+                        String origin = null;
+                        long requested = 0;
+                        long acknowledged = 0;
+                        while (true) {
+                            Object obj = in.readMessage();
+                            if (obj instanceof ReplicationBatch) {
+                                List<UpdateMessage> updates = ((ReplicationBatch) obj).getUpdates();
+                                if (!updates.isEmpty()) {
+                                    origin = updates.get(0).getOriginServerId();
+                                    server.handleRemoteBatch(updates);
+                                }
+                            } else if (obj instanceof UpdateMessage) {
+                                UpdateMessage update = (UpdateMessage) obj;
+                                origin = update.getOriginServerId();
+                                server.handleRemoteUpdate(update);
+                            }
+                            if (origin == null) {
+                                continue;
+                            }
+                            long applied = server.getAppliedSequence(origin);
+                            if (applied > requested) {
+                                requested = applied;
+                                server.whenLogDurable(() -> durable.accumulateAndGet(applied, Math::max));
+                            }
+                            long ready = durable.get();
+                            if (ready > acknowledged) {
+                                ackOut.writeMessage(new ReplicationAckMessage(ready));
+                                ackOut.flush();
+                                acknowledged = ready;
+                            }
                         }
+                    } catch (EOFException e) {
+                        // The peer closed its replication channel.
                     } catch (Exception e) {
-                        System.err.println("Replication message error: " + e.getMessage());
+                        Log.warn("Replication message error: " + e.getMessage());
                     } finally {
                         try { socket.close(); } catch (IOException e) { }
                     }
-                }).start();
+                });
             }
         } catch (IOException e) {
-            System.err.println("ReplicationListener error: " + e.getMessage());
+            Log.warn("ReplicationListener error: " + e.getMessage());
         }
     }
 }
@@ -1,19 +1,23 @@
 package DS_datastore;
 
 import java.net.Socket;
-import java.io.ObjectOutputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
 
 /**
- * Background thread that continuously retries sending failed replication or discovery messages
+ * Background thread that continuously retries sending failed discovery messages
  * to peer servers in a distributed system.
  * <p>
  * It periodically (every 2 seconds) scans the pending replication queue from the server
- * and attempts to re-send messages. If the delivery is successful, the message is removed
+ * and attempts to re-send messages. Updates normally never reach this queue, since each
+ * {@link ReplicationChannel} retries its own {@link PeerOutbox}; any update found here is handed
+ * to the peer's channel. Discovery messages are sent on a dedicated connection. If the delivery is successful, the message is removed
  * from the pending list. This helps maintain eventual consistency and robustness in case
  * of temporary network issues.
+ * <p>
+ * Each cycle also runs the stall detector of the server ({@link Server#checkStalledUpdates()}), which
+ * recovers the replicated updates lost on their way by a resync.
  */
 public class ReplicationRetryThread implements Runnable {
     /** Reference to the server instance managing the pending replication messages. */
@@ -35,6 +39,7 @@ public class ReplicationRetryThread implements Runnable {
      *     <li>Iterates through the map of pending replication messages</li>
      *     <li>Tries to send each message to its corresponding peer</li>
      *     <li>Removes successfully sent messages from the queue</li>
+     *     <li>Checks whether buffered updates are stalled on a lost update</li>
      * </ul>
      * If a thread interruption occurs, the method exits gracefully.
      */
@@ -53,20 +58,27 @@ public class ReplicationRetryThread implements Runnable {
                 // Copy of the list to avoid ConcurrentModificationException
                 List<ReplicableMessage> messages = new ArrayList<>(pendingMap.get(peer));
                 for (ReplicableMessage msg : messages) {
+                    if (msg instanceof UpdateMessage) {
+                        // The channel reconnects if needed and re-queues the message on failure.
+                        pendingMap.get(peer).remove(msg);
+                        server.getReplicationChannel(peer).send((UpdateMessage) msg);
+                        continue;
+                    }
                     // Determin destination port;
                     int destPort = (msg instanceof DiscoveryMessage) ? peer.getDiscoveryPort() : peer.getReplicationPort();
                     try (Socket socket = new Socket(peer.getHost(), destPort);
-                         ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-                        out.writeObject(msg);
+                         MessageWriter out = new MessageWriter(socket.getOutputStream())) {
+                        out.writeMessage(msg);
                         out.flush();
                         // If sent correctly, remove the message from the queue
                         pendingMap.get(peer).remove(msg);
-                        System.out.println("Successfully resent message to " + peer.getHost() + ":" + destPort);
+                        Log.info("Successfully resent message to " + peer.getHost() + ":" + destPort);
                     } catch (Exception e) {
-                        System.err.println("Retry sending to " + peer.getHost() + ":" + destPort + " failed: " + e.getMessage());
+                        Log.warn("Retry sending to " + peer.getHost() + ":" + destPort + " failed: " + e.getMessage());
                     }
                 }
             }
+            server.checkStalledUpdates();
         }
     }
 }
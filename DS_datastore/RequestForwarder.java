@@ -0,0 +1,296 @@
+package DS_datastore;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forwards client requests to the servers replicating their keys, when keys are partitioned ({@link HashRing}).
+ * <p>
+ * A forwarded request is sent on the client port of a replica, prefixed by {@link #FORWARDED} so that
+ * the replica serves it locally and never forwards it again; replicas only accept that prefix from their peers.
+ * Replicas are tried in ring order, the next one being used only if a replica cannot be reached.
+ * Connections are kept open and reused, one request at a time.
+ * <p>
+ * The replica answers with a {@link #CONTEXT} line holding its clock after serving the request, then the
+ * response. The response is returned once the local clock covers that clock
+ * ({@link Server#awaitClock(VectorClock, long)}): the write just forwarded, or the values just read, are then
+ * visible here, and the next local write of the client depends on them.
+ * <p>
+ * Only reads are sent again once a replica may have received them: a write whose line was fully sent but not
+ * answered may have been applied, so the client gets an error rather than a second application elsewhere.
+ * A pooled connection is checked for its end of stream (the replica restarted) before a request is sent on it.
+ * <p>
+ * The requests are sent by tasks of the server's outbound executor, never by the client selector thread:
+ * {@link #forward} returns at once and its response completes when the replica answers.
+ */
+public class RequestForwarder {
+    /** Prefix of a request forwarded by another server. */
+    public static final String FORWARDED = "FWD ";
+
+    /** Prefix of the first line of a forwarded response: the replica's clock, as {@code id=counter} pairs. */
+    public static final String CONTEXT = "CONTEXT";
+
+    /** Timeout used when opening a connection to a replica. */
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+
+    /** Idle connections kept open towards each replica. */
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    /** Commands that can be sent again, to the same or another replica, after an unanswered attempt. */
+    private static final Set<String> RETRYABLE_COMMANDS = Set.of("READ", "MREAD", "READALL");
+
+    /** An open connection to the client port of a replica. */
+    private static final class Connection implements Closeable {
+        final SocketChannel socket;
+        final BufferedReader in;
+        final Writer out;
+
+        Connection(PeerInfo peer) throws IOException {
+            socket = SocketChannel.open();
+            try {
+                socket.socket().connect(new InetSocketAddress(peer.getHost(), peer.getClientPort()), CONNECT_TIMEOUT_MS);
+                socket.socket().setSoTimeout(ServerConfig.SHARD_FORWARD_TIMEOUT_MS);
+                socket.socket().setTcpNoDelay(true);
+                in = new BufferedReader(new InputStreamReader(socket.socket().getInputStream(), StandardCharsets.UTF_8));
+                out = new BufferedWriter(new OutputStreamWriter(socket.socket().getOutputStream(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Tells, without blocking, whether the replica closed this idle connection: between two requests
+         * it sends nothing, so anything but nothing to read means the connection is unusable.
+         */
+        boolean closedByReplica() {
+            try {
+                socket.configureBlocking(false);
+                try {
+                    return socket.read(ByteBuffer.allocate(1)) != 0;
+                } finally {
+                    socket.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore closing error
+            }
+        }
+    }
+
+    /** The local server. */
+    private final Server server;
+
+    /** Idle connections, by replica. */
+    private final Map<PeerInfo, Queue<Connection>> idle = new ConcurrentHashMap<>();
+
+    /** Number of requests answered by a replica. */
+    private final AtomicLong forwarded;
+
+    /** Number of requests that no replica answered. */
+    private final AtomicLong failures;
+
+    /** Number of responses returned before the local clock covered the replica's context. */
+    private final AtomicLong contextTimeouts;
+
+    /** Time from forwarding a request to its response. */
+    private final LatencyHistogram latency;
+
+    /**
+     * Constructs the forwarder of the given server.
+     *
+     * @param server the local server
+     */
+    public RequestForwarder(Server server) {
+        this.server = server;
+        Metrics metrics = server.getMetrics();
+        this.forwarded = metrics.counter("client_requests_forwarded");
+        this.failures = metrics.counter("client_forward_failures");
+        this.contextTimeouts = metrics.counter("client_forward_context_timeouts");
+        this.latency = metrics.histogram("client_forward_latency");
+    }
+
+    /**
+     * Forwards a request to the first reachable replica.
+     *
+     * @param replicas   the IDs of the servers able to serve the request, in order of preference
+     * @param request    the request line, without the line terminator
+     * @param terminator the last line of a multi-line response, {@code null} for a one-line response
+     * @return the response, completed by an executor thread; an error line if no replica answered
+     */
+    public CompletableFuture<String> forward(List<String> replicas, String request, String terminator) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        try {
+            server.getOutboundExecutor().execute(() -> response.complete(send(replicas, request, terminator)));
+        } catch (RejectedExecutionException e) {
+            failures.incrementAndGet();
+            response.complete("ERROR: Server busy, request not forwarded\n");
+        }
+        return response;
+    }
+
+    private String send(List<String> replicas, String request, String terminator) {
+        long start = System.nanoTime();
+        boolean retryable = RETRYABLE_COMMANDS.contains(request.split(" ", 2)[0].toUpperCase());
+        String error = "no replica known";
+        for (String id : replicas) {
+            PeerInfo peer = server.findPeer(id);
+            if (peer == null || peer.getClientPort() == 0) {
+                continue;
+            }
+            Connection connection = idle(peer);
+            boolean pooled = connection != null;
+            while (true) {
+                boolean sent = false;
+                try {
+                    if (connection == null) {
+                        connection = new Connection(peer);
+                    } else if (connection.closedByReplica()) {
+                        throw new EOFException("connection closed by the replica");
+                    }
+                    write(connection, request);
+                    sent = true;
+                    String first = read(connection, null);
+                    if (!first.startsWith(CONTEXT)) {
+                        // Refused by the replica (e.g. it does not know this server yet): a single error line.
+                        release(peer, connection);
+                        failures.incrementAndGet();
+                        Log.warn("Request refused by " + peer + ": " + first.trim());
+                        return first;
+                    }
+                    String response = read(connection, terminator);
+                    release(peer, connection);
+                    awaitContext(peer, parseContext(first.trim()));
+                    forwarded.incrementAndGet();
+                    latency.recordSince(start);
+                    return response;
+                } catch (IOException e) {
+                    if (connection != null) {
+                        connection.close();
+                    }
+                    error = peer + ": " + e.getMessage();
+                    if (sent && !retryable) {
+                        failures.incrementAndGet();
+                        Log.warn("Request forwarded without response (" + error + "): " + request);
+                        return "ERROR: No response from the replica, the write may have been applied\n";
+                    }
+                    if (!pooled) {
+                        break;
+                    }
+                    // The pooled connection may have been closed by the replica: retry once on a new one.
+                    pooled = false;
+                    connection = null;
+                }
+            }
+        }
+        failures.incrementAndGet();
+        Log.warn("Request not forwarded (" + error + "): " + request);
+        return "ERROR: No replica reachable for this key\n";
+    }
+
+    /**
+     * Sends a request. The line terminator goes last, so a replica cannot serve a request that failed here.
+     */
+    private static void write(Connection connection, String request) throws IOException {
+        connection.out.write(FORWARDED);
+        connection.out.write(request);
+        connection.out.write('\n');
+        connection.out.flush();
+    }
+
+    /**
+     * Formats the context line of a forwarded response.
+     *
+     * @param clock the clock of the replica after serving the request
+     * @return the line, with its terminator
+     */
+    public static String contextLine(VectorClock clock) {
+        StringBuilder line = new StringBuilder(CONTEXT);
+        for (Map.Entry<String, Long> entry : clock.getClock().entrySet()) {
+            if (entry.getValue() > 0) {
+                line.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+            }
+        }
+        return line.append('\n').toString();
+    }
+
+    /**
+     * Parses the context line preceding a forwarded response.
+     */
+    private static VectorClock parseContext(String line) throws IOException {
+        String[] tokens = line.split(" ");
+        VectorClock context = new VectorClock();
+        try {
+            for (int i = 1; i < tokens.length; i++) {
+                int separator = tokens[i].lastIndexOf('=');
+                context.set(tokens[i].substring(0, separator), Long.parseLong(tokens[i].substring(separator + 1)));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed context line: " + line);
+        }
+        return context;
+    }
+
+    /**
+     * Waits until the local clock covers the context of a response. The request was served either way,
+     * so the response is returned even if the wait times out.
+     */
+    private void awaitContext(PeerInfo peer, VectorClock context) {
+        try {
+            if (!server.awaitClock(context, ServerConfig.SHARD_FORWARD_TIMEOUT_MS)) {
+                contextTimeouts.incrementAndGet();
+                Log.warn("Response of " + peer + " returned before its updates were received: " + context);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String read(Connection connection, String terminator) throws IOException {
+        StringBuilder response = new StringBuilder();
+        while (true) {
+            String line = connection.in.readLine();
+            if (line == null) {
+                throw new EOFException("connection closed by the replica");
+            }
+            response.append(line).append('\n');
+            if (terminator == null || line.equals(terminator)) {
+                return response.toString();
+            }
+        }
+    }
+
+    private Connection idle(PeerInfo peer) {
+        Queue<Connection> queue = idle.get(peer);
+        return (queue != null) ? queue.poll() : null;
+    }
+
+    private void release(PeerInfo peer, Connection connection) {
+        Queue<Connection> queue = idle.computeIfAbsent(peer, p -> new ConcurrentLinkedQueue<>());
+        if (queue.size() < MAX_IDLE_CONNECTIONS) {
+            queue.add(connection);
+        } else {
+            connection.close();
+        }
+    }
+}
@@ -2,8 +2,16 @@ package DS_datastore;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Represents a server node in a distributed key-value store system.
@@ -18,6 +26,26 @@ import java.util.concurrent.ConcurrentHashMap;
  * </ul>
  * This class is the central orchestrator of all listener threads, replication mechanisms,
  * state recovery, and update consistency.
+ * <p>
+ * Concurrency: reads go straight to the {@link KeyValueStore} without locking. The local vector
+ * clock (and the causal buffer indexed on it) is guarded by {@code clockLock}, held only to stamp
+ * local writes and to check or advance the clock for remote ones. Remote updates are applied
+ * through one "lane" per origin server, so updates of the same origin are applied one at a time
+ * while updates from different origins are applied in parallel. The server monitor only guards
+ * membership changes.
+ * <p>
+ * Versions: the local clock is the only full vector clock of the node. It summarizes every write applied here
+ * and decides when a remote update is causally ready; each stored value only carries the dot of its write and
+ * the dots it superseded ({@link DottedVersion}), so the memory spent per key does not grow with the servers.
+ * Every write is also stamped by the {@link HybridClock}, which follows the timestamps of the applied updates;
+ * concurrent writes of a key are resolved by the configured {@link ConflictResolver}.
+ * <p>
+ * Partitioning: each key is replicated only by the servers the {@link HashRing} assigns it to, rebuilt
+ * whenever a peer is discovered. The other servers receive a clock-only version of its updates, so every
+ * server still sees every origin sequence and causal delivery works as with full replication; clients are
+ * served by any server, which forwards the requests for keys it does not replicate ({@link ClientHandler}).
+ * Entries of keys whose replicas change when servers join are not moved away from their old replicas:
+ * they stay there, no longer updated, until overwritten by a later assignment.
  */
 public class Server {
     /** Unique identifier of this server. */
@@ -41,10 +69,22 @@ public class Server {
     /** In-memory key-value store. */
     private KeyValueStore keyValueStore;
 
-    /** Local vector clock for causal consistency. */
+    /** Local vector clock for causal consistency, summarizing every applied write; guarded by {@code clockLock}. */
     private VectorClock localClock;
 
-    /** List of peer server information. */
+    /** Lock guarding {@code localClock} and {@code pendingUpdates}. */
+    private final Object clockLock = new Object();
+
+    /** Threads waiting in {@link #awaitClock} for remote updates; guarded by {@code clockLock}. */
+    private int clockWaiters;
+
+    /** Hybrid clock stamping local writes, advanced past the timestamps of applied updates. */
+    private final HybridClock hybridClock = new HybridClock();
+
+    /** Per-origin locks serializing the application of updates from the same origin server. */
+    private final Map<Integer, Object> applyLanes = new ConcurrentHashMap<>();
+
+    /** List of peer server information (copy-on-write, iterated without locking by replication). */
     private List<PeerInfo> peerServers;
 
     /** Hostname or IP of a known server to join an existing network (optional). */
@@ -56,12 +96,99 @@ public class Server {
     /** Reference to the peer info of the seed node (set during joining). */
     private PeerInfo seedPeer;
 
-    /** List of updates that are waiting for causal readiness. */
-    private final List<UpdateMessage> pendingUpdates = new ArrayList<>();
+    /** Samplers of the per-update DEBUG messages, which would otherwise flood the log under load. */
+    private static final LogSampler WRITE_LOG = updateSampler();
+    private static final LogSampler APPLY_LOG = updateSampler();
+    private static final LogSampler BUFFER_LOG = updateSampler();
+    private static final LogSampler OBSOLETE_LOG = updateSampler();
+
+    /** Counters, latency histograms and gauges of this server, served by the METRICS command and {@link MetricsEndpoint}. */
+    private final Metrics metrics = new Metrics();
+
+    /** Time from the start of a local write to its commit in the log. */
+    private final LatencyHistogram writeLatency = metrics.histogram("local_write_latency");
+
+    /** Time to log and apply a causally ready remote update. */
+    private final LatencyHistogram applyLatency = metrics.histogram("remote_apply_latency");
+
+    /** Remote updates applied, buffered until causally ready, and discarded as already applied. */
+    private final AtomicLong appliedUpdates = metrics.counter("remote_updates_applied");
+    private final AtomicLong bufferedUpdates = metrics.counter("remote_updates_buffered");
+    private final AtomicLong obsoleteUpdates = metrics.counter("remote_updates_obsolete");
+
+    /** Bytes received by the state transfers of this server, including interrupted attempts. */
+    private final AtomicLong stateTransferBytes = metrics.counter("state_transfer_bytes_received");
+
+    /** Updates that are waiting for causal readiness, indexed by origin and missing dependency; guarded by {@code clockLock}. */
+    private final CausalDeliveryBuffer pendingUpdates = new CausalDeliveryBuffer(metrics.histogram("pending_update_wait"));
+
+    /** Recently applied updates, served to rejoining servers as a delta; guarded by {@code clockLock}. */
+    private final UpdateHistory recentUpdates =
+            new UpdateHistory(ServerConfig.DELTA_HISTORY_UPDATES, ServerConfig.DELTA_HISTORY_BYTES);
 
-    /** Pending replication messages for retry in case of failure. */
+    /**
+     * Pending discovery messages for retry in case of failure. Updates are not queued here: each
+     * {@link ReplicationChannel} keeps its own bounded, disk-spilling {@link PeerOutbox}.
+     */
     private final Map<PeerInfo, List<ReplicableMessage>> pendingReplications = new ConcurrentHashMap<>();
 
+    /** Persistent replication connections, one per peer. */
+    private final Map<PeerInfo, ReplicationChannel> replicationChannels = new ConcurrentHashMap<>();
+
+    /** Write-ahead log of the applied changes, or {@code null} if disabled or not started. */
+    private WriteAheadLog wal;
+
+    /** Directory holding the log segments and snapshots of this server. */
+    private Path dataDir;
+
+    /**
+     * Held in read mode from the moment a change is logged until it is applied to the store and the clock,
+     * and in write mode by {@link #checkpoint()} to rotate the log between two changes.
+     * Always acquired before {@code clockLock}.
+     */
+    private final ReentrantReadWriteLock persistLock = new ReentrantReadWriteLock();
+
+    /**
+     * Held in read mode by a remote update from its first store write until its clock is merged, and in write
+     * mode by a local write while it stamps its clock: a remote value a client may have read is then always
+     * included in the clock of the client's next write. Remote updates still apply in parallel.
+     * Acquired after {@code persistLock} and before {@code clockLock}.
+     */
+    private final ReentrantReadWriteLock visibilityLock = new ReentrantReadWriteLock();
+
+    /** Serializes the checkpoints. */
+    private final Object checkpointLock = new Object();
+
+    /** State transfers in progress towards joining servers, by session ID. */
+    private final Map<Long, StateTransferSession> stateSessions = new ConcurrentHashMap<>();
+
+    /** Assignment of the keys to the servers replicating them. */
+    private final HashRing hashRing = new HashRing(ServerConfig.SHARD_VIRTUAL_NODES, ServerConfig.SHARD_REPLICATION_FACTOR);
+
+    /** Retirement of the clock entries of departed servers. */
+    private final ClockRetirement clockRetirement = new ClockRetirement(this);
+
+    /** Gossip membership and failure detection. */
+    private final Membership membership = new Membership(this);
+
+    /** Set while {@link #resync()} runs. */
+    private final AtomicBoolean resyncing = new AtomicBoolean();
+
+    /** Resyncs started because buffered updates stalled on a lost update ({@link #checkStalledUpdates()}). */
+    private final AtomicLong stallResyncs = metrics.counter("replication_stall_resyncs");
+
+    /** When {@link #checkStalledUpdates()} last started a resync, in {@link System#nanoTime()} units. */
+    private volatile long lastStallResync = System.nanoTime();
+
+    /** Periodic Merkle tree comparison with the peers. */
+    private final AntiEntropy antiEntropy = new AntiEntropy(this);
+
+    /** Runs the handlers of accepted replication, discovery and state transfer connections. */
+    private final TaskExecutor connectionExecutor = TaskExecutor.create("connection");
+
+    /** Runs one-shot outbound sends (e.g. NEW_PEER announcements). */
+    private final TaskExecutor outboundExecutor = TaskExecutor.create("outbound");
+
     /**
      * Returns the machine's IPv4 address starting with "192.168.1.".
      *
@@ -106,11 +233,46 @@ public class Server {
         this.discoveryPort = discoveryPort;
         this.stateTransferPort = stateTransferPort;
         this.allServerIds = allServerIds;
-        this.peerServers = new ArrayList<>(peerServers);
-        this.keyValueStore = new KeyValueStore();
+        this.peerServers = new CopyOnWriteArrayList<>(peerServers);
+        this.keyValueStore = new KeyValueStore(ConflictResolver.create(ServerConfig.CONFLICT_RESOLVER));
         this.localClock = new VectorClock(allServerIds);
         this.seedHost = seedHost;
         this.seedDiscoveryPort = seedDiscoveryPort;
+        updateRing();
+        registerGauges();
+    }
+
+    private static LogSampler updateSampler() {
+        return new LogSampler(Log.Level.DEBUG, ServerConfig.LOG_SAMPLE_EVERY, ServerConfig.LOG_SAMPLE_MAX_PER_SECOND);
+    }
+
+    /**
+     * Registers the gauges reading the state of the server; the per-peer ones are registered by each
+     * {@link ReplicationChannel}.
+     */
+    private void registerGauges() {
+        metrics.gauge("pending_updates", () -> {
+            synchronized (clockLock) {
+                return pendingUpdates.getDepth();
+            }
+        });
+        metrics.gauge("pending_updates_oldest_age_ms", () -> {
+            synchronized (clockLock) {
+                return pendingUpdates.getOldestAgeMillis();
+            }
+        });
+        metrics.gauge("pending_updates_dropped", pendingUpdates::getDroppedCount);
+        metrics.gauge("store_live_entries", keyValueStore::getLiveCount);
+        metrics.gauge("store_snapshot_entries", keyValueStore::getBaseCount);
+        metrics.gauge("state_transfer_sessions", stateSessions::size);
+        metrics.gauge("log_records_dropped", Log::getDropped);
+        metrics.gauge("shard_ring_members", () -> hashRing.getMembers().size());
+        metrics.gauge("shard_replication_factor", hashRing::getReplicationFactor);
+        metrics.gauge("vector_clock_entries", () -> {
+            synchronized (clockLock) {
+                return localClock.size();
+            }
+        });
     }
 
     /**
@@ -119,35 +281,160 @@ public class Server {
      *     <li>Client listener</li>
      *     <li>Replication listener</li>
      *     <li>Discovery listener</li>
+     *     <li>Gossip membership and failure detection</li>
      *     <li>State transfer listener</li>
      *     <li>Pending update checker</li>
      *     <li>Replication retry thread</li>
      * </ul>
-     * If a seed server is provided, it attempts to join the network.
+     * If a seed server is provided, it attempts to join the network. Clients are accepted last.
      */
     public void start() {
-        // Start client listener thread.
-        new Thread(new ClientListener(clientPort, this)).start();
+        // Rebuild the local state from the write-ahead log before accepting any traffic.
+        openLog();
 
         // Start replication listener thread.
-        new Thread(new ReplicationListener(this)).start();
+        new Thread(new ReplicationListener(this), "replication-listener").start();
 
         // Start discovery listener thread.
-        new Thread(new DiscoveryListener(this)).start();
+        new Thread(new DiscoveryListener(this), "discovery-listener").start();
+
+        // Start the gossip membership on the same port number, over UDP.
+        try {
+            membership.start();
+        } catch (SocketException e) {
+            Log.error("Gossip membership unavailable on UDP port " + discoveryPort + ": " + e.getMessage());
+        }
 
         // Start state transfer listener thread.
-        new Thread(new StateTransferListener(this)).start();
+        new Thread(new StateTransferListener(this), "state-transfer-listener").start();
 
         // Start replication retry thread.
-        new Thread(new ReplicationRetryThread(this)).start();
+        new Thread(new ReplicationRetryThread(this), "replication-retry").start();
+
+        // Start anti-entropy thread.
+        if (ServerConfig.ANTI_ENTROPY_ENABLED) {
+            Thread repair = new Thread(antiEntropy, "anti-entropy");
+            repair.setDaemon(true);
+            repair.start();
+        }
+
+        Log.info("Executors: " + connectionExecutor + "; " + outboundExecutor);
+
+        if (ServerConfig.METRICS_HTTP_PORT > 0) {
+            try {
+                new MetricsEndpoint(ServerConfig.METRICS_HTTP_PORT, metrics).start();
+            } catch (IOException e) {
+                Log.warn("Metrics endpoint unavailable on port " + ServerConfig.METRICS_HTTP_PORT + ": " + e.getMessage());
+            }
+        }
 
         // If seed is provided, join the network.
         if (seedHost != null && !seedHost.isEmpty()) {
             joinNetwork();
         }
-        System.out.println("Server " + serverId + " started.");
+
+        // Open the channels now, so that the outboxes left on disk by a previous run start draining.
+        for (PeerInfo peer : getPeerServers()) {
+            if (!peer.getServerId().equals(serverId)) {
+                getReplicationChannel(peer);
+            }
+        }
+
+        // Start client listener thread, once the state is recovered.
+        new Thread(new ClientListener(clientPort, this), "client-listener").start();
+        Log.info("Server " + serverId + " started.");
+    }
+
+
+    /**
+     * Opens the write-ahead log and replays it into the store and the local clock.
+     *
+     * @throws UncheckedIOException if the log cannot be opened or read
+     */
+    private void openLog() {
+        if (!ServerConfig.WAL_ENABLED) {
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            dataDir = Paths.get(ServerConfig.DATA_DIR, serverId);
+            wal = new WriteAheadLog(dataDir, ServerConfig.WAL_FSYNC);
+            int replayed;
+            clockRetirement.load(dataDir);
+            synchronized (clockLock) {
+                long firstSegment = SnapshotFile.loadLatest(dataDir, keyValueStore, localClock);
+                replayed = wal.replay(keyValueStore, localClock, firstSegment);
+                // The log predates the retirements it does not record.
+                clockRetirement.stripInPlace(localClock);
+                recentUpdates.reset(localClock);
+            }
+            Log.info("Local state restored in " + (System.currentTimeMillis() - start) + " ms: "
+                    + keyValueStore.getBaseCount() + " keys mapped from the snapshot, "
+                    + keyValueStore.getLiveCount() + " in memory, " + replayed + " WAL records replayed, fsync policy "
+                    + wal.getPolicy() + ", VC: " + getLocalClock());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the write-ahead log", e);
+        }
+        if (ServerConfig.SNAPSHOT_ENABLED) {
+            Thread snapshotter = new Thread(new Snapshotter(this), "snapshotter");
+            snapshotter.setDaemon(true);
+            snapshotter.start();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the store and of the local clock, then deletes the WAL segments it covers.
+     * <p>
+     * Writers are only held back while the log is rotated; the store is scanned while writes continue,
+     * since every change made after the rotation is also in the new segment and is replayed on top of the snapshot.
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            if (wal == null) {
+                return;
+            }
+            long segment;
+            VectorClock clock;
+            persistLock.writeLock().lock();
+            try {
+                segment = wal.rotate();
+                synchronized (clockLock) {
+                    clock = new VectorClock(localClock);
+                }
+            } finally {
+                persistLock.writeLock().unlock();
+            }
+            long start = System.currentTimeMillis();
+            long entries = SnapshotFile.write(dataDir, segment, clock, keyValueStore.entries());
+            // The new snapshot becomes the base layer: entries it holds no longer need to stay in memory.
+            int released = keyValueStore.compactInto(SnapshotFile.open(dataDir, segment));
+            wal.deleteSegmentsBefore(segment);
+            SnapshotFile.deleteOlderThan(dataDir, segment);
+            Log.info("Snapshot " + segment + " written: " + entries + " keys in "
+                    + (System.currentTimeMillis() - start) + " ms, " + released + " keys released from memory");
+        }
+    }
+
+    /**
+     * Appends an applied update to the write-ahead log, if enabled.
+     *
+     * @return the sequence number to pass to {@link #commitLog(long)}
+     */
+    private long logUpdate(UpdateMessage update) {
+        return (wal != null) ? wal.appendUpdate(update) : 0;
     }
 
+    /**
+     * Waits until a logged change is durable, as required by the fsync policy.
+     * Must be called without holding {@code clockLock}.
+     */
+    private void commitLog(long seq) {
+        if (wal != null) {
+            wal.commit(seq);
+        }
+    }
 
     /**
      * Connects to the seed server and obtains the list of known peers via a JOIN_REQUEST.
@@ -157,17 +444,17 @@ public class Server {
     private synchronized void joinNetwork() {
 
         try (Socket socket = new Socket(seedHost, seedDiscoveryPort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+             MessageWriter out = new MessageWriter(socket.getOutputStream());
+             MessageReader in = new MessageReader(socket.getInputStream())) {
 
             // Create and send a JOIN_REQUEST using DiscoveryMessage.
             DiscoveryMessage joinRequest = new DiscoveryMessage(DiscoveryMessage.Type.JOIN_REQUEST,
-                    serverId, getCorrectIP(), replicationPort, discoveryPort, stateTransferPort);
-            out.writeObject(joinRequest);
+                    serverId, getCorrectIP(), replicationPort, discoveryPort, stateTransferPort, clientPort);
+            out.writeMessage(joinRequest);
             out.flush();
 
             // Wait for the JOIN_RESPONSE.
-            Object responseObj = in.readObject();
+            Object responseObj = in.readMessage();
             if (responseObj instanceof DiscoveryMessage) {
                 DiscoveryMessage response = (DiscoveryMessage) responseObj;
                 if (response.getType() == DiscoveryMessage.Type.JOIN_RESPONSE) {
@@ -184,56 +471,46 @@ public class Server {
 
                         if (!peer.getServerId().equals(this.serverId)) {
                             addPeer(peer);
-                            localClock.addServer(peer.getServerId());
+                            registerServer(peer.getServerId());
                         }
                     }
 
-                    System.out.println("Joined network via seed. Discovered peers: " + discoveredPeers);
+                    Log.info("Joined network via seed. Discovered peers: " + discoveredPeers);
                     broadcastMyPresence();
-                    recoverState();
+                    recoverState(seedPeer);
+                    if (hashRing.isPartial()) {
+                        pullShards(seedPeer);
+                    }
                 }
             }
         } catch (Exception e) {
-            System.err.println("Failed to join network via seed: " + e.getMessage());
+            Log.warn("Failed to join network via seed: " + e.getMessage());
         }
     }
 
 
     /**
-     * Sends a NEW_PEER message to all known peers to announce this server's presence.
-     * If delivery fails, the message is queued in {@code pendingReplications}.
+     * Announces this server's presence to the cluster. The announcement is piggybacked on the gossip
+     * messages ({@link Membership}) and spreads from the peers learned from the seed to every server,
+     * instead of being sent to every peer on its own connection.
      */
     public void broadcastMyPresence() {
-        // Create its own PeerInfo
+        membership.announce();
+    }
+
+    /**
+     * Returns the connection information of this server, as announced to the other servers.
+     *
+     * @return the local peer information
+     */
+    public PeerInfo getSelfPeer() {
         String selfHost;
         try {
             selfHost = getCorrectIP();
         } catch (SocketException e) {
-            throw new RuntimeException(e);
-        }
-        PeerInfo selfPeer = new PeerInfo(serverId, selfHost, replicationPort, discoveryPort, stateTransferPort);
-
-        ReplicableMessage newPeerMsg = new DiscoveryMessage(DiscoveryMessage.Type.NEW_PEER, selfPeer);
-
-        // Send NEW_PEER to all known peers, except itsself.
-        for (PeerInfo peer : getPeerServers()) {
-            if (!peer.getServerId().equals(this.serverId) && (seedPeer == null || !peer.equals(seedPeer))) {
-                // each peer listen to its discoveryPort.
-                int peerDiscoveryPort = peer.getDiscoveryPort();
-                new Thread(() -> {
-                    try (Socket socket = new Socket(peer.getHost(), peerDiscoveryPort);
-                         ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-                        DiscoveryMessage msg = new DiscoveryMessage(DiscoveryMessage.Type.NEW_PEER, selfPeer);
-                        out.writeObject(msg);
-                        out.flush();
-                        System.out.println("Inviato NEW_PEER a " + peer);
-                    } catch (Exception e) {
-                        System.err.println("Errore durante il broadcast a " + peer + ": " + e.getMessage());
-                        pendingReplications.computeIfAbsent(peer, k -> new ArrayList<>()).add(newPeerMsg);
-                    }
-                }).start();
-            }
+            throw new UncheckedIOException(e);
         }
+        return new PeerInfo(serverId, selfHost, replicationPort, discoveryPort, stateTransferPort, clientPort);
     }
 
 
@@ -248,7 +525,163 @@ public class Server {
                 .anyMatch(p -> p.getHost().equals(peer.getHost()) && p.getReplicationPort() == peer.getReplicationPort());
         if (!exists) {
             peerServers.add(peer);
-            System.out.println("Added new peer: " + peer.getHost() + ":" + peer.getReplicationPort());
+            Log.info("Added new peer: " + peer.getHost() + ":" + peer.getReplicationPort());
+            updateRing();
+            membership.peerAdded(peer);
+        }
+    }
+
+    /**
+     * Removes a peer declared dead by the {@link Membership}: its replication channel is closed and the
+     * updates queued for it are dropped, together with any message waiting for retry. If the peer comes
+     * back, it is added again and catches up through a state transfer.
+     *
+     * @param peer the dead peer
+     */
+    public synchronized void removePeer(PeerInfo peer) {
+        ReplicationChannel channel;
+        // Under clockLock, so that no local write hands an update to the channel after it is discarded.
+        synchronized (clockLock) {
+            if (!peerServers.remove(peer)) {
+                return;
+            }
+            channel = replicationChannels.remove(peer);
+        }
+        if (channel != null) {
+            channel.discard();
+        }
+        pendingReplications.remove(peer);
+        boolean partial = hashRing.isPartial();
+        updateRing();
+        Log.warn("Removed dead peer: " + peer);
+        if (partial) {
+            // The keys of the dead peer moved to other servers, possibly this one: once the other servers
+            // have removed it as well (they only send the keys they see as shared), fetch them.
+            long delay = membership.getDisseminationMillis();
+            try {
+                outboundExecutor.execute(() -> {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    pullShards(null);
+                });
+            } catch (RejectedExecutionException e) {
+                Log.warn("Keys of " + peer + " not fetched: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Brings this server up to date after the other servers declared it dead and stopped replicating
+     * to it (e.g. after a network partition): the state is recovered from a live peer like on a join.
+     * Runs on the outbound executor; a call made while a resync is running is ignored.
+     */
+    public void resync() {
+        resync(null);
+    }
+
+    /**
+     * Brings this server up to date from the given peer, like {@link #resync()}: the donor sends the
+     * updates missed since the local clock, or its whole state if it no longer has them.
+     *
+     * @param donor the peer to recover from, or {@code null} for a random one
+     */
+    public void resync(PeerInfo donor) {
+        if (!resyncing.compareAndSet(false, true)) {
+            return;
+        }
+        Runnable task = () -> {
+            try {
+                PeerInfo from = donor;
+                if (from == null) {
+                    List<PeerInfo> peers = getPeerServers();
+                    peers.removeIf(p -> p.getServerId().equals(serverId));
+                    if (peers.isEmpty()) {
+                        return;
+                    }
+                    from = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+                }
+                recoverState(from);
+                if (hashRing.isPartial()) {
+                    pullShards(null);
+                }
+            } finally {
+                resyncing.set(false);
+            }
+        };
+        try {
+            outboundExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            resyncing.set(false);
+            Log.warn("Resync not started: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stall detector, run periodically ({@link ReplicationRetryThread}): if buffered updates have waited
+     * for a missing update longer than {@link ServerConfig#REPLICATION_STALL_MS}, the missing update was
+     * lost on its way (its sender crashed before writing it out, or its outbox was full) and replication
+     * will never bring it. It is fetched by a {@link #resync(PeerInfo)}, preferably from the server that
+     * wrote it, at most once per stall period.
+     */
+    public void checkStalledUpdates() {
+        Set<String> missing;
+        synchronized (clockLock) {
+            missing = pendingUpdates.stalledOn(localClock, ServerConfig.REPLICATION_STALL_MS * 1_000_000);
+        }
+        long now = System.nanoTime();
+        if (missing.isEmpty() || now - lastStallResync < ServerConfig.REPLICATION_STALL_MS * 1_000_000) {
+            return;
+        }
+        lastStallResync = now;
+        PeerInfo donor = null;
+        for (String id : missing) {
+            donor = findPeer(id);
+            if (donor != null) {
+                break;
+            }
+        }
+        stallResyncs.incrementAndGet();
+        Log.warn("Buffered updates stalled on a missing update of " + missing + ", resyncing from "
+                + (donor != null ? donor : "a random peer"));
+        resync(donor);
+    }
+
+    /**
+     * Rebuilds the hash ring from the local server and the known peers.
+     */
+    private synchronized void updateRing() {
+        Set<String> members = new HashSet<>();
+        members.add(serverId);
+        for (PeerInfo peer : peerServers) {
+            members.add(peer.getServerId());
+        }
+        if (hashRing.setMembers(members)) {
+            Log.info("Hash ring: " + hashRing.getMembers() + ", " + hashRing.getReplicationFactor()
+                    + " replicas per key" + (hashRing.isPartial() ? "" : " (full replication)"));
+        }
+    }
+
+    /**
+     * Fetches from every peer the keys this server replicates after a join (the seed only holds the
+     * keys it replicates itself) or after the removal of a dead peer. Each peer is compared through an
+     * anti-entropy exchange restricted to the keys both replicate.
+     *
+     * @param skip a peer already synchronized with, or {@code null}
+     */
+    private void pullShards(PeerInfo skip) {
+        for (PeerInfo peer : getPeerServers()) {
+            if (peer.getServerId().equals(serverId) || peer.equals(skip)) {
+                continue;
+            }
+            try {
+                antiEntropy.syncWith(peer);
+            } catch (Exception e) {
+                Log.warn("Failed to fetch the keys shared with " + peer + ": " + e.getMessage());
+            }
         }
     }
 
@@ -256,40 +689,245 @@ public class Server {
 
     /**
      * Attempts to recover the current state (key-value store and vector clock)
-     * from the first available peer in the list using a state transfer protocol.
+     * from the seed peer using the streaming state transfer protocol.
+     * <p>
+     * The donor sends the store in {@link StateChunkMessage}s; each chunk is applied and logged as soon as it
+     * arrives and acknowledged with the index of the next entry, so a broken connection is resumed from the
+     * last applied entry rather than from scratch. The donor's clock is merged only once the last chunk is applied.
+     * <p>
+     * The first request carries the local clock (restored from disk on restart): if the donor still has every
+     * missed update, it sends just those updates, applied like replicated ones, followed by a final empty chunk
+     * with session ID 0. If they do not bring the clock up to date, a full transfer is requested instead.
+     *
+     * @param peer the donor
      */
-    private void recoverState() {
+    private void recoverState(PeerInfo peer) {
         if (peerServers.isEmpty()) {
-            System.out.println("No peers available for state recovery.");
+            Log.info("No peers available for state recovery.");
             return;
         }
-        // Pick the first peer.
-        PeerInfo peer = seedPeer;
-        try {
-            int peerStatePort = peer.getStateTransferPort();
-            try (Socket socket = new Socket(peer.getHost(), peerStatePort);
-                 ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                 ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+        long started = System.nanoTime();
+        long sessionId = 0;
+        long next = 0;
+        VectorClock donorClock = null;
+        boolean tryDelta = true;
+        for (int attempt = 0; attempt <= ServerConfig.STATE_TRANSFER_RETRIES; attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(Math.min(10_000L, 500L << Math.min(attempt, 5)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                Log.info("Resuming state transfer from " + peer.getHost() + " at entry " + next);
+            }
+            try (Socket socket = new Socket(peer.getHost(), peer.getStateTransferPort());
+                 MessageWriter out = new MessageWriter(socket.getOutputStream());
+                 MessageReader in = new MessageReader(socket.getInputStream(), stateTransferBytes)) {
 
-                // Send state request.
-                out.writeObject(new StateRequestMessage());
+                // Send state request (session 0 asks for a new transfer).
+                VectorClock known = (sessionId == 0 && tryDelta) ? getLocalClock() : null;
+                out.writeMessage(new StateRequestMessage(sessionId, next, known));
                 out.flush();
 
-                Object responseObj = in.readObject();
-                if (responseObj instanceof StateResponseMessage) {
-                    StateResponseMessage response = (StateResponseMessage) responseObj;
-                    // Recover the key-value store and vector clock.
-                    Map<String, ValueEntry> snapshot = response.getStoreSnapshot();
-                    for (Map.Entry<String, ValueEntry> entry : snapshot.entrySet()) {
-                        keyValueStore.write(entry.getKey(), entry.getValue().getValue(), entry.getValue().getVectorClock());
+                VectorClock target = known;
+                int missed = 0;
+                while (true) {
+                    Object msg = in.readMessage();
+                    if (msg instanceof ReplicationBatch) {
+                        // Delta sync: the updates missed since our clock.
+                        List<UpdateMessage> updates = ((ReplicationBatch) msg).getUpdates();
+                        for (UpdateMessage update : updates) {
+                            target.merge(update.getVectorClock());
+                        }
+                        handleRemoteBatch(updates);
+                        missed += updates.size();
+                        continue;
+                    }
+                    if (!(msg instanceof StateChunkMessage)) {
+                        throw new IOException("Unexpected state transfer message: " + msg);
+                    }
+                    StateChunkMessage chunk = (StateChunkMessage) msg;
+                    if (chunk.getSessionId() == 0 && chunk.isLast() && known != null) {
+                        if (!getLocalClock().dominates(target)) {
+                            tryDelta = false;
+                            throw new IOException("delta sync left the clock behind " + target + ", requesting the full state");
+                        }
+                        metrics.histogram("state_transfer_duration{kind=\"delta\"}").recordSince(started);
+                        Log.info("State recovered from peer " + peer.getHost() + ": " + missed + " missed updates");
+                        return;
+                    }
+                    if (chunk.getSessionId() != sessionId) {
+                        // New (or expired and restarted) session on the donor.
+                        sessionId = chunk.getSessionId();
+                        next = chunk.getFirstIndex();
+                        donorClock = null;
+                    }
+                    if (chunk.getVectorClock() != null) {
+                        donorClock = chunk.getVectorClock();
+                    }
+                    if (chunk.getFirstIndex() != next) {
+                        throw new IOException("State chunk out of order: expected " + next + ", got " + chunk.getFirstIndex());
+                    }
+                    applyReceivedEntries(chunk.getKeys(), chunk.getEntries());
+                    next += chunk.getKeys().size();
+                    out.writeMessage(new StateAckMessage(sessionId, next));
+                    out.flush();
+                    if (chunk.isLast()) {
+                        if (donorClock == null) {
+                            throw new IOException("State transfer ended without the donor clock");
+                        }
+                        finishStateTransfer(donorClock);
+                        metrics.histogram("state_transfer_duration{kind=\"full\"}").recordSince(started);
+                        Log.info("State recovered from peer " + peer.getHost() + ": "
+                                + chunk.getTotalEntries() + " entries");
+                        return;
                     }
-                    localClock.merge(response.getVectorClock());
-                    System.out.println("State recovered from peer " + peer.getHost());
                 }
+            } catch (Exception e) {
+                Log.warn("Failed to recover state from peer " + peer.getHost() + ": " + e.getMessage());
             }
-        } catch (Exception e) {
-            System.err.println("Failed to recover state from peer " + peer.getHost() + ": " + e.getMessage());
         }
+        Log.error("State transfer from " + peer.getHost() + " abandoned after "
+                + ServerConfig.STATE_TRANSFER_RETRIES + " retries");
+    }
+
+    /**
+     * Logs and applies entries received through a state transfer or an anti-entropy repair. Each entry is
+     * kept only if it is newer than the local version of its key, so chunks can be applied while the server
+     * is already replicating. Entries of keys this server does not replicate are ignored.
+     *
+     * @param keys    the received keys
+     * @param entries the received entries, one per key
+     * @return the number of entries stored
+     */
+    public int applyReceivedEntries(List<String> keys, List<ValueEntry> entries) {
+        if (hashRing.isPartial()) {
+            List<String> ownKeys = new ArrayList<>(keys.size());
+            List<ValueEntry> ownEntries = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                if (replicates(keys.get(i))) {
+                    ownKeys.add(keys.get(i));
+                    ownEntries.add(entries.get(i));
+                }
+            }
+            keys = ownKeys;
+            entries = ownEntries;
+        }
+        long seq;
+        int stored = 0;
+        persistLock.readLock().lock();
+        try {
+            seq = (wal != null) ? wal.appendEntries(keys, entries) : 0;
+            for (int i = 0; i < keys.size(); i++) {
+                if (keyValueStore.mergeEntry(keys.get(i), entries.get(i))) {
+                    stored++;
+                }
+            }
+        } finally {
+            persistLock.readLock().unlock();
+        }
+        commitLog(seq);
+        return stored;
+    }
+
+    /**
+     * Completes a state transfer: logs and merges the donor's clock, then applies the buffered updates it made ready.
+     *
+     * @param clock the donor's clock at the start of the transfer
+     */
+    private void finishStateTransfer(VectorClock clock) {
+        clock = clockRetirement.strip(clock);
+        long seq;
+        persistLock.readLock().lock();
+        try {
+            seq = (wal != null) ? wal.appendClock(clock) : 0;
+            synchronized (clockLock) {
+                localClock.merge(clock);
+                // The clock jumped without going through the history: restart its coverage.
+                recentUpdates.reset(localClock);
+                if (clockWaiters > 0) {
+                    clockLock.notifyAll();
+                }
+            }
+        } finally {
+            persistLock.readLock().unlock();
+        }
+        commitLog(seq);
+        checkPendingUpdates();
+    }
+
+    /**
+     * Returns the updates a rejoining server is missing, if they are still in the recent update history
+     * and fewer than half the keys of the store (otherwise a full transfer is cheaper: every update is
+     * applied through the causal delivery path, while an entry is merged directly).
+     *
+     * @param known the clock of the rejoining server
+     * @return the missing updates in causal order, or {@code null} if a full state transfer is needed
+     */
+    public List<UpdateMessage> collectDelta(VectorClock known) {
+        List<UpdateMessage> delta;
+        synchronized (clockLock) {
+            delta = recentUpdates.since(known, localClock);
+        }
+        if (delta != null && delta.size() > (keyValueStore.getBaseCount() + keyValueStore.getLiveCount()) / 2) {
+            return null;
+        }
+        forceLog();
+        return delta;
+    }
+
+    /**
+     * Starts a state transfer towards a joining server: takes a fixed view of the store to be streamed in chunks.
+     * <p>
+     * The clock is read before the entries, so the view holds at least everything the clock claims.
+     * The view is taken under {@code checkpointLock} so that it never falls between a new base snapshot
+     * and the release of the in-memory entries it covers.
+     *
+     * @return the new session
+     */
+    public StateTransferSession openStateSession() {
+        long now = System.currentTimeMillis();
+        stateSessions.values().removeIf(s -> now - s.getLastAccess() > ServerConfig.STATE_SESSION_TTL_MS);
+        VectorClock clock = getLocalClock();
+        MappedSnapshot base;
+        List<Map.Entry<String, ValueEntry>> live;
+        synchronized (checkpointLock) {
+            base = keyValueStore.getBase();
+            live = keyValueStore.copyLiveEntries();
+        }
+        long id;
+        do {
+            id = new Random().nextLong();
+        } while (id == 0 || stateSessions.containsKey(id));
+        StateTransferSession session = new StateTransferSession(id, base, live, clock);
+        stateSessions.put(id, session);
+        forceLog();
+        return session;
+    }
+
+    /**
+     * Returns an open state transfer session.
+     *
+     * @param id the session ID
+     * @return the session, or {@code null} if unknown or expired
+     */
+    public StateTransferSession getStateSession(long id) {
+        StateTransferSession session = stateSessions.get(id);
+        if (session != null && System.currentTimeMillis() - session.getLastAccess() > ServerConfig.STATE_SESSION_TTL_MS) {
+            stateSessions.remove(id);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Discards a completed state transfer session.
+     *
+     * @param id the session ID
+     */
+    public void closeStateSession(long id) {
+        stateSessions.remove(id);
     }
 
 
@@ -297,112 +935,355 @@ public class Server {
     /**
      * Handles a local write operation requested by a client.
      * Increments the local vector clock, updates the store, and replicates the update.
+     * <p>
+     * Only the clock stamping is serialized: the store write happens under the same short critical section,
+     * so that it follows clock order, and so does the hand-off to the replication channels, deferred until
+     * the log record is durable ({@link #replicateWhenDurable}).
+     * It waits for the remote updates being applied, whose values may already be visible, to be merged
+     * into the clock ({@code visibilityLock}).
+     * The hand-off never blocks: {@link PeerOutbox#offer(UpdateMessage)} leaves the disk I/O to the channel threads.
      *
      * @param key   the key to write
      * @param value the value to associate
      */
-    public synchronized void handleLocalWrite(String key, String value) {
-        // Increment the local vector clock.
-        localClock.increment(serverId);
-        // Write locally.
-        keyValueStore.write(key, value, localClock);
-        System.out.println("Local write applied on key: " + key + " value: " + value + " VC: " + localClock);
-        // Create an UpdateMessage to replicate.
-        UpdateMessage update = new UpdateMessage(key, value, serverId, localClock);
-        // Replicate update.
-        replicateUpdate(update);
+    public void handleLocalWrite(String key, String value) {
+        long start = System.nanoTime();
+        long counter;
+        long seq;
+        persistLock.readLock().lock();
+        visibilityLock.writeLock().lock();
+        try {
+            synchronized (clockLock) {
+                // Increment the local vector clock: the new counter is the dot of the write.
+                localClock.increment(serverId);
+                counter = localClock.get(serverId);
+                long timestamp = hybridClock.now();
+                // Create an UpdateMessage (it takes its own copy of the clock) and log it.
+                UpdateMessage update = new UpdateMessage(key, value, serverId, localClock, timestamp);
+                update.setCreatedNanos(start);
+                seq = logUpdate(update);
+                recentUpdates.record(update);
+                // Write locally.
+                keyValueStore.writeLocal(key, value, serverId, counter, timestamp,
+                        clockRetirement.withRetired(localClock));
+                // Replicate it once the record is durable.
+                replicateWhenDurable(seq, update);
+            }
+        } finally {
+            visibilityLock.writeLock().unlock();
+            persistLock.readLock().unlock();
+        }
+        commitLog(seq);
+        writeLatency.recordSince(start);
+        if (WRITE_LOG.sample()) {
+            Log.debug("Local write applied on key: " + key + " value: " + value + " dot: " + serverId + "," + counter);
+        }
     }
 
     /**
-     * Sends the update message to all known peers.
-     * If a peer is unreachable, the message is queued for retry.
+     * Handles a multi-key write (MWRITE) requested by a client.
+     * All the keys share one increment of the local vector clock and are replicated as a single update.
      *
-     * @param update the update to replicate
+     * @param keys   the keys to write
+     * @param values the values to associate, one per key
      */
-    public void replicateUpdate(UpdateMessage update) {
-        for (PeerInfo peer : peerServers) {
-            new Thread(() -> {
-                try (Socket socket = new Socket(peer.getHost(), peer.getReplicationPort());
-                     ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-                    out.writeObject(update);
-                    out.flush();
-                } catch (Exception e) {
-                    System.err.println("Replication to " + peer.getHost() + ":" + peer.getReplicationPort() + " failed: " + e.getMessage());
-                    pendingReplications.computeIfAbsent(peer, k -> new ArrayList<>()).add(update);
+    public void handleLocalMultiWrite(List<String> keys, List<String> values) {
+        long start = System.nanoTime();
+        long counter;
+        long seq;
+        persistLock.readLock().lock();
+        visibilityLock.writeLock().lock();
+        try {
+            synchronized (clockLock) {
+                localClock.increment(serverId);
+                counter = localClock.get(serverId);
+                long timestamp = hybridClock.now();
+                UpdateMessage update = new UpdateMessage(keys, values, serverId, localClock, timestamp);
+                update.setCreatedNanos(start);
+                seq = logUpdate(update);
+                recentUpdates.record(update);
+                VectorClock dependencies = clockRetirement.withRetired(localClock);
+                for (int i = 0; i < keys.size(); i++) {
+                    keyValueStore.writeLocal(keys.get(i), values.get(i), serverId, counter, timestamp, dependencies);
                 }
-            }).start();
+                replicateWhenDurable(seq, update);
+            }
+        } finally {
+            visibilityLock.writeLock().unlock();
+            persistLock.readLock().unlock();
+        }
+        commitLog(seq);
+        writeLatency.recordSince(start);
+        if (WRITE_LOG.sample()) {
+            Log.debug("Local write applied on keys: " + keys + " dot: " + serverId + "," + counter);
         }
     }
 
     /**
-     * Applies an update received from another server if the vector clock allows it.
-     * Otherwise, queues it in {@code pendingUpdates} until it can be applied.
+     * Replicates a local update once its log record is on disk, after the updates logged before it.
+     * A peer therefore never holds a write that a crash could remove from the log: the restarted server
+     * would write again with the same counter, and its peers would drop the new write as already applied.
      *
-     * @param update the remote update to apply
+     * @param seq    the log sequence number of the update
+     * @param update the update to replicate
+     */
+    private void replicateWhenDurable(long seq, UpdateMessage update) {
+        if (wal != null) {
+            wal.whenDurable(seq, () -> replicateUpdate(update));
+        } else {
+            replicateUpdate(update);
+        }
+    }
+
+    /**
+     * Forces the log to disk before local state leaves the server other than through the replication
+     * channels (state transfer, delta sync, anti-entropy), for the same reason as {@link #replicateWhenDurable}.
+     */
+    public void forceLog() {
+        if (wal != null) {
+            wal.sync();
+        }
+    }
+
+    /**
+     * Runs an action once every record logged so far is durable, e.g. to acknowledge the replicated updates
+     * just applied ({@link ReplicationListener}). The action must not block.
+     *
+     * @param action the action
      */
-    public synchronized void handleRemoteUpdate(UpdateMessage update) {
+    public void whenLogDurable(Runnable action) {
+        if (wal != null) {
+            wal.whenDurable(wal.getAppendedSequence(), action);
+        } else {
+            action.run();
+        }
+    }
 
-    /* 1) Se l’update è obsoleto (tutti i suoi timestamp ≤ al mio),
-          lo scarto immediatamente.                                   */
-        if (localClock.dominates(update.getVectorClock())) {
-            System.out.println("Ignored obsolete update for key "
-                    + update.getKey() + " VC=" + update.getVectorClock());
+    /**
+     * Sends the update message to all known peers through their persistent replication channel.
+     * If a peer is unreachable, the channel queues the message for retry.
+     * <p>
+     * When keys are partitioned, each peer receives the update restricted to the keys it replicates
+     * ({@link UpdateMessage#restrictTo}), possibly just the clock.
+     *
+     * @param update the update to replicate
+     */
+    public void replicateUpdate(UpdateMessage update) {
+        if (!hashRing.isPartial()) {
+            for (PeerInfo peer : peerServers) {
+                getReplicationChannel(peer).send(update);
+            }
             return;
         }
+        List<String> keys = update.getKeys();
+        List<List<String>> replicas = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            replicas.add(hashRing.replicasOf(key));
+        }
+        for (PeerInfo peer : peerServers) {
+            String id = peer.getServerId();
+            getReplicationChannel(peer).send(update.restrictTo(i -> replicas.get(i).contains(id)));
+        }
+    }
 
-    /* 2) Caso normale: verifico se posso applicarlo ora,
-          altrimenti lo metto in pending.                              */
-        if (localClock.canApply(update.getOriginServerId(),
-                update.getVectorClock())) {
+    /**
+     * Returns the persistent replication channel towards the given peer,
+     * opening (and starting) it on first use.
+     *
+     * @param peer the destination peer
+     * @return the channel bound to the peer
+     */
+    public ReplicationChannel getReplicationChannel(PeerInfo peer) {
+        return replicationChannels.computeIfAbsent(peer, p -> {
+            ReplicationChannel channel = new ReplicationChannel(this, p);
+            channel.start();
+            return channel;
+        });
+    }
 
-            keyValueStore.write(update.getKey(),
-                    update.getValue(),
-                    update.getVectorClock());
-            localClock.merge(update.getVectorClock());
+    /**
+     * Returns the directory holding the outbox segments of a peer.
+     *
+     * @param peer the destination peer
+     * @return the outbox directory
+     */
+    public Path getOutboxDirectory(PeerInfo peer) {
+        return Paths.get(ServerConfig.DATA_DIR, serverId, "outbox", peer.getServerId());
+    }
 
-            System.out.println(localClock);
-            System.out.println("Remote update applied for key: "
-                    + update.getKey() + " value: " + update.getValue()
-                    + " VC: " + update.getVectorClock());
+    /**
+     * Queues a message that could not be delivered to a peer, so that
+     * {@link ReplicationRetryThread} can send it again later.
+     *
+     * @param peer the destination peer
+     * @param msg  the undelivered message
+     */
+    public void queueForRetry(PeerInfo peer, ReplicableMessage msg) {
+        pendingReplications.computeIfAbsent(peer, k -> Collections.synchronizedList(new ArrayList<>())).add(msg);
+    }
 
-            checkPendingUpdates();
+    /**
+     * Applies an update received from another server if the local vector clock allows it, i.e. every
+     * write it depends on has been applied here. Otherwise, queues it in {@code pendingUpdates} until it can be applied.
+     *
+     * @param update the remote update to apply
+     */
+    public void handleRemoteUpdate(UpdateMessage update) {
+        applyAndRelease(update);
+    }
 
-        } else {
-            pendingUpdates.add(update);
-            System.out.println("Remote update buffered for key: "
-                    + update.getKey());
+    /**
+     * Applies a replication frame received from another server.
+     * <p>
+     * Updates are applied in causal order: they are sorted by origin server and origin sequence
+     * (retried updates may have been framed after newer ones), then each one is applied or buffered.
+     *
+     * @param updates the updates of the frame
+     */
+    public void handleRemoteBatch(List<UpdateMessage> updates) {
+        List<UpdateMessage> ordered = new ArrayList<>(updates);
+        ordered.sort(Comparator.comparing(UpdateMessage::getOriginServerId)
+                .thenComparingLong(UpdateMessage::getOriginSequence));
+        for (UpdateMessage update : ordered) {
+            applyAndRelease(update);
         }
     }
 
+    /**
+     * Applies a remote update (or buffers it) and then applies, each in its own lane,
+     * every buffered update that it transitively unblocks.
+     *
+     * @param update the remote update
+     */
+    private void applyAndRelease(UpdateMessage update) {
+        update = clockRetirement.strip(update);
+        if (update == null) {
+            obsoleteUpdates.incrementAndGet();
+            return;
+        }
+        applyReleased(applyInLane(update, false));
+    }
 
     /**
-     * Checks the pending updates list and applies any update whose vector clock now allows it.
+     * Applies updates released by {@code pendingUpdates}, together with those they release in turn.
+     *
+     * @param released the released updates
      */
+    private void applyReleased(List<UpdateMessage> released) {
+        Deque<UpdateMessage> work = new ArrayDeque<>(released);
+        while (!work.isEmpty()) {
+            work.addAll(applyInLane(work.poll(), true));
+        }
+    }
+
     /**
-     * Tenta di applicare tutti gli update pendenti finché
-     * non ci sono più progressi in un intero giro.
+     * Applies a remote update if it is causally ready, discards it if it is obsolete,
+     * or buffers it in {@code pendingUpdates}.
+     * <p>
+     * The origin's lane is held for the whole call, so that no other update of the same origin
+     * can be applied in between; {@code clockLock} is only held to check and to advance the clock,
+     * and the store is written outside of it. The store writes and the clock merge are atomic for
+     * the local writes ({@code visibilityLock}).
+     *
+     * @param update   the remote update
+     * @param buffered whether the update comes from {@code pendingUpdates}
+     * @return the buffered updates released by this application, possibly empty
      */
-    public synchronized void checkPendingUpdates() {
-        boolean progress;
-        do {
-            progress = false;
-            Iterator<UpdateMessage> it = pendingUpdates.iterator();
-            while (it.hasNext()) {
-                UpdateMessage pending = it.next();
-                if (localClock.canApply(pending.getOriginServerId(),
-                        pending.getVectorClock())) {
-
-                    keyValueStore.write(pending.getKey(),
-                            pending.getValue(),
-                            pending.getVectorClock());
-                    localClock.merge(pending.getVectorClock());
-                    it.remove();
-                    System.out.println("Pending update applied for key: "
-                            + pending.getKey());
-                    progress = true;
+    private List<UpdateMessage> applyInLane(UpdateMessage update, boolean buffered) {
+        int origin = ServerIndex.indexOf(update.getOriginServerId());
+        VectorClock updateClock = update.getVectorClock();
+        synchronized (applyLanes.computeIfAbsent(origin, k -> new Object())) {
+            synchronized (clockLock) {
+
+            /* 1) Se l’update è obsoleto (tutti i suoi timestamp ≤ al mio),
+                  lo scarto immediatamente.                                   */
+                if (localClock.dominates(updateClock)
+                        || localClock.getAt(origin) >= update.getOriginSequence()) {
+                    obsoleteUpdates.incrementAndGet();
+                    if (OBSOLETE_LOG.sample()) {
+                        Log.debug("Ignored obsolete update for key "
+                                + update.getKeys() + " VC=" + updateClock);
+                    }
+                    return Collections.emptyList();
+                }
+
+            /* 2) Caso normale: verifico se posso applicarlo ora,
+                  altrimenti lo metto in pending.                              */
+                if (!localClock.canApply(origin, updateClock, update.getFirstSequence())) {
+                    pendingUpdates.add(update, localClock);
+                    bufferedUpdates.incrementAndGet();
+                    if (BUFFER_LOG.sample()) {
+                        Log.debug("Remote update buffered for key: "
+                                + update.getKeys());
+                    }
+                    return Collections.emptyList();
+                }
+                // A range overlapping updates already applied only writes the keys they did not.
+                update = update.withoutAppliedKeys(localClock.getAt(origin));
+            }
+            if (hashRing.isPartial()) {
+                // Keys replicated elsewhere (delta sync from a donor, ring views briefly apart) only advance the clock.
+                List<String> received = update.getKeys();
+                update = update.restrictTo(i -> replicates(received.get(i)));
+            }
+
+            long start = System.nanoTime();
+            long seq;
+            List<UpdateMessage> released;
+            persistLock.readLock().lock();
+            visibilityLock.readLock().lock();
+            try {
+                seq = logUpdate(update);
+                // Each key is resolved against its stored version: the update supersedes the versions its clock includes.
+                VectorClock dependencies = clockRetirement.withRetired(updateClock);
+                List<String> keys = update.getKeys();
+                List<String> values = update.getValues();
+                for (int i = 0; i < keys.size(); i++) {
+                    long timestamp = update.getTimestamp(i);
+                    hybridClock.observe(timestamp);
+                    keyValueStore.apply(keys.get(i), values.get(i), update.getOriginServerId(), update.getSequence(i),
+                            timestamp, dependencies);
+                }
+
+                synchronized (clockLock) {
+                    localClock.merge(updateClock);
+                    recentUpdates.record(update);
+                    released = pendingUpdates.release(localClock, origin);
+                    if (clockWaiters > 0) {
+                        clockLock.notifyAll();
+                    }
+                }
+            } finally {
+                visibilityLock.readLock().unlock();
+                persistLock.readLock().unlock();
+            }
+            commitLog(seq);
+            applyLatency.recordSince(start);
+            appliedUpdates.incrementAndGet();
+            if (APPLY_LOG.sample()) {
+                if (buffered) {
+                    Log.debug("Pending update applied for key: "
+                            + update.getKeys());
+                } else {
+                    Log.debug("Remote update applied for key: "
+                            + update.getKeys() + " value: " + update.getValues()
+                            + " VC: " + updateClock);
                 }
             }
-        } while (progress);
+            return released;
+        }
+    }
+
+    /**
+     * Applies every buffered update made ready by the current local clock.
+     * Only needed after the clock has advanced outside the normal apply path (e.g. a state transfer).
+     */
+    public void checkPendingUpdates() {
+        List<UpdateMessage> released;
+        synchronized (clockLock) {
+            released = pendingUpdates.releaseAll(localClock);
+        }
+        applyReleased(released);
     }
 
     /**
@@ -411,28 +1292,290 @@ public class Server {
      * @param key the key to read
      * @return the associated value, or {@code null} if not found
      */
-    public synchronized String handleLocalRead(String key) {
+    public String handleLocalRead(String key) {
         return keyValueStore.read(key);
     }
 
+    /**
+     * Handles a read of every concurrent value of a key (READALL) requested by a client.
+     *
+     * @param key the key to read
+     * @return the values of the concurrent writes, latest first (a single value without conflict),
+     *         or {@code null} if not found
+     */
+    public List<String> handleLocalReadSiblings(String key) {
+        return keyValueStore.readSiblings(key);
+    }
+
+    /**
+     * Handles a multi-key read (MREAD) requested by a client.
+     *
+     * @param keys the keys to read
+     * @return the values, in the same order as the keys; {@code null} for missing keys
+     */
+    public List<String> handleLocalMultiRead(List<String> keys) {
+        List<String> values = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            values.add(keyValueStore.read(key));
+        }
+        return values;
+    }
+
     // === Getters ===
 
     public String getServerId() {
         return serverId;
     }
 
+    /**
+     * Returns the port on which this server serves clients.
+     *
+     * @return the client port
+     */
+    public int getClientPort() {
+        return clientPort;
+    }
+
+    /**
+     * Returns the assignment of the keys to the servers.
+     *
+     * @return the hash ring
+     */
+    public HashRing getHashRing() {
+        return hashRing;
+    }
+
+    /**
+     * Tells whether this server replicates a key.
+     *
+     * @param key the key
+     * @return {@code true} if the hash ring assigns the key to this server
+     */
+    public boolean replicates(String key) {
+        return hashRing.isReplica(key, serverId);
+    }
+
+    /**
+     * Returns a known peer by server ID.
+     *
+     * @param id the server ID
+     * @return the peer, or {@code null} if unknown
+     */
+    public PeerInfo findPeer(String id) {
+        for (PeerInfo peer : peerServers) {
+            if (peer.getServerId().equals(id)) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of the local vector clock.
+     *
+     * @return a snapshot of the clock, safe to use outside the server monitor
+     */
     public VectorClock getLocalClock() {
-        return localClock;
+        synchronized (clockLock) {
+            return new VectorClock(localClock);
+        }
+    }
+
+    /**
+     * Returns the local clock entry of a server: the last of its updates applied here, with every earlier one.
+     *
+     * @param originId the server ID
+     * @return the applied origin sequence, 0 if none
+     */
+    public long getAppliedSequence(String originId) {
+        synchronized (clockLock) {
+            return localClock.get(originId);
+        }
+    }
+
+    /**
+     * Waits until the local clock covers a causal context, e.g. the clock of the replica that served a
+     * forwarded write ({@link RequestForwarder}), so that the next writes of the client depend on it.
+     * The entries of retired servers are ignored.
+     *
+     * @param context   the clock to cover
+     * @param timeoutMs the maximum time to wait, in milliseconds
+     * @return {@code true} if the local clock covers the context, {@code false} on timeout
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean awaitClock(VectorClock context, long timeoutMs) throws InterruptedException {
+        VectorClock required = clockRetirement.strip(context);
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        synchronized (clockLock) {
+            clockWaiters++;
+            try {
+                while (!localClock.dominates(required)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    clockLock.wait(Math.max(1, remaining / 1_000_000));
+                }
+                return true;
+            } finally {
+                clockWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Tells whether a connection comes from a known peer, by address: only peers may send requests
+     * that skip the routing ({@link RequestForwarder#FORWARDED}).
+     *
+     * @param address the remote address of the connection
+     * @return {@code true} if a known peer has that address
+     */
+    public boolean isPeerAddress(InetAddress address) {
+        for (PeerInfo peer : peerServers) {
+            try {
+                InetAddress resolved = InetAddress.getByName(peer.getHost());
+                if (resolved.equals(address) || (resolved.isLoopbackAddress() && address.isLoopbackAddress())) {
+                    return true;
+                }
+            } catch (UnknownHostException e) {
+                // Not this peer.
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Membership growth hook: adds a newly discovered server to the local vector clock. A server whose
+     * entry was retired ({@link ClockRetirement}) gets it back at its final counter.
+     *
+     * @param serverId the ID of the new server
+     */
+    public void registerServer(String serverId) {
+        long restored = clockRetirement.restore(serverId);
+        synchronized (clockLock) {
+            localClock.addServer(serverId);
+            if (restored > localClock.get(serverId)) {
+                localClock.set(serverId, restored);
+            }
+        }
+        if (restored > 0) {
+            checkPendingUpdates();
+        }
+    }
+
+    /**
+     * Drops the entries retired by {@link ClockRetirement} from the local clock and the buffered updates,
+     * then takes a snapshot in the background, so that replaying the log does not bring them back.
+     */
+    void retireClockEntries() {
+        synchronized (clockLock) {
+            clockRetirement.stripInPlace(localClock);
+            pendingUpdates.replaceAll(clockRetirement::strip);
+        }
+        checkPendingUpdates();
+        try {
+            outboundExecutor.execute(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    Log.warn("Snapshot after clock retirement failed: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.warn("No snapshot after clock retirement: " + e.getMessage());
+        }
     }
 
     public synchronized List<PeerInfo> getPeerServers() {
         return new ArrayList<>(peerServers);
     }
 
+    /**
+     * Returns the local store.
+     *
+     * @return the key-value store
+     */
+    public KeyValueStore getKeyValueStore() {
+        return keyValueStore;
+    }
+
+    /**
+     * Returns the retirement of the clock entries of departed servers.
+     *
+     * @return the clock retirement
+     */
+    public ClockRetirement getClockRetirement() {
+        return clockRetirement;
+    }
+
+    /**
+     * Returns the gossip membership of this server.
+     *
+     * @return the membership
+     */
+    public Membership getMembership() {
+        return membership;
+    }
+
+    /**
+     * Returns the anti-entropy task of this server.
+     *
+     * @return the anti-entropy task
+     */
+    public AntiEntropy getAntiEntropy() {
+        return antiEntropy;
+    }
+
     public Map<String, ValueEntry> getKeyValueStoreSnapshot() {
         return keyValueStore.getStoreSnapshot();
     }
 
+    /**
+     * Returns the metrics registry of this server.
+     *
+     * @return the metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the buffer of remote updates waiting for causal readiness,
+     * exposing its depth and wait-time metrics.
+     *
+     * @return the causal delivery buffer
+     */
+    public CausalDeliveryBuffer getPendingUpdates() {
+        return pendingUpdates;
+    }
+
+    /**
+     * Returns the executor running the handlers of accepted peer connections.
+     *
+     * @return the connection executor
+     */
+    public TaskExecutor getConnectionExecutor() {
+        return connectionExecutor;
+    }
+
+    /**
+     * Returns the executor running one-shot outbound sends.
+     *
+     * @return the outbound executor
+     */
+    public TaskExecutor getOutboundExecutor() {
+        return outboundExecutor;
+    }
+
+    /**
+     * Returns the write-ahead log of the server.
+     *
+     * @return the log, or {@code null} if disabled or the server is not started
+     */
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+
     public Map<PeerInfo, List<ReplicableMessage>> getPendingReplications() {
         return pendingReplications;
     }
@@ -0,0 +1,220 @@
+package DS_datastore;
+
+/**
+ * Tunable parameters of a server node.
+ * <p>
+ * Every value can be overridden with a JVM system property, e.g.:
+ * <pre>
+ *     java -Dds.replication.flushWindowMs=5 DS_datastore.ServerMain server1
+ * </pre>
+ * Values are read once, when the class is loaded.
+ */
+public final class ServerConfig {
+
+    /** Maximum number of updates carried by a single replication frame ({@code ds.replication.batchSize}). */
+    public static final int REPLICATION_BATCH_SIZE = Integer.getInteger("ds.replication.batchSize", 256);
+
+    /** Approximate maximum payload of a single replication frame, in bytes ({@code ds.replication.batchBytes}). */
+    public static final int REPLICATION_BATCH_BYTES = Integer.getInteger("ds.replication.batchBytes", 64 * 1024);
+
+    /**
+     * Time a replication channel waits for more updates before flushing a partial frame,
+     * in milliseconds ({@code ds.replication.flushWindowMs}). Zero sends whatever is queued immediately.
+     */
+    public static final long REPLICATION_FLUSH_WINDOW_MS = Long.getLong("ds.replication.flushWindowMs", 2);
+
+    /** Maximum number of client connections served at the same time ({@code ds.client.maxConnections}). */
+    public static final int CLIENT_MAX_CONNECTIONS = Integer.getInteger("ds.client.maxConnections", 1024);
+
+    /**
+     * Bytes of responses a client connection may have waiting to be written before the server
+     * stops executing its requests and reading from it ({@code ds.client.maxPendingOutput}).
+     */
+    public static final int CLIENT_MAX_PENDING_OUTPUT = Integer.getInteger("ds.client.maxPendingOutput", 1024 * 1024);
+
+    /**
+     * Requests a client connection may have waiting for their response, being executed or forwarded to
+     * another server, before the server stops reading from it ({@code ds.client.maxPendingRequests}).
+     */
+    public static final int CLIENT_MAX_PENDING_REQUESTS = Integer.getInteger("ds.client.maxPendingRequests", 256);
+
+    /** Maximum length of a client request line, in bytes ({@code ds.client.maxLineLength}). */
+    public static final int CLIENT_MAX_LINE_LENGTH = Integer.getInteger("ds.client.maxLineLength", 64 * 1024);
+
+    /**
+     * Threading model of the server executors ({@code ds.executor.mode}): {@code auto} (virtual threads
+     * when available), {@code virtual} or {@code platform}. See {@link TaskExecutor}.
+     */
+    public static final String EXECUTOR_MODE = System.getProperty("ds.executor.mode", "auto");
+
+    /** Maximum number of threads of each platform executor pool ({@code ds.executor.maxThreads}). */
+    public static final int EXECUTOR_MAX_THREADS = Integer.getInteger("ds.executor.maxThreads", 256);
+
+    /** Maximum number of tasks waiting in each platform executor pool ({@code ds.executor.queueSize}). */
+    public static final int EXECUTOR_QUEUE_SIZE = Integer.getInteger("ds.executor.queueSize", 10000);
+
+    /** Directory holding the persistent files of the servers, one subdirectory per server ({@code ds.dataDir}). */
+    public static final String DATA_DIR = System.getProperty("ds.dataDir", "data");
+
+    /** Whether applied updates are recorded in the write-ahead log ({@code ds.wal.enabled}). */
+    public static final boolean WAL_ENABLED = Boolean.parseBoolean(System.getProperty("ds.wal.enabled", "true"));
+
+    /**
+     * Fsync policy of the write-ahead log ({@code ds.wal.fsync}): {@code always}, {@code group} or {@code os}.
+     * See {@link WriteAheadLog}.
+     */
+    public static final WriteAheadLog.FsyncPolicy WAL_FSYNC =
+            WriteAheadLog.FsyncPolicy.valueOf(System.getProperty("ds.wal.fsync", "group").toUpperCase());
+
+    /** Interval between two group commits of the write-ahead log, in milliseconds ({@code ds.wal.groupCommitMs}). */
+    public static final long WAL_GROUP_COMMIT_MS = Long.getLong("ds.wal.groupCommitMs", 5);
+
+    /** Whether a background thread periodically snapshots the store and truncates the WAL ({@code ds.snapshot.enabled}). */
+    public static final boolean SNAPSHOT_ENABLED = Boolean.parseBoolean(System.getProperty("ds.snapshot.enabled", "true"));
+
+    /** Maximum time between two snapshots while writes keep arriving, in milliseconds ({@code ds.snapshot.intervalMs}). */
+    public static final long SNAPSHOT_INTERVAL_MS = Long.getLong("ds.snapshot.intervalMs", 60_000);
+
+    /** WAL size that triggers a snapshot before the interval ends, in bytes ({@code ds.snapshot.walBytes}). */
+    public static final long SNAPSHOT_WAL_BYTES = Long.getLong("ds.snapshot.walBytes", 64L * 1024 * 1024);
+
+    /** Maximum number of entries of a state transfer chunk ({@code ds.state.chunkEntries}). */
+    public static final int STATE_CHUNK_ENTRIES = Integer.getInteger("ds.state.chunkEntries", 1024);
+
+    /** Approximate maximum payload of a state transfer chunk, in bytes ({@code ds.state.chunkBytes}). */
+    public static final int STATE_CHUNK_BYTES = Integer.getInteger("ds.state.chunkBytes", 1024 * 1024);
+
+    /** Maximum number of state transfer chunks sent and not yet acknowledged ({@code ds.state.window}). */
+    public static final int STATE_TRANSFER_WINDOW = Integer.getInteger("ds.state.window", 4);
+
+    /** Time an interrupted state transfer can still be resumed, in milliseconds ({@code ds.state.sessionTtlMs}). */
+    public static final long STATE_SESSION_TTL_MS = Long.getLong("ds.state.sessionTtlMs", 5 * 60_000);
+
+    /** Number of reconnections a joining server attempts to complete a state transfer ({@code ds.state.retries}). */
+    public static final int STATE_TRANSFER_RETRIES = Integer.getInteger("ds.state.retries", 5);
+
+    /** Number of recent updates kept to bring rejoining servers up to date ({@code ds.delta.historyUpdates}, 0 disables). */
+    public static final int DELTA_HISTORY_UPDATES = Integer.getInteger("ds.delta.historyUpdates", 100_000);
+
+    /** Maximum estimated size of the recent update history, in bytes ({@code ds.delta.historyBytes}). */
+    public static final long DELTA_HISTORY_BYTES = Long.getLong("ds.delta.historyBytes", 32L * 1024 * 1024);
+
+    /** Whether replicas periodically compare their Merkle trees and repair differences ({@code ds.antiEntropy.enabled}). */
+    public static final boolean ANTI_ENTROPY_ENABLED =
+            Boolean.parseBoolean(System.getProperty("ds.antiEntropy.enabled", "true"));
+
+    /** Time between two anti-entropy rounds, in milliseconds ({@code ds.antiEntropy.intervalMs}). */
+    public static final long ANTI_ENTROPY_INTERVAL_MS = Long.getLong("ds.antiEntropy.intervalMs", 30_000);
+
+    /**
+     * Levels of the Merkle trees below the root ({@code ds.antiEntropy.levels}); the trees have
+     * {@code 16^levels} leaves and must have the same shape on every server.
+     */
+    public static final int ANTI_ENTROPY_LEVELS = Integer.getInteger("ds.antiEntropy.levels", 3);
+
+    /** Updates queued in memory for one peer before spilling to disk, in bytes ({@code ds.outbox.memoryBytes}). */
+    public static final long OUTBOX_MEMORY_BYTES = Long.getLong("ds.outbox.memoryBytes", 8L * 1024 * 1024);
+
+    /** Size of the outbox segment files, in bytes ({@code ds.outbox.segmentBytes}). */
+    public static final long OUTBOX_SEGMENT_BYTES = Long.getLong("ds.outbox.segmentBytes", 16L * 1024 * 1024);
+
+    /** Maximum size of the outbox of one peer on disk, in bytes ({@code ds.outbox.maxDiskBytes}). */
+    public static final long OUTBOX_MAX_DISK_BYTES = Long.getLong("ds.outbox.maxDiskBytes", 4L * 1024 * 1024 * 1024);
+
+    /** First delay before reconnecting to an unreachable peer, in milliseconds ({@code ds.replication.backoffMinMs}). */
+    public static final long REPLICATION_BACKOFF_MIN_MS = Long.getLong("ds.replication.backoffMinMs", 250);
+
+    /** Maximum delay between two connection attempts, in milliseconds ({@code ds.replication.backoffMaxMs}). */
+    public static final long REPLICATION_BACKOFF_MAX_MS = Long.getLong("ds.replication.backoffMaxMs", 30_000);
+
+    /**
+     * Maximum number of updates taken at once from an outbox with a backlog on disk, so that superseded
+     * writes can be coalesced over a wide window ({@code ds.replication.coalesceUpdates}).
+     */
+    public static final int REPLICATION_COALESCE_UPDATES = Integer.getInteger("ds.replication.coalesceUpdates", 16_384);
+
+    /** Approximate maximum size of such a window, in bytes ({@code ds.replication.coalesceBytes}). */
+    public static final int REPLICATION_COALESCE_BYTES = Integer.getInteger("ds.replication.coalesceBytes", 4 * 1024 * 1024);
+
+    /**
+     * Idle time after which a replication channel with unacknowledged updates sends an empty frame, so that
+     * the peer acknowledges the updates it applied since, in milliseconds ({@code ds.replication.ackProbeMs}).
+     */
+    public static final long REPLICATION_ACK_PROBE_MS = Long.getLong("ds.replication.ackProbeMs", 200);
+
+    /**
+     * Time a buffered update may wait for a missing update before it is recovered by a resync,
+     * in milliseconds ({@code ds.replication.stallMs}).
+     */
+    public static final long REPLICATION_STALL_MS = Long.getLong("ds.replication.stallMs", 10_000);
+
+    /**
+     * Loopback port of the HTTP endpoint serving the metrics ({@code ds.metrics.httpPort});
+     * 0 disables it. The metrics are always available through the METRICS client command.
+     */
+    public static final int METRICS_HTTP_PORT = Integer.getInteger("ds.metrics.httpPort", 0);
+
+    /** Lowest level of the messages written by {@link Log}: DEBUG, INFO, WARN or ERROR ({@code ds.log.level}). */
+    public static final String LOG_LEVEL = System.getProperty("ds.log.level", "INFO");
+
+    /** Capacity of the {@link Log} ring buffer, in records, rounded down to a power of two ({@code ds.log.bufferRecords}). */
+    public static final int LOG_BUFFER_RECORDS = Integer.getInteger("ds.log.bufferRecords", 16_384);
+
+    /** Per-update DEBUG messages: one in this many is logged ({@code ds.log.sampleEvery}). */
+    public static final int LOG_SAMPLE_EVERY = Integer.getInteger("ds.log.sampleEvery", 100);
+
+    /** Per-update DEBUG messages: maximum logged per second and per message ({@code ds.log.sampleMaxPerSecond}). */
+    public static final int LOG_SAMPLE_MAX_PER_SECOND = Integer.getInteger("ds.log.sampleMaxPerSecond", 100);
+
+    /**
+     * Number of servers replicating each key ({@code ds.shard.replicationFactor}); keys are spread over
+     * the servers by a {@link HashRing}. 0, or a value not lower than the cluster size, replicates every
+     * key on every server. Must be the same on every server.
+     */
+    public static final int SHARD_REPLICATION_FACTOR = Integer.getInteger("ds.shard.replicationFactor", 3);
+
+    /** Points of each server on the hash ring ({@code ds.shard.virtualNodes}); must be the same on every server. */
+    public static final int SHARD_VIRTUAL_NODES = Integer.getInteger("ds.shard.virtualNodes", 64);
+
+    /** Timeout of a client request forwarded to the server owning its keys, in milliseconds ({@code ds.shard.forwardTimeoutMs}). */
+    public static final int SHARD_FORWARD_TIMEOUT_MS = Integer.getInteger("ds.shard.forwardTimeoutMs", 5_000);
+
+    /** Period of the gossip failure detector: one member is probed per period ({@code ds.gossip.intervalMs}). */
+    public static final long GOSSIP_INTERVAL_MS = Long.getLong("ds.gossip.intervalMs", 1000);
+
+    /** Time a direct probe waits for its ACK before asking other members, in milliseconds ({@code ds.gossip.ackTimeoutMs}). */
+    public static final long GOSSIP_ACK_TIMEOUT_MS = Long.getLong("ds.gossip.ackTimeoutMs", 300);
+
+    /** Number of members asked to probe an unresponsive member ({@code ds.gossip.indirectProbes}). */
+    public static final int GOSSIP_INDIRECT_PROBES = Integer.getInteger("ds.gossip.indirectProbes", 3);
+
+    /**
+     * Suspicion timeout, in gossip periods per doubling of the cluster size ({@code ds.gossip.suspicionMult}):
+     * a suspect is declared dead after {@code suspicionMult * log2(N) * intervalMs}.
+     */
+    public static final int GOSSIP_SUSPICION_MULT = Integer.getInteger("ds.gossip.suspicionMult", 4);
+
+    /**
+     * Transmissions of each membership update, per doubling of the cluster size ({@code ds.gossip.retransmitMult}).
+     */
+    public static final int GOSSIP_RETRANSMIT_MULT = Integer.getInteger("ds.gossip.retransmitMult", 3);
+
+    /** Maximum number of membership updates piggybacked on one gossip message ({@code ds.gossip.maxPiggyback}). */
+    public static final int GOSSIP_MAX_PIGGYBACK = Integer.getInteger("ds.gossip.maxPiggyback", 8);
+
+    /**
+     * How long a server must have been dead (or unknown to the membership) before its vector clock entry
+     * is retired; 0 disables the retirement ({@code ds.clock.retireAfterMs}).
+     */
+    public static final long CLOCK_RETIRE_AFTER_MS = Long.getLong("ds.clock.retireAfterMs", 10 * 60_000);
+
+    /**
+     * Handling of concurrent writes to one key ({@code ds.conflict.resolver}): {@code lww} (latest hybrid
+     * timestamp wins), {@code siblings} (all kept, see {@code READALL}) or the class name of a custom resolver
+     * or merge function. Must be the same on every server. See {@link ConflictResolver}.
+     */
+    public static final String CONFLICT_RESOLVER = System.getProperty("ds.conflict.resolver", "lww");
+
+    private ServerConfig() {
+    }
+}
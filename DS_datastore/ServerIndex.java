@@ -0,0 +1,83 @@
+package DS_datastore;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide, grow-only mapping between server IDs and dense array indexes.
+ * <p>
+ * {@link VectorClock} stores its counters in a {@code long[]} indexed through this mapping,
+ * so the position of a server never changes once assigned. Indexes are local to the JVM:
+ * on the wire clocks are always encoded by server ID.
+ * <p>
+ * Positions are never released within a process, not even when the clock entry of a departed server is
+ * retired ({@link ClockRetirement}): remapping them would mean rewriting every clock, buffered update and stored
+ * version at once. A clock only drops trailing zero positions ({@link VectorClock#removeServer}), so a retired
+ * server between two live ones keeps its slot until the restart. Retired slots are reclaimed then: the
+ * tombstones do not register their servers, and the snapshot only lists the servers its entries reference
+ * ({@link MappedSnapshot}), registered after the live ones, so that the clocks span the live membership.
+ */
+public final class ServerIndex {
+    /** Index of each registered server ID. */
+    private static final Map<String, Integer> indexes = new ConcurrentHashMap<>();
+
+    /** Server ID of each index; replaced (never modified) when a new ID is registered. */
+    private static volatile String[] ids = new String[0];
+
+    private ServerIndex() {
+    }
+
+    /**
+     * Returns the index of a server ID, assigning the next free one if the ID is new.
+     *
+     * @param serverId the server ID
+     * @return the dense index of the server
+     */
+    public static int indexOf(String serverId) {
+        Integer index = indexes.get(serverId);
+        return (index != null) ? index : register(serverId);
+    }
+
+    /**
+     * Returns the index of a server ID without registering it.
+     *
+     * @param serverId the server ID
+     * @return the index, or {@code -1} if the ID was never registered
+     */
+    public static int lookup(String serverId) {
+        Integer index = indexes.get(serverId);
+        return (index != null) ? index : -1;
+    }
+
+    /**
+     * Returns the server ID registered at the given index.
+     *
+     * @param index a valid index
+     * @return the server ID
+     */
+    public static String idAt(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Returns the number of registered server IDs.
+     *
+     * @return the size of the mapping
+     */
+    public static int size() {
+        return ids.length;
+    }
+
+    private static synchronized int register(String serverId) {
+        Integer index = indexes.get(serverId);
+        if (index != null) {
+            return index;
+        }
+        String[] grown = Arrays.copyOf(ids, ids.length + 1);
+        grown[ids.length] = serverId;
+        ids = grown;
+        indexes.put(serverId, grown.length - 1);
+        return grown.length - 1;
+    }
+}
@@ -0,0 +1,125 @@
+package DS_datastore;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Point-in-time image of the {@link KeyValueStore} and of the local clock, used together with
+ * the {@link WriteAheadLog} to restart a node without replaying its whole write history.
+ * <p>
+ * The file {@code snapshot-<segment>.dat} covers every change logged before WAL segment
+ * {@code <segment>}: on startup it is opened and only the segments from {@code <segment>} on are replayed.
+ * Snapshots are written in the {@link MappedSnapshot} format and become the read-only base layer
+ * of the {@link KeyValueStore}, so startup does not depend on the number of keys.
+ * Files are written under a temporary name, forced to disk and renamed,
+ * so a crash never leaves a partial snapshot behind.
+ */
+public final class SnapshotFile {
+    /** Name of the snapshot files, with the first WAL segment they do not cover. */
+    private static final Pattern NAME = Pattern.compile("snapshot-(\\d+)\\.dat");
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Writes a snapshot. The entries are read while writes continue: changes made after the WAL
+     * rotation may or may not be included, and are replayed from the log anyway.
+     *
+     * @param directory the data directory
+     * @param segment   the first WAL segment not covered by the snapshot
+     * @param clock     the local clock at the time of the WAL rotation
+     * @param entries   a live view of the store entries
+     * @return the number of entries written
+     * @throws IOException if the file cannot be written
+     */
+    public static long write(Path directory, long segment, VectorClock clock,
+                             Iterable<Map.Entry<String, ValueEntry>> entries) throws IOException {
+        Path target = path(directory, segment);
+        Path temp = directory.resolve("snapshot-" + segment + ".tmp");
+        long count = MappedSnapshot.write(temp, clock, entries);
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return count;
+    }
+
+    /**
+     * Maps a snapshot written by {@link #write}.
+     *
+     * @param directory the data directory
+     * @param segment   the segment of the snapshot
+     * @return the mapped snapshot
+     * @throws IOException if the file cannot be mapped
+     */
+    public static MappedSnapshot open(Path directory, long segment) throws IOException {
+        return MappedSnapshot.open(path(directory, segment));
+    }
+
+    /**
+     * Loads the newest snapshot of the directory, if any: it is mapped and becomes the base layer of the store.
+     *
+     * @param directory the data directory
+     * @param store     the store to fill
+     * @param clock     the clock to advance to the snapshot's clock
+     * @return the first WAL segment to replay (0 if there is no snapshot)
+     * @throws IOException if the newest snapshot cannot be read or is corrupted
+     */
+    public static long loadLatest(Path directory, KeyValueStore store, VectorClock clock) throws IOException {
+        List<Long> segments = list(directory);
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        long segment = segments.get(segments.size() - 1);
+        MappedSnapshot snapshot = MappedSnapshot.open(path(directory, segment));
+        store.setBase(snapshot);
+        clock.merge(snapshot.getClock());
+        return segment;
+    }
+
+    /**
+     * Deletes the snapshots older than the given one. A file that cannot be deleted yet
+     * (e.g. still mapped, on systems that forbid it) is left for the next call.
+     *
+     * @param directory the data directory
+     * @param segment   the segment of the snapshot to keep
+     * @throws IOException if the directory cannot be listed
+     */
+    public static void deleteOlderThan(Path directory, long segment) throws IOException {
+        for (long old : list(directory)) {
+            if (old < segment) {
+                try {
+                    Files.deleteIfExists(path(directory, old));
+                } catch (IOException e) {
+                    Log.warn("Cannot delete old snapshot " + path(directory, old) + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static Path path(Path directory, long segment) {
+        return directory.resolve("snapshot-" + segment + ".dat");
+    }
+
+    /**
+     * Returns the segments of the snapshots present in the directory, in increasing order.
+     */
+    private static List<Long> list(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*.dat")) {
+            for (Path file : files) {
+                Matcher m = NAME.matcher(file.getFileName().toString());
+                if (m.matches()) {
+                    segments.add(Long.parseLong(m.group(1)));
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+}
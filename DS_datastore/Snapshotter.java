@@ -0,0 +1,57 @@
+package DS_datastore;
+
+/**
+ * Background thread that keeps the write-ahead log short by taking snapshots.
+ * <p>
+ * A snapshot ({@link Server#checkpoint()}) is taken when the WAL grows beyond
+ * {@link ServerConfig#SNAPSHOT_WAL_BYTES}, or when {@link ServerConfig#SNAPSHOT_INTERVAL_MS}
+ * has passed since the previous one and something was written in the meantime.
+ * A restart then loads the snapshot and replays only the short tail of the log.
+ */
+public class Snapshotter implements Runnable {
+    /** How often the WAL size is checked, in milliseconds. */
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    /** The server to snapshot. */
+    private final Server server;
+
+    /**
+     * Constructs a snapshotter for the given server.
+     *
+     * @param server the server whose state is snapshotted
+     */
+    public Snapshotter(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Checks the WAL size every second and takes a snapshot when needed.
+     */
+    @Override
+    public void run() {
+        long lastSnapshot = System.currentTimeMillis();
+        while (true) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            WriteAheadLog wal = server.getWriteAheadLog();
+            if (wal == null) {
+                continue;
+            }
+            long bytes = wal.getLogBytes();
+            long now = System.currentTimeMillis();
+            if (bytes >= ServerConfig.SNAPSHOT_WAL_BYTES
+                    || (bytes > 0 && now - lastSnapshot >= ServerConfig.SNAPSHOT_INTERVAL_MS)) {
+                try {
+                    server.checkpoint();
+                } catch (Exception e) {
+                    Log.error("Snapshot failed: " + e.getMessage());
+                }
+                lastSnapshot = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package DS_datastore;
+
+/**
+ * Acknowledgement of a {@link StateChunkMessage}, sent by the joining server once the chunk has been applied.
+ * <p>
+ * The donor keeps at most {@link ServerConfig#STATE_TRANSFER_WINDOW} chunks unacknowledged (flow control),
+ * and remembers the last acknowledged index so that an interrupted transfer can be resumed.
+ */
+public class StateAckMessage {
+    /** Transfer session. */
+    private final long sessionId;
+
+    /** Index of the first entry not applied yet. */
+    private final long nextIndex;
+
+    /**
+     * Constructs an acknowledgement.
+     *
+     * @param sessionId the transfer session
+     * @param nextIndex index of the first entry not applied yet
+     */
+    public StateAckMessage(long sessionId, long nextIndex) {
+        this.sessionId = sessionId;
+        this.nextIndex = nextIndex;
+    }
+
+    /**
+     * Returns the transfer session.
+     *
+     * @return the session ID
+     */
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Returns the index of the first entry not applied yet.
+     *
+     * @return the next index
+     */
+    public long getNextIndex() {
+        return nextIndex;
+    }
+}
@@ -0,0 +1,119 @@
+package DS_datastore;
+
+import java.util.List;
+
+/**
+ * One bounded chunk of a streaming state transfer, sent by the donor in reply to a {@link StateRequestMessage}.
+ * <p>
+ * The entries of a transfer are numbered from 0 in a stable order; each chunk carries a contiguous range
+ * starting at {@link #getFirstIndex()}. The first chunk sent on a connection also carries the donor's clock,
+ * which the joining server merges only after the last chunk ({@link #isLast()}) has been applied.
+ * The joining server acknowledges every chunk with a {@link StateAckMessage}.
+ */
+public class StateChunkMessage {
+    /** Transfer session this chunk belongs to. */
+    private final long sessionId;
+
+    /** Index of the first entry of the chunk. */
+    private final long firstIndex;
+
+    /** Total number of entries of the transfer. */
+    private final long totalEntries;
+
+    /** Keys of the chunk. */
+    private final List<String> keys;
+
+    /** Entries of the chunk, in the same order as {@link #keys}. */
+    private final List<ValueEntry> entries;
+
+    /** Whether this is the last chunk of the transfer. */
+    private final boolean last;
+
+    /** Clock of the donor, or {@code null} if not carried by this chunk. */
+    private final VectorClock clock;
+
+    /**
+     * Constructs a chunk.
+     *
+     * @param sessionId    the transfer session
+     * @param firstIndex   index of the first entry of the chunk
+     * @param totalEntries total number of entries of the transfer
+     * @param keys         the keys of the chunk
+     * @param entries      the entries, one per key
+     * @param last         whether this is the last chunk
+     * @param clock        the donor's clock, or {@code null}
+     */
+    public StateChunkMessage(long sessionId, long firstIndex, long totalEntries, List<String> keys,
+                             List<ValueEntry> entries, boolean last, VectorClock clock) {
+        this.sessionId = sessionId;
+        this.firstIndex = firstIndex;
+        this.totalEntries = totalEntries;
+        this.keys = keys;
+        this.entries = entries;
+        this.last = last;
+        this.clock = (clock != null) ? new VectorClock(clock) : null;
+    }
+
+    /**
+     * Returns the transfer session this chunk belongs to.
+     *
+     * @return the session ID
+     */
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Returns the index of the first entry of the chunk.
+     *
+     * @return the first index
+     */
+    public long getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * Returns the total number of entries of the transfer.
+     *
+     * @return the entry count
+     */
+    public long getTotalEntries() {
+        return totalEntries;
+    }
+
+    /**
+     * Returns the keys of the chunk.
+     *
+     * @return the keys
+     */
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Returns the entries of the chunk, in the same order as the keys.
+     *
+     * @return the entries
+     */
+    public List<ValueEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Tells whether this is the last chunk of the transfer.
+     *
+     * @return {@code true} for the last chunk
+     */
+    public boolean isLast() {
+        return last;
+    }
+
+    /**
+     * Returns the donor's clock carried by this chunk.
+     *
+     * @return a copy of the clock, or {@code null} if the chunk does not carry it
+     */
+    public VectorClock getVectorClock() {
+        return (clock != null) ? new VectorClock(clock) : null;
+    }
+}
@@ -3,14 +3,86 @@ package DS_datastore;
 import java.io.Serializable;
 
 /**
- * A marker message used to request the full state (key-value store and vector clock)
+ * A message used to request the state (key-value store and vector clock)
  * from a peer server in the distributed system.
  * <p>
  * This message is sent during the recovery process to initiate state transfer.
+ * A request for a new transfer has session ID 0; after an interruption, the joining server
+ * sends the session ID it received and the index of the first entry it has not applied yet,
+ * and the donor resumes the stream from there (see {@link StateChunkMessage}).
+ * <p>
+ * A new request may carry the clock of the joining server (e.g. a server restarting with its
+ * local state restored from disk): if the donor still has every update missing from that clock,
+ * it sends only those updates instead of the whole store.
  * <p>
  * It implements {@link Serializable} to allow transmission over network sockets.
  */
 public class StateRequestMessage implements Serializable {
-    // Empty class used as a signal for state request.
-}
+    private static final long serialVersionUID = 1L;
+
+    /** Transfer session to resume, or 0 to start a new one. */
+    private final long sessionId;
+
+    /** Index of the first entry to send. */
+    private final long resumeFrom;
+
+    /** Clock of the joining server, or {@code null} to request the whole store. */
+    private final VectorClock knownClock;
+
+    /**
+     * Constructs a request for a new transfer.
+     */
+    public StateRequestMessage() {
+        this(0, 0);
+    }
 
+    /**
+     * Constructs a request resuming an interrupted transfer.
+     *
+     * @param sessionId  the session to resume, or 0 for a new transfer
+     * @param resumeFrom index of the first entry not applied yet
+     */
+    public StateRequestMessage(long sessionId, long resumeFrom) {
+        this(sessionId, resumeFrom, null);
+    }
+
+    /**
+     * Constructs a request, optionally carrying the clock of the joining server.
+     *
+     * @param sessionId  the session to resume, or 0 for a new transfer
+     * @param resumeFrom index of the first entry not applied yet
+     * @param knownClock the clock of the joining server, or {@code null} to request the whole store
+     */
+    public StateRequestMessage(long sessionId, long resumeFrom, VectorClock knownClock) {
+        this.sessionId = sessionId;
+        this.resumeFrom = resumeFrom;
+        this.knownClock = (knownClock != null) ? new VectorClock(knownClock) : null;
+    }
+
+    /**
+     * Returns the session to resume.
+     *
+     * @return the session ID, 0 for a new transfer
+     */
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Returns the index of the first entry to send.
+     *
+     * @return the resume index
+     */
+    public long getResumeFrom() {
+        return resumeFrom;
+    }
+
+    /**
+     * Returns the clock of the joining server.
+     *
+     * @return the clock, or {@code null} if the whole store is requested
+     */
+    public VectorClock getKnownClock() {
+        return knownClock;
+    }
+}
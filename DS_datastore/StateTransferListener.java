@@ -2,14 +2,24 @@ package DS_datastore;
 
 import java.net.*;
 import java.io.*;
+import java.util.*;
 
 /**
  * A listener that handles incoming state transfer requests from peer servers.
  * <p>
  * This component allows a server to respond to {@link StateRequestMessage}s
- * by sending a snapshot of its key-value store and vector clock, wrapped in a
- * {@link StateResponseMessage}. It runs on its own thread and listens on the
+ * by streaming its key-value store in {@link StateChunkMessage}s, each bounded by
+ * {@link ServerConfig#STATE_CHUNK_ENTRIES} entries and about {@link ServerConfig#STATE_CHUNK_BYTES} bytes.
+ * At most {@link ServerConfig#STATE_TRANSFER_WINDOW} chunks are in flight: the joining server acknowledges
+ * each applied chunk with a {@link StateAckMessage}, and a request carrying a known session ID
+ * resumes that transfer from the requested entry. It runs on its own thread and listens on the
  * server's state transfer port.
+ * <p>
+ * A new request carrying the clock of the joining server is answered, when possible, with just the
+ * updates it missed ({@link Server#collectDelta}) in {@link ReplicationBatch} frames, followed by an
+ * empty last chunk with session ID 0.
+ * <p>
+ * The same port serves the exchanges started by the {@link AntiEntropy} task of the peers.
  */
 public class StateTransferListener implements Runnable {
     /** Reference to the server instance that provides the state data. */
@@ -26,39 +36,119 @@ public class StateTransferListener implements Runnable {
 
     /**
      * Starts the state transfer listener. It accepts incoming socket connections on
-     * the state transfer port, reads {@link StateRequestMessage} objects, and replies
-     * with the server's current state.
+     * the state transfer port, reads {@link StateRequestMessage} objects, and streams
+     * the server's current state.
      * <p>
      * Each connection is handled in a separate thread for scalability.
      */
     public void run() {
         try (ServerSocket serverSocket = new ServerSocket(server.getStateTransferPort())) {
-            System.out.println("StateTransfer listener started on port " + server.getStateTransferPort());
+            Log.info("StateTransfer listener started on port " + server.getStateTransferPort());
             while (true) {
                 Socket socket = serverSocket.accept();
-                new Thread(() -> {
-                    try (ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                         ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-                        Object obj = in.readObject();
+                server.getConnectionExecutor().executeOrClose(socket, () -> {
+                    try (MessageReader in = new MessageReader(socket.getInputStream());
+                         MessageWriter out = new MessageWriter(socket.getOutputStream())) {
+                        Object obj = in.readMessage();
                         if (obj instanceof StateRequestMessage) {
-                            // Prepare and send the state response message.
-                            StateResponseMessage response = new StateResponseMessage(
-                                    server.getKeyValueStoreSnapshot(),
-                                    server.getLocalClock()
-                            );
-                            out.writeObject(response);
-                            out.flush();
-                            System.out.println("State transferred to requesting peer.");
+                            transfer((StateRequestMessage) obj, in, out);
+                        } else if (obj instanceof AntiEntropyMessage) {
+                            server.getAntiEntropy().serve((AntiEntropyMessage) obj, in, out,
+                                    String.valueOf(socket.getRemoteSocketAddress()));
                         }
                     } catch (Exception e) {
-                        System.err.println("StateTransfer error: " + e.getMessage());
+                        Log.warn("StateTransfer error: " + e.getMessage());
                     } finally {
                         try { socket.close(); } catch (IOException e) { }
                     }
-                }).start();
+                });
             }
         } catch (IOException e) {
-            System.err.println("StateTransferListener error: " + e.getMessage());
+            Log.warn("StateTransferListener error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Streams the requested session (or a new one) and waits for the acknowledgement of the last chunk.
+     *
+     * @param request the request of the joining server
+     * @param in      the stream carrying the acknowledgements
+     * @param out     the stream carrying the chunks
+     * @throws IOException if the connection fails
+     */
+    private void transfer(StateRequestMessage request, MessageReader in, MessageWriter out) throws IOException {
+        if (request.getSessionId() == 0 && request.getKnownClock() != null) {
+            List<UpdateMessage> delta = server.collectDelta(request.getKnownClock());
+            if (delta != null) {
+                for (int i = 0; i < delta.size(); i += ServerConfig.STATE_CHUNK_ENTRIES) {
+                    out.writeMessage(new ReplicationBatch(
+                            delta.subList(i, Math.min(delta.size(), i + ServerConfig.STATE_CHUNK_ENTRIES))));
+                }
+                out.writeMessage(new StateChunkMessage(0, 0, 0, Collections.emptyList(), Collections.emptyList(), true, null));
+                out.flush();
+                Log.info("Delta state sync to requesting peer: " + delta.size() + " missed updates");
+                return;
+            }
+        }
+        StateTransferSession session = (request.getSessionId() != 0) ? server.getStateSession(request.getSessionId()) : null;
+        long next = 0;
+        if (session != null) {
+            next = Math.min(Math.max(request.getResumeFrom(), 0), session.size());
+            session.acknowledge(next);
+            Log.info("Resuming state transfer " + Long.toHexString(session.getId()) + " at entry " + next);
+        } else {
+            session = server.openStateSession();
+        }
+        long total = session.size();
+        Iterator<Map.Entry<String, ValueEntry>> entries = session.iterator(next);
+        // End index of each chunk sent and not acknowledged yet.
+        ArrayDeque<Long> inFlight = new ArrayDeque<>();
+        boolean first = true;
+        boolean last = false;
+        while (!last) {
+            while (inFlight.size() >= ServerConfig.STATE_TRANSFER_WINDOW) {
+                awaitAck(session, in, inFlight);
+            }
+            List<String> keys = new ArrayList<>();
+            List<ValueEntry> values = new ArrayList<>();
+            int bytes = 0;
+            while (entries.hasNext() && keys.size() < ServerConfig.STATE_CHUNK_ENTRIES && bytes < ServerConfig.STATE_CHUNK_BYTES) {
+                Map.Entry<String, ValueEntry> entry = entries.next();
+                keys.add(entry.getKey());
+                values.add(entry.getValue());
+                bytes += entry.getKey().length() + entry.getValue().getEncodedSize();
+            }
+            last = !entries.hasNext();
+            // The clock goes with the first chunk of every connection, so a resumed transfer can complete on its own.
+            out.writeMessage(new StateChunkMessage(session.getId(), next, total, keys, values, last,
+                    first ? session.getVectorClock() : null));
+            first = false;
+            next += keys.size();
+            inFlight.add(next);
+            if (last || inFlight.size() >= ServerConfig.STATE_TRANSFER_WINDOW) {
+                out.flush();
+            }
+        }
+        out.flush();
+        while (!inFlight.isEmpty()) {
+            awaitAck(session, in, inFlight);
+        }
+        server.closeStateSession(session.getId());
+        Log.info("State transferred to requesting peer: " + total + " entries");
+    }
+
+    /**
+     * Reads one acknowledgement and releases the chunks it covers.
+     */
+    private void awaitAck(StateTransferSession session, MessageReader in, ArrayDeque<Long> inFlight) throws IOException {
+        Object msg = in.readMessage();
+        if (!(msg instanceof StateAckMessage) || ((StateAckMessage) msg).getSessionId() != session.getId()) {
+            throw new IOException("Unexpected state transfer message: " + msg);
+        }
+        long acked = ((StateAckMessage) msg).getNextIndex();
+        session.acknowledge(acked);
+        while (!inFlight.isEmpty() && inFlight.peek() <= acked) {
+            inFlight.poll();
         }
     }
 }
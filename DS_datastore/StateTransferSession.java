@@ -0,0 +1,142 @@
+package DS_datastore;
+
+import java.util.*;
+
+/**
+ * Donor side of a streaming state transfer: a fixed, ordered view of the store taken when the
+ * transfer starts, so that it can be sent in chunks and resumed by entry index.
+ * <p>
+ * The view is the store's base {@link MappedSnapshot} (immutable, read lazily from the mapped file)
+ * followed by a copy of the in-memory entries written since that snapshot; without persistence the
+ * copy holds the whole store. Both parts may hold the same key: the joining server keeps the newer
+ * version ({@link KeyValueStore#mergeEntry}).
+ * The donor's clock is read before the entries, so it never claims updates missing from the transfer;
+ * updates applied meanwhile reach the joining server through normal replication.
+ */
+public class StateTransferSession {
+    /** Identifier sent to the joining server. */
+    private final long id;
+
+    /** Immutable base layer of the store, or {@code null}. */
+    private final MappedSnapshot base;
+
+    /** In-memory entries at the start of the transfer. */
+    private final List<Map.Entry<String, ValueEntry>> live;
+
+    /** Clock of the donor at the start of the transfer. */
+    private final VectorClock clock;
+
+    /** Index of the first entry not acknowledged yet. */
+    private volatile long acknowledged;
+
+    /** Time of the last activity, used to expire abandoned sessions. */
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    /**
+     * Constructs a session.
+     *
+     * @param id    the session ID
+     * @param base  the base layer of the store, or {@code null}
+     * @param live  the in-memory entries
+     * @param clock the donor's clock, read before the entries
+     */
+    public StateTransferSession(long id, MappedSnapshot base, List<Map.Entry<String, ValueEntry>> live, VectorClock clock) {
+        this.id = id;
+        this.base = base;
+        this.live = live;
+        this.clock = new VectorClock(clock);
+    }
+
+    /**
+     * Returns the session ID.
+     *
+     * @return the ID
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the donor's clock at the start of the transfer.
+     *
+     * @return a copy of the clock
+     */
+    public VectorClock getVectorClock() {
+        return new VectorClock(clock);
+    }
+
+    /**
+     * Returns the number of entries of the transfer.
+     *
+     * @return the entry count
+     */
+    public long size() {
+        return baseCount() + live.size();
+    }
+
+    private long baseCount() {
+        return (base != null) ? base.getEntryCount() : 0;
+    }
+
+    /**
+     * Returns the entries from the given index on, in transfer order.
+     *
+     * @param from index of the first entry
+     * @return an iterator over the remaining entries
+     */
+    public Iterator<Map.Entry<String, ValueEntry>> iterator(long from) {
+        long baseCount = baseCount();
+        Iterator<Map.Entry<String, ValueEntry>> liveEntries =
+                live.subList((int) Math.max(0, Math.min(live.size(), from - baseCount)), live.size()).iterator();
+        if (from >= baseCount) {
+            return liveEntries;
+        }
+        Iterator<Map.Entry<String, ValueEntry>> baseEntries = base.iterator(from);
+        return new Iterator<Map.Entry<String, ValueEntry>>() {
+            @Override
+            public boolean hasNext() {
+                return baseEntries.hasNext() || liveEntries.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, ValueEntry> next() {
+                return baseEntries.hasNext() ? baseEntries.next() : liveEntries.next();
+            }
+        };
+    }
+
+    /**
+     * Records an acknowledgement from the joining server.
+     *
+     * @param nextIndex index of the first entry not applied yet
+     */
+    public void acknowledge(long nextIndex) {
+        acknowledged = Math.max(acknowledged, nextIndex);
+        touch();
+    }
+
+    /**
+     * Returns the index of the first entry not acknowledged yet.
+     *
+     * @return the acknowledged index
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Marks the session as active.
+     */
+    public void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the time of the last activity.
+     *
+     * @return the last access time, in milliseconds
+     */
+    public long getLastAccess() {
+        return lastAccess;
+    }
+}
@@ -0,0 +1,216 @@
+package DS_datastore;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named executor used by the server for short or per-connection tasks, in place of
+ * creating a new platform {@link Thread} for every accepted socket or outbound message.
+ * <p>
+ * {@link #create(String)} picks the implementation according to {@link ServerConfig#EXECUTOR_MODE}:
+ * <ul>
+ *     <li>{@code virtual}: one virtual thread per task (JDK 21+);</li>
+ *     <li>{@code platform}: a bounded pool of daemon threads ({@link ServerConfig#EXECUTOR_MAX_THREADS})
+ *         with a bounded queue ({@link ServerConfig#EXECUTOR_QUEUE_SIZE}); tasks beyond both limits are rejected;</li>
+ *     <li>{@code auto} (default): virtual threads when the running JDK provides them, the platform pool otherwise.</li>
+ * </ul>
+ * Virtual threads are looked up by reflection so the code still compiles and runs on older JDKs.
+ * Any other {@link ExecutorService} can be plugged in with the public constructor.
+ * <p>
+ * Every executor counts its running, peak, completed and rejected tasks.
+ */
+public class TaskExecutor implements Executor {
+    /** Name of the executor, also used as thread name prefix. */
+    private final String name;
+
+    /** Description of the implementation ("virtual", "platform" or a custom label). */
+    private final String kind;
+
+    /** The executor running the tasks. */
+    private final ExecutorService delegate;
+
+    /** Number of tasks currently running. */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /** Highest value reached by {@link #active}. */
+    private final AtomicInteger peak = new AtomicInteger();
+
+    /** Number of tasks completed. */
+    private final AtomicLong completed = new AtomicLong();
+
+    /** Number of tasks refused because the executor was saturated. */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Limits the saturation warnings, which come in bursts, to a few per second. */
+    private final LogSampler saturationLog = new LogSampler(Log.Level.WARN, 1, 5);
+
+    /**
+     * Wraps an existing executor service.
+     *
+     * @param name     the executor name
+     * @param kind     a short description of the implementation
+     * @param delegate the executor running the tasks
+     */
+    public TaskExecutor(String name, String kind, ExecutorService delegate) {
+        this.name = name;
+        this.kind = kind;
+        this.delegate = delegate;
+    }
+
+    /**
+     * Creates an executor according to {@link ServerConfig#EXECUTOR_MODE}.
+     *
+     * @param name the executor name
+     * @return the new executor
+     */
+    public static TaskExecutor create(String name) {
+        String mode = ServerConfig.EXECUTOR_MODE;
+        if (!"platform".equals(mode)) {
+            ExecutorService virtual = newVirtualExecutor(name);
+            if (virtual != null) {
+                return new TaskExecutor(name, "virtual", virtual);
+            }
+            if ("virtual".equals(mode)) {
+                Log.warn("Virtual threads not available, " + name + " falls back to a platform pool");
+            }
+        }
+        return new TaskExecutor(name, "platform", newPlatformPool(name));
+    }
+
+    /**
+     * Returns a thread-per-task executor of named virtual threads, or {@code null} if the JDK has no virtual threads.
+     */
+    private static ExecutorService newVirtualExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformPool(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, name + "-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                ServerConfig.EXECUTOR_MAX_THREADS, ServerConfig.EXECUTOR_MAX_THREADS,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(ServerConfig.EXECUTOR_QUEUE_SIZE),
+                factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Submits a task.
+     *
+     * @param task the task to run
+     * @throws RejectedExecutionException if the executor is saturated
+     */
+    @Override
+    public void execute(Runnable task) {
+        try {
+            delegate.execute(() -> {
+                int running = active.incrementAndGet();
+                peak.accumulateAndGet(running, Math::max);
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Submits the handler of an accepted connection. If the executor is saturated,
+     * the connection is closed immediately and the peer will have to retry.
+     *
+     * @param socket the accepted socket
+     * @param task   the handler, responsible for closing the socket
+     */
+    public void executeOrClose(Socket socket, Runnable task) {
+        try {
+            execute(task);
+        } catch (RejectedExecutionException e) {
+            if (saturationLog.sample()) {
+                Log.warn(name + " saturated, connection from " + socket.getRemoteSocketAddress() + " refused");
+            }
+            try { socket.close(); } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Returns the number of tasks currently running.
+     *
+     * @return the running task count
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Returns the highest number of tasks that ran at the same time.
+     *
+     * @return the peak running task count
+     */
+    public int getPeakCount() {
+        return peak.get();
+    }
+
+    /**
+     * Returns the number of tasks completed.
+     *
+     * @return the completed task count
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Returns the number of tasks refused because the executor was saturated.
+     *
+     * @return the rejected task count
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the name of the executor.
+     *
+     * @return the executor name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Stops accepting tasks; running tasks are not interrupted.
+     */
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + kind + "): active=" + active.get() + ", peak=" + peak.get()
+                + ", completed=" + completed.get() + ", rejected=" + rejected.get();
+    }
+}
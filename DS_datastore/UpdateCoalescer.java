@@ -0,0 +1,111 @@
+package DS_datastore;
+
+import java.util.*;
+
+/**
+ * Compacts a backlog of updates before it is replicated: a run of consecutive updates of the same
+ * origin that writes some keys several times is replaced by a single range update
+ * ({@link UpdateMessage#isRange()}) carrying only the last value of each key.
+ * <p>
+ * The range keeps every write's own origin sequence and hybrid timestamp, and the vector clock of the last
+ * update of the run, so it is causally ready on the receiver exactly when the first update of the run would be,
+ * and leaves the receiver in the same state as the whole run ({@link VectorClock#canApply(int, VectorClock, long)}).
+ * Runs are broken by a change of origin, a gap in the origin's sequence, or, once the run writes some key,
+ * a change of the clock's other entries: the receiver resolves every key of the range against the range's clock
+ * ({@link KeyValueStore#apply}), so that clock must not include writes of other servers applied after the key
+ * was written. Updates already covered by the run (duplicates left by a crash of the sender) are dropped.
+ * A run of clock-only updates (sent to servers that replicate none of their keys, see
+ * {@link UpdateMessage#restrictTo}) collapses into one.
+ */
+public final class UpdateCoalescer {
+
+    private UpdateCoalescer() {
+    }
+
+    /**
+     * Coalesces a list of updates.
+     *
+     * @param updates the updates, in the order they were queued
+     * @return the updates to send instead, in the same order; runs without repeated keys are left as they are
+     */
+    public static List<UpdateMessage> coalesce(List<UpdateMessage> updates) {
+        List<UpdateMessage> result = new ArrayList<>(updates.size());
+        int start = 0;
+        while (start < updates.size()) {
+            // Find the run starting at 'start': same origin, each update continuing the previous one.
+            String origin = updates.get(start).getOriginServerId();
+            long last = updates.get(start).getOriginSequence();
+            UpdateMessage previous = updates.get(start);
+            boolean writes = !previous.getKeys().isEmpty();
+            List<UpdateMessage> run = new ArrayList<>();
+            run.add(previous);
+            int end = start + 1;
+            for (; end < updates.size(); end++) {
+                UpdateMessage next = updates.get(end);
+                if (!next.getOriginServerId().equals(origin)) {
+                    break;
+                }
+                if (next.getOriginSequence() <= last) {
+                    continue; // duplicate of an update already in the run
+                }
+                if (next.getFirstSequence() > last + 1 || (writes && !next.sameDependencies(previous))) {
+                    break;
+                }
+                run.add(next);
+                previous = next;
+                writes |= !next.getKeys().isEmpty();
+                last = next.getOriginSequence();
+            }
+            merge(run, result);
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * Appends a run to the result, as a single range update if that is smaller: if it writes some key
+     * more than once, or if it has fewer keys than updates.
+     */
+    private static void merge(List<UpdateMessage> run, List<UpdateMessage> result) {
+        if (run.size() == 1) {
+            result.add(run.get(0));
+            return;
+        }
+        Map<String, Integer> latest = new LinkedHashMap<>();
+        List<String> values = new ArrayList<>();
+        List<Long> sequences = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        int writes = 0;
+        for (UpdateMessage update : run) {
+            List<String> keys = update.getKeys();
+            for (int i = 0; i < keys.size(); i++) {
+                writes++;
+                // Each key keeps the position of its first write, with the value of its last one.
+                Integer position = latest.putIfAbsent(keys.get(i), values.size());
+                if (position == null) {
+                    values.add(update.getValues().get(i));
+                    sequences.add(update.getSequence(i));
+                    timestamps.add(update.getTimestamp(i));
+                } else {
+                    values.set(position, update.getValues().get(i));
+                    sequences.set(position, update.getSequence(i));
+                    timestamps.set(position, update.getTimestamp(i));
+                }
+            }
+        }
+        if (latest.size() == writes && latest.size() + 1 >= run.size()) {
+            // Nothing is superseded: a range would add a sequence and a timestamp per key and save fewer.
+            result.addAll(run);
+            return;
+        }
+        UpdateMessage lastUpdate = run.get(run.size() - 1);
+        long[] s = new long[sequences.size()];
+        long[] t = new long[timestamps.size()];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = sequences.get(i);
+            t[i] = timestamps.get(i);
+        }
+        result.add(new UpdateMessage(new ArrayList<>(latest.keySet()), values, s, t,
+                lastUpdate.getOriginServerId(), lastUpdate.getVectorClock(), run.get(0).getFirstSequence()));
+    }
+}
@@ -0,0 +1,159 @@
+package DS_datastore;
+
+import java.util.*;
+
+/**
+ * Bounded history of the most recent updates applied by a server (local writes and remote updates),
+ * used to bring a rejoining server up to date with only the updates it missed.
+ * <p>
+ * Updates are kept per origin server in origin sequence order. For each origin the history also
+ * remembers the highest sequence it does not cover: every update of that origin above it is recorded.
+ * When the history is full the oldest updates are evicted and the covered range shrinks accordingly;
+ * a server that needs an evicted update gets a full state transfer instead. A range update
+ * ({@link UpdateMessage#isRange()}) counts for every sequence it covers.
+ * <p>
+ * Not thread-safe: the owning {@link Server} calls it while holding the lock of its local clock,
+ * which also guarantees that updates are recorded in the order they were applied.
+ */
+public class UpdateHistory {
+
+    /** A recorded update together with its position in application order. */
+    private static final class Recorded {
+        final UpdateMessage update;
+        final long order;
+
+        Recorded(UpdateMessage update, long order) {
+            this.update = update;
+            this.order = order;
+        }
+    }
+
+    /** Maximum number of updates kept. */
+    private final int maxUpdates;
+
+    /** Maximum estimated size of the updates kept, in bytes. */
+    private final long maxBytes;
+
+    /** Recorded updates of each origin (by {@link ServerIndex} index), oldest first. */
+    private final Map<Integer, ArrayDeque<Recorded>> byOrigin = new HashMap<>();
+
+    /** Origin of every recorded update, in application order (drives the eviction). */
+    private final ArrayDeque<Integer> arrival = new ArrayDeque<>();
+
+    /** For each origin, the highest sequence number not covered by the history (0 if absent). */
+    private final Map<Integer, Long> coveredAfter = new HashMap<>();
+
+    /** Position of the next recorded update in application order. */
+    private long nextOrder;
+
+    /** Estimated size of the recorded updates, in bytes. */
+    private long bytes;
+
+    /**
+     * Constructs an empty history covering every update from the start.
+     *
+     * @param maxUpdates maximum number of updates kept
+     * @param maxBytes   maximum estimated size of the updates kept, in bytes
+     */
+    public UpdateHistory(int maxUpdates, long maxBytes) {
+        this.maxUpdates = maxUpdates;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Records an applied update.
+     *
+     * @param update the update, applied in causal order
+     */
+    public void record(UpdateMessage update) {
+        if (maxUpdates <= 0) {
+            return;
+        }
+        int origin = ServerIndex.indexOf(update.getOriginServerId());
+        byOrigin.computeIfAbsent(origin, k -> new ArrayDeque<>()).addLast(new Recorded(update, nextOrder++));
+        arrival.addLast(origin);
+        bytes += update.getEstimatedSize();
+        while (arrival.size() > maxUpdates || (bytes > maxBytes && arrival.size() > 1)) {
+            int evictedOrigin = arrival.pollFirst();
+            UpdateMessage evicted = byOrigin.get(evictedOrigin).pollFirst().update;
+            bytes -= evicted.getEstimatedSize();
+            coveredAfter.put(evictedOrigin, evicted.getOriginSequence());
+        }
+    }
+
+    /**
+     * Forgets every recorded update and restarts the coverage from the given clock.
+     * Called when the clock advances without going through {@link #record(UpdateMessage)}
+     * (local state restored from disk, state transfer).
+     *
+     * @param clock the current local clock
+     */
+    public void reset(VectorClock clock) {
+        byOrigin.clear();
+        arrival.clear();
+        coveredAfter.clear();
+        bytes = 0;
+        for (int i = 0; i < clock.width(); i++) {
+            if (clock.getAt(i) > 0) {
+                coveredAfter.put(i, clock.getAt(i));
+            }
+        }
+    }
+
+    /**
+     * Returns the updates that a server at {@code known} is missing to reach {@code current}.
+     *
+     * @param known   the clock of the server to bring up to date
+     * @param current the local clock, covering every recorded update
+     * @return the missing updates in application order, or {@code null} if some were evicted
+     */
+    public List<UpdateMessage> since(VectorClock known, VectorClock current) {
+        List<Recorded> missing = new ArrayList<>();
+        for (int origin = 0; origin < current.width(); origin++) {
+            long from = known.getAt(origin);
+            long to = current.getAt(origin);
+            if (to <= from) {
+                continue;
+            }
+            if (coveredAfter.getOrDefault(origin, 0L) > from) {
+                return null;
+            }
+            ArrayDeque<Recorded> queue = byOrigin.get(origin);
+            if (queue == null) {
+                return null;
+            }
+            // Walk back from the newest update: the cost depends on the gap, not on the history size.
+            Iterator<Recorded> it = queue.descendingIterator();
+            long count = 0;
+            while (it.hasNext()) {
+                Recorded recorded = it.next();
+                long seq = recorded.update.getOriginSequence();
+                if (seq <= from) {
+                    break;
+                }
+                if (seq <= to) {
+                    missing.add(recorded);
+                    count += seq - Math.max(recorded.update.getFirstSequence(), from + 1) + 1;
+                }
+            }
+            if (count != to - from) {
+                return null;
+            }
+        }
+        missing.sort(Comparator.comparingLong(r -> r.order));
+        List<UpdateMessage> updates = new ArrayList<>(missing.size());
+        for (Recorded recorded : missing) {
+            updates.add(recorded.update);
+        }
+        return updates;
+    }
+
+    /**
+     * Returns the number of recorded updates.
+     *
+     * @return the history size
+     */
+    public int size() {
+        return arrival.size();
+    }
+}
@@ -1,6 +1,10 @@
 package DS_datastore;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
 
 /**
  * A message representing a key-value update, along with its causal metadata,
@@ -8,13 +12,24 @@ import java.io.Serializable;
  * <p>
  * This class implements {@link ReplicableMessage} and can be sent over the network
  * during replication or stored for retry upon failure.
+ * <p>
+ * An update may carry several keys written together by one MWRITE: they share a single
+ * vector clock increment, are replicated as one message and are applied together by every replica.
+ * <p>
+ * A <em>range update</em> stands for a run of consecutive updates of one origin, from
+ * {@link #getFirstSequence()} to {@link #getOriginSequence()}, compacted by {@link UpdateCoalescer}:
+ * it keeps only the last value written to each key in the run, each with the origin sequence of that write
+ * (the counter of its dot, see {@link DottedVersion}), and its vector clock is the one of the last update of the run.
+ * <p>
+ * Every write also carries the hybrid timestamp it was stamped with ({@link HybridClock}): one for a plain
+ * update, one per key for a range update.
  */
 public class UpdateMessage implements ReplicableMessage {
-    /** The key being updated. */
-    private String key;
+    /** The keys being updated (at least one). */
+    private List<String> keys;
 
-    /** The new value to associate with the key. */
-    private String value;
+    /** The new values, in the same order as {@link #keys}. */
+    private List<String> values;
 
     /** The ID of the server that originated the update. */
     private String originServerId;
@@ -22,6 +37,21 @@ public class UpdateMessage implements ReplicableMessage {
     /** The vector clock representing the causal timestamp of this update. */
     private VectorClock vectorClock;
 
+    /** The origin sequence of each key of a range update, {@code null} for a plain update. */
+    private long[] sequences;
+
+    /** The origin sequence of the first update of a range (unused for a plain update). */
+    private long firstSequence;
+
+    /** The hybrid timestamp of a plain update, 0 if unknown (unused for a range update). */
+    private long timestamp;
+
+    /** The hybrid timestamp of each key of a range update, {@code null} for a plain update. */
+    private long[] timestamps;
+
+    /** {@link System#nanoTime()} of the local write that created the update, 0 if unknown; not sent. */
+    private transient long createdNanos;
+
     /**
      * Constructs a new {@code UpdateMessage}.
      *
@@ -29,27 +59,94 @@ public class UpdateMessage implements ReplicableMessage {
      * @param value          the new value
      * @param originServerId the ID of the server that generated the update
      * @param vectorClock    the vector clock representing the causal context of the update
+     * @param timestamp      the hybrid timestamp of the write, 0 if unknown
      */
-    public UpdateMessage(String key, String value, String originServerId, VectorClock vectorClock) {
-        this.key = key;
-        this.value = value;
+    public UpdateMessage(String key, String value, String originServerId, VectorClock vectorClock, long timestamp) {
+        this(List.of(key), List.of(value), originServerId, vectorClock, timestamp);
+    }
+
+    /**
+     * Constructs a new multi-key {@code UpdateMessage}.
+     *
+     * @param keys           the keys to update
+     * @param values         the new values, one per key
+     * @param originServerId the ID of the server that generated the update
+     * @param vectorClock    the vector clock representing the causal context of the update
+     * @param timestamp      the hybrid timestamp of the write, 0 if unknown
+     * @throws IllegalArgumentException if there are no keys or keys and values differ in number
+     */
+    public UpdateMessage(List<String> keys, List<String> values, String originServerId, VectorClock vectorClock,
+                         long timestamp) {
+        if (keys.isEmpty() || keys.size() != values.size()) {
+            throw new IllegalArgumentException("An update needs one value per key, and at least one key");
+        }
+        this.keys = List.copyOf(keys);
+        this.values = List.copyOf(values);
         this.originServerId = originServerId;
         this.vectorClock = new VectorClock(vectorClock); // copy the VC
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Constructs a range update, covering the origin sequences from {@code firstSequence} to the
+     * origin's entry of {@code vectorClock}.
+     * <p>
+     * A range may have no keys left when all its writes are already known to the receiver:
+     * it then only advances the receiver's clock.
+     *
+     * @param keys           the keys written by the range, each one once
+     * @param values         the last value written to each key
+     * @param sequences      the origin sequence of the write of each value
+     * @param timestamps     the hybrid timestamp of the write of each value
+     * @param originServerId the ID of the server that generated the updates
+     * @param vectorClock    the vector clock of the last update of the range
+     * @param firstSequence  the origin sequence of the first update of the range
+     * @throws IllegalArgumentException if keys, values, sequences and timestamps differ in number, or the range is empty
+     */
+    public UpdateMessage(List<String> keys, List<String> values, long[] sequences, long[] timestamps,
+                         String originServerId, VectorClock vectorClock, long firstSequence) {
+        if (keys.size() != values.size() || keys.size() != sequences.length || keys.size() != timestamps.length) {
+            throw new IllegalArgumentException("A range update needs one value, one sequence and one timestamp per key");
+        }
+        if (firstSequence < 1 || firstSequence > vectorClock.get(originServerId)) {
+            throw new IllegalArgumentException("Invalid range start " + firstSequence + " for clock " + vectorClock);
+        }
+        this.keys = List.copyOf(keys);
+        this.values = List.copyOf(values);
+        this.sequences = sequences.clone();
+        this.timestamps = timestamps.clone();
+        this.originServerId = originServerId;
+        this.vectorClock = new VectorClock(vectorClock);
+        this.firstSequence = firstSequence;
     }
 
     /**
-     * Returns the key associated with the update.
+     * Returns the key associated with the update (the first one for a multi-key update).
      *
      * @return the updated key
      */
-    public String getKey() { return key; }
+    public String getKey() { return keys.get(0); }
 
     /**
-     * Returns the value to associate with the key.
+     * Returns the value to associate with the key (the first one for a multi-key update).
      *
      * @return the new value
      */
-    public String getValue() { return value; }
+    public String getValue() { return values.get(0); }
+
+    /**
+     * Returns all the keys written by the update.
+     *
+     * @return an unmodifiable list of keys
+     */
+    public List<String> getKeys() { return keys; }
+
+    /**
+     * Returns all the values written by the update, in the same order as {@link #getKeys()}.
+     *
+     * @return an unmodifiable list of values
+     */
+    public List<String> getValues() { return values; }
 
     /**
      * Returns the ID of the server that created the update.
@@ -64,4 +161,163 @@ public class UpdateMessage implements ReplicableMessage {
      * @return the update's vector clock
      */
     public VectorClock getVectorClock() { return new VectorClock(vectorClock); }
+
+    /**
+     * Returns the logical time of the origin server carried by this update,
+     * i.e. its position in the origin's sequence of writes.
+     *
+     * @return the origin's counter in the update's vector clock
+     */
+    public long getOriginSequence() { return vectorClock.get(originServerId); }
+
+    /**
+     * Tells whether another update of the same origin was written after the same writes of the other servers,
+     * i.e. whether the two clocks only differ at the origin's entry.
+     *
+     * @param other the other update
+     * @return {@code true} if both updates have the same origin and the same dependencies on the other servers
+     */
+    public boolean sameDependencies(UpdateMessage other) {
+        return originServerId.equals(other.originServerId)
+                && vectorClock.equalsExcept(other.vectorClock, ServerIndex.lookup(originServerId));
+    }
+
+    /**
+     * Returns when the local write that created this update happened, for the replication lag metrics.
+     *
+     * @return a {@link System#nanoTime()} reading, 0 if unknown (e.g. the update was decoded from a stream)
+     */
+    public long getCreatedNanos() { return createdNanos; }
+
+    /**
+     * Records when the local write that created this update happened.
+     *
+     * @param createdNanos a {@link System#nanoTime()} reading
+     */
+    public void setCreatedNanos(long createdNanos) { this.createdNanos = createdNanos; }
+
+    /**
+     * Returns the origin sequence of the first update covered by this message:
+     * the origin sequence itself, unless this is a range update.
+     *
+     * @return the first covered origin sequence
+     */
+    public long getFirstSequence() { return sequences != null ? firstSequence : getOriginSequence(); }
+
+    /**
+     * Tells whether this message is a range update, whose keys carry their own origin sequences.
+     *
+     * @return {@code true} for a range update
+     */
+    public boolean isRange() { return sequences != null; }
+
+    /**
+     * Returns the origin sequence of the write of a key, the counter of the dot to store with it:
+     * its own for a range update, the update's origin sequence otherwise.
+     *
+     * @param index the position of the key in {@link #getKeys()}
+     * @return the origin sequence of the key's write
+     */
+    public long getSequence(int index) {
+        return sequences != null ? sequences[index] : getOriginSequence();
+    }
+
+    /**
+     * Returns the hybrid timestamp of the write of a key: its own for a range update, the update's otherwise.
+     *
+     * @param index the position of the key in {@link #getKeys()}
+     * @return the timestamp, 0 if unknown
+     */
+    public long getTimestamp(int index) {
+        return timestamps != null ? timestamps[index] : timestamp;
+    }
+
+    /**
+     * Returns this update with another vector clock, e.g. without the entries of retired servers.
+     *
+     * @param clock the new clock
+     * @return the new update
+     */
+    public UpdateMessage withClock(VectorClock clock) {
+        UpdateMessage update = isRange()
+                ? new UpdateMessage(keys, values, sequences, timestamps, originServerId, clock, firstSequence)
+                : new UpdateMessage(keys, values, originServerId, clock, timestamp);
+        update.createdNanos = createdNanos;
+        return update;
+    }
+
+    /**
+     * Returns this range update without the keys whose write the receiver has already applied,
+     * i.e. written by an origin sequence not above {@code applied}. A plain update is returned as is.
+     *
+     * @param applied the receiver's clock entry of the origin server
+     * @return the update restricted to the writes still to apply
+     */
+    public UpdateMessage withoutAppliedKeys(long applied) {
+        if (sequences == null || applied < firstSequence) {
+            return this;
+        }
+        List<String> k = new ArrayList<>();
+        List<String> v = new ArrayList<>();
+        long[] s = new long[keys.size()];
+        long[] t = new long[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            if (sequences[i] > applied) {
+                s[k.size()] = sequences[i];
+                t[k.size()] = timestamps[i];
+                k.add(keys.get(i));
+                v.add(values.get(i));
+            }
+        }
+        return new UpdateMessage(k, v, Arrays.copyOf(s, k.size()), Arrays.copyOf(t, k.size()), originServerId,
+                vectorClock, firstSequence);
+    }
+
+    /**
+     * Returns this update restricted to the keys accepted by a filter, e.g. those replicated by a given
+     * server ({@link HashRing}). If some key is dropped the result is a range update over the same
+     * origin sequences, each remaining key keeping its sequence; with no key left it only carries the
+     * clock, so that the receiver still sees every sequence of the origin and causal delivery is unaffected.
+     *
+     * @param filter accepts the positions in {@link #getKeys()} of the keys to keep
+     * @return this update if every key is kept, the restricted update otherwise
+     */
+    public UpdateMessage restrictTo(IntPredicate filter) {
+        List<String> k = new ArrayList<>(keys.size());
+        List<String> v = new ArrayList<>(keys.size());
+        long[] s = new long[keys.size()];
+        long[] t = new long[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            if (filter.test(i)) {
+                s[k.size()] = getSequence(i);
+                t[k.size()] = getTimestamp(i);
+                k.add(keys.get(i));
+                v.add(values.get(i));
+            }
+        }
+        if (k.size() == keys.size()) {
+            return this;
+        }
+        UpdateMessage restricted = new UpdateMessage(k, v, Arrays.copyOf(s, k.size()), Arrays.copyOf(t, k.size()),
+                originServerId, vectorClock, getFirstSequence());
+        restricted.createdNanos = createdNanos;
+        return restricted;
+    }
+
+    /**
+     * Returns a rough estimate of the serialized size of this update,
+     * used to bound the size of replication frames.
+     *
+     * @return the estimated size in bytes
+     */
+    public int getEstimatedSize() {
+        int size = 40 + 2 * originServerId.length() + 24 * vectorClock.size();
+        for (int i = 0; i < keys.size(); i++) {
+            size += 4 + 2 * (keys.get(i).length() + values.get(i).length());
+            if (sequences != null) {
+                size += 16;
+            }
+        }
+        return size;
+    }
 }
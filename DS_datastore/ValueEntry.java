@@ -1,13 +1,23 @@
 package DS_datastore;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * Represents a value stored in the key-value store along with its associated
- * vector clock for tracking causal history in a distributed system.
+ * Represents a value stored in the key-value store along with its version
+ * for tracking causal history in a distributed system.
  * <p>
  * This class is used to maintain both the actual data and its version metadata,
  * allowing consistent conflict resolution and ordering of updates.
+ * The version is an immutable {@link DottedVersion}: the dot of the write plus the dots it superseded,
+ * a few bytes per key instead of a copy of the server's vector clock.
+ * <p>
+ * When a key received concurrent writes and the {@link ConflictResolver} keeps them all, the entry holds them
+ * as <em>siblings</em>, each a single write with its own value and version, latest first. The value of such an
+ * entry is the one served to reads (the latest sibling's, or their merge) and its version is the latest
+ * sibling's. Entries without conflict, by far the most common, carry no sibling array.
  * <p>
  * Implements {@link Serializable} for transmission or persistent storage.
  */
@@ -15,18 +25,47 @@ public class ValueEntry implements Serializable {
     /** The actual value stored under a key. */
     private String value;
 
-    /** The vector clock associated with this value. */
-    private VectorClock vClock;
+    /** Immutable version of this value (of the latest sibling, if any). */
+    private final DottedVersion version;
+
+    /** The concurrent writes kept for this key, latest first; {@code null} without conflict. */
+    private final ValueEntry[] siblings;
 
     /**
-     * Constructs a new {@code ValueEntry} with the given value and vector clock.
+     * Constructs a new {@code ValueEntry} with the given value and version.
      *
-     * @param value  the value to store
-     * @param vClock the vector clock representing the version of the value
+     * @param value   the value to store
+     * @param version the version of the value
      */
-    public ValueEntry(String value, VectorClock vClock) {
+    public ValueEntry(String value, DottedVersion version) {
+        this(value, version, null);
+    }
+
+    private ValueEntry(String value, DottedVersion version, ValueEntry[] siblings) {
         this.value = value;
-        this.vClock = vClock; // make a copy
+        this.version = version;
+        this.siblings = siblings;
+    }
+
+    /**
+     * Returns an entry keeping concurrent writes side by side.
+     *
+     * @param value    the value served to reads, e.g. the latest sibling's or a merge of all of them
+     * @param siblings the concurrent writes, at least two and each without siblings, latest first
+     * @return the new entry
+     * @throws IllegalArgumentException if there are fewer than two siblings or a sibling has siblings
+     */
+    public static ValueEntry withSiblings(String value, List<ValueEntry> siblings) {
+        ValueEntry[] writes = siblings.toArray(new ValueEntry[0]);
+        if (writes.length < 2) {
+            throw new IllegalArgumentException("An entry with siblings needs at least two writes");
+        }
+        for (ValueEntry write : writes) {
+            if (write.siblings != null) {
+                throw new IllegalArgumentException("Nested siblings: " + write);
+            }
+        }
+        return new ValueEntry(value, writes[0].version, writes);
     }
 
     /**
@@ -39,22 +78,106 @@ public class ValueEntry implements Serializable {
     }
 
     /**
-     * Returns the vector clock associated with the value.
+     * Returns the version of the value.
+     *
+     * @return the dotted version
+     */
+    public DottedVersion getVersion() {
+        return version;
+    }
+
+    /**
+     * Tells whether the entry holds concurrent writes.
+     *
+     * @return {@code true} if the entry has siblings
+     */
+    public boolean hasSiblings() {
+        return siblings != null;
+    }
+
+    /**
+     * Returns the writes held by the entry: its siblings, latest first, or the entry itself without conflict.
+     *
+     * @return an unmodifiable list of entries without siblings
+     */
+    public List<ValueEntry> getSiblings() {
+        return (siblings != null)
+                ? Collections.unmodifiableList(Arrays.asList(siblings))
+                : Collections.singletonList(this);
+    }
+
+    /**
+     * Returns the highest counter of a server included in the versions of the entry's writes.
+     *
+     * @param index the {@link ServerIndex} index of the server
+     * @return the counter, 0 if none
+     */
+    public long seen(int index) {
+        if (siblings == null) {
+            return version.seen(index);
+        }
+        long seen = 0;
+        for (ValueEntry sibling : siblings) {
+            seen = Math.max(seen, sibling.version.seen(index));
+        }
+        return seen;
+    }
+
+    /**
+     * Returns the writes of the entry, dots and contexts, as a clock.
+     *
+     * @return a new clock
+     */
+    public VectorClock history() {
+        VectorClock history = version.history();
+        if (siblings != null) {
+            for (int i = 1; i < siblings.length; i++) {
+                history.merge(siblings[i].version.history());
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Returns a rough estimate of the encoded size of the entry, value and versions.
      *
-     * @return the vector clock
+     * @return the size in bytes
      */
-    public VectorClock getVectorClock() {
-        return vClock;
+    public int getEncodedSize() {
+        if (siblings == null) {
+            return 1 + value.length() + version.getEncodedSize();
+        }
+        int size = 2 + value.length();
+        for (ValueEntry sibling : siblings) {
+            size += sibling.getEncodedSize();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ValueEntry)) return false;
+        ValueEntry other = (ValueEntry) o;
+        return value.equals(other.value) && version.equals(other.version) && Arrays.equals(siblings, other.siblings);
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * value.hashCode() + version.hashCode()) * 31 + Arrays.hashCode(siblings);
     }
 
     /**
      * Returns a human-readable string representation of the entry,
-     * including its value and vector clock.
+     * including its value and version.
      *
-     * @return a string describing the value and its vector clock
+     * @return a string describing the value and its version
      */
     @Override
     public String toString() {
-        return "Value: " + value + ", VC: " + vClock.toString();
+        if (siblings != null) {
+            return "Value: " + value + ", siblings: " + Arrays.toString(siblings);
+        }
+        return "Value: " + value + ", version: " + version;
     }
 }
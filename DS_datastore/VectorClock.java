@@ -1,8 +1,11 @@
 package DS_datastore;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.time.Clock;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -14,11 +17,23 @@ import java.util.Set;
  * known logical time of all participating servers. This enables detection of
  * causality and concurrent updates.
  * <p>
+ * Counters are kept in a primitive {@code long[]} indexed through {@link ServerIndex}, so
+ * comparisons and merges neither box nor hash and do not allocate. Instances are not
+ * thread-safe: the owner of a mutable clock (e.g. {@link Server} for its local clock)
+ * guards it, and hands out copies to other threads.
+ * <p>
  * Implements {@link Serializable} to allow transmission across the network.
  */
 public class VectorClock implements Serializable {
-    /** The internal map representing logical timestamps for each server. */
-    private Map<String, Integer> clock;
+    /** Logical time of each server, indexed by {@link ServerIndex}; missing entries are zero. */
+    private transient long[] counters;
+
+    /**
+     * Constructs an empty vector clock (every server at time zero).
+     */
+    public VectorClock() {
+        counters = new long[0];
+    }
 
     /**
      * Constructs a new vector clock initialized with zero for each server ID.
@@ -26,29 +41,57 @@ public class VectorClock implements Serializable {
      * @param serverIds the set of all participating server IDs
      */
     public VectorClock(Set<String> serverIds) {
-        clock = new HashMap<>();
+        counters = new long[0];
         for (String id : serverIds) {
-            clock.put(id, 0);
+            addServer(id);
         }
     }
 
+    /**
+     * Constructs a deep copy of another vector clock.
+     *
+     * @param other the vector clock to copy
+     */
+    public VectorClock(VectorClock other) {
+        counters = other.counters.clone();
+    }
+
     /**
      * Adds a new server ID to the clock, initializing its counter to zero,
      * only if it's not already present.
+     * <p>
+     * This is the membership growth hook: it registers the ID in {@link ServerIndex}
+     * and widens the counter array so later operations on the server never resize it.
      *
      * @param serverId the new server ID to add
      */
-    public synchronized void addServer(String serverId) {
-        clock.putIfAbsent(serverId, 0);
+    public void addServer(String serverId) {
+        ensureCapacity(ServerIndex.indexOf(serverId) + 1);
     }
 
     /**
-     * Constructs a deep copy of another vector clock.
+     * Removes a server from the clock, setting its counter to zero; the counter array shrinks when the
+     * server held its last non-zero position.
+     * <p>
+     * This is the counterpart of {@link #addServer(String)}, used when the entry of a departed server
+     * is retired ({@link ClockRetirement}). The {@link ServerIndex} position stays assigned, so a position
+     * below a live server's one keeps widening the clock (at zero) until the process restarts.
      *
-     * @param other the vector clock to copy
+     * @param serverId the server to remove
      */
-    public VectorClock(VectorClock other) {
-        clock = new HashMap<>(other.clock);
+    public void removeServer(String serverId) {
+        int index = ServerIndex.lookup(serverId);
+        if (index < 0 || index >= counters.length) {
+            return;
+        }
+        counters[index] = 0;
+        int width = counters.length;
+        while (width > 0 && counters[width - 1] == 0) {
+            width--;
+        }
+        if (width < counters.length) {
+            counters = Arrays.copyOf(counters, width);
+        }
     }
 
     /**
@@ -56,17 +99,83 @@ public class VectorClock implements Serializable {
      *
      * @param serverId the server performing an update
      */
-    public synchronized void increment(String serverId) {
-        clock.put(serverId, clock.get(serverId) + 1);
+    public void increment(String serverId) {
+        int index = ServerIndex.indexOf(serverId);
+        ensureCapacity(index + 1);
+        counters[index]++;
+    }
+
+    /**
+     * Returns the logical time of the given server, or zero if it is unknown.
+     *
+     * @param serverId the server ID
+     * @return the counter associated with the server
+     */
+    public long get(String serverId) {
+        return getAt(ServerIndex.lookup(serverId));
+    }
+
+    /**
+     * Sets the logical time of the given server.
+     * Used when decoding clocks received from the network.
+     *
+     * @param serverId the server ID
+     * @param time     the counter to store
+     */
+    public void set(String serverId, long time) {
+        int index = ServerIndex.indexOf(serverId);
+        ensureCapacity(index + 1);
+        counters[index] = time;
+    }
+
+    /**
+     * Returns the logical time stored at a {@link ServerIndex} position.
+     *
+     * @param index the server index
+     * @return the counter, or zero if the position is outside the clock
+     */
+    public long getAt(int index) {
+        long[] c = counters;
+        return (index >= 0 && index < c.length) ? c[index] : 0;
+    }
+
+    /**
+     * Returns the number of positions held by this clock. Positions are
+     * {@link ServerIndex} indexes, so some of them may be zero.
+     *
+     * @return the length of the counter array
+     */
+    public int width() {
+        return counters.length;
+    }
+
+    /**
+     * Returns the number of servers with a non-zero counter.
+     *
+     * @return the number of non-zero entries
+     */
+    public int size() {
+        int n = 0;
+        for (long time : counters) {
+            if (time != 0) {
+                n++;
+            }
+        }
+        return n;
     }
 
     /**
-     * Returns a copy of the current vector clock map.
+     * Returns a copy of the current vector clock as a map keyed by server ID.
      *
      * @return a new map representing the vector clock state
      */
-    public synchronized Map<String, Integer> getClock() {
-        return new HashMap<>(clock);
+    public Map<String, Long> getClock() {
+        long[] c = counters;
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < c.length; i++) {
+            map.put(ServerIndex.idAt(i), c[i]);
+        }
+        return map;
     }
 
     /**
@@ -76,11 +185,14 @@ public class VectorClock implements Serializable {
      *
      * @param other the vector clock to merge from
      */
-    public synchronized void merge(VectorClock other) {
-        for (String id : other.clock.keySet()) {
-            int otherTime = other.clock.get(id);
-            int thisTime = clock.getOrDefault(id, 0);
-            clock.put(id, Math.max(thisTime, otherTime));
+    public void merge(VectorClock other) {
+        long[] o = other.counters;
+        ensureCapacity(o.length);
+        long[] c = counters;
+        for (int i = 0; i < o.length; i++) {
+            if (o[i] > c[i]) {
+                c[i] = o[i];
+            }
         }
     }
 
@@ -98,22 +210,70 @@ public class VectorClock implements Serializable {
      * </ul>
      * In other words, the update is only applied if all dependencies are already applied,
      * and this is the next expected event from {@code srcId}.
+     * <p>
+     * The check is read-only: an origin never seen by this process is not registered in the {@link ServerIndex}
+     * (its counters are 0, so the update cannot be applied).
      *
      * @param srcId       the ID of the server that generated the update
      * @param updateClock the vector clock timestamp of the incoming update
      * @return {@code true} if the update respects causal ordering and can be applied;
      *         {@code false} otherwise
      */
-    public synchronized boolean canApply(String srcId, VectorClock updateClock) {
-        for (String id : updateClock.clock.keySet()) {
-            int localTime = clock.getOrDefault(id, 0);
-            int updateTime = updateClock.clock.get(id);
-            if (id.equals(srcId)) {
-                if (localTime != updateTime - 1)
-                    return false;
-            } else {
-                if (localTime < updateTime)
-                    return false;
+    public boolean canApply(String srcId, VectorClock updateClock) {
+        return canApply(ServerIndex.lookup(srcId), updateClock);
+    }
+
+    /**
+     * Same as {@link #canApply(String, VectorClock)}, with the origin given by its {@link ServerIndex} index.
+     *
+     * @param srcIndex    the index of the server that generated the update, -1 if it was never registered
+     * @param updateClock the vector clock timestamp of the incoming update
+     * @return {@code true} if the update can be applied
+     */
+    public boolean canApply(int srcIndex, VectorClock updateClock) {
+        return canApply(srcIndex, updateClock, updateClock.getAt(srcIndex));
+    }
+
+    /**
+     * Checks causal readiness of a range update covering the origin's sequences from
+     * {@code firstSequence} to its entry of {@code updateClock}: the local clock must have reached
+     * the sequence just before the range without having passed its end, and must have seen every
+     * other entry of the range's clock. A range starting below the local entry overlaps
+     * updates already applied; the caller drops the writes it already has.
+     *
+     * @param srcIndex      the index of the server that generated the updates
+     * @param updateClock   the vector clock of the last update of the range
+     * @param firstSequence the origin sequence of the first update of the range
+     * @return {@code true} if the range can be applied
+     */
+    public boolean canApply(int srcIndex, VectorClock updateClock, long firstSequence) {
+        long[] c = counters;
+        long[] u = updateClock.counters;
+        long local = getAt(srcIndex);
+        if (local < firstSequence - 1 || local >= updateClock.getAt(srcIndex)) {
+            return false;
+        }
+        for (int i = 0; i < u.length; i++) {
+            if (i != srcIndex && u[i] > (i < c.length ? c[i] : 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether two clocks have the same counter for every server but one.
+     *
+     * @param other the other clock
+     * @param index the index of the server whose counters are not compared
+     * @return {@code true} if the clocks only differ at {@code index}
+     */
+    public boolean equalsExcept(VectorClock other, int index) {
+        long[] c = counters;
+        long[] o = other.counters;
+        for (int i = 0; i < Math.max(c.length, o.length); i++) {
+            if (i != index && (i < c.length ? c[i] : 0) != (i < o.length ? o[i] : 0)) {
+                return false;
             }
         }
         return true;
@@ -123,25 +283,57 @@ public class VectorClock implements Serializable {
      * Returns true if *this* VC is ≥ another one for **all** components.
      * Useful to discharge updates already included in the snapshot. Utile per scartare update ormai inclusi nello snapshot.
      */
-    public synchronized boolean dominates(VectorClock other) {
-        for (String id : other.clock.keySet()) {
-            int thisTime   = clock.getOrDefault(id, 0);
-            int otherTime  = other.clock.get(id);
-            if (thisTime < otherTime) {
+    public boolean dominates(VectorClock other) {
+        long[] c = counters;
+        long[] o = other.counters;
+        for (int i = 0; i < o.length; i++) {
+            if (o[i] > (i < c.length ? c[i] : 0)) {
                 return false;        // there is at least an older component.
             }
         }
         return true;                 // all components >=
     }
 
+    /**
+     * Widens the counter array to at least {@code length} positions.
+     */
+    private void ensureCapacity(int length) {
+        if (counters.length < length) {
+            counters = Arrays.copyOf(counters, length);
+        }
+    }
+
+    /**
+     * Serializes the clock by server ID, since {@link ServerIndex} positions are local to each JVM.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size());
+        long[] c = counters;
+        for (int i = 0; i < c.length; i++) {
+            if (c[i] != 0) {
+                out.writeUTF(ServerIndex.idAt(i));
+                out.writeLong(c[i]);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        counters = new long[0];
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            set(in.readUTF(), in.readLong());
+        }
+    }
 
     /**
      * Returns a string representation of the vector clock.
      *
-     * @return the string form of the internal clock map
+     * @return the string form of the clock, keyed by server ID
      */
     @Override
     public String toString() {
-        return clock.toString();
+        return getClock().toString();
     }
 }
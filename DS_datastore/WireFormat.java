@@ -0,0 +1,76 @@
+package DS_datastore;
+
+/**
+ * Constants of the binary wire format shared by {@link MessageWriter} and {@link MessageReader}.
+ * <p>
+ * Every stream starts with a header ({@link #MAGIC} followed by {@link #VERSION}), then carries
+ * a sequence of messages, each one introduced by a one-byte tag. A stream of another version is rejected.
+ * Inside a message:
+ * <ul>
+ *     <li>integers are unsigned LEB128 varints;</li>
+ *     <li>strings are a varint byte length followed by UTF-8 bytes;</li>
+ *     <li>server IDs are interned per stream: a varint {@code 0} followed by the string defines
+ *         the next table entry, a varint {@code n > 0} refers to entry {@code n - 1};</li>
+ *     <li>a vector clock is a varint entry count followed by (server ID, counter) pairs;</li>
+ *     <li>the version contexts of entries are interned like server IDs: a varint {@code 0} followed by a clock
+ *         defines the next entry, {@code n > 0} refers to entry {@code n - 1}; the table is reset at the start
+ *         of each {@link StateChunkMessage} and of each {@link AntiEntropyMessage} carrying entries;</li>
+ *     <li>an entry version is a {@link DottedVersion}: the varint counter of the dot, the origin server ID,
+ *         the varint hybrid timestamp of the write, then the context;</li>
+ *     <li>an entry is its value, a varint sibling count, then its version if the count is 0, or that many
+ *         (value, version) siblings;</li>
+ *     <li>an update is a varint key count, that many (key, value) pairs, the origin server ID and the clock,
+ *         then a byte flag: a plain update ends with the varint timestamp of its write, a range update
+ *         continues with its varint first origin sequence, then the varint origin sequence and timestamp
+ *         of each key in key order;</li>
+ *     <li>a replication connection carries {@link ReplicationBatch}es (a varint update count, then the updates)
+ *         and, in the other direction, {@link ReplicationAckMessage}s holding a varint origin sequence;</li>
+ *     <li>peers and join requests end with the varint client port of the server;</li>
+ *     <li>state requests carry a session ID, a resume index and a byte flag followed, if set, by the clock
+ *         of the requesting server, which the donor may answer with the missed updates only; state transfers
+ *         are streamed as {@link StateChunkMessage}s acknowledged by {@link StateAckMessage}s;</li>
+ *     <li>{@link AntiEntropyMessage}s compare Merkle tree nodes (varint node, 8-byte hash), a COMPARE ending
+ *         with the ID of its sender, and exchange the entries of differing leaves;</li>
+ *     <li>{@link GossipMessage}s are sent as UDP datagrams, each holding a complete stream (header and
+ *         one message): type, varint sequence, sender ID, the target peer of a PING_REQ, a varint count of
+ *         (peer, state byte, varint incarnation) membership updates, then a varint count of clock reports
+ *         (departed server ID, reporter ID, varint counter, retired byte flag).</li>
+ * </ul>
+ */
+public final class WireFormat {
+    /** First bytes of every stream ("DS"). */
+    public static final short MAGIC = 0x4453;
+
+    /** Version of the format, the only one read and written. */
+    public static final byte VERSION = 13;
+
+    /** Tag of an {@link UpdateMessage}. */
+    public static final byte TAG_UPDATE = 1;
+
+    /** Tag of a {@link ReplicationBatch}. */
+    public static final byte TAG_BATCH = 2;
+
+    /** Tag of a {@link DiscoveryMessage}. */
+    public static final byte TAG_DISCOVERY = 3;
+
+    /** Tag of a {@link StateRequestMessage}. */
+    public static final byte TAG_STATE_REQUEST = 4;
+
+    /** Tag of a {@link StateChunkMessage}. */
+    public static final byte TAG_STATE_CHUNK = 6;
+
+    /** Tag of a {@link StateAckMessage}. */
+    public static final byte TAG_STATE_ACK = 7;
+
+    /** Tag of an {@link AntiEntropyMessage}. */
+    public static final byte TAG_ANTI_ENTROPY = 8;
+
+    /** Tag of a {@link GossipMessage}. */
+    public static final byte TAG_GOSSIP = 9;
+
+    /** Tag of a {@link ReplicationAckMessage}. */
+    public static final byte TAG_REPLICATION_ACK = 10;
+
+    private WireFormat() {
+    }
+}
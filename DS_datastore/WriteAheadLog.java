@@ -0,0 +1,657 @@
+package DS_datastore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every change applied to the local {@link KeyValueStore}.
+ * <p>
+ * Each record is framed as {@code [int length][int crc32][payload]} and holds one of:
+ * <ul>
+ *     <li>an applied {@link UpdateMessage} (local or remote): origin, clock, keys and values, the hybrid
+ *         timestamp of the write, plus the origin sequence and timestamp of each key for a range update;</li>
+ *     <li>an entry received through a state transfer: key, value and {@link DottedVersion}, or its siblings;</li>
+ *     <li>a clock merged from a state transfer.</li>
+ * </ul>
+ * The log is split into numbered segment files ({@code wal-<n>.log}). {@link #rotate()} starts a new
+ * segment so that, once a {@link SnapshotFile} covers the older ones, they can be deleted with
+ * {@link #deleteSegmentsBefore(long)}. On startup {@link #replay(KeyValueStore, VectorClock, long)}
+ * rebuilds the store and the local clock from the segments not covered by the snapshot, resolving each write
+ * against the stored versions as it was when applied; a torn or corrupted tail (crash during a write) is truncated.
+ * <p>
+ * Durability depends on {@link ServerConfig#WAL_FSYNC}:
+ * <ul>
+ *     <li>{@link FsyncPolicy#ALWAYS}: {@link #commit(long)} forces the record to disk before the write
+ *         is acknowledged; concurrent writers share the same fsync;</li>
+ *     <li>{@link FsyncPolicy#GROUP}: records stay in an in-heap buffer until a background thread writes and
+ *         forces the log, every {@link ServerConfig#WAL_GROUP_COMMIT_MS} ms, so at most that window of
+ *         acknowledged writes can be lost on a process crash as well as on a power failure;</li>
+ *     <li>{@link FsyncPolicy#OS}: every record is handed to the operating system immediately, and forced by
+ *         the same background thread; an acknowledged write survives a process crash, not a power failure.</li>
+ * </ul>
+ * Whatever the policy, {@link #whenDurable(long, Runnable)} runs an action once a record is on disk, e.g. to
+ * replicate a local write only when a restart can no longer lose it and reuse its counter.
+ * <p>
+ * Thread-safe.
+ */
+public class WriteAheadLog implements Closeable {
+    /** Fsync policies of the log. */
+    public enum FsyncPolicy {
+        ALWAYS, GROUP, OS
+    }
+
+    /** Record holding a clock merged from a state transfer. */
+    private static final byte RECORD_CLOCK = 3;
+
+    /** Record holding an applied update, plain or range, with the hybrid timestamp of each write. */
+    private static final byte RECORD_UPDATE = 7;
+
+    /** Record holding a store entry received through a state transfer, with its versions or its siblings. */
+    private static final byte RECORD_ENTRY = 8;
+
+    /** Size of the record frame header (length and checksum). */
+    private static final int FRAME_HEADER = 8;
+
+    /** Upper bound on a record payload, used to detect corrupted lengths. */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    /** Name of the segment files. */
+    private static final Pattern SEGMENT_NAME = Pattern.compile("wal-(\\d+)\\.log");
+
+    /** Directory holding the segments. */
+    private final Path directory;
+
+    /** Number of the segment being appended to. */
+    private long segment;
+
+    /** Channel on the current segment, positioned at its end; {@code null} before the replay. */
+    private FileChannel channel;
+
+    /** Bytes stored in the live segments, i.e. written since the last snapshot. */
+    private volatile long logBytes;
+
+    /** Fsync policy. */
+    private final FsyncPolicy policy;
+
+    /** Records appended but not yet written to the channel. */
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    /** Scratch stream used to encode record payloads. */
+    private final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream payload = new DataOutputStream(payloadBytes);
+
+    /** Checksum of record payloads. */
+    private final CRC32 crc = new CRC32();
+
+    /** Sequence number of the last appended record. */
+    private long appendedSeq;
+
+    /** Sequence number of the last record known to be on disk. */
+    private volatile long durableSeq;
+
+    /** Serializes the fsync calls. */
+    private final Object syncLock = new Object();
+
+    /** Actions waiting for their record to be durable, in record order; guarded by itself. */
+    private final ArrayDeque<DurableAction> durableActions = new ArrayDeque<>();
+
+    /** Action registered through {@link #whenDurable(long, Runnable)}. */
+    private static final class DurableAction {
+        final long seq;
+        final Runnable action;
+
+        DurableAction(long seq, Runnable action) {
+            this.seq = seq;
+            this.action = action;
+        }
+    }
+
+    /** Background group-commit thread, or {@code null}. */
+    private Thread flusher;
+
+    /** Set to {@code false} when the log is closed. */
+    private volatile boolean open = true;
+
+    /**
+     * Prepares the log in the given directory.
+     * Call {@link #replay(KeyValueStore, VectorClock, long)} before appending.
+     *
+     * @param directory the data directory of the server
+     * @param policy    the fsync policy
+     * @throws IOException if the directory cannot be created
+     */
+    public WriteAheadLog(Path directory, FsyncPolicy policy) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.policy = policy;
+    }
+
+    /**
+     * Replays the segments from {@code firstSegment} on into the store and the clock, deletes
+     * older segments, truncates a damaged tail, and opens the last segment for appending.
+     * Unless {@link FsyncPolicy#ALWAYS} is selected, the group-commit thread is started.
+     *
+     * @param store        the store to rebuild
+     * @param clock        the clock to advance with every replayed version
+     * @param firstSegment the first segment not covered by the loaded snapshot (0 without snapshot)
+     * @return the number of replayed records
+     * @throws IOException if a segment cannot be read
+     */
+    public synchronized int replay(KeyValueStore store, VectorClock clock, long firstSegment) throws IOException {
+        deleteSegmentsBefore(firstSegment);
+        List<Long> segments = listSegments();
+        int count = 0;
+        long bytes = 0;
+        segment = firstSegment;
+        for (int i = 0; i < segments.size(); i++) {
+            segment = segments.get(i);
+            Path path = segmentPath(segment);
+            long size = Files.size(path);
+            long valid = replaySegment(path, size, store, clock);
+            count += replayedRecords;
+            bytes += valid;
+            if (valid < size) {
+                Log.warn("WAL: dropping " + (size - valid) + " bytes of damaged tail in " + path);
+                try (FileChannel damaged = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    damaged.truncate(valid);
+                }
+                // Later segments would apply changes on top of a gap: drop them as well.
+                for (int j = i + 1; j < segments.size(); j++) {
+                    Log.warn("WAL: dropping segment " + segmentPath(segments.get(j)) + " after a damaged one");
+                    Files.delete(segmentPath(segments.get(j)));
+                }
+                break;
+            }
+        }
+        channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        logBytes = bytes;
+        appendedSeq = count;
+        durableSeq = count;
+        if (policy != FsyncPolicy.ALWAYS && flusher == null) {
+            flusher = new Thread(this::groupCommitLoop, "wal-group-commit");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        return count;
+    }
+
+    /** Records replayed by the last call of {@link #replaySegment}. */
+    private int replayedRecords;
+
+    /**
+     * Replays one segment.
+     *
+     * @return the length of its valid prefix
+     */
+    private long replaySegment(Path path, long size, KeyValueStore store, VectorClock clock) throws IOException {
+        replayedRecords = 0;
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            while (position + FRAME_HEADER <= size) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE || position + FRAME_HEADER + length > size) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                crc.reset();
+                crc.update(data);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(data)), store, clock);
+                position += FRAME_HEADER + length;
+                replayedRecords++;
+            }
+        } catch (EOFException e) {
+            // Torn record at the end of the file: dropped by the caller.
+        }
+        return position;
+    }
+
+    private void apply(DataInputStream in, KeyValueStore store, VectorClock clock) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case RECORD_UPDATE: {
+                String origin = in.readUTF();
+                boolean range = in.readBoolean();
+                if (range) {
+                    in.readLong(); // first sequence, kept for inspection
+                }
+                VectorClock version = readClock(in);
+                long timestamp = range ? 0 : in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key = readString(in);
+                    String value = readString(in);
+                    long sequence = version.get(origin);
+                    if (range) {
+                        sequence = in.readLong();
+                        timestamp = in.readLong();
+                    }
+                    store.apply(key, value, origin, sequence, timestamp, version);
+                }
+                clock.merge(version);
+                break;
+            }
+            case RECORD_ENTRY: {
+                String key = readString(in);
+                String value = readString(in);
+                int siblings = in.readInt();
+                if (siblings == 0) {
+                    store.mergeEntry(key, new ValueEntry(value, readVersion(in)));
+                    break;
+                }
+                List<ValueEntry> writes = new ArrayList<>(siblings);
+                for (int i = 0; i < siblings; i++) {
+                    String siblingValue = readString(in);
+                    writes.add(new ValueEntry(siblingValue, readVersion(in)));
+                }
+                store.mergeEntry(key, ValueEntry.withSiblings(value, writes));
+                break;
+            }
+            case RECORD_CLOCK:
+                clock.merge(readClock(in));
+                break;
+            default:
+                throw new StreamCorruptedException("Unknown WAL record type " + type);
+        }
+    }
+
+    /**
+     * Appends an applied update.
+     *
+     * @param update the update written to the store
+     * @return the sequence number of the record, to be passed to {@link #commit(long)}
+     * @throws UncheckedIOException if the log cannot be written
+     */
+    public synchronized long appendUpdate(UpdateMessage update) {
+        try {
+            payloadBytes.reset();
+            payload.writeByte(RECORD_UPDATE);
+            payload.writeUTF(update.getOriginServerId());
+            payload.writeBoolean(update.isRange());
+            if (update.isRange()) {
+                payload.writeLong(update.getFirstSequence());
+            }
+            writeClock(update.getVectorClock());
+            if (!update.isRange()) {
+                payload.writeLong(update.getTimestamp(0));
+            }
+            List<String> keys = update.getKeys();
+            List<String> values = update.getValues();
+            payload.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                writeString(keys.get(i));
+                writeString(values.get(i));
+                if (update.isRange()) {
+                    payload.writeLong(update.getSequence(i));
+                    payload.writeLong(update.getTimestamp(i));
+                }
+            }
+            return appendPayload();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends entries received through a state transfer.
+     *
+     * @param keys    the received keys
+     * @param entries the received entries, one per key
+     * @return the sequence number of the last record
+     * @throws UncheckedIOException if the log cannot be written
+     */
+    public synchronized long appendEntries(List<String> keys, List<ValueEntry> entries) {
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                payloadBytes.reset();
+                ValueEntry entry = entries.get(i);
+                payload.writeByte(RECORD_ENTRY);
+                writeString(keys.get(i));
+                writeString(entry.getValue());
+                if (entry.hasSiblings()) {
+                    payload.writeInt(entry.getSiblings().size());
+                    for (ValueEntry sibling : entry.getSiblings()) {
+                        writeString(sibling.getValue());
+                        writeVersion(sibling.getVersion());
+                    }
+                } else {
+                    payload.writeInt(0);
+                    writeVersion(entry.getVersion());
+                }
+                appendPayload();
+            }
+            return appendedSeq;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends the clock received at the end of a state transfer.
+     *
+     * @param clock the donor's clock
+     * @return the sequence number of the record
+     * @throws UncheckedIOException if the log cannot be written
+     */
+    public synchronized long appendClock(VectorClock clock) {
+        try {
+            payloadBytes.reset();
+            payload.writeByte(RECORD_CLOCK);
+            writeClock(clock);
+            return appendPayload();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long appendPayload() throws IOException {
+        int length = payloadBytes.size();
+        if (buffer.remaining() < FRAME_HEADER + length) {
+            writeBuffer();
+            if (buffer.capacity() < FRAME_HEADER + length) {
+                buffer = ByteBuffer.allocate(FRAME_HEADER + length);
+            }
+        }
+        crc.reset();
+        byte[] data = payloadBytes.toByteArray();
+        crc.update(data);
+        buffer.putInt(length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(data);
+        logBytes += FRAME_HEADER + length;
+        appendedSeq++;
+        if (policy == FsyncPolicy.OS) {
+            writeBuffer();
+        }
+        return appendedSeq;
+    }
+
+    /** Hands the buffered records to the operating system. Must hold the monitor. */
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Makes sure a record is durable as required by the fsync policy. With {@link FsyncPolicy#ALWAYS}
+     * it blocks until the record has been forced to disk; otherwise it returns immediately.
+     * Must be called without holding locks shared with other writers, so that they can share the fsync.
+     *
+     * @param seq the sequence number returned by an append
+     * @throws UncheckedIOException if the log cannot be forced
+     */
+    public void commit(long seq) {
+        if (policy == FsyncPolicy.ALWAYS && durableSeq < seq) {
+            sync();
+        }
+        runDurableActions();
+    }
+
+    /**
+     * Runs an action once a record is durable, after the actions of the earlier records. The action runs on
+     * the thread that makes the record durable or that commits it, or right away if it already is durable,
+     * and must not block.
+     *
+     * @param seq    the sequence number returned by an append
+     * @param action the action
+     */
+    public void whenDurable(long seq, Runnable action) {
+        synchronized (durableActions) {
+            durableActions.add(new DurableAction(seq, action));
+        }
+        if (seq <= durableSeq) {
+            runDurableActions();
+        }
+    }
+
+    /**
+     * Runs, in record order, the registered actions whose record is durable.
+     */
+    private void runDurableActions() {
+        synchronized (durableActions) {
+            DurableAction next;
+            while ((next = durableActions.peek()) != null && next.seq <= durableSeq) {
+                durableActions.poll();
+                try {
+                    next.action.run();
+                } catch (RuntimeException e) {
+                    Log.error("Action after WAL commit failed: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes every appended record and forces the file to disk.
+     *
+     * @throws UncheckedIOException if the log cannot be written
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            try {
+                long target;
+                synchronized (this) {
+                    target = appendedSeq;
+                    if (durableSeq < target) {
+                        writeBuffer();
+                    }
+                }
+                if (durableSeq < target) {
+                    // Forced outside the monitor: appends continue while the disk works.
+                    channel.force(false);
+                    durableSeq = target;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        runDurableActions();
+    }
+
+    /**
+     * Closes the current segment, after forcing it to disk, and starts a new one.
+     * Every record appended before the call is in a segment older than the returned one.
+     *
+     * @return the number of the new segment
+     * @throws IOException if the log cannot be written
+     */
+    public long rotate() throws IOException {
+        long rotated;
+        synchronized (syncLock) {
+            synchronized (this) {
+                writeBuffer();
+                channel.force(false);
+                channel.close();
+                segment++;
+                channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                durableSeq = appendedSeq;
+                rotated = segment;
+            }
+        }
+        runDurableActions();
+        return rotated;
+    }
+
+    /**
+     * Deletes the segments older than the given one, once a snapshot covers them.
+     *
+     * @param first the first segment to keep
+     * @throws IOException if a segment cannot be deleted
+     */
+    public void deleteSegmentsBefore(long first) throws IOException {
+        for (long old : listSegments()) {
+            if (old < first) {
+                Path path = segmentPath(old);
+                long size = Files.size(path);
+                Files.delete(path);
+                synchronized (this) {
+                    logBytes = Math.max(0, logBytes - size);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes stored in the live segments, i.e. logged since the last snapshot.
+     *
+     * @return the size of the log
+     */
+    public long getLogBytes() {
+        return logBytes;
+    }
+
+    private Path segmentPath(long n) {
+        return directory.resolve("wal-" + n + ".log");
+    }
+
+    /**
+     * Returns the numbers of the segments present in the directory, in increasing order.
+     */
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path file : files) {
+                Matcher m = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (m.matches()) {
+                    segments.add(Long.parseLong(m.group(1)));
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private void groupCommitLoop() {
+        while (open) {
+            try {
+                Thread.sleep(ServerConfig.WAL_GROUP_COMMIT_MS);
+                sync();
+            } catch (InterruptedException e) {
+                break;
+            } catch (UncheckedIOException e) {
+                Log.error("WAL group commit failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last record known to be on disk.
+     *
+     * @return the durable sequence number
+     */
+    public long getDurableSequence() {
+        return durableSeq;
+    }
+
+    /**
+     * Returns the sequence number of the last appended record.
+     *
+     * @return the appended sequence number
+     */
+    public synchronized long getAppendedSequence() {
+        return appendedSeq;
+    }
+
+    /**
+     * Returns the fsync policy of the log.
+     *
+     * @return the policy
+     */
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Forces every appended record to disk and closes the file.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        try {
+            sync();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        payload.writeInt(bytes.length);
+        payload.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeClock(VectorClock clock) throws IOException {
+        payload.writeInt(clock.size());
+        int width = clock.width();
+        for (int i = 0; i < width; i++) {
+            long time = clock.getAt(i);
+            if (time != 0) {
+                payload.writeUTF(ServerIndex.idAt(i));
+                payload.writeLong(time);
+            }
+        }
+    }
+
+    private void writeVersion(DottedVersion version) throws IOException {
+        payload.writeUTF(version.getOriginId());
+        payload.writeLong(version.getCounter());
+        payload.writeLong(version.getTimestamp());
+        writeClock(version.getContext().toVectorClock());
+    }
+
+    private static DottedVersion readVersion(DataInputStream in) throws IOException {
+        String origin = in.readUTF();
+        long counter = in.readLong();
+        long timestamp = in.readLong();
+        ClockSnapshot context = ClockSnapshot.of(readClock(in));
+        if (origin.isEmpty() || counter < 1) {
+            throw new StreamCorruptedException("Version without dot");
+        }
+        return DottedVersion.of(origin, counter, timestamp, context);
+    }
+
+    private static VectorClock readClock(DataInputStream in) throws IOException {
+        VectorClock clock = new VectorClock();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String id = in.readUTF();
+            clock.set(id, in.readLong());
+        }
+        return clock;
+    }
+}
@@ -0,0 +1,130 @@
+package DS_datastore.bench;
+
+import DS_datastore.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Microbenchmark of the binary wire codec ({@link MessageWriter}/{@link MessageReader})
+ * against Java serialization ({@link ObjectOutputStream}/{@link ObjectInputStream}).
+ * <p>
+ * For each message shape it reports the encoded size and the encode/decode cost per message.
+ * Every operation uses a fresh stream, as a connection carrying a single message would.
+ * <p>
+ * Usage:
+ * <pre>
+ *     java DS_datastore.bench.CodecBenchmark [&lt;servers&gt;] [&lt;iterations&gt;]
+ * </pre>
+ */
+public class CodecBenchmark {
+
+    /** A way of turning a message into bytes and back. */
+    private interface Codec {
+        byte[] encode(Object msg) throws Exception;
+
+        Object decode(byte[] bytes) throws Exception;
+    }
+
+    private static final Codec JAVA = new Codec() {
+        public byte[] encode(Object msg) throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(msg);
+            }
+            return bytes.toByteArray();
+        }
+
+        public Object decode(byte[] bytes) throws Exception {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return in.readObject();
+            }
+        }
+    };
+
+    private static final Codec WIRE = new Codec() {
+        public byte[] encode(Object msg) throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (MessageWriter out = new MessageWriter(bytes)) {
+                out.writeMessage(msg);
+            }
+            return bytes.toByteArray();
+        }
+
+        public Object decode(byte[] bytes) throws Exception {
+            try (MessageReader in = new MessageReader(new ByteArrayInputStream(bytes))) {
+                return in.readMessage();
+            }
+        }
+    };
+
+    /** Sink preventing the JIT from discarding benchmark results. */
+    private static long blackhole;
+
+    public static void main(String[] args) throws Exception {
+        int servers = (args.length >= 1) ? Integer.parseInt(args[0]) : 3;
+        int iterations = (args.length >= 2) ? Integer.parseInt(args[1]) : 20_000;
+
+        Set<String> ids = new HashSet<>();
+        for (int i = 1; i <= servers; i++) {
+            ids.add("server" + i);
+        }
+        VectorClock clock = new VectorClock(ids);
+        for (String id : ids) {
+            for (int i = 0; i < 1000; i++) {
+                clock.increment(id);
+            }
+        }
+
+        HybridClock hybridClock = new HybridClock();
+        UpdateMessage update = new UpdateMessage("user:1234", "some value", "server1", clock, hybridClock.now());
+        List<UpdateMessage> updates = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            clock.increment("server1");
+            updates.add(new UpdateMessage("user:" + i, "value-" + i, "server1", clock, hybridClock.now()));
+        }
+        List<String> keys = new ArrayList<>();
+        List<ValueEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add("user:" + i);
+            entries.add(new ValueEntry("value-" + i,
+                    DottedVersion.of("server1", 1000 + i, hybridClock.now(), ClockSnapshot.EMPTY)));
+        }
+
+        System.out.printf("%d servers in each vector clock, %d iterations%n", servers, iterations);
+        System.out.printf("%-26s %-6s %10s %14s %14s%n", "message", "codec", "bytes", "encode ns/op", "decode ns/op");
+        run("UpdateMessage", update, iterations);
+        run("ReplicationBatch(100)", new ReplicationBatch(updates), iterations / 20);
+        // State chunks exist on the wire only: there is no Java serialization to compare with.
+        measure("StateChunk(1000)", "wire", WIRE,
+                new StateChunkMessage(1, 0, 1000, keys, entries, true, clock), iterations / 200);
+        if (blackhole == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void run(String name, Object msg, int iterations) throws Exception {
+        measure(name, "java", JAVA, msg, iterations);
+        measure(name, "wire", WIRE, msg, iterations);
+    }
+
+    private static void measure(String name, String codecName, Codec codec, Object msg, int iterations) throws Exception {
+        byte[] encoded = codec.encode(msg);
+        // Warm up both directions before measuring.
+        for (int i = 0; i < iterations; i++) {
+            blackhole += codec.encode(msg).length;
+            blackhole += codec.decode(encoded).hashCode();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            blackhole += codec.encode(msg).length;
+        }
+        long encodeNanos = (System.nanoTime() - start) / iterations;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            blackhole += codec.decode(encoded).hashCode();
+        }
+        long decodeNanos = (System.nanoTime() - start) / iterations;
+        System.out.printf("%-26s %-6s %10d %14d %14d%n", name, codecName, encoded.length, encodeNanos, decodeNanos);
+    }
+}
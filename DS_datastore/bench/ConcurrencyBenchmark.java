@@ -0,0 +1,72 @@
+package DS_datastore.bench;
+
+import DS_datastore.Server;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-threaded read/write benchmark of a single {@link Server} (no peers), showing how
+ * client operations scale with the number of threads now that reads do not lock and
+ * writes only serialize on clock stamping.
+ * <p>
+ * Usage:
+ * <pre>
+ *     java DS_datastore.bench.ConcurrencyBenchmark [&lt;readPercent&gt;] [&lt;secondsPerRun&gt;] [&lt;maxThreads&gt;]
+ * </pre>
+ */
+public class ConcurrencyBenchmark {
+
+    /** Number of distinct keys touched by the benchmark. */
+    private static final int KEYS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int readPercent = (args.length >= 1) ? Integer.parseInt(args[0]) : 90;
+        int seconds = (args.length >= 2) ? Integer.parseInt(args[1]) : 3;
+        int maxThreads = (args.length >= 3) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors() * 2;
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Server server = new Server("bench", 0, 0, 0, 0,
+                new HashSet<>(Collections.singleton("bench")), new ArrayList<>(), null, 0);
+        for (int i = 0; i < KEYS; i++) {
+            server.handleLocalWrite("key" + i, "value" + i);
+        }
+
+        stdout.printf("%d%% reads, %d available processors%n", readPercent, Runtime.getRuntime().availableProcessors());
+        stdout.printf("%-8s %14s%n", "threads", "ops/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            stdout.printf("%-8d %14.0f%n", threads, run(server, threads, readPercent, seconds));
+        }
+        System.setOut(stdout);
+    }
+
+    private static double run(Server server, int threads, int readPercent, int seconds) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while ((count & 0xFF) != 0 || System.nanoTime() < deadline) {
+                    String key = "key" + random.nextInt(KEYS);
+                    if (random.nextInt(100) < readPercent) {
+                        server.handleLocalRead(key);
+                    } else {
+                        server.handleLocalWrite(key, "v" + count);
+                    }
+                    count++;
+                }
+                ops.add(count);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return ops.sum() / (double) seconds;
+    }
+}
@@ -0,0 +1,109 @@
+package DS_datastore.bench;
+
+import DS_datastore.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * Throughput benchmark comparing the legacy per-message replication path
+ * (one socket and one message stream per update) with the persistent
+ * {@link ReplicationChannel} used by {@link Server#replicateUpdate(UpdateMessage)}.
+ * <p>
+ * Both paths replicate to a real {@link ReplicationListener} on the loopback interface and the
+ * measurement stops when the receiver has applied every update.
+ * <p>
+ * Usage:
+ * <pre>
+ *     java DS_datastore.bench.ReplicationBenchmark [&lt;updates&gt;] [&lt;replicationPort&gt;]
+ * </pre>
+ */
+public class ReplicationBenchmark {
+
+    /** Maximum time to wait for the receiver to apply all updates. */
+    private static final long TIMEOUT_MS = 120_000;
+
+    public static void main(String[] args) throws Exception {
+        int updates = (args.length >= 1) ? Integer.parseInt(args[0]) : 2000;
+        int port = (args.length >= 2) ? Integer.parseInt(args[1]) : 18085;
+
+        Server receiver = new Server("receiver", 0, port, 0, 0,
+                new HashSet<>(Collections.singleton("receiver")), new ArrayList<>(), null, 0);
+        Thread listener = new Thread(new ReplicationListener(receiver));
+        listener.setDaemon(true);
+        listener.start();
+        Thread.sleep(200);
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long legacyNanos = runLegacy(receiver, port, updates);
+            long channelNanos = runChannel(receiver, port, updates);
+            report(stdout, "per-message sockets", updates, legacyNanos);
+            report(stdout, "persistent channel", updates, channelNanos);
+        } finally {
+            System.setOut(stdout);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Replicates {@code updates} messages the way {@code Server.replicateUpdate} used to:
+     * one new connection and object stream per message. Messages are sent sequentially rather than
+     * from one thread each, otherwise the listener's accept backlog overflows and updates are dropped.
+     */
+    private static long runLegacy(Server receiver, int port, int updates) throws Exception {
+        String origin = "legacy";
+        VectorClock clock = new VectorClock(Collections.singleton(origin));
+        HybridClock hybridClock = new HybridClock();
+        long start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            clock.increment(origin);
+            UpdateMessage update = new UpdateMessage("key" + (i % 100), "value" + i, origin, clock, hybridClock.now());
+            try (Socket socket = new Socket("127.0.0.1", port);
+                 MessageWriter out = new MessageWriter(socket.getOutputStream())) {
+                out.writeMessage(update);
+                out.flush();
+            }
+        }
+        awaitApplied(receiver, origin, updates);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Replicates {@code updates} local writes of a sender server through its persistent channel.
+     */
+    private static long runChannel(Server receiver, int port, int updates) throws InterruptedException {
+        String origin = "channel";
+        PeerInfo receiverPeer = new PeerInfo("receiver", "127.0.0.1", port, 0, 0);
+        Server sender = new Server(origin, 0, 0, 0, 0,
+                new HashSet<>(Collections.singleton(origin)), Collections.singletonList(receiverPeer), null, 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            sender.handleLocalWrite("key" + (i % 100), "value" + i);
+        }
+        awaitApplied(receiver, origin, updates);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Waits until the receiver's clock shows {@code updates} applied events from {@code origin}.
+     */
+    private static void awaitApplied(Server receiver, String origin, int updates) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (receiver.getLocalClock().get(origin) < updates) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Timed out waiting for updates from " + origin);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static void report(PrintStream out, String name, int updates, long nanos) {
+        double seconds = nanos / 1e9;
+        out.printf("%-22s %8d updates in %8.1f ms -> %10.0f updates/s%n",
+                name, updates, nanos / 1e6, updates / seconds);
+    }
+}
@@ -0,0 +1,138 @@
+package DS_datastore.bench;
+
+import DS_datastore.VectorClock;
+
+import java.util.*;
+
+/**
+ * Microbenchmark of the array-backed {@link VectorClock} against the previous
+ * synchronized {@code HashMap<String,Integer>} implementation, for clusters of 3, 16 and 64 servers.
+ * <p>
+ * Each operation is measured on the hot path of {@code Server}: {@code canApply} and
+ * {@code dominates} on every remote update, {@code merge} after applying it, {@code increment}
+ * on every local write, and the copy made for each {@code UpdateMessage}.
+ * <p>
+ * Usage:
+ * <pre>
+ *     java DS_datastore.bench.VectorClockBenchmark [&lt;iterations&gt;]
+ * </pre>
+ */
+public class VectorClockBenchmark {
+
+    /** The map-based clock replaced by the array-backed one, kept here as the baseline. */
+    private static class MapVectorClock {
+        private final Map<String, Integer> clock;
+
+        MapVectorClock(Set<String> serverIds) {
+            clock = new HashMap<>();
+            for (String id : serverIds) {
+                clock.put(id, 0);
+            }
+        }
+
+        MapVectorClock(MapVectorClock other) {
+            clock = new HashMap<>(other.clock);
+        }
+
+        synchronized void increment(String serverId) {
+            clock.put(serverId, clock.get(serverId) + 1);
+        }
+
+        synchronized void merge(MapVectorClock other) {
+            for (String id : other.clock.keySet()) {
+                int otherTime = other.clock.get(id);
+                int thisTime = clock.getOrDefault(id, 0);
+                clock.put(id, Math.max(thisTime, otherTime));
+            }
+        }
+
+        synchronized boolean canApply(String srcId, MapVectorClock updateClock) {
+            for (String id : updateClock.clock.keySet()) {
+                int localTime = clock.getOrDefault(id, 0);
+                int updateTime = updateClock.clock.get(id);
+                if (id.equals(srcId)) {
+                    if (localTime != updateTime - 1)
+                        return false;
+                } else {
+                    if (localTime < updateTime)
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        synchronized boolean dominates(MapVectorClock other) {
+            for (String id : other.clock.keySet()) {
+                if (clock.getOrDefault(id, 0) < other.clock.get(id)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Sink preventing the JIT from discarding benchmark results. */
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        int iterations = (args.length >= 1) ? Integer.parseInt(args[0]) : 2_000_000;
+        System.out.printf("%-6s %-12s %12s %12s%n", "nodes", "operation", "map ns/op", "array ns/op");
+        for (int nodes : new int[]{3, 16, 64}) {
+            run(nodes, iterations);
+        }
+        if (blackhole == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void run(int nodes, int iterations) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (int i = 1; i <= nodes; i++) {
+            ids.add("node" + nodes + "-" + i);
+        }
+        String src = ids.iterator().next();
+
+        MapVectorClock mapLocal = new MapVectorClock(ids);
+        MapVectorClock mapUpdate = new MapVectorClock(ids);
+        mapUpdate.increment(src);
+        VectorClock local = new VectorClock(ids);
+        VectorClock update = new VectorClock(ids);
+        update.increment(src);
+
+        report(nodes, "canApply",
+                time(iterations, () -> blackhole += mapLocal.canApply(src, mapUpdate) ? 1 : 0),
+                time(iterations, () -> blackhole += local.canApply(src, update) ? 1 : 0));
+        report(nodes, "dominates",
+                time(iterations, () -> blackhole += mapLocal.dominates(mapUpdate) ? 1 : 0),
+                time(iterations, () -> blackhole += local.dominates(update) ? 1 : 0));
+        report(nodes, "merge",
+                time(iterations, () -> mapLocal.merge(mapUpdate)),
+                time(iterations, () -> local.merge(update)));
+        report(nodes, "increment",
+                time(iterations, () -> mapLocal.increment(src)),
+                time(iterations, () -> local.increment(src)));
+        report(nodes, "copy",
+                time(iterations, () -> blackhole += new MapVectorClock(mapLocal).hashCode()),
+                time(iterations, () -> blackhole += new VectorClock(local).hashCode()));
+    }
+
+    /**
+     * Runs the operation once for warm-up, then again while timing it.
+     *
+     * @return the average time per operation, in nanoseconds
+     */
+    private static double time(int iterations, Runnable op) {
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static void report(int nodes, String op, double mapNanos, double arrayNanos) {
+        System.out.printf("%-6d %-12s %12.1f %12.1f%n", nodes, op, mapNanos, arrayNanos);
+    }
+}